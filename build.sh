@@ -7,8 +7,8 @@ echo "Building Locus compiler..."
 # Create build directories
 mkdir -p build/classes
 
-# Generate ANTLR parser if needed
-if [ ! -f "build/generated/grammar/LocusParser.java" ]; then
+# Generate ANTLR parser if missing or older than the grammar
+if [ ! -f "build/generated/grammar/LocusParser.java" ] || [ grammar/Locus.g4 -nt build/generated/grammar/LocusParser.java ]; then
     echo "Generating ANTLR parser..."
     ./antlr.sh generate grammar/Locus.g4
 fi
@@ -7,6 +7,10 @@ echo "Cleaning up Locus compilation artifacts..."
 
 # Remove LLVM IR files
 find . -name "*.ll" -type f -delete
+find . -name "*.bc" -type f -delete
+
+# Remove JVM class files generated from examples
+find examples/ -name "*.class" -type f -delete
 
 # Remove assembly files
 find . -name "*.s" -type f -delete
@@ -21,12 +25,13 @@ find . -name "*.tmp" -type f -delete
 
 # Remove any accidentally created executables in root directory
 # (executables that don't have extensions and aren't scripts)
-find . -maxdepth 1 -type f -executable ! -name "*.sh" ! -name "build.sh" ! -name "clean.sh" -delete
+find . -maxdepth 1 -type f -executable ! -name "*.sh" ! -name "build.sh" ! -name "clean.sh" ! -name "locus" -delete
 
 echo "Cleanup completed!"
 echo ""
 echo "Removed:"
-echo "  - LLVM IR files (*.ll)"
+echo "  - LLVM IR files (*.ll, *.bc)"
+echo "  - JVM class files in examples/ (*.class)"
 echo "  - Assembly files (*.s)"
 echo "  - Compiled binaries in examples/"
 echo "  - Object files (*.o, *.obj)"
@@ -0,0 +1,166 @@
+#!/bin/bash
+
+# Differential test harness for Locus backends
+# Runs each example on the bytecode interpreter and compares its exit code
+# and stdout against the JVM backend and, when LLVM is installed, the native
+# binary. A backend that cannot compile a program is a skip; skips are listed
+# at the end, and any not in EXPECTED_SKIPS fail the run.
+# With LLVM installed, IR that llvm-as or llc rejects is a failure, not a skip,
+# and so is bitcode from --emit=bc that llvm-dis does not read back as the
+# same module llvm-as builds from the textual IR.
+
+CP=".:tools/antlr-4.13.1-complete.jar:build/classes"
+
+# program:backend pairs outside a backend's documented subset
+# (generic structs and payload enums; see docs/JVM_BACKEND_STATUS.md)
+EXPECTED_SKIPS="linked_list:interp simple_linked_list:jvm structs_enums:jvm"
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+if [ $# -gt 0 ]; then
+    FILES="$@"
+else
+    FILES=examples/*.locus
+fi
+
+# Find an LLVM toolchain for the native column, if any
+LLC=""
+for candidate in llc-15 llc; do
+    if command -v $candidate > /dev/null 2>&1; then
+        LLC=$candidate
+        break
+    fi
+done
+LLVM_AS=""
+for candidate in llvm-as-15 llvm-as; do
+    if command -v $candidate > /dev/null 2>&1; then
+        LLVM_AS=$candidate
+        break
+    fi
+done
+LLVM_DIS=""
+for candidate in llvm-dis-15 llvm-dis; do
+    if command -v $candidate > /dev/null 2>&1; then
+        LLVM_DIS=$candidate
+        break
+    fi
+done
+CC=""
+for candidate in clang-15 clang gcc; do
+    if command -v $candidate > /dev/null 2>&1; then
+        CC=$candidate
+        break
+    fi
+done
+if [ -z "$LLC" ] || [ -z "$CC" ]; then
+    echo "LLVM not found: comparing interpreter against the JVM backend only"
+fi
+
+# Disassembles $1.bc and compares it with llvm-as/llvm-dis of $1.ll
+bitcode_roundtrip() {
+    java -cp "$CP" LocusCompiler --emit=bc "$1.locus" > /dev/null 2>&1 \
+        && $LLVM_AS "$1.ll" -o "$1.as.bc" \
+        && $LLVM_DIS "$1.as.bc" -o "$1.expected.ll" \
+        && $LLVM_DIS "$1.bc" -o "$1.actual.ll" \
+        && diff <(grep -v "^; ModuleID\|^source_filename" "$1.expected.ll") \
+                <(grep -v "^; ModuleID\|^source_filename" "$1.actual.ll") >&2
+}
+
+echo "=== Locus Differential Tests ==="
+printf "%-36s %8s %8s %8s\n" "program" "interp" "jvm" "native"
+
+failures=0
+skips=()
+unexpected=0
+
+# Records that backend $2 could not compile program $1; $3 holds its errors
+skip() {
+    local reason
+    reason=$(grep -v "token recognition" "$3" | grep -m 1 "[Ee]rror" | sed 's/^[A-Za-z ]*[Ee]rror: //')
+    if [[ " $EXPECTED_SKIPS " == *" $1:$2 "* ]]; then
+        skips+=("$1 ($2): $reason")
+    else
+        skips+=("$1 ($2, unexpected): $reason")
+        unexpected=$((unexpected + 1))
+    fi
+}
+
+for file in $FILES; do
+    name=$(basename "$file" .locus)
+
+    java -cp "$CP" LocusCompiler run "$file" > "$WORK/interp.out" 2> "$WORK/interp.err"
+    interp=$?
+    if grep -q "^Error:" "$WORK/interp.err"; then
+        printf "%-36s %8s\n" "$name" "skip"
+        skip "$name" interp "$WORK/interp.err"
+        continue
+    fi
+
+    jvm="-"
+    mkdir -p "$WORK/jvm"
+    cp "$file" "$WORK/jvm/"
+    if java -cp "$CP" LocusCompiler --emit=class "$WORK/jvm/$name.locus" > /dev/null 2> "$WORK/jvm.err"; then
+        java -cp "$WORK/jvm" "$name" > "$WORK/jvm.out" 2> /dev/null
+        jvm=$?
+    else
+        jvm="skip"
+        skip "$name" jvm "$WORK/jvm.err"
+    fi
+
+    native="-"
+    if [ -n "$LLC" ] && [ -n "$CC" ]; then
+        mkdir -p "$WORK/native"
+        cp "$file" "$WORK/native/"
+        native="invalid"
+        if java -cp "$CP" LocusCompiler "$WORK/native/$name.locus" > "$WORK/native.err" 2>&1 \
+            && { [ -z "$LLVM_AS" ] || $LLVM_AS "$WORK/native/$name.ll" -o /dev/null 2> "$WORK/native.err"; } \
+            && { [ -z "$LLVM_AS" ] || [ -z "$LLVM_DIS" ] || bitcode_roundtrip "$WORK/native/$name" 2> "$WORK/native.err"; } \
+            && $LLC "$WORK/native/$name.ll" -o "$WORK/native/$name.s" 2> "$WORK/native.err" \
+            && $CC "$WORK/native/$name.s" runtime/locus_runtime.c -lpthread -o "$WORK/native/$name" 2> "$WORK/native.err"; then
+            "$WORK/native/$name" > "$WORK/native.out" 2> /dev/null
+            native=$?
+        fi
+    fi
+
+    # A backend agrees when it ran with the interpreter's exit code and stdout
+    status="✓"
+    mismatched=""
+    for backend in jvm native; do
+        code=${!backend}
+        if [ "$code" = "-" ] || [ "$code" = "skip" ]; then
+            continue
+        fi
+        if [ "$code" != "$interp" ] || ! cmp -s "$WORK/interp.out" "$WORK/$backend.out"; then
+            mismatched="$mismatched $backend"
+        fi
+    done
+    if [ -n "$mismatched" ]; then
+        status="✗"
+        failures=$((failures + 1))
+    fi
+    printf "%-36s %8s %8s %8s  %s\n" "$name" "$interp" "$jvm" "$native" "$status"
+    if [ "$native" = "invalid" ]; then
+        grep -v "^\(Entering\|Exiting\|Parse tree\|(program\)" "$WORK/native.err" | head -5 | sed 's/^/    /'
+    fi
+    for backend in $mismatched; do
+        if [ -f "$WORK/$backend.out" ] && ! cmp -s "$WORK/interp.out" "$WORK/$backend.out"; then
+            echo "    $backend stdout differs from the interpreter:"
+            diff "$WORK/interp.out" "$WORK/$backend.out" | head -5 | sed 's/^/      /'
+        fi
+    done
+    rm -f "$WORK/jvm.out" "$WORK/native.out"
+done
+
+echo
+if [ ${#skips[@]} -gt 0 ]; then
+    echo "Skipped (backend cannot compile the program):"
+    printf "  %s\n" "${skips[@]}"
+    echo
+fi
+if [ $failures -eq 0 ] && [ $unexpected -eq 0 ]; then
+    echo "✓ All backends agree"
+else
+    [ $failures -gt 0 ] && echo "✗ $failures program(s) disagree between backends"
+    [ $unexpected -gt 0 ] && echo "✗ $unexpected unexpected skip(s)"
+    exit 1
+fi
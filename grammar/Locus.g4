@@ -11,6 +11,7 @@ statement
     | enumDeclaration
     | ifStatement
     | whileStatement
+    | parallelStatement
     | matchStatement
     | returnStatement
     | variableDeclaration
@@ -69,6 +70,7 @@ uniquenessMode
 type
     : primitiveType
     | genericType
+    | arrayType
     | IDENTIFIER  // User-defined types
     ;
 
@@ -85,6 +87,10 @@ genericType
     : IDENTIFIER '<' typeList '>'
     ;
 
+arrayType
+    : '[' type ';' INTEGER ']'  // Fixed-size array; Vec<T> is the growable one
+    ;
+
 typeList
     : type (',' type)*
     ;
@@ -101,6 +107,11 @@ whileStatement
     : WHILE expression block
     ;
 
+parallelStatement
+    : PAR IDENTIFIER IN expression RANGE expression block  // Parallel loop over [start, end)
+    | PAR block                                           // Each statement runs as its own task
+    ;
+
 matchStatement
     : MATCH expression '{' matchArm* '}'
     ;
@@ -184,6 +195,11 @@ primary
     | '(' expression ')'
     | structInitializer
     | enumVariantAccess
+    | arrayLiteral
+    ;
+
+arrayLiteral
+    : '[' (expression (',' expression)*)? ']'
     ;
 
 structInitializer
@@ -210,6 +226,8 @@ FN : 'fn';
 IF : 'if';
 ELSE : 'else';
 WHILE : 'while';
+PAR : 'par';
+IN : 'in';
 MATCH : 'match';
 RETURN : 'return';
 LOCAL : 'local';
@@ -225,6 +243,7 @@ COLON : ':';
 DOUBLE_COLON : '::';
 UNDERSCORE : '_';
 ARROW : '=>';
+RANGE : '..';
 
 IDENTIFIER
     : [a-zA-Z_][a-zA-Z0-9_]*
@@ -0,0 +1,499 @@
+/*
+ * Locus runtime, linked with the IR the LLVM backend generates:
+ *
+ *     clang -O2 program.ll runtime/locus_runtime.c -lpthread -o program
+ *
+ * Strings: a String is a 24-byte value. Strings of up to 23 bytes are stored
+ * inline: the bytes, a NUL, and 23 - length in the last byte, which is itself
+ * the terminator at length 23. Longer strings set the top bit of the last
+ * byte and point at their bytes: pooled literals point into read-only data
+ * (capacity 0), concatenations own a reference-counted heap buffer. Strings
+ * are immutable, so copies share buffers: generated code retains a string it
+ * stores into a variable and releases each String slot when the slot is
+ * overwritten or its function returns, freeing a buffer with its last reference.
+ *
+ * Arrays: a Vec<T> is a {data, length, capacity} header. Generated code
+ * pushes inline and calls locus_vec_grow only when the buffer is full; the
+ * buffer is freed when the declaring function returns. Failed bounds checks
+ * call locus_bounds_fail, which reports the index and exits with status 1.
+ *
+ * Profiles: builds compiled with --instrument register their counters from a
+ * global constructor. At exit the counts are added to the file named by
+ * LOCUS_PROFILE (default "locus.profile"), one "key count" line per counter,
+ * so several training runs accumulate; --profile=file reads it back.
+ *
+ * Parallelism: a small work-stealing thread pool behind `par`. The backend
+ * outlines each `par` body into a function taking an environment pointer and
+ * an iteration index, and calls locus_par_for. Task blocks (`par { ... }`)
+ * are iterations 0..n-1 of the same call, one per statement.
+ *
+ * Each worker owns a Chase-Lev deque. A range is split in halves: the upper
+ * half is pushed for thieves and the lower half is kept, down to the grain
+ * size. A worker waiting for its children helps by running its own tasks or
+ * stealing from others, so nested `par` regions never block a thread. The
+ * pool size is LOCUS_THREADS or the number of online CPUs.
+ */
+#include <pthread.h>
+#include <sched.h>
+#include <stdatomic.h>
+#include <stddef.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#define LOCUS_INLINE_CAPACITY 23
+#define LOCUS_HEAP_TAG 0x80
+
+typedef struct locus_vec {
+    void *data;
+    int32_t length;
+    int32_t capacity;
+} locus_vec;
+
+typedef struct locus_string {
+    union {
+        struct {
+            const char *data;
+            int64_t length;
+            uint64_t capacity;  // Top byte overlaps the tag byte
+        } heap;
+        char bytes[24];
+    };
+} locus_string;
+
+// Heap bytes of a concatenation, behind their reference count
+typedef struct locus_string_buffer {
+    atomic_long references;
+    char data[];
+} locus_string_buffer;
+
+#define LOCUS_MAX_WORKERS 64
+#define LOCUS_DEQUE_CAPACITY 1024
+#define LOCUS_SPLIT_LIMIT 32
+
+typedef void (*locus_body_fn)(void *env, int32_t index);
+
+typedef struct locus_task {
+    locus_body_fn body;
+    void *env;
+    int32_t start;
+    int32_t end;
+    int32_t grain;
+    atomic_int *pending;
+} locus_task;
+
+typedef struct locus_deque {
+    _Atomic int64_t top;
+    _Atomic int64_t bottom;
+    _Atomic(locus_task *) tasks[LOCUS_DEQUE_CAPACITY];
+} locus_deque;
+
+static locus_deque deques[LOCUS_MAX_WORKERS];
+static int worker_count = 1;
+static pthread_once_t pool_once = PTHREAD_ONCE_INIT;
+
+// Top-level regions in flight; idle workers sleep while it is zero
+static atomic_int active_regions;
+static pthread_mutex_t sleep_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t wake = PTHREAD_COND_INITIALIZER;
+
+// Threads outside the pool share deque 0, one at a time
+static pthread_mutex_t external_lock = PTHREAD_MUTEX_INITIALIZER;
+
+static _Thread_local int self = -1;
+static _Thread_local uint32_t random_state;
+
+static void run_range(locus_body_fn body, void *env, int32_t start, int32_t end, int32_t grain);
+
+// ---------------------------------------------------------------------
+// Strings
+// ---------------------------------------------------------------------
+
+static int is_inline(const locus_string *s) {
+    return ((unsigned char) s->bytes[LOCUS_INLINE_CAPACITY] & LOCUS_HEAP_TAG) == 0;
+}
+
+int64_t locus_string_length(const locus_string *s) {
+    return is_inline(s) ? LOCUS_INLINE_CAPACITY - s->bytes[LOCUS_INLINE_CAPACITY] : s->heap.length;
+}
+
+const char *locus_string_data(const locus_string *s) {
+    return is_inline(s) ? s->bytes : s->heap.data;
+}
+
+/* Builds a string from bytes, inline when they fit; longer bytes are copied to the heap. */
+static void make_string(locus_string *out, const char *bytes, int64_t length) {
+    if (length <= LOCUS_INLINE_CAPACITY) {
+        locus_string result;
+        memcpy(result.bytes, bytes, (size_t) length);
+        memset(result.bytes + length, 0, (size_t) (LOCUS_INLINE_CAPACITY - length));
+        result.bytes[LOCUS_INLINE_CAPACITY] = (char) (LOCUS_INLINE_CAPACITY - length);
+        *out = result;
+        return;
+    }
+    locus_string_buffer *buffer = malloc(sizeof(locus_string_buffer) + (size_t) length + 1);
+    if (buffer == NULL) {
+        fputs("locus: out of memory\n", stderr);
+        abort();
+    }
+    atomic_init(&buffer->references, 1);
+    memcpy(buffer->data, bytes, (size_t) length);
+    buffer->data[length] = '\0';
+    out->heap.data = buffer->data;
+    out->heap.length = length;
+    out->heap.capacity = ((uint64_t) LOCUS_HEAP_TAG << 56) | (uint64_t) length;
+}
+
+/* The buffer a string holds a reference to, or NULL for inline strings and pooled literals. */
+static locus_string_buffer *owned_buffer(const locus_string *s) {
+    if (is_inline(s) || (s->heap.capacity & ~((uint64_t) LOCUS_HEAP_TAG << 56)) == 0) {
+        return NULL;
+    }
+    return (locus_string_buffer *) (s->heap.data - offsetof(locus_string_buffer, data));
+}
+
+void locus_string_retain(const locus_string *s) {
+    locus_string_buffer *buffer = owned_buffer(s);
+    if (buffer != NULL) {
+        atomic_fetch_add_explicit(&buffer->references, 1, memory_order_relaxed);
+    }
+}
+
+/* Drops the slot's reference and leaves the empty string behind, so releasing twice is harmless. */
+void locus_string_release(locus_string *s) {
+    locus_string_buffer *buffer = owned_buffer(s);
+    if (buffer != NULL && atomic_fetch_sub_explicit(&buffer->references, 1, memory_order_acq_rel) == 1) {
+        free(buffer);
+    }
+    make_string(s, "", 0);
+}
+
+void locus_string_concat(locus_string *out, const locus_string *a, const locus_string *b) {
+    int64_t a_length = locus_string_length(a);
+    int64_t b_length = locus_string_length(b);
+    char small[LOCUS_INLINE_CAPACITY];
+    char *joined = a_length + b_length <= LOCUS_INLINE_CAPACITY ? small : malloc((size_t) (a_length + b_length));
+    if (joined == NULL) {
+        fputs("locus: out of memory\n", stderr);
+        abort();
+    }
+    memcpy(joined, locus_string_data(a), (size_t) a_length);
+    memcpy(joined + a_length, locus_string_data(b), (size_t) b_length);
+    make_string(out, joined, a_length + b_length);
+    if (joined != small) {
+        free(joined);
+    }
+}
+
+void locus_string_from_i32(locus_string *out, int32_t value) {
+    char digits[16];
+    int length = snprintf(digits, sizeof digits, "%d", value);
+    make_string(out, digits, length);
+}
+
+int32_t locus_string_equals(const locus_string *a, const locus_string *b) {
+    int64_t length = locus_string_length(a);
+    return length == locus_string_length(b)
+        && memcmp(locus_string_data(a), locus_string_data(b), (size_t) length) == 0;
+}
+
+/* 64-bit FNV-1a; the compiler hashes match literals with the same function. */
+uint64_t locus_string_hash(const locus_string *s) {
+    const unsigned char *data = (const unsigned char *) locus_string_data(s);
+    int64_t length = locus_string_length(s);
+    uint64_t hash = 0xcbf29ce484222325u;
+    for (int64_t i = 0; i < length; i++) {
+        hash ^= data[i];
+        hash *= 0x100000001b3u;
+    }
+    return hash;
+}
+
+// ---------------------------------------------------------------------
+// Arrays
+// ---------------------------------------------------------------------
+
+void locus_bounds_fail(int32_t index, int32_t length) {
+    fprintf(stderr, "Runtime error: Index %d out of bounds for length %d\n", index, length);
+    exit(1);
+}
+
+/* Doubles a full Vec's capacity, starting at 4 elements. */
+void locus_vec_grow(locus_vec *vec, int64_t element_size) {
+    int64_t capacity = vec->capacity ? (int64_t) vec->capacity * 2 : 4;
+    if (capacity > INT32_MAX) {
+        fputs("Runtime error: Vec length overflow\n", stderr);
+        exit(1);
+    }
+    void *data = realloc(vec->data, (size_t) (capacity * element_size));
+    if (data == NULL) {
+        fputs("locus: out of memory\n", stderr);
+        abort();
+    }
+    vec->data = data;
+    vec->capacity = (int32_t) capacity;
+}
+
+// ---------------------------------------------------------------------
+// Profile counters
+// ---------------------------------------------------------------------
+
+static int64_t **profile_counters;
+static const char **profile_names;
+static int32_t profile_count;
+
+static void profile_dump(void) {
+    const char *path = getenv("LOCUS_PROFILE");
+    if (path == NULL) {
+        path = "locus.profile";
+    }
+    int64_t *totals = calloc((size_t) profile_count, sizeof *totals);
+    if (totals == NULL) {
+        return;
+    }
+    for (int32_t i = 0; i < profile_count; i++) {
+        totals[i] = *profile_counters[i];
+    }
+
+    // Merge with earlier runs; counters the program no longer has are dropped
+    FILE *in = fopen(path, "r");
+    if (in != NULL) {
+        char key[512];
+        long long count;
+        while (fscanf(in, "%511s %lld", key, &count) == 2) {
+            for (int32_t i = 0; i < profile_count; i++) {
+                if (strcmp(key, profile_names[i]) == 0) {
+                    totals[i] += count;
+                    break;
+                }
+            }
+        }
+        fclose(in);
+    }
+
+    FILE *out = fopen(path, "w");
+    if (out == NULL) {
+        perror(path);
+    } else {
+        for (int32_t i = 0; i < profile_count; i++) {
+            fprintf(out, "%s %lld\n", profile_names[i], (long long) totals[i]);
+        }
+        fclose(out);
+    }
+    free(totals);
+}
+
+void locus_profile_register(int64_t **counters, const char **names, int32_t count) {
+    profile_counters = counters;
+    profile_names = names;
+    profile_count = count;
+    atexit(profile_dump);
+}
+
+// ---------------------------------------------------------------------
+// Chase-Lev deque: the owner pushes and pops at the bottom, thieves take the top
+// ---------------------------------------------------------------------
+
+static int deque_push(locus_deque *deque, locus_task *task) {
+    int64_t bottom = atomic_load(&deque->bottom);
+    int64_t top = atomic_load(&deque->top);
+    if (bottom - top >= LOCUS_DEQUE_CAPACITY) {
+        return 0;
+    }
+    atomic_store(&deque->tasks[bottom % LOCUS_DEQUE_CAPACITY], task);
+    atomic_store(&deque->bottom, bottom + 1);
+    return 1;
+}
+
+static locus_task *deque_pop(locus_deque *deque) {
+    int64_t bottom = atomic_load(&deque->bottom) - 1;
+    atomic_store(&deque->bottom, bottom);
+    int64_t top = atomic_load(&deque->top);
+    if (top > bottom) {
+        atomic_store(&deque->bottom, bottom + 1);
+        return NULL;
+    }
+    locus_task *task = atomic_load(&deque->tasks[bottom % LOCUS_DEQUE_CAPACITY]);
+    if (top == bottom) {
+        // Last task: race any thief for it
+        if (!atomic_compare_exchange_strong(&deque->top, &top, top + 1)) {
+            task = NULL;
+        }
+        atomic_store(&deque->bottom, bottom + 1);
+    }
+    return task;
+}
+
+static locus_task *deque_steal(locus_deque *deque) {
+    int64_t top = atomic_load(&deque->top);
+    int64_t bottom = atomic_load(&deque->bottom);
+    if (top >= bottom) {
+        return NULL;
+    }
+    locus_task *task = atomic_load(&deque->tasks[top % LOCUS_DEQUE_CAPACITY]);
+    if (!atomic_compare_exchange_strong(&deque->top, &top, top + 1)) {
+        return NULL;
+    }
+    return task;
+}
+
+// ---------------------------------------------------------------------
+// Scheduling
+// ---------------------------------------------------------------------
+
+static locus_task *steal(void) {
+    // xorshift32 picks where to start scanning victims
+    random_state ^= random_state << 13;
+    random_state ^= random_state >> 17;
+    random_state ^= random_state << 5;
+    int first = (int) (random_state % (uint32_t) worker_count);
+    for (int i = 0; i < worker_count; i++) {
+        int victim = (first + i) % worker_count;
+        if (victim != self) {
+            locus_task *task = deque_steal(&deques[victim]);
+            if (task != NULL) {
+                return task;
+            }
+        }
+    }
+    return NULL;
+}
+
+static void run_task(locus_task *task) {
+    run_range(task->body, task->env, task->start, task->end, task->grain);
+    atomic_fetch_sub(task->pending, 1);
+}
+
+static void run_range(locus_body_fn body, void *env, int32_t start, int32_t end, int32_t grain) {
+    // Children live in this frame, which does not return until all of them have run
+    locus_task children[LOCUS_SPLIT_LIMIT];
+    atomic_int pending = 0;
+    int count = 0;
+
+    while ((int64_t) end - start > grain && count < LOCUS_SPLIT_LIMIT) {
+        int32_t mid = (int32_t) (start + ((int64_t) end - start) / 2);
+        locus_task *child = &children[count];
+        child->body = body;
+        child->env = env;
+        child->start = mid;
+        child->end = end;
+        child->grain = grain;
+        child->pending = &pending;
+        atomic_fetch_add(&pending, 1);
+        if (!deque_push(&deques[self], child)) {
+            atomic_fetch_sub(&pending, 1);
+            break;
+        }
+        count++;
+        end = mid;
+    }
+
+    for (int32_t i = start; i < end; i++) {
+        body(env, i);
+    }
+
+    while (atomic_load(&pending) > 0) {
+        locus_task *task = deque_pop(&deques[self]);
+        if (task == NULL) {
+            task = steal();
+        }
+        if (task != NULL) {
+            run_task(task);
+        } else {
+            sched_yield();
+        }
+    }
+}
+
+static void *worker_main(void *arg) {
+    self = (int) (intptr_t) arg;
+    random_state = 2654435761u * (uint32_t) (self + 1);
+    for (;;) {
+        locus_task *task = steal();
+        if (task != NULL) {
+            run_task(task);
+        } else if (atomic_load(&active_regions) == 0) {
+            pthread_mutex_lock(&sleep_lock);
+            while (atomic_load(&active_regions) == 0) {
+                pthread_cond_wait(&wake, &sleep_lock);
+            }
+            pthread_mutex_unlock(&sleep_lock);
+        } else {
+            sched_yield();
+        }
+    }
+    return NULL;
+}
+
+static void start_pool(void) {
+    const char *requested = getenv("LOCUS_THREADS");
+    long count = requested != NULL ? atol(requested) : sysconf(_SC_NPROCESSORS_ONLN);
+    if (count < 1) {
+        count = 1;
+    }
+    worker_count = count > LOCUS_MAX_WORKERS ? LOCUS_MAX_WORKERS : (int) count;
+
+    // Deque 0 belongs to whichever external thread is running a region
+    for (int i = 1; i < worker_count; i++) {
+        pthread_t thread;
+        pthread_attr_t attributes;
+        pthread_attr_init(&attributes);
+        pthread_attr_setdetachstate(&attributes, PTHREAD_CREATE_DETACHED);
+        if (pthread_create(&thread, &attributes, worker_main, (void *) (intptr_t) i) != 0) {
+            worker_count = i;
+        }
+        pthread_attr_destroy(&attributes);
+        if (worker_count == i) {
+            break;
+        }
+    }
+}
+
+// ---------------------------------------------------------------------
+// Entry point called by generated code
+// ---------------------------------------------------------------------
+
+/*
+ * Runs body(env, i) for every i in [start, end) across the pool and returns
+ * once all iterations have finished. A grain of 0 or less picks one that
+ * gives each worker about eight chunks.
+ */
+void locus_par_for(int32_t start, int32_t end, int32_t grain, locus_body_fn body, void *env) {
+    if (end <= start) {
+        return;
+    }
+    pthread_once(&pool_once, start_pool);
+
+    if (worker_count == 1) {
+        for (int32_t i = start; i < end; i++) {
+            body(env, i);
+        }
+        return;
+    }
+    if (grain <= 0) {
+        int64_t chunk = ((int64_t) end - start) / ((int64_t) worker_count * 8);
+        grain = chunk > 0 ? (int32_t) chunk : 1;
+    }
+
+    if (self >= 0) {
+        // Nested region inside a task: this thread already owns a deque
+        run_range(body, env, start, end, grain);
+        return;
+    }
+
+    pthread_mutex_lock(&external_lock);
+    self = 0;
+    random_state = 2463534242u;
+    pthread_mutex_lock(&sleep_lock);
+    atomic_fetch_add(&active_regions, 1);
+    pthread_cond_broadcast(&wake);
+    pthread_mutex_unlock(&sleep_lock);
+
+    run_range(body, env, start, end, grain);
+
+    atomic_fetch_sub(&active_regions, 1);
+    self = -1;
+    pthread_mutex_unlock(&external_lock);
+}
@@ -0,0 +1,1868 @@
+import java.util.*;
+import java.io.*;
+
+/**
+ * Encodes the LLVM IR produced by LocusLLVMGenerator as an LLVM bitcode (.bc)
+ * module, so clang/llc can skip the textual IR parse.
+ *
+ * The generator builds its IR as text, so this writer reads back that text
+ * (only the subset the generator emits: named and literal struct types,
+ * global constants such as the string pool, constant GEP/cast expressions
+ * and `switch`) into a small module model, then enumerates types, constants
+ * and values and writes them with LocusBitstreamWriter. Bitcode uses module version 2: relative operand IDs
+ * and a trailing string table for global names. Metadata nodes are written as
+ * module-level metadata, so `!prof` branch weights and entry counts and
+ * `!llvm.loop` hints survive into the bitcode.
+ */
+public class LocusBitcodeWriter {
+    // Block IDs
+    private static final int MODULE_BLOCK_ID = 8;
+    private static final int PARAMATTR_BLOCK_ID = 9;
+    private static final int PARAMATTR_GROUP_BLOCK_ID = 10;
+    private static final int CONSTANTS_BLOCK_ID = 11;
+    private static final int FUNCTION_BLOCK_ID = 12;
+    private static final int IDENTIFICATION_BLOCK_ID = 13;
+    private static final int VALUE_SYMTAB_BLOCK_ID = 14;
+    private static final int METADATA_BLOCK_ID = 15;
+    private static final int METADATA_ATTACHMENT_ID = 16;
+    private static final int TYPE_BLOCK_ID = 17;
+    private static final int METADATA_KIND_BLOCK_ID = 22;
+    private static final int STRTAB_BLOCK_ID = 23;
+
+    // Record codes
+    private static final int IDENTIFICATION_CODE_STRING = 1;
+    private static final int IDENTIFICATION_CODE_EPOCH = 2;
+    private static final int MODULE_CODE_VERSION = 1;
+    private static final int MODULE_CODE_TRIPLE = 2;
+    private static final int MODULE_CODE_DATALAYOUT = 3;
+    private static final int MODULE_CODE_GLOBALVAR = 7;
+    private static final int MODULE_CODE_FUNCTION = 8;
+    private static final int PARAMATTR_CODE_ENTRY = 2;
+    private static final int PARAMATTR_GRP_CODE_ENTRY = 3;
+    private static final int TYPE_CODE_NUMENTRY = 1;
+    private static final int TYPE_CODE_VOID = 2;
+    private static final int TYPE_CODE_FLOAT = 3;
+    private static final int TYPE_CODE_DOUBLE = 4;
+    private static final int TYPE_CODE_LABEL = 5;
+    private static final int TYPE_CODE_INTEGER = 7;
+    private static final int TYPE_CODE_POINTER = 8;
+    private static final int TYPE_CODE_ARRAY = 11;
+    private static final int TYPE_CODE_STRUCT_ANON = 18;
+    private static final int TYPE_CODE_STRUCT_NAME = 19;
+    private static final int TYPE_CODE_STRUCT_NAMED = 20;
+    private static final int TYPE_CODE_FUNCTION = 21;
+    private static final int CST_CODE_SETTYPE = 1;
+    private static final int CST_CODE_NULL = 2;
+    private static final int CST_CODE_UNDEF = 3;
+    private static final int CST_CODE_INTEGER = 4;
+    private static final int CST_CODE_FLOAT = 6;
+    private static final int CST_CODE_AGGREGATE = 7;
+    private static final int CST_CODE_STRING = 8;
+    private static final int CST_CODE_CE_CAST = 11;
+    private static final int CST_CODE_CE_GEP = 12;
+    private static final int CST_CODE_CE_INBOUNDS_GEP = 20;
+    private static final int FUNC_CODE_DECLAREBLOCKS = 1;
+    private static final int FUNC_CODE_INST_BINOP = 2;
+    private static final int FUNC_CODE_INST_CAST = 3;
+    private static final int FUNC_CODE_INST_RET = 10;
+    private static final int FUNC_CODE_INST_BR = 11;
+    private static final int FUNC_CODE_INST_SWITCH = 12;
+    private static final int FUNC_CODE_INST_UNREACHABLE = 15;
+    private static final int FUNC_CODE_INST_ALLOCA = 19;
+    private static final int FUNC_CODE_INST_LOAD = 20;
+    private static final int FUNC_CODE_INST_CMP2 = 28;
+    private static final int FUNC_CODE_INST_CALL = 34;
+    private static final int FUNC_CODE_INST_GEP = 43;
+    private static final int FUNC_CODE_INST_STORE = 44;
+    private static final int METADATA_STRING_OLD = 1;
+    private static final int METADATA_VALUE = 2;
+    private static final int METADATA_NODE = 3;
+    private static final int METADATA_DISTINCT_NODE = 5;
+    private static final int METADATA_KIND = 6;
+    private static final int METADATA_ATTACHMENT = 11;
+    private static final int VST_CODE_ENTRY = 1;
+    private static final int VST_CODE_BBENTRY = 2;
+    private static final int STRTAB_BLOB = 1;
+
+    private static final int CALL_EXPLICIT_TYPE_FLAG = 1 << 15;
+    private static final int ALLOCA_EXPLICIT_TYPE_FLAG = 1 << 6;
+    private static final long FUNCTION_ATTRIBUTE_INDEX = 0xFFFFFFFFL;
+
+    private static final Map<String, Integer> BINARY_OPCODES = new HashMap<>();
+    private static final Map<String, Integer> CAST_OPCODES = new HashMap<>();
+    private static final Map<String, Integer> CMP_PREDICATES = new HashMap<>();
+    private static final Map<String, Integer> ATTRIBUTE_KINDS = new HashMap<>();
+    private static final Map<String, Integer> METADATA_KINDS = new HashMap<>();
+    private static final Set<String> TERMINATORS = new HashSet<>(Arrays.asList("br", "switch", "ret", "unreachable"));
+
+    static {
+        String[][] binaryOps = {
+            {"add", "fadd"}, {"sub", "fsub"}, {"mul", "fmul"}, {"udiv"}, {"sdiv", "fdiv"},
+            {"urem"}, {"srem", "frem"}, {"shl"}, {"lshr"}, {"ashr"}, {"and"}, {"or"}, {"xor"}
+        };
+        for (int code = 0; code < binaryOps.length; code++) {
+            for (String op : binaryOps[code]) {
+                BINARY_OPCODES.put(op, code);
+            }
+        }
+
+        String[] castOps = {"trunc", "zext", "sext", "fptoui", "fptosi", "uitofp", "sitofp",
+                            "fptrunc", "fpext", "ptrtoint", "inttoptr", "bitcast"};
+        for (int code = 0; code < castOps.length; code++) {
+            CAST_OPCODES.put(castOps[code], code);
+        }
+
+        String[] fcmpPredicates = {"false", "oeq", "ogt", "oge", "olt", "ole", "one", "ord",
+                                   "uno", "ueq", "ugt", "uge", "ult", "ule", "une", "true"};
+        for (int code = 0; code < fcmpPredicates.length; code++) {
+            CMP_PREDICATES.put("fcmp " + fcmpPredicates[code], code);
+        }
+        String[] icmpPredicates = {"eq", "ne", "ugt", "uge", "ult", "ule", "sgt", "sge", "slt", "sle"};
+        for (int code = 0; code < icmpPredicates.length; code++) {
+            CMP_PREDICATES.put("icmp " + icmpPredicates[code], 32 + code);
+        }
+
+        ATTRIBUTE_KINDS.put("alwaysinline", 2);
+        ATTRIBUTE_KINDS.put("inlinehint", 4);
+        ATTRIBUTE_KINDS.put("noalias", 9);
+        ATTRIBUTE_KINDS.put("nocapture", 11);
+        ATTRIBUTE_KINDS.put("noinline", 14);
+        ATTRIBUTE_KINDS.put("noreturn", 17);
+        ATTRIBUTE_KINDS.put("nounwind", 18);
+        ATTRIBUTE_KINDS.put("optsize", 19);
+        ATTRIBUTE_KINDS.put("readnone", 20);
+        ATTRIBUTE_KINDS.put("readonly", 21);
+        ATTRIBUTE_KINDS.put("cold", 36);
+
+        // LLVM's fixed kind IDs; readers map them back by name
+        METADATA_KINDS.put("prof", 2);
+        METADATA_KINDS.put("llvm.loop", 18);
+    }
+
+    private final String llvmIR;
+    private String triple = "";
+    private String dataLayout = "";
+    private List<IRGlobal> globals = new ArrayList<>();
+    private List<IRFunction> functions = new ArrayList<>();
+    private Map<String, IRFunction> functionsByName = new HashMap<>();
+    // Global initializers, numbered after the globals and functions
+    private ConstantTable moduleConstants;
+
+    // Type table: textual spelling -> type ID, in definition order
+    private Map<String, Integer> typeIds = new LinkedHashMap<>();
+    private List<long[]> typeRecords = new ArrayList<>();
+    private boolean typeTableWritten = false;
+    // Named struct types: the tokens of their body, their element types once interned, and their IDs
+    private Map<String, List<String>> structBodies = new HashMap<>();
+    private Map<String, List<String>> structElements = new HashMap<>();
+    private Map<Integer, String> structNames = new HashMap<>();
+
+    // Metadata nodes by their textual name ("!3"), the metadata IDs of nodes, strings and values, and their records
+    private Map<String, IRMetadataNode> metadataNodes = new LinkedHashMap<>();
+    private Set<String> metadataKinds = new TreeSet<>();
+    private Map<String, Integer> metadataIds = new HashMap<>();
+    private List<long[]> metadataRecords = new ArrayList<>();
+
+    // Attribute groups and lists, keyed by their textual description
+    private Map<String, Integer> attributeGroupIds = new LinkedHashMap<>();
+    private List<long[]> attributeGroupRecords = new ArrayList<>();
+    private Map<String, Integer> attributeListIds = new LinkedHashMap<>();
+    private List<long[]> attributeListRecords = new ArrayList<>();
+
+    private LocusBitstreamWriter stream;
+    private int functionLoadAbbrev;
+    private int functionBinopAbbrev;
+    private int functionRetVoidAbbrev;
+    private int functionRetValueAbbrev;
+    private int functionUnreachableAbbrev;
+    private int constantsSetTypeAbbrev;
+    private int constantsIntegerAbbrev;
+    private int vstEntry8Abbrev;
+    private int vstEntry6Abbrev;
+    private int vstBBEntry8Abbrev;
+    private int vstBBEntry6Abbrev;
+
+    private static class IRFunction {
+        String name;
+        String returnType;
+        List<String> paramTypes = new ArrayList<>();
+        List<String> paramNames = new ArrayList<>();
+        boolean varArg;
+        boolean isDeclaration;
+        int linkage;
+        List<String> returnAttributes = new ArrayList<>();
+        List<String> functionAttributes = new ArrayList<>();
+        List<IRBlock> blocks = new ArrayList<>();
+        List<String[]> attachments = new ArrayList<>();
+        int attributeListId;
+
+        String functionType() {
+            StringBuilder type = new StringBuilder(returnType).append(" (");
+            for (int i = 0; i < paramTypes.size(); i++) {
+                if (i > 0) type.append(", ");
+                type.append(paramTypes.get(i));
+            }
+            if (varArg) {
+                type.append(paramTypes.isEmpty() ? "..." : ", ...");
+            }
+            return type.append(")").toString();
+        }
+    }
+
+    private static class IRGlobal {
+        String name;
+        String type;
+        String initializer;
+        boolean isConstant;
+        boolean unnamedAddr;
+        int linkage;
+        int alignment; // 0 when the IR leaves it to the target
+    }
+
+    private static class IRBlock {
+        String name;
+        List<IRInstruction> instructions = new ArrayList<>();
+
+        IRBlock(String name) {
+            this.name = name;
+        }
+
+        boolean isTerminated() {
+            return !instructions.isEmpty()
+                && TERMINATORS.contains(instructions.get(instructions.size() - 1).opcode);
+        }
+    }
+
+    private static class IRInstruction {
+        String result;
+        String opcode;
+        String type;
+        String predicate;
+        String callee;
+        int flags;
+        List<Operand> operands = new ArrayList<>();
+        List<String> labels = new ArrayList<>();
+        List<String[]> attachments = new ArrayList<>(); // {kind, node}
+    }
+
+    private static class Operand {
+        final String type;
+        final String value;
+
+        Operand(String type, String value) {
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private static class IRMetadataNode {
+        boolean distinct;
+        List<MetadataOperand> operands = new ArrayList<>();
+    }
+
+    /** A node operand: a string, a reference to another node, a constant value, or null when all are unset. */
+    private static class MetadataOperand {
+        final String string;
+        final String node;
+        final Operand value;
+
+        MetadataOperand(String string, String node, Operand value) {
+            this.string = string;
+            this.node = node;
+            this.value = value;
+        }
+    }
+
+    /** A constant parsed from its textual spelling; operands are the constants or globals it refers to. */
+    private static class Constant {
+        String kind; // null, undef, int, float, string, aggregate, cast, gep or global
+        String type;
+        String text;
+        String opcode;
+        String sourceType;
+        boolean inBounds;
+        byte[] bytes;
+        List<Operand> operands = new ArrayList<>();
+    }
+
+    /**
+     * A constants block: constants numbered from firstId, each after the
+     * constants it refers to so the reader never sees a forward reference.
+     */
+    private class ConstantTable {
+        final int firstId;
+        final List<Constant> constants = new ArrayList<>();
+        final Map<String, Integer> ids = new HashMap<>();
+
+        ConstantTable(int firstId) {
+            this.firstId = firstId;
+        }
+
+        int add(String type, String text) throws IOException {
+            if (text.startsWith("@")) {
+                return globalValueId(text.substring(1));
+            }
+            String key = type + " " + text;
+            Integer id = ids.get(key);
+            if (id != null) {
+                return id;
+            }
+            Constant constant = parseConstant(type, text);
+            for (Operand operand : constant.operands) {
+                add(operand.type, operand.value);
+            }
+            id = firstId + constants.size();
+            constants.add(constant);
+            ids.put(key, id);
+            return id;
+        }
+
+        Integer id(Operand operand) throws IOException {
+            return operand.value.startsWith("@") ? globalValueId(operand.value.substring(1))
+                                                 : ids.get(operand.type + " " + operand.value);
+        }
+
+        int size() {
+            return constants.size();
+        }
+    }
+
+    public LocusBitcodeWriter(String llvmIR) {
+        this.llvmIR = llvmIR;
+    }
+
+    public void writeToFile(String filename) throws IOException {
+        byte[] bitcode = write();
+        try (OutputStream out = new FileOutputStream(filename)) {
+            out.write(bitcode);
+        }
+    }
+
+    public byte[] write() throws IOException {
+        parseModule();
+        enumerateAttributes();
+        moduleConstants = new ConstantTable(globals.size() + functions.size());
+        for (IRGlobal global : globals) {
+            moduleConstants.add(global.type, global.initializer);
+        }
+        enumerateMetadata();
+
+        stream = new LocusBitstreamWriter();
+        writeMagic();
+        writeIdentificationBlock();
+        writeModuleBlock();
+        writeStringTable();
+        return stream.toByteArray();
+    }
+
+    // ---------------------------------------------------------------------
+    // Reading the generator's textual IR
+    // ---------------------------------------------------------------------
+
+    private void parseModule() throws IOException {
+        String[] lines = llvmIR.split("\n");
+        // Named struct bodies first, so types can refer to structs defined further down
+        for (String rawLine : lines) {
+            List<String> tokens = tokenize(rawLine);
+            if (tokens.size() > 3 && tokens.get(0).startsWith("%") && tokens.get(2).equals("type")) {
+                structBodies.put(tokens.get(0), tokens.subList(3, tokens.size()));
+            }
+        }
+
+        IRFunction current = null;
+        IRBlock block = null;
+        StringBuilder pending = null;
+
+        for (String rawLine : lines) {
+            // A switch lists its cases on the lines up to the closing bracket
+            if (pending != null) {
+                pending.append(' ').append(rawLine.trim());
+                if (!rawLine.trim().startsWith("]")) {
+                    continue;
+                }
+                rawLine = pending.toString();
+                pending = null;
+            } else if (current != null && rawLine.trim().startsWith("switch ") && rawLine.trim().endsWith("[")) {
+                pending = new StringBuilder(rawLine);
+                continue;
+            }
+            List<String> tokens = tokenize(rawLine);
+            if (tokens.isEmpty()) {
+                continue;
+            }
+            String first = tokens.get(0);
+
+            if (current == null) {
+                if (first.startsWith("%") && tokens.size() > 2 && tokens.get(2).equals("type")) {
+                    typeId(first);
+                } else if (first.startsWith("@")) {
+                    globals.add(parseGlobal(tokens));
+                } else if (first.equals("target")) {
+                    String value = unquote(tokens.get(tokens.size() - 1));
+                    if (tokens.get(1).equals("triple")) {
+                        triple = value;
+                    } else if (tokens.get(1).equals("datalayout")) {
+                        dataLayout = value;
+                    }
+                } else if (first.equals("declare") || first.equals("define")) {
+                    IRFunction function = parseFunctionHeader(tokens);
+                    addFunction(function);
+                    if (!function.isDeclaration) {
+                        current = function;
+                        block = null;
+                    }
+                } else if (first.startsWith("!")) {
+                    metadataNodes.put(first, parseMetadataNode(tokens));
+                } else {
+                    throw new IOException("Unsupported top-level IR for bitcode output: " + rawLine.trim());
+                }
+                continue;
+            }
+
+            if (first.equals("}")) {
+                checkTerminated(current, block);
+                current = null;
+                continue;
+            }
+
+            if (tokens.size() == 2 && tokens.get(1).equals(":")) {
+                if (block != null) {
+                    checkTerminated(current, block);
+                }
+                block = new IRBlock(first);
+                current.blocks.add(block);
+                continue;
+            }
+
+            // Instructions after a terminator start an unnamed block, as in textual IR
+            if (block == null || block.isTerminated()) {
+                block = new IRBlock(null);
+                current.blocks.add(block);
+            }
+            List<String[]> attachments = new ArrayList<>();
+            IRInstruction inst = parseInstruction(splitAttachments(tokens, attachments), rawLine);
+            inst.attachments = attachments;
+            block.instructions.add(inst);
+        }
+
+        if (current != null) {
+            throw new IOException("Unterminated function body: @" + current.name);
+        }
+    }
+
+    private void addFunction(IRFunction function) throws IOException {
+        IRFunction existing = functionsByName.get(function.name);
+        if (existing != null) {
+            throw new IOException("Duplicate definition of @" + function.name);
+        }
+        functions.add(function);
+        functionsByName.put(function.name, function);
+    }
+
+    private void checkTerminated(IRFunction function, IRBlock block) throws IOException {
+        if (block != null && !block.isTerminated()) {
+            String name = block.name != null ? "'" + block.name + "'" : "<unnamed>";
+            throw new IOException("Basic block " + name + " in @" + function.name + " has no terminator");
+        }
+        if (block == null && function.blocks.isEmpty()) {
+            throw new IOException("Function @" + function.name + " has no body");
+        }
+    }
+
+    private IRGlobal parseGlobal(List<String> tokens) throws IOException {
+        IRGlobal global = new IRGlobal();
+        global.name = tokens.get(0).substring(1);
+        int[] cursor = {1};
+        expect(tokens, cursor, "=");
+        while (true) {
+            String word = tokens.get(cursor[0]++);
+            if (word.equals("global") || word.equals("constant")) {
+                global.isConstant = word.equals("constant");
+                break;
+            } else if (word.equals("private")) {
+                global.linkage = 9;
+            } else if (word.equals("internal")) {
+                global.linkage = 3;
+            } else if (word.equals("appending")) {
+                global.linkage = 2;
+            } else if (word.equals("unnamed_addr")) {
+                global.unnamedAddr = true;
+            } else if (!word.equals("dso_local") && !word.equals("external")) {
+                throw new IOException("Unsupported global attribute for bitcode output: " + word);
+            }
+        }
+        global.type = parseType(tokens, cursor);
+        global.initializer = parseValue(global.type, tokens, cursor);
+        if (cursor[0] + 2 < tokens.size() && tokens.get(cursor[0] + 1).equals("align")) {
+            global.alignment = Integer.parseInt(tokens.get(cursor[0] + 2));
+        }
+        return global;
+    }
+
+    private IRFunction parseFunctionHeader(List<String> tokens) throws IOException {
+        IRFunction function = new IRFunction();
+        function.isDeclaration = tokens.get(0).equals("declare");
+
+        int pos = 1;
+        while (pos < tokens.size() && !tokens.get(pos).startsWith("@") && !isTypeStart(tokens.get(pos))) {
+            String word = tokens.get(pos++);
+            if (word.equals("internal")) {
+                function.linkage = 3;
+            } else if (word.equals("private")) {
+                function.linkage = 9;
+            } else if (ATTRIBUTE_KINDS.containsKey(word)) {
+                function.returnAttributes.add(word);
+            } else if (!word.equals("dso_local") && !word.equals("external")) {
+                throw new IOException("Unsupported function attribute for bitcode output: " + word);
+            }
+        }
+
+        int[] cursor = {pos};
+        function.returnType = parseType(tokens, cursor);
+        function.name = tokens.get(cursor[0]++).substring(1);
+        expect(tokens, cursor, "(");
+        while (!tokens.get(cursor[0]).equals(")")) {
+            if (tokens.get(cursor[0]).equals("...")) {
+                function.varArg = true;
+                cursor[0]++;
+            } else {
+                function.paramTypes.add(parseType(tokens, cursor));
+                String name = null;
+                while (!tokens.get(cursor[0]).equals(",") && !tokens.get(cursor[0]).equals(")")) {
+                    String word = tokens.get(cursor[0]++);
+                    if (word.startsWith("%")) {
+                        name = word.substring(1);
+                    }
+                }
+                function.paramNames.add(name);
+            }
+            if (tokens.get(cursor[0]).equals(",")) {
+                cursor[0]++;
+            }
+        }
+        cursor[0]++;
+
+        while (cursor[0] < tokens.size() && !tokens.get(cursor[0]).equals("{")) {
+            String word = tokens.get(cursor[0]++);
+            if (word.startsWith("!")) {
+                function.attachments.add(attachment(word, tokens.get(cursor[0]++)));
+                continue;
+            }
+            if (!ATTRIBUTE_KINDS.containsKey(word)) {
+                throw new IOException("Unsupported function attribute for bitcode output: " + word);
+            }
+            function.functionAttributes.add(word);
+        }
+
+        typeId(function.functionType());
+        return function;
+    }
+
+    private IRInstruction parseInstruction(List<String> tokens, String line) throws IOException {
+        IRInstruction inst = new IRInstruction();
+        int[] cursor = {0};
+        if (tokens.size() > 2 && tokens.get(1).equals("=")) {
+            inst.result = tokens.get(0).substring(1);
+            cursor[0] = 2;
+        }
+        inst.opcode = tokens.get(cursor[0]++);
+        if (inst.opcode.equals("tail") || inst.opcode.equals("notail") || inst.opcode.equals("musttail")) {
+            inst.opcode = tokens.get(cursor[0]++);
+        }
+
+        if (BINARY_OPCODES.containsKey(inst.opcode)) {
+            while (true) {
+                String flag = tokens.get(cursor[0]);
+                if (flag.equals("nuw") || flag.equals("exact")) {
+                    inst.flags |= 1;
+                } else if (flag.equals("nsw")) {
+                    inst.flags |= 2;
+                } else {
+                    break;
+                }
+                cursor[0]++;
+            }
+            inst.type = parseType(tokens, cursor);
+            inst.operands.add(parseOperand(inst.type, tokens, cursor));
+            expect(tokens, cursor, ",");
+            inst.operands.add(parseOperand(inst.type, tokens, cursor));
+            return inst;
+        }
+
+        if (CAST_OPCODES.containsKey(inst.opcode)) {
+            inst.operands.add(parseOperand(parseType(tokens, cursor), tokens, cursor));
+            expect(tokens, cursor, "to");
+            inst.type = parseType(tokens, cursor);
+            return inst;
+        }
+
+        switch (inst.opcode) {
+            case "alloca":
+                inst.type = parseType(tokens, cursor);
+                typeId("i32");
+                break;
+            case "load": {
+                inst.type = parseType(tokens, cursor);
+                expect(tokens, cursor, ",");
+                inst.operands.add(parseOperand(parseType(tokens, cursor), tokens, cursor));
+                break;
+            }
+            case "store": {
+                Operand value = parseOperand(parseType(tokens, cursor), tokens, cursor);
+                expect(tokens, cursor, ",");
+                inst.operands.add(parseOperand(parseType(tokens, cursor), tokens, cursor));
+                inst.operands.add(value);
+                break;
+            }
+            case "getelementptr":
+                // The source element type stands in for the result type, which is never void
+                if (tokens.get(cursor[0]).equals("inbounds")) {
+                    inst.flags = 1;
+                    cursor[0]++;
+                }
+                inst.type = parseType(tokens, cursor);
+                while (cursor[0] + 1 < tokens.size() && tokens.get(cursor[0]).equals(",")) {
+                    cursor[0]++;
+                    inst.operands.add(parseOperand(parseType(tokens, cursor), tokens, cursor));
+                }
+                break;
+            case "icmp":
+            case "fcmp": {
+                inst.predicate = inst.opcode + " " + tokens.get(cursor[0]++);
+                if (!CMP_PREDICATES.containsKey(inst.predicate)) {
+                    throw new IOException("Unknown comparison predicate: " + inst.predicate);
+                }
+                String operandType = parseType(tokens, cursor);
+                inst.operands.add(parseOperand(operandType, tokens, cursor));
+                expect(tokens, cursor, ",");
+                inst.operands.add(parseOperand(operandType, tokens, cursor));
+                inst.type = "i1";
+                break;
+            }
+            case "br":
+                if (tokens.get(cursor[0]).equals("label")) {
+                    cursor[0]++;
+                    inst.labels.add(tokens.get(cursor[0]++).substring(1));
+                } else {
+                    inst.operands.add(parseOperand(parseType(tokens, cursor), tokens, cursor));
+                    for (int i = 0; i < 2; i++) {
+                        expect(tokens, cursor, ",");
+                        expect(tokens, cursor, "label");
+                        inst.labels.add(tokens.get(cursor[0]++).substring(1));
+                    }
+                }
+                break;
+            case "switch":
+                // Operands are the condition then each case value; labels the default then each case's block
+                inst.type = "void";
+                String conditionType = parseType(tokens, cursor);
+                inst.operands.add(parseOperand(conditionType, tokens, cursor));
+                expect(tokens, cursor, ",");
+                expect(tokens, cursor, "label");
+                inst.labels.add(tokens.get(cursor[0]++).substring(1));
+                expect(tokens, cursor, "[");
+                while (!tokens.get(cursor[0]).equals("]")) {
+                    inst.operands.add(parseOperand(parseType(tokens, cursor), tokens, cursor));
+                    expect(tokens, cursor, ",");
+                    expect(tokens, cursor, "label");
+                    inst.labels.add(tokens.get(cursor[0]++).substring(1));
+                }
+                break;
+            case "ret":
+                if (tokens.get(cursor[0]).equals("void")) {
+                    inst.type = "void";
+                } else {
+                    inst.type = parseType(tokens, cursor);
+                    inst.operands.add(parseOperand(inst.type, tokens, cursor));
+                }
+                break;
+            case "call": {
+                inst.type = parseType(tokens, cursor);
+                if (tokens.get(cursor[0]).equals("(")) {
+                    // Explicit function type, as printed for varargs callees
+                    int depth = 0;
+                    do {
+                        String token = tokens.get(cursor[0]++);
+                        if (token.equals("(")) depth++;
+                        if (token.equals(")")) depth--;
+                    } while (depth > 0);
+                }
+                inst.callee = tokens.get(cursor[0]++).substring(1);
+                expect(tokens, cursor, "(");
+                while (!tokens.get(cursor[0]).equals(")")) {
+                    inst.operands.add(parseOperand(parseType(tokens, cursor), tokens, cursor));
+                    if (tokens.get(cursor[0]).equals(",")) {
+                        cursor[0]++;
+                    }
+                }
+                break;
+            }
+            case "unreachable":
+                break;
+            default:
+                throw new IOException("Unsupported instruction for bitcode output: " + line.trim());
+        }
+        return inst;
+    }
+
+    /** Splits trailing `, !kind !N` attachments off an instruction, returning the instruction's own tokens. */
+    private List<String> splitAttachments(List<String> tokens, List<String[]> attachments) throws IOException {
+        int end = tokens.size();
+        while (end >= 3 && tokens.get(end - 3).equals(",")
+               && tokens.get(end - 2).startsWith("!") && tokens.get(end - 1).startsWith("!")) {
+            attachments.add(0, attachment(tokens.get(end - 2), tokens.get(end - 1)));
+            end -= 3;
+        }
+        return tokens.subList(0, end);
+    }
+
+    private String[] attachment(String kind, String node) throws IOException {
+        String name = kind.substring(1);
+        if (!METADATA_KINDS.containsKey(name)) {
+            throw new IOException("Unsupported metadata attachment for bitcode output: " + kind);
+        }
+        metadataKinds.add(name);
+        return new String[] {name, node};
+    }
+
+    /** Parses `!N = [distinct] !{...}`, whose operands are strings, node references and typed constants. */
+    private IRMetadataNode parseMetadataNode(List<String> tokens) throws IOException {
+        IRMetadataNode node = new IRMetadataNode();
+        int[] cursor = {1};
+        expect(tokens, cursor, "=");
+        if (tokens.get(cursor[0]).equals("distinct")) {
+            node.distinct = true;
+            cursor[0]++;
+        }
+        expect(tokens, cursor, "!");
+        expect(tokens, cursor, "{");
+        while (!tokens.get(cursor[0]).equals("}")) {
+            String token = tokens.get(cursor[0]);
+            if (token.equals("!")) {
+                cursor[0]++;
+                node.operands.add(new MetadataOperand(unquote(tokens.get(cursor[0]++)), null, null));
+            } else if (token.startsWith("!")) {
+                cursor[0]++;
+                node.operands.add(new MetadataOperand(null, token, null));
+            } else if (token.equals("null")) {
+                cursor[0]++;
+                node.operands.add(new MetadataOperand(null, null, null));
+            } else {
+                node.operands.add(new MetadataOperand(null, null, parseOperand(parseType(tokens, cursor), tokens, cursor)));
+            }
+            if (tokens.get(cursor[0]).equals(",")) {
+                cursor[0]++;
+            }
+        }
+        return node;
+    }
+
+    private Operand parseOperand(String type, List<String> tokens, int[] cursor) throws IOException {
+        return new Operand(type, parseValue(type, tokens, cursor));
+    }
+
+    /**
+     * Reads a value at the cursor: a local or global name, a literal, or a
+     * constant aggregate or expression. Returns its spelling with tokens
+     * separated by single spaces, so equal constants compare equal.
+     */
+    private String parseValue(String type, List<String> tokens, int[] cursor) throws IOException {
+        int start = cursor[0];
+        String token = tokens.get(cursor[0]++);
+        boolean expression = token.equals("getelementptr") || CAST_OPCODES.containsKey(token);
+        if (expression && tokens.get(cursor[0]).equals("inbounds")) {
+            cursor[0]++;
+        }
+        if (expression || token.equals("{") || token.equals("[")) {
+            if (expression) {
+                expect(tokens, cursor, "(");
+            }
+            int depth = 1;
+            while (depth > 0) {
+                String next = tokens.get(cursor[0]++);
+                if (next.equals("(") || next.equals("{") || next.equals("[")) depth++;
+                if (next.equals(")") || next.equals("}") || next.equals("]")) depth--;
+            }
+        }
+        String value = String.join(" ", tokens.subList(start, cursor[0]));
+        if (cursor[0] - start > 1) {
+            parseConstant(type, value); // interns the types it mentions before the type table is written
+        }
+        return value;
+    }
+
+    /** Parses a constant's spelling (as returned by parseValue) into its kind and operands. */
+    private Constant parseConstant(String type, String text) throws IOException {
+        Constant constant = new Constant();
+        constant.type = type;
+        constant.text = text;
+        List<String> tokens = tokenize(text);
+        int[] cursor = {1};
+        String first = tokens.get(0);
+        if (first.startsWith("@")) {
+            constant.kind = "global";
+        } else if (first.equals("null") || first.equals("zeroinitializer")) {
+            constant.kind = "null";
+        } else if (first.equals("undef")) {
+            constant.kind = "undef";
+        } else if (first.startsWith("c\"")) {
+            constant.kind = "string";
+            constant.bytes = unescape(first.substring(2, first.length() - 1));
+        } else if (first.equals("{") || first.equals("[")) {
+            constant.kind = "aggregate";
+            String close = first.equals("{") ? "}" : "]";
+            while (!tokens.get(cursor[0]).equals(close)) {
+                constant.operands.add(parseOperand(parseType(tokens, cursor), tokens, cursor));
+                if (tokens.get(cursor[0]).equals(",")) {
+                    cursor[0]++;
+                }
+            }
+        } else if (CAST_OPCODES.containsKey(first)) {
+            constant.kind = "cast";
+            constant.opcode = first;
+            expect(tokens, cursor, "(");
+            constant.operands.add(parseOperand(parseType(tokens, cursor), tokens, cursor));
+            expect(tokens, cursor, "to");
+            parseType(tokens, cursor);
+        } else if (first.equals("getelementptr")) {
+            constant.kind = "gep";
+            if (tokens.get(cursor[0]).equals("inbounds")) {
+                constant.inBounds = true;
+                cursor[0]++;
+            }
+            expect(tokens, cursor, "(");
+            constant.sourceType = parseType(tokens, cursor);
+            while (tokens.get(cursor[0]).equals(",")) {
+                cursor[0]++;
+                constant.operands.add(parseOperand(parseType(tokens, cursor), tokens, cursor));
+            }
+        } else if (type.equals("float") || type.equals("double")) {
+            constant.kind = "float";
+        } else if (type.matches("i\\d+")) {
+            constant.kind = "int";
+        } else {
+            throw new IOException("Unsupported constant for bitcode output: " + type + " " + text);
+        }
+        return constant;
+    }
+
+    private static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        int length = line.length();
+        while (i < length) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == ';') {
+                break;
+            } else if (c == '"' || (c == 'c' && i + 1 < length && line.charAt(i + 1) == '"')) {
+                int start = i;
+                i = line.indexOf('"', c == 'c' ? i + 2 : i + 1) + 1;
+                if (i == 0) {
+                    i = length;
+                }
+                tokens.add(line.substring(start, i));
+            } else if ("(){}[],=*:".indexOf(c) >= 0) {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else {
+                int start = i;
+                while (i < length && !Character.isWhitespace(line.charAt(i))
+                       && "(){}[],=*:;\"".indexOf(line.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(line.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    private static String unquote(String token) {
+        return token.length() >= 2 && token.startsWith("\"") ? token.substring(1, token.length() - 1) : token;
+    }
+
+    private static boolean isTypeStart(String token) {
+        return token.matches("i\\d+") || token.equals("void") || token.equals("float")
+            || token.equals("double") || token.equals("label") || token.equals("[")
+            || token.equals("{") || token.startsWith("%");
+    }
+
+    private static void expect(List<String> tokens, int[] cursor, String expected) throws IOException {
+        String actual = cursor[0] < tokens.size() ? tokens.get(cursor[0]) : "<end of line>";
+        if (!actual.equals(expected)) {
+            throw new IOException("Expected '" + expected + "' but found '" + actual + "' in: " + String.join(" ", tokens));
+        }
+        cursor[0]++;
+    }
+
+    /** Parses a type at the cursor and returns its canonical spelling, interning it in the type table. */
+    private String parseType(List<String> tokens, int[] cursor) throws IOException {
+        String type;
+        String token = tokens.get(cursor[0]++);
+        if (token.equals("[")) {
+            String count = tokens.get(cursor[0]++);
+            expect(tokens, cursor, "x");
+            String element = parseType(tokens, cursor);
+            expect(tokens, cursor, "]");
+            type = "[" + count + " x " + element + "]";
+        } else if (token.equals("{")) {
+            List<String> elements = new ArrayList<>();
+            while (!tokens.get(cursor[0]).equals("}")) {
+                elements.add(parseType(tokens, cursor));
+                if (tokens.get(cursor[0]).equals(",")) {
+                    cursor[0]++;
+                }
+            }
+            cursor[0]++;
+            type = "{ " + String.join(", ", elements) + " }";
+        } else if (isTypeStart(token)) {
+            type = token;
+        } else {
+            throw new IOException("Unsupported type for bitcode output: " + token);
+        }
+        while (cursor[0] < tokens.size() && tokens.get(cursor[0]).equals("*")) {
+            cursor[0]++;
+            type = type + "*";
+        }
+        if (isFunctionPointerType(tokens, cursor[0])) {
+            // `ret (params)*`; a parenthesis not followed by `*` is a call's argument list
+            cursor[0]++;
+            List<String> params = new ArrayList<>();
+            while (!tokens.get(cursor[0]).equals(")")) {
+                params.add(tokens.get(cursor[0]).equals("...") ? tokens.get(cursor[0]++) : parseType(tokens, cursor));
+                if (tokens.get(cursor[0]).equals(",")) {
+                    cursor[0]++;
+                }
+            }
+            cursor[0]++;
+            type = type + " (" + String.join(", ", params) + ")";
+            while (cursor[0] < tokens.size() && tokens.get(cursor[0]).equals("*")) {
+                cursor[0]++;
+                type = type + "*";
+            }
+        }
+        typeId(type);
+        return type;
+    }
+
+    private static boolean isFunctionPointerType(List<String> tokens, int open) {
+        if (open >= tokens.size() || !tokens.get(open).equals("(")) {
+            return false;
+        }
+        int depth = 0;
+        for (int i = open; i < tokens.size(); i++) {
+            if (tokens.get(i).equals("(")) depth++;
+            if (tokens.get(i).equals(")") && --depth == 0) {
+                return i + 1 < tokens.size() && tokens.get(i + 1).equals("*");
+            }
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------------
+    // Type and attribute enumeration
+    // ---------------------------------------------------------------------
+
+    /** Returns the ID of a type, adding it (and the types it contains) to the table on first use. */
+    private int typeId(String type) throws IOException {
+        Integer existing = typeIds.get(type);
+        if (existing != null) {
+            return existing;
+        }
+        if (typeTableWritten) {
+            throw new IllegalStateException("Type used after the type table was written: " + type);
+        }
+
+        long[] record;
+        if (type.endsWith("*")) {
+            int pointee = typeId(type.substring(0, type.length() - 1));
+            record = new long[] {TYPE_CODE_POINTER, pointee, 0};
+        } else if (type.endsWith(")")) {
+            int open = type.indexOf(" (");
+            int returnType = typeId(type.substring(0, open));
+            String params = type.substring(open + 2, type.length() - 1);
+            List<Long> fields = new ArrayList<>();
+            fields.add((long) TYPE_CODE_FUNCTION);
+            fields.add(params.endsWith("...") ? 1L : 0L);
+            fields.add((long) returnType);
+            for (String param : splitTopLevel(params)) {
+                if (!param.equals("...")) {
+                    fields.add((long) typeId(param));
+                }
+            }
+            record = toArray(fields);
+        } else if (type.startsWith("%")) {
+            // Named structs take their ID before their body, so a body may point back at its struct
+            List<String> body = structBodies.get(type);
+            if (body == null) {
+                throw new IOException("Unknown type " + type + " in bitcode output");
+            }
+            int id = typeRecords.size();
+            typeIds.put(type, id);
+            typeRecords.add(null);
+            structNames.put(id, type.substring(1));
+            List<String> elements = new ArrayList<>();
+            int[] cursor = {1};
+            while (!body.get(cursor[0]).equals("}")) {
+                elements.add(parseType(body, cursor));
+                if (body.get(cursor[0]).equals(",")) {
+                    cursor[0]++;
+                }
+            }
+            structElements.put(type, elements);
+            List<Long> fields = new ArrayList<>(Arrays.asList((long) TYPE_CODE_STRUCT_NAMED, 0L));
+            for (String element : structElements.get(type)) {
+                fields.add((long) typeId(element));
+            }
+            typeRecords.set(id, toArray(fields));
+            return id;
+        } else if (type.startsWith("{")) {
+            List<Long> fields = new ArrayList<>(Arrays.asList((long) TYPE_CODE_STRUCT_ANON, 0L));
+            for (String element : splitTopLevel(type.substring(1, type.length() - 1).trim())) {
+                fields.add((long) typeId(element));
+            }
+            record = toArray(fields);
+        } else if (type.startsWith("[")) {
+            String[] parts = type.substring(1, type.length() - 1).split(" x ", 2);
+            int element = typeId(parts[1]);
+            record = new long[] {TYPE_CODE_ARRAY, Long.parseLong(parts[0]), element};
+        } else if (type.startsWith("i")) {
+            record = new long[] {TYPE_CODE_INTEGER, Long.parseLong(type.substring(1))};
+        } else if (type.equals("void")) {
+            record = new long[] {TYPE_CODE_VOID};
+        } else if (type.equals("float")) {
+            record = new long[] {TYPE_CODE_FLOAT};
+        } else if (type.equals("double")) {
+            record = new long[] {TYPE_CODE_DOUBLE};
+        } else if (type.equals("label")) {
+            record = new long[] {TYPE_CODE_LABEL};
+        } else {
+            throw new IllegalArgumentException("Unknown type: " + type);
+        }
+
+        int id = typeRecords.size();
+        typeIds.put(type, id);
+        typeRecords.add(record);
+        return id;
+    }
+
+    private void enumerateAttributes() {
+        for (IRFunction function : functions) {
+            List<Long> groups = new ArrayList<>();
+            if (!function.returnAttributes.isEmpty()) {
+                groups.add((long) attributeGroupId(0, function.returnAttributes));
+            }
+            if (!function.functionAttributes.isEmpty()) {
+                groups.add((long) attributeGroupId(FUNCTION_ATTRIBUTE_INDEX, function.functionAttributes));
+            }
+            if (groups.isEmpty()) {
+                function.attributeListId = 0;
+                continue;
+            }
+            String key = groups.toString();
+            Integer listId = attributeListIds.get(key);
+            if (listId == null) {
+                long[] record = new long[groups.size()];
+                for (int i = 0; i < record.length; i++) {
+                    record[i] = groups.get(i);
+                }
+                attributeListRecords.add(record);
+                listId = attributeListRecords.size();
+                attributeListIds.put(key, listId);
+            }
+            function.attributeListId = listId;
+        }
+    }
+
+    private int attributeGroupId(long index, List<String> attributes) {
+        String key = index + ":" + attributes;
+        Integer existing = attributeGroupIds.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        int groupId = attributeGroupRecords.size() + 1;
+        long[] record = new long[2 + attributes.size() * 2];
+        record[0] = groupId;
+        record[1] = index;
+        for (int i = 0; i < attributes.size(); i++) {
+            record[2 + i * 2] = 0; // enum attribute
+            record[3 + i * 2] = ATTRIBUTE_KINDS.get(attributes.get(i));
+        }
+        attributeGroupRecords.add(record);
+        attributeGroupIds.put(key, groupId);
+        return groupId;
+    }
+
+    /**
+     * Numbers strings, then constant values, then nodes, and builds their
+     * records. Values become module constants, since metadata refers to
+     * them by absolute value ID.
+     */
+    private void enumerateMetadata() throws IOException {
+        Map<String, MetadataOperand> leaves = new LinkedHashMap<>();
+        for (IRMetadataNode node : metadataNodes.values()) {
+            for (MetadataOperand operand : node.operands) {
+                if (operand.string != null) {
+                    leaves.putIfAbsent("!\"" + operand.string + "\"", operand);
+                }
+            }
+        }
+        for (IRMetadataNode node : metadataNodes.values()) {
+            for (MetadataOperand operand : node.operands) {
+                if (operand.value != null) {
+                    leaves.putIfAbsent(operand.value.type + " " + operand.value.value, operand);
+                }
+            }
+        }
+
+        for (Map.Entry<String, MetadataOperand> leaf : leaves.entrySet()) {
+            MetadataOperand operand = leaf.getValue();
+            metadataIds.put(leaf.getKey(), metadataIds.size());
+            if (operand.string != null) {
+                List<Long> fields = new ArrayList<>();
+                fields.add((long) METADATA_STRING_OLD);
+                for (byte b : unescape(operand.string)) {
+                    fields.add((long) (b & 0xFF));
+                }
+                metadataRecords.add(toArray(fields));
+            } else {
+                metadataRecords.add(new long[] {METADATA_VALUE, typeId(operand.value.type),
+                    moduleConstants.add(operand.value.type, operand.value.value)});
+            }
+        }
+        for (String name : metadataNodes.keySet()) {
+            metadataIds.put(name, metadataIds.size());
+        }
+        for (IRMetadataNode node : metadataNodes.values()) {
+            List<Long> fields = new ArrayList<>();
+            fields.add((long) (node.distinct ? METADATA_DISTINCT_NODE : METADATA_NODE));
+            for (MetadataOperand operand : node.operands) {
+                if (operand.string != null) {
+                    fields.add(metadataId("!\"" + operand.string + "\"") + 1L);
+                } else if (operand.value != null) {
+                    fields.add(metadataId(operand.value.type + " " + operand.value.value) + 1L);
+                } else if (operand.node != null) {
+                    fields.add(metadataId(operand.node) + 1L);
+                } else {
+                    fields.add(0L); // null operand
+                }
+            }
+            metadataRecords.add(toArray(fields));
+        }
+    }
+
+    private int metadataId(String key) throws IOException {
+        Integer id = metadataIds.get(key);
+        if (id == null) {
+            throw new IOException("Unknown metadata " + key + " in bitcode output");
+        }
+        return id;
+    }
+
+    // ---------------------------------------------------------------------
+    // Writing the bitstream
+    // ---------------------------------------------------------------------
+
+    private void writeMagic() {
+        stream.emit('B', 8);
+        stream.emit('C', 8);
+        stream.emit(0x0, 4);
+        stream.emit(0xC, 4);
+        stream.emit(0xE, 4);
+        stream.emit(0xD, 4);
+    }
+
+    private void writeIdentificationBlock() {
+        stream.enterSubblock(IDENTIFICATION_BLOCK_ID, 5);
+        int stringAbbrev = stream.defineAbbrev(new LocusBitstreamWriter.Abbrev()
+            .add(LocusBitstreamWriter.AbbrevOp.literal(IDENTIFICATION_CODE_STRING))
+            .add(LocusBitstreamWriter.AbbrevOp.array())
+            .add(LocusBitstreamWriter.AbbrevOp.char6()));
+        stream.emitRecordWithAbbrev(stringAbbrev, IDENTIFICATION_CODE_STRING, chars("Locus"), null);
+        stream.emitRecord(IDENTIFICATION_CODE_EPOCH, 0);
+        stream.exitBlock();
+    }
+
+    private void writeModuleBlock() throws IOException {
+        stream.enterSubblock(MODULE_BLOCK_ID, 3);
+        stream.emitRecord(MODULE_CODE_VERSION, 2);
+
+        // Make sure every type the function bodies need is in the table
+        typeId("i32");
+        typeTableWritten = true;
+
+        writeBlockInfo();
+        writeAttributes();
+        writeTypeTable();
+        if (!triple.isEmpty()) {
+            stream.emitRecord(MODULE_CODE_TRIPLE, chars(triple));
+        }
+        if (!dataLayout.isEmpty()) {
+            stream.emitRecord(MODULE_CODE_DATALAYOUT, chars(dataLayout));
+        }
+
+        long strtabOffset = 0;
+        for (IRGlobal global : globals) {
+            boolean local = global.linkage != 0 && global.linkage != 2;
+            stream.emitRecord(MODULE_CODE_GLOBALVAR,
+                strtabOffset, utf8(global.name).length,
+                typeId(global.type),
+                2 | (global.isConstant ? 1 : 0),     // explicit value type, address space 0
+                moduleConstants.add(global.type, global.initializer) + 1,
+                global.linkage,
+                global.alignment != 0 ? encodeAlignment(global.alignment) : 0,
+                0, 0, 0,                             // section, visibility, thread_local
+                global.unnamedAddr ? 1 : 0,
+                0, 0, 0, 0,                          // externally_initialized .. attributes
+                local ? 1 : 0);                      // dso_local
+            strtabOffset += utf8(global.name).length;
+        }
+        for (IRFunction function : functions) {
+            boolean local = function.linkage != 0;
+            stream.emitRecord(MODULE_CODE_FUNCTION,
+                strtabOffset, utf8(function.name).length,
+                typeId(function.functionType()),
+                0,                               // calling convention: ccc
+                function.isDeclaration ? 1 : 0,
+                function.linkage,
+                function.attributeListId,
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0,    // alignment .. personality
+                local ? 1 : 0);                  // dso_local
+            strtabOffset += utf8(function.name).length;
+        }
+        writeConstants(moduleConstants);
+        writeMetadata();
+
+        for (IRFunction function : functions) {
+            if (!function.isDeclaration) {
+                writeFunctionBlock(function);
+            }
+        }
+
+        stream.exitBlock();
+    }
+
+    private void writeBlockInfo() {
+        stream.enterBlockInfoBlock();
+
+        vstEntry8Abbrev = stream.defineBlockInfoAbbrev(VALUE_SYMTAB_BLOCK_ID, new LocusBitstreamWriter.Abbrev()
+            .add(LocusBitstreamWriter.AbbrevOp.literal(VST_CODE_ENTRY))
+            .add(LocusBitstreamWriter.AbbrevOp.vbr(8))
+            .add(LocusBitstreamWriter.AbbrevOp.array())
+            .add(LocusBitstreamWriter.AbbrevOp.fixed(8)));
+        vstEntry6Abbrev = stream.defineBlockInfoAbbrev(VALUE_SYMTAB_BLOCK_ID, new LocusBitstreamWriter.Abbrev()
+            .add(LocusBitstreamWriter.AbbrevOp.literal(VST_CODE_ENTRY))
+            .add(LocusBitstreamWriter.AbbrevOp.vbr(8))
+            .add(LocusBitstreamWriter.AbbrevOp.array())
+            .add(LocusBitstreamWriter.AbbrevOp.char6()));
+        vstBBEntry8Abbrev = stream.defineBlockInfoAbbrev(VALUE_SYMTAB_BLOCK_ID, new LocusBitstreamWriter.Abbrev()
+            .add(LocusBitstreamWriter.AbbrevOp.literal(VST_CODE_BBENTRY))
+            .add(LocusBitstreamWriter.AbbrevOp.vbr(8))
+            .add(LocusBitstreamWriter.AbbrevOp.array())
+            .add(LocusBitstreamWriter.AbbrevOp.fixed(8)));
+        vstBBEntry6Abbrev = stream.defineBlockInfoAbbrev(VALUE_SYMTAB_BLOCK_ID, new LocusBitstreamWriter.Abbrev()
+            .add(LocusBitstreamWriter.AbbrevOp.literal(VST_CODE_BBENTRY))
+            .add(LocusBitstreamWriter.AbbrevOp.vbr(8))
+            .add(LocusBitstreamWriter.AbbrevOp.array())
+            .add(LocusBitstreamWriter.AbbrevOp.char6()));
+
+        int typeBits = 32 - Integer.numberOfLeadingZeros(typeRecords.size());
+        constantsSetTypeAbbrev = stream.defineBlockInfoAbbrev(CONSTANTS_BLOCK_ID, new LocusBitstreamWriter.Abbrev()
+            .add(LocusBitstreamWriter.AbbrevOp.literal(CST_CODE_SETTYPE))
+            .add(LocusBitstreamWriter.AbbrevOp.fixed(typeBits)));
+        constantsIntegerAbbrev = stream.defineBlockInfoAbbrev(CONSTANTS_BLOCK_ID, new LocusBitstreamWriter.Abbrev()
+            .add(LocusBitstreamWriter.AbbrevOp.literal(CST_CODE_INTEGER))
+            .add(LocusBitstreamWriter.AbbrevOp.vbr(8)));
+
+        functionLoadAbbrev = stream.defineBlockInfoAbbrev(FUNCTION_BLOCK_ID, new LocusBitstreamWriter.Abbrev()
+            .add(LocusBitstreamWriter.AbbrevOp.literal(FUNC_CODE_INST_LOAD))
+            .add(LocusBitstreamWriter.AbbrevOp.vbr(6))
+            .add(LocusBitstreamWriter.AbbrevOp.fixed(typeBits))
+            .add(LocusBitstreamWriter.AbbrevOp.vbr(4))
+            .add(LocusBitstreamWriter.AbbrevOp.fixed(1)));
+        functionBinopAbbrev = stream.defineBlockInfoAbbrev(FUNCTION_BLOCK_ID, new LocusBitstreamWriter.Abbrev()
+            .add(LocusBitstreamWriter.AbbrevOp.literal(FUNC_CODE_INST_BINOP))
+            .add(LocusBitstreamWriter.AbbrevOp.vbr(6))
+            .add(LocusBitstreamWriter.AbbrevOp.vbr(6))
+            .add(LocusBitstreamWriter.AbbrevOp.fixed(4)));
+        functionRetVoidAbbrev = stream.defineBlockInfoAbbrev(FUNCTION_BLOCK_ID, new LocusBitstreamWriter.Abbrev()
+            .add(LocusBitstreamWriter.AbbrevOp.literal(FUNC_CODE_INST_RET)));
+        functionRetValueAbbrev = stream.defineBlockInfoAbbrev(FUNCTION_BLOCK_ID, new LocusBitstreamWriter.Abbrev()
+            .add(LocusBitstreamWriter.AbbrevOp.literal(FUNC_CODE_INST_RET))
+            .add(LocusBitstreamWriter.AbbrevOp.vbr(6)));
+        functionUnreachableAbbrev = stream.defineBlockInfoAbbrev(FUNCTION_BLOCK_ID, new LocusBitstreamWriter.Abbrev()
+            .add(LocusBitstreamWriter.AbbrevOp.literal(FUNC_CODE_INST_UNREACHABLE)));
+
+        stream.exitBlock();
+    }
+
+    private void writeAttributes() {
+        if (attributeGroupRecords.isEmpty()) {
+            return;
+        }
+        stream.enterSubblock(PARAMATTR_GROUP_BLOCK_ID, 3);
+        for (long[] record : attributeGroupRecords) {
+            stream.emitRecord(PARAMATTR_GRP_CODE_ENTRY, record);
+        }
+        stream.exitBlock();
+
+        stream.enterSubblock(PARAMATTR_BLOCK_ID, 3);
+        for (long[] record : attributeListRecords) {
+            stream.emitRecord(PARAMATTR_CODE_ENTRY, record);
+        }
+        stream.exitBlock();
+    }
+
+    /** Writes the attachment kinds in use, then every metadata node with the strings and values it refers to. */
+    private void writeMetadata() {
+        if (!metadataKinds.isEmpty()) {
+            stream.enterSubblock(METADATA_KIND_BLOCK_ID, 3);
+            for (String kind : metadataKinds) {
+                List<Long> fields = new ArrayList<>();
+                fields.add((long) METADATA_KINDS.get(kind));
+                for (byte b : utf8(kind)) {
+                    fields.add((long) b);
+                }
+                stream.emitRecord(METADATA_KIND, fields);
+            }
+            stream.exitBlock();
+        }
+        if (!metadataRecords.isEmpty()) {
+            stream.enterSubblock(METADATA_BLOCK_ID, 3);
+            for (long[] record : metadataRecords) {
+                stream.emitRecord((int) record[0], Arrays.copyOfRange(record, 1, record.length));
+            }
+            stream.exitBlock();
+        }
+    }
+
+    private void writeTypeTable() {
+        stream.enterSubblock(TYPE_BLOCK_ID, 4);
+        stream.emitRecord(TYPE_CODE_NUMENTRY, typeRecords.size());
+        for (int id = 0; id < typeRecords.size(); id++) {
+            long[] record = typeRecords.get(id);
+            if (structNames.containsKey(id)) {
+                stream.emitRecord(TYPE_CODE_STRUCT_NAME, chars(structNames.get(id)));
+            }
+            stream.emitRecord((int) record[0], Arrays.copyOfRange(record, 1, record.length));
+        }
+        stream.exitBlock();
+    }
+
+    private void writeFunctionBlock(IRFunction function) throws IOException {
+        // Value numbering: globals, functions and module constants, then arguments, then constants, then instruction results
+        Map<String, Integer> localIds = new HashMap<>();
+        int nextValueId = moduleConstants.firstId + moduleConstants.size();
+        for (String paramName : function.paramNames) {
+            if (paramName != null) {
+                localIds.put(paramName, nextValueId);
+            }
+            nextValueId++;
+        }
+
+        ConstantTable constants = new ConstantTable(nextValueId);
+        for (IRBlock block : function.blocks) {
+            for (IRInstruction inst : block.instructions) {
+                if (inst.opcode.equals("alloca")) {
+                    constants.add("i32", "1");
+                }
+                for (Operand operand : inst.operands) {
+                    if (isConstant(operand.value)) {
+                        constants.add(operand.type, operand.value);
+                    }
+                }
+            }
+        }
+        nextValueId += constants.size();
+
+        int firstInstructionId = nextValueId;
+        Map<String, Integer> blockIds = new HashMap<>();
+        for (int i = 0; i < function.blocks.size(); i++) {
+            IRBlock block = function.blocks.get(i);
+            if (block.name != null) {
+                blockIds.put(block.name, i);
+            }
+            for (IRInstruction inst : block.instructions) {
+                if (inst.result != null && !"void".equals(inst.type)) {
+                    localIds.put(inst.result, nextValueId++);
+                }
+            }
+        }
+
+        stream.enterSubblock(FUNCTION_BLOCK_ID, 4);
+        stream.emitRecord(FUNC_CODE_DECLAREBLOCKS, function.blocks.size());
+        writeConstants(constants);
+
+        FunctionContext context = new FunctionContext(localIds, constants, blockIds, firstInstructionId);
+        for (IRBlock block : function.blocks) {
+            for (IRInstruction inst : block.instructions) {
+                writeInstruction(function, inst, context);
+            }
+        }
+
+        writeFunctionSymbolTable(function, localIds);
+        writeMetadataAttachments(function);
+        stream.exitBlock();
+    }
+
+    /**
+     * The function's own attachments form an even-length record; each
+     * instruction's start with its index among all the function's instructions.
+     */
+    private void writeMetadataAttachments(IRFunction function) throws IOException {
+        List<List<Long>> records = new ArrayList<>();
+        if (!function.attachments.isEmpty()) {
+            records.add(attachmentFields(new ArrayList<>(), function.attachments));
+        }
+        long index = 0;
+        for (IRBlock block : function.blocks) {
+            for (IRInstruction inst : block.instructions) {
+                if (!inst.attachments.isEmpty()) {
+                    records.add(attachmentFields(new ArrayList<>(Collections.singletonList(index)), inst.attachments));
+                }
+                index++;
+            }
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        stream.enterSubblock(METADATA_ATTACHMENT_ID, 3);
+        for (List<Long> record : records) {
+            stream.emitRecord(METADATA_ATTACHMENT, record);
+        }
+        stream.exitBlock();
+    }
+
+    private List<Long> attachmentFields(List<Long> fields, List<String[]> attachments) throws IOException {
+        for (String[] attachment : attachments) {
+            fields.add((long) METADATA_KINDS.get(attachment[0]));
+            fields.add((long) metadataId(attachment[1]));
+        }
+        return fields;
+    }
+
+    private class FunctionContext {
+        final Map<String, Integer> localIds;
+        final ConstantTable constants;
+        final Map<String, Integer> blockIds;
+        int instructionId;
+
+        FunctionContext(Map<String, Integer> localIds, ConstantTable constants,
+                        Map<String, Integer> blockIds, int instructionId) {
+            this.localIds = localIds;
+            this.constants = constants;
+            this.blockIds = blockIds;
+            this.instructionId = instructionId;
+        }
+
+        int valueId(Operand operand) throws IOException {
+            Integer id = operand.value.startsWith("%") ? localIds.get(operand.value.substring(1))
+                                                       : constants.id(operand);
+            if (id == null) {
+                throw new IOException("Unknown value " + operand.value + " in bitcode output");
+            }
+            return id;
+        }
+
+        int blockId(String label) throws IOException {
+            Integer id = blockIds.get(label);
+            if (id == null) {
+                throw new IOException("Unknown label %" + label + " in bitcode output");
+            }
+            return id;
+        }
+
+        /** Operands are encoded relative to the ID of the instruction being written. */
+        void pushValue(List<Long> fields, Operand operand) throws IOException {
+            fields.add((instructionId - (long) valueId(operand)) & 0xFFFFFFFFL);
+        }
+
+        /** Like pushValue, but forward references also carry their type. */
+        void pushValueAndType(List<Long> fields, Operand operand) throws IOException {
+            int id = valueId(operand);
+            fields.add((instructionId - (long) id) & 0xFFFFFFFFL);
+            if (id >= instructionId) {
+                fields.add((long) typeId(operand.type));
+            }
+        }
+    }
+
+    /** Globals come first in the value numbering, then functions, both in definition order. */
+    private int globalValueId(String name) throws IOException {
+        for (int i = 0; i < globals.size(); i++) {
+            if (globals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        for (int i = 0; i < functions.size(); i++) {
+            if (functions.get(i).name.equals(name)) {
+                return globals.size() + i;
+            }
+        }
+        throw new IOException("Unknown global @" + name + " in bitcode output");
+    }
+
+    /** Writes a constants block; operands are absolute value IDs, and SETTYPE precedes each change of type. */
+    private void writeConstants(ConstantTable constants) throws IOException {
+        if (constants.size() == 0) {
+            return;
+        }
+        stream.enterSubblock(CONSTANTS_BLOCK_ID, 4);
+        String currentType = null;
+        for (Constant constant : constants.constants) {
+            if (!constant.type.equals(currentType)) {
+                currentType = constant.type;
+                stream.emitRecordWithAbbrev(constantsSetTypeAbbrev, CST_CODE_SETTYPE,
+                    Collections.singletonList((long) typeId(currentType)));
+            }
+            List<Long> fields = new ArrayList<>();
+            switch (constant.kind) {
+                case "null":
+                    stream.emitRecord(CST_CODE_NULL);
+                    break;
+                case "undef":
+                    stream.emitRecord(CST_CODE_UNDEF);
+                    break;
+                case "float":
+                    stream.emitRecord(CST_CODE_FLOAT, floatBits(constant.type, constant.text));
+                    break;
+                case "int":
+                    stream.emitRecordWithAbbrev(constantsIntegerAbbrev, CST_CODE_INTEGER,
+                        Collections.singletonList(signRotate(integerValue(constant.type, constant.text))));
+                    break;
+                case "string":
+                    for (byte b : constant.bytes) {
+                        fields.add((long) (b & 0xFF));
+                    }
+                    stream.emitRecord(CST_CODE_STRING, fields);
+                    break;
+                case "aggregate":
+                    for (Operand operand : constant.operands) {
+                        fields.add((long) constants.add(operand.type, operand.value));
+                    }
+                    stream.emitRecord(CST_CODE_AGGREGATE, fields);
+                    break;
+                case "cast": {
+                    Operand operand = constant.operands.get(0);
+                    stream.emitRecord(CST_CODE_CE_CAST, CAST_OPCODES.get(constant.opcode),
+                        typeId(operand.type), constants.add(operand.type, operand.value));
+                    break;
+                }
+                case "gep":
+                    fields.add((long) typeId(constant.sourceType));
+                    for (Operand operand : constant.operands) {
+                        fields.add((long) typeId(operand.type));
+                        fields.add((long) constants.add(operand.type, operand.value));
+                    }
+                    stream.emitRecord(constant.inBounds ? CST_CODE_CE_INBOUNDS_GEP : CST_CODE_CE_GEP, fields);
+                    break;
+                default:
+                    throw new IOException("Unsupported constant for bitcode output: " + constant.type + " " + constant.text);
+            }
+        }
+        stream.exitBlock();
+    }
+
+    private void writeInstruction(IRFunction function, IRInstruction inst, FunctionContext context) throws IOException {
+        List<Long> fields = new ArrayList<>();
+        boolean producesValue = inst.result != null && !"void".equals(inst.type);
+
+        if (BINARY_OPCODES.containsKey(inst.opcode)) {
+            context.pushValueAndType(fields, inst.operands.get(0));
+            context.pushValue(fields, inst.operands.get(1));
+            fields.add((long) BINARY_OPCODES.get(inst.opcode));
+            if (inst.flags != 0) {
+                fields.add((long) inst.flags);
+                stream.emitRecord(FUNC_CODE_INST_BINOP, fields);
+            } else if (fields.size() == 3) {
+                stream.emitRecordWithAbbrev(functionBinopAbbrev, FUNC_CODE_INST_BINOP, fields);
+            } else {
+                stream.emitRecord(FUNC_CODE_INST_BINOP, fields);
+            }
+        } else if (CAST_OPCODES.containsKey(inst.opcode)) {
+            context.pushValueAndType(fields, inst.operands.get(0));
+            fields.add((long) typeId(inst.type));
+            fields.add((long) CAST_OPCODES.get(inst.opcode));
+            stream.emitRecord(FUNC_CODE_INST_CAST, fields);
+        } else {
+            switch (inst.opcode) {
+                case "alloca":
+                    fields.add((long) typeId(inst.type));
+                    fields.add((long) typeId("i32"));
+                    fields.add((long) context.constants.add("i32", "1"));
+                    fields.add((long) (encodeAlignment(alignmentOf(inst.type)) | ALLOCA_EXPLICIT_TYPE_FLAG));
+                    stream.emitRecord(FUNC_CODE_INST_ALLOCA, fields);
+                    break;
+                case "load":
+                    context.pushValueAndType(fields, inst.operands.get(0));
+                    fields.add((long) typeId(inst.type));
+                    fields.add((long) encodeAlignment(alignmentOf(inst.type)));
+                    fields.add(0L);
+                    if (fields.size() == 4) {
+                        stream.emitRecordWithAbbrev(functionLoadAbbrev, FUNC_CODE_INST_LOAD, fields);
+                    } else {
+                        stream.emitRecord(FUNC_CODE_INST_LOAD, fields);
+                    }
+                    break;
+                case "store":
+                    context.pushValueAndType(fields, inst.operands.get(0));
+                    context.pushValueAndType(fields, inst.operands.get(1));
+                    fields.add((long) encodeAlignment(alignmentOf(inst.operands.get(1).type)));
+                    fields.add(0L);
+                    stream.emitRecord(FUNC_CODE_INST_STORE, fields);
+                    break;
+                case "getelementptr":
+                    fields.add((long) inst.flags);
+                    fields.add((long) typeId(inst.type));
+                    for (Operand operand : inst.operands) {
+                        context.pushValueAndType(fields, operand);
+                    }
+                    stream.emitRecord(FUNC_CODE_INST_GEP, fields);
+                    break;
+                case "icmp":
+                case "fcmp":
+                    context.pushValueAndType(fields, inst.operands.get(0));
+                    context.pushValue(fields, inst.operands.get(1));
+                    fields.add((long) CMP_PREDICATES.get(inst.predicate));
+                    stream.emitRecord(FUNC_CODE_INST_CMP2, fields);
+                    break;
+                case "br":
+                    fields.add((long) context.blockId(inst.labels.get(0)));
+                    if (inst.labels.size() == 2) {
+                        fields.add((long) context.blockId(inst.labels.get(1)));
+                        context.pushValue(fields, inst.operands.get(0));
+                    }
+                    stream.emitRecord(FUNC_CODE_INST_BR, fields);
+                    break;
+                case "switch":
+                    // Case values are absolute IDs, unlike the relative condition
+                    fields.add((long) typeId(inst.operands.get(0).type));
+                    context.pushValue(fields, inst.operands.get(0));
+                    fields.add((long) context.blockId(inst.labels.get(0)));
+                    for (int i = 1; i < inst.operands.size(); i++) {
+                        fields.add((long) context.valueId(inst.operands.get(i)));
+                        fields.add((long) context.blockId(inst.labels.get(i)));
+                    }
+                    stream.emitRecord(FUNC_CODE_INST_SWITCH, fields);
+                    break;
+                case "ret":
+                    if (inst.operands.isEmpty()) {
+                        stream.emitRecordWithAbbrev(functionRetVoidAbbrev, FUNC_CODE_INST_RET, fields);
+                    } else {
+                        context.pushValueAndType(fields, inst.operands.get(0));
+                        if (fields.size() == 1) {
+                            stream.emitRecordWithAbbrev(functionRetValueAbbrev, FUNC_CODE_INST_RET, fields);
+                        } else {
+                            stream.emitRecord(FUNC_CODE_INST_RET, fields);
+                        }
+                    }
+                    break;
+                case "call": {
+                    IRFunction callee = functionsByName.get(inst.callee);
+                    if (callee == null) {
+                        throw new IOException("Call to undeclared function @" + inst.callee + " in @" + function.name);
+                    }
+                    fields.add(0L); // call-site attributes
+                    fields.add((long) CALL_EXPLICIT_TYPE_FLAG);
+                    fields.add((long) typeId(callee.functionType()));
+                    context.pushValueAndType(fields, new Operand(callee.functionType() + "*", "@" + callee.name));
+                    for (int i = 0; i < inst.operands.size(); i++) {
+                        if (i < callee.paramTypes.size()) {
+                            context.pushValue(fields, inst.operands.get(i));
+                        } else {
+                            context.pushValueAndType(fields, inst.operands.get(i));
+                        }
+                    }
+                    stream.emitRecord(FUNC_CODE_INST_CALL, fields);
+                    break;
+                }
+                case "unreachable":
+                    stream.emitRecordWithAbbrev(functionUnreachableAbbrev, FUNC_CODE_INST_UNREACHABLE, fields);
+                    break;
+                default:
+                    throw new IOException("Unsupported instruction for bitcode output: " + inst.opcode);
+            }
+        }
+
+        if (producesValue) {
+            context.instructionId++;
+        }
+    }
+
+    private void writeFunctionSymbolTable(IRFunction function, Map<String, Integer> localIds) {
+        stream.enterSubblock(VALUE_SYMTAB_BLOCK_ID, 4);
+        List<Map.Entry<String, Integer>> values = new ArrayList<>(localIds.entrySet());
+        values.sort(Map.Entry.comparingByValue());
+        for (Map.Entry<String, Integer> entry : values) {
+            writeSymbolTableEntry(VST_CODE_ENTRY, entry.getValue(), entry.getKey(), vstEntry6Abbrev, vstEntry8Abbrev);
+        }
+        for (int i = 0; i < function.blocks.size(); i++) {
+            String name = function.blocks.get(i).name;
+            if (name != null) {
+                writeSymbolTableEntry(VST_CODE_BBENTRY, i, name, vstBBEntry6Abbrev, vstBBEntry8Abbrev);
+            }
+        }
+        stream.exitBlock();
+    }
+
+    private void writeSymbolTableEntry(int code, int id, String name, int char6Abbrev, int char8Abbrev) {
+        List<Long> fields = new ArrayList<>();
+        fields.add((long) id);
+        boolean char6 = true;
+        for (byte b : utf8(name)) {
+            fields.add((long) (b & 0xFF));
+            char6 &= b >= 0 && LocusBitstreamWriter.isChar6((char) b);
+        }
+        stream.emitRecordWithAbbrev(char6 ? char6Abbrev : char8Abbrev, code, fields);
+    }
+
+    private void writeStringTable() {
+        ByteArrayOutputStream strtab = new ByteArrayOutputStream();
+        for (IRGlobal global : globals) {
+            byte[] name = utf8(global.name);
+            strtab.write(name, 0, name.length);
+        }
+        for (IRFunction function : functions) {
+            byte[] name = utf8(function.name);
+            strtab.write(name, 0, name.length);
+        }
+
+        stream.enterSubblock(STRTAB_BLOCK_ID, 3);
+        int blobAbbrev = stream.defineAbbrev(new LocusBitstreamWriter.Abbrev()
+            .add(LocusBitstreamWriter.AbbrevOp.literal(STRTAB_BLOB))
+            .add(LocusBitstreamWriter.AbbrevOp.blob()));
+        stream.emitRecordWithAbbrev(blobAbbrev, STRTAB_BLOB, new long[0], strtab.toByteArray());
+        stream.exitBlock();
+    }
+
+    // ---------------------------------------------------------------------
+    // Helpers
+    // ---------------------------------------------------------------------
+
+    private static boolean isConstant(String value) {
+        return !value.startsWith("%") && !value.startsWith("@");
+    }
+
+    private static long integerValue(String type, String literal) {
+        long value;
+        if (literal.equals("true")) {
+            value = 1;
+        } else if (literal.equals("false")) {
+            value = 0;
+        } else {
+            value = Long.parseLong(literal);
+        }
+        // Constants are stored sign-extended from their bit width, so i1 true is -1
+        int width = Integer.parseInt(type.substring(1));
+        if (width < 64) {
+            value = (value << (64 - width)) >> (64 - width);
+        }
+        return value;
+    }
+
+    private static long signRotate(long value) {
+        return value >= 0 ? value << 1 : ((-value) << 1) | 1;
+    }
+
+    private static long floatBits(String type, String literal) {
+        double value = literal.startsWith("0x")
+            ? Double.longBitsToDouble(Long.parseUnsignedLong(literal.substring(2), 16))
+            : Double.parseDouble(literal);
+        return type.equals("float") ? Float.floatToIntBits((float) value) & 0xFFFFFFFFL : Double.doubleToLongBits(value);
+    }
+
+    private int alignmentOf(String type) {
+        if (type.endsWith("*")) {
+            return 8;
+        }
+        if (type.startsWith("[")) {
+            return alignmentOf(type.substring(1, type.length() - 1).split(" x ", 2)[1]);
+        }
+        if (type.startsWith("%") || type.startsWith("{")) {
+            List<String> elements = type.startsWith("%") ? structElements.get(type)
+                                                         : splitTopLevel(type.substring(1, type.length() - 1).trim());
+            int alignment = 1;
+            for (String element : elements) {
+                alignment = Math.max(alignment, alignmentOf(element));
+            }
+            return alignment;
+        }
+        switch (type) {
+            case "i1":
+            case "i8":
+                return 1;
+            case "i16":
+                return 2;
+            case "i32":
+            case "float":
+                return 4;
+            default:
+                return 8;
+        }
+    }
+
+    /** Alignments are stored as log2(alignment) + 1, with 0 meaning unspecified. */
+    private static int encodeAlignment(int alignment) {
+        return Integer.numberOfTrailingZeros(alignment) + 1;
+    }
+
+    /** Splits a comma-separated type list at the top level, leaving nested struct, array and parameter lists whole. */
+    private static List<String> splitTopLevel(String list) {
+        List<String> parts = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < list.length(); i++) {
+            char c = list.charAt(i);
+            if (c == '(' || c == '{' || c == '[') depth++;
+            if (c == ')' || c == '}' || c == ']') depth--;
+            if (c == ',' && depth == 0) {
+                parts.add(list.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        if (!list.substring(start).trim().isEmpty()) {
+            parts.add(list.substring(start).trim());
+        }
+        return parts;
+    }
+
+    /** Decodes the body of a c"..." literal, where \XX is a hex byte and \\ a backslash. */
+    private static byte[] unescape(String body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] raw = utf8(body);
+        for (int i = 0; i < raw.length; i++) {
+            if (raw[i] == '\\' && i + 1 < raw.length && raw[i + 1] == '\\') {
+                bytes.write('\\');
+                i++;
+            } else if (raw[i] == '\\' && i + 2 < raw.length) {
+                bytes.write(Integer.parseInt(new String(raw, i + 1, 2, java.nio.charset.StandardCharsets.US_ASCII), 16));
+                i += 2;
+            } else {
+                bytes.write(raw[i]);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static long[] toArray(List<Long> fields) {
+        long[] record = new long[fields.size()];
+        for (int i = 0; i < record.length; i++) {
+            record[i] = fields.get(i);
+        }
+        return record;
+    }
+
+    private static long[] chars(String text) {
+        byte[] bytes = utf8(text);
+        long[] result = new long[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i] = bytes[i] & 0xFF;
+        }
+        return result;
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    }
+}
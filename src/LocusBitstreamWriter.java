@@ -0,0 +1,322 @@
+import java.util.*;
+
+/**
+ * Low-level writer for the LLVM bitstream container format.
+ *
+ * Handles fixed-width and VBR fields, nested blocks with back-patched
+ * lengths, abbreviation definitions (local and BLOCKINFO) and
+ * abbreviated/unabbreviated records. Knows nothing about IR; see
+ * LocusBitcodeWriter for the module-level encoding.
+ */
+public class LocusBitstreamWriter {
+    // Builtin abbreviation IDs
+    public static final int END_BLOCK = 0;
+    public static final int ENTER_SUBBLOCK = 1;
+    public static final int DEFINE_ABBREV = 2;
+    public static final int UNABBREV_RECORD = 3;
+    public static final int FIRST_APPLICATION_ABBREV = 4;
+
+    public static final int BLOCKINFO_BLOCK_ID = 0;
+    private static final int BLOCKINFO_CODE_SETBID = 1;
+
+    private byte[] buffer = new byte[1024];
+    private int byteCount = 0;
+    private long currentValue = 0;
+    private int currentBit = 0;
+    private int abbrevWidth = 2;
+    private List<Abbrev> currentAbbrevs = new ArrayList<>();
+    private Deque<BlockScope> blockScopes = new ArrayDeque<>();
+    private Map<Integer, List<Abbrev>> blockInfoAbbrevs = new HashMap<>();
+    private int blockInfoCurrentBID = -1;
+
+    private static class BlockScope {
+        final int previousAbbrevWidth;
+        final List<Abbrev> previousAbbrevs;
+        final int sizeWordIndex;
+
+        BlockScope(int previousAbbrevWidth, List<Abbrev> previousAbbrevs, int sizeWordIndex) {
+            this.previousAbbrevWidth = previousAbbrevWidth;
+            this.previousAbbrevs = previousAbbrevs;
+            this.sizeWordIndex = sizeWordIndex;
+        }
+    }
+
+    /** A single operand of an abbreviation definition. */
+    public static class AbbrevOp {
+        enum Kind { LITERAL, FIXED, VBR, ARRAY, CHAR6, BLOB }
+
+        final Kind kind;
+        final long value;
+
+        private AbbrevOp(Kind kind, long value) {
+            this.kind = kind;
+            this.value = value;
+        }
+
+        public static AbbrevOp literal(long value) { return new AbbrevOp(Kind.LITERAL, value); }
+        public static AbbrevOp fixed(int width) { return new AbbrevOp(Kind.FIXED, width); }
+        public static AbbrevOp vbr(int width) { return new AbbrevOp(Kind.VBR, width); }
+        public static AbbrevOp array() { return new AbbrevOp(Kind.ARRAY, 0); }
+        public static AbbrevOp char6() { return new AbbrevOp(Kind.CHAR6, 0); }
+        public static AbbrevOp blob() { return new AbbrevOp(Kind.BLOB, 0); }
+    }
+
+    /** An abbreviation: a record template whose first operand is the record code. */
+    public static class Abbrev {
+        final List<AbbrevOp> ops = new ArrayList<>();
+
+        public Abbrev add(AbbrevOp op) {
+            ops.add(op);
+            return this;
+        }
+    }
+
+    public void emit(long value, int width) {
+        if (width == 0) {
+            return;
+        }
+        long masked = width == 64 ? value : value & ((1L << width) - 1);
+        if (width > 32) {
+            emit(masked & 0xFFFFFFFFL, 32);
+            emit(masked >>> 32, width - 32);
+            return;
+        }
+        currentValue |= masked << currentBit;
+        currentBit += width;
+        while (currentBit >= 32) {
+            writeWord((int) currentValue);
+            currentValue >>>= 32;
+            currentBit -= 32;
+        }
+    }
+
+    public void emitVBR(long value, int width) {
+        long threshold = 1L << (width - 1);
+        while (Long.compareUnsigned(value, threshold) >= 0) {
+            emit((value & (threshold - 1)) | threshold, width);
+            value >>>= width - 1;
+        }
+        emit(value, width);
+    }
+
+    public void alignTo32Bits() {
+        if (currentBit > 0) {
+            emit(0, 32 - currentBit);
+        }
+    }
+
+    public void enterSubblock(int blockId, int newAbbrevWidth) {
+        emit(ENTER_SUBBLOCK, abbrevWidth);
+        emitVBR(blockId, 8);
+        emitVBR(newAbbrevWidth, 4);
+        alignTo32Bits();
+
+        // Placeholder for the block length in 32-bit words, patched in exitBlock
+        int sizeWordIndex = byteCount / 4;
+        emit(0, 32);
+
+        blockScopes.push(new BlockScope(abbrevWidth, currentAbbrevs, sizeWordIndex));
+        abbrevWidth = newAbbrevWidth;
+        currentAbbrevs = new ArrayList<>(blockInfoAbbrevs.getOrDefault(blockId, Collections.emptyList()));
+    }
+
+    public void exitBlock() {
+        if (blockScopes.isEmpty()) {
+            throw new IllegalStateException("exitBlock without matching enterSubblock");
+        }
+        emit(END_BLOCK, abbrevWidth);
+        alignTo32Bits();
+
+        BlockScope scope = blockScopes.pop();
+        int sizeInWords = byteCount / 4 - scope.sizeWordIndex - 1;
+        patchWord(scope.sizeWordIndex, sizeInWords);
+
+        abbrevWidth = scope.previousAbbrevWidth;
+        currentAbbrevs = scope.previousAbbrevs;
+        blockInfoCurrentBID = -1;
+    }
+
+    /** Defines an abbreviation local to the current block and returns its ID. */
+    public int defineAbbrev(Abbrev abbrev) {
+        encodeAbbrev(abbrev);
+        currentAbbrevs.add(abbrev);
+        return FIRST_APPLICATION_ABBREV + currentAbbrevs.size() - 1;
+    }
+
+    /**
+     * Defines an abbreviation inside the BLOCKINFO block that applies to every
+     * later block with the given ID. Must be called between enterBlockInfoBlock
+     * and exitBlock.
+     */
+    public int defineBlockInfoAbbrev(int blockId, Abbrev abbrev) {
+        if (blockInfoCurrentBID != blockId) {
+            emitRecord(BLOCKINFO_CODE_SETBID, blockId);
+            blockInfoCurrentBID = blockId;
+        }
+        encodeAbbrev(abbrev);
+        List<Abbrev> abbrevs = blockInfoAbbrevs.computeIfAbsent(blockId, k -> new ArrayList<>());
+        abbrevs.add(abbrev);
+        return FIRST_APPLICATION_ABBREV + abbrevs.size() - 1;
+    }
+
+    public void enterBlockInfoBlock() {
+        enterSubblock(BLOCKINFO_BLOCK_ID, 2);
+        blockInfoCurrentBID = -1;
+    }
+
+    private void encodeAbbrev(Abbrev abbrev) {
+        emit(DEFINE_ABBREV, abbrevWidth);
+        emitVBR(abbrev.ops.size(), 5);
+        for (AbbrevOp op : abbrev.ops) {
+            if (op.kind == AbbrevOp.Kind.LITERAL) {
+                emit(1, 1);
+                emitVBR(op.value, 8);
+            } else {
+                emit(0, 1);
+                emit(encodingOf(op.kind), 3);
+                if (op.kind == AbbrevOp.Kind.FIXED || op.kind == AbbrevOp.Kind.VBR) {
+                    emitVBR(op.value, 5);
+                }
+            }
+        }
+    }
+
+    private int encodingOf(AbbrevOp.Kind kind) {
+        switch (kind) {
+            case FIXED: return 1;
+            case VBR: return 2;
+            case ARRAY: return 3;
+            case CHAR6: return 4;
+            case BLOB: return 5;
+            default: throw new IllegalArgumentException("Literal operands have no encoding");
+        }
+    }
+
+    /** Emits an unabbreviated record. */
+    public void emitRecord(int code, long... ops) {
+        emit(UNABBREV_RECORD, abbrevWidth);
+        emitVBR(code, 6);
+        emitVBR(ops.length, 6);
+        for (long op : ops) {
+            emitVBR(op, 6);
+        }
+    }
+
+    public void emitRecord(int code, List<Long> ops) {
+        emitRecord(code, toArray(ops));
+    }
+
+    public void emitRecordWithAbbrev(int abbrevId, int code, List<Long> ops) {
+        emitRecordWithAbbrev(abbrevId, code, toArray(ops), null);
+    }
+
+    /**
+     * Emits a record using a previously defined abbreviation. The record code
+     * is matched against the abbreviation's first operand like any other field.
+     */
+    public void emitRecordWithAbbrev(int abbrevId, int code, long[] ops, byte[] blob) {
+        Abbrev abbrev = currentAbbrevs.get(abbrevId - FIRST_APPLICATION_ABBREV);
+        long[] fields = new long[ops.length + 1];
+        fields[0] = code;
+        System.arraycopy(ops, 0, fields, 1, ops.length);
+
+        emit(abbrevId, abbrevWidth);
+        int field = 0;
+        for (int i = 0; i < abbrev.ops.size(); i++) {
+            AbbrevOp op = abbrev.ops.get(i);
+            switch (op.kind) {
+                case LITERAL:
+                    if (field >= fields.length || fields[field] != op.value) {
+                        throw new IllegalArgumentException("Record does not match abbreviation literal");
+                    }
+                    field++;
+                    break;
+                case ARRAY:
+                    AbbrevOp element = abbrev.ops.get(++i);
+                    emitVBR(fields.length - field, 6);
+                    while (field < fields.length) {
+                        emitScalar(element, fields[field++]);
+                    }
+                    break;
+                case BLOB:
+                    byte[] bytes = blob != null ? blob : new byte[0];
+                    emitVBR(bytes.length, 6);
+                    alignTo32Bits();
+                    for (byte b : bytes) {
+                        emit(b & 0xFF, 8);
+                    }
+                    alignTo32Bits();
+                    break;
+                default:
+                    emitScalar(op, fields[field++]);
+            }
+        }
+    }
+
+    private void emitScalar(AbbrevOp op, long value) {
+        switch (op.kind) {
+            case FIXED:
+                emit(value, (int) op.value);
+                break;
+            case VBR:
+                emitVBR(value, (int) op.value);
+                break;
+            case CHAR6:
+                emit(encodeChar6((char) value), 6);
+                break;
+            default:
+                throw new IllegalArgumentException("Not a scalar abbreviation operand: " + op.kind);
+        }
+    }
+
+    public static boolean isChar6(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '_';
+    }
+
+    private static int encodeChar6(char c) {
+        if (c >= 'a' && c <= 'z') return c - 'a';
+        if (c >= 'A' && c <= 'Z') return c - 'A' + 26;
+        if (c >= '0' && c <= '9') return c - '0' + 52;
+        if (c == '.') return 62;
+        if (c == '_') return 63;
+        throw new IllegalArgumentException("Not a char6 character: " + c);
+    }
+
+    private void writeWord(int word) {
+        ensureCapacity(byteCount + 4);
+        buffer[byteCount++] = (byte) word;
+        buffer[byteCount++] = (byte) (word >>> 8);
+        buffer[byteCount++] = (byte) (word >>> 16);
+        buffer[byteCount++] = (byte) (word >>> 24);
+    }
+
+    private void patchWord(int wordIndex, int word) {
+        int offset = wordIndex * 4;
+        buffer[offset] = (byte) word;
+        buffer[offset + 1] = (byte) (word >>> 8);
+        buffer[offset + 2] = (byte) (word >>> 16);
+        buffer[offset + 3] = (byte) (word >>> 24);
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(size, buffer.length * 2));
+        }
+    }
+
+    private static long[] toArray(List<Long> ops) {
+        long[] result = new long[ops.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ops.get(i);
+        }
+        return result;
+    }
+
+    public byte[] toByteArray() {
+        if (!blockScopes.isEmpty()) {
+            throw new IllegalStateException("Unterminated block in bitstream");
+        }
+        alignTo32Bits();
+        return Arrays.copyOf(buffer, byteCount);
+    }
+}
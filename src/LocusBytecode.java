@@ -0,0 +1,234 @@
+import java.util.*;
+
+/**
+ * Compact register-based bytecode for the Locus interpreter.
+ *
+ * Code is a flat int[] per function: an opcode followed by its operands.
+ * Each frame has two register files, one of longs for primitives (i32, i64,
+ * bool and enum tags as sign-extended longs; f32/f64 as double bits) and one
+ * of references (strings, aggregate frames and arrays). Jump targets are absolute
+ * code offsets. Operands that may name either file encode reference
+ * registers as ~index (always negative).
+ */
+public class LocusBytecode {
+    // Moves and constants
+    public static final int MOV = 0;        // dst src
+    public static final int MOVR = 1;       // dst src (references)
+    public static final int LOADI = 2;      // dst imm32
+    public static final int LOADK = 3;      // dst longConstantIndex
+    public static final int LOADS = 4;      // dst(ref) stringIndex
+    public static final int LOADNULL = 5;   // dst(ref)
+
+    // Arithmetic: dst a b; the _I forms wrap to 32 bits, the _F forms round to float
+    public static final int ADD_I = 6;
+    public static final int SUB_I = 7;
+    public static final int MUL_I = 8;
+    public static final int DIV_I = 9;
+    public static final int REM_I = 10;
+    public static final int ADD_J = 11;
+    public static final int SUB_J = 12;
+    public static final int MUL_J = 13;
+    public static final int DIV_J = 14;
+    public static final int REM_J = 15;
+    public static final int ADD_D = 16;
+    public static final int SUB_D = 17;
+    public static final int MUL_D = 18;
+    public static final int DIV_D = 19;
+    public static final int REM_D = 20;
+    public static final int ADD_F = 21;
+    public static final int SUB_F = 22;
+    public static final int MUL_F = 23;
+    public static final int DIV_F = 24;
+    public static final int REM_F = 25;
+    public static final int ADDI_I = 26;    // dst a imm32
+    public static final int ADDI_J = 27;    // dst a imm32
+
+    // Unary and conversions: dst a
+    public static final int NEG_I = 28;
+    public static final int NEG_J = 29;
+    public static final int NEG_D = 30;
+    public static final int NOT = 31;
+    public static final int I2D = 32;
+    public static final int I2F = 33;
+    public static final int J2I = 34;
+    public static final int D2I = 35;
+    public static final int D2J = 36;
+    public static final int D2F = 37;
+
+    // Comparisons producing 0/1: dst a b
+    public static final int EQ = 38;
+    public static final int NE = 39;
+    public static final int LT = 40;
+    public static final int GE = 41;
+    public static final int GT = 42;
+    public static final int LE = 43;
+    public static final int EQ_D = 44;
+    public static final int NE_D = 45;
+    public static final int LT_D = 46;
+    public static final int GE_D = 47;
+    public static final int GT_D = 48;
+    public static final int LE_D = 49;
+
+    // Control flow
+    public static final int JMP = 50;       // target
+    public static final int JZ = 51;        // a target
+    public static final int JNZ = 52;       // a target
+    public static final int JEQ = 53;       // a b target, same order as EQ..LE
+    public static final int JNE = 54;
+    public static final int JLT = 55;
+    public static final int JGE = 56;
+    public static final int JGT = 57;
+    public static final int JLE = 58;
+    public static final int TABLESWITCH = 59;   // a low high default target*(high-low+1)
+    public static final int LOOKUPSWITCH = 60;  // a count default (key target)*count
+    public static final int MATCHFAIL = 61;
+
+    // Strings: refs unless noted
+    public static final int CONCAT = 62;    // dst a b
+    public static final int STR_I = 63;     // dst(ref) a(prim)
+    public static final int STR_D = 64;
+    public static final int STR_F = 65;
+    public static final int STR_Z = 66;
+    public static final int STREQ = 67;     // dst(prim) a b
+    public static final int REFEQ = 68;     // dst(prim) a b
+
+    // Calls: dst functionSlot argc arg*; dst and args use the ~ref encoding, NO_REGISTER for void
+    public static final int CALL = 69;      // functionSlot is a string index naming the callee
+    public static final int CALL_Q = 70;    // quickened: functionSlot is the resolved function index
+    public static final int RET = 71;       // a
+    public static final int RETR = 72;      // a(ref)
+    public static final int RETV = 73;
+
+    // Aggregates: primitive fields live in a long[] frame. Aggregates with reference
+    // fields are an Object[] whose slot 0 holds the long[] of primitive fields.
+    public static final int NEWP = 74;      // dst(ref) primitiveCount
+    public static final int NEWM = 75;      // dst(ref) primitiveCount referenceCount
+    public static final int GETF = 76;      // dst obj index
+    public static final int PUTF = 77;      // obj index src
+    public static final int GETFM = 78;     // dst obj index
+    public static final int PUTFM = 79;     // obj index src
+    public static final int GETFR = 80;     // dst(ref) obj index
+    public static final int PUTFR = 81;     // obj index src(ref)
+
+    // Arrays of primitives: a fixed-size array is a long[] made by NEWP, a Vec a
+    // LocusInterpreter.Vec. Indices are registers and every access is bounds-checked.
+    public static final int GETA = 82;      // dst arr index
+    public static final int PUTA = 83;      // arr index src
+    public static final int LENA = 84;      // dst arr
+    public static final int NEWV = 85;      // dst(ref)
+    public static final int GETV = 86;      // dst vec index
+    public static final int PUTV = 87;      // vec index src
+    public static final int LENV = 88;      // dst vec
+    public static final int PUSHV = 89;     // vec src
+
+    public static final int NO_REGISTER = Integer.MIN_VALUE;
+
+    private static final String[] NAMES = {
+        "mov", "movr", "loadi", "loadk", "loads", "loadnull",
+        "add.i", "sub.i", "mul.i", "div.i", "rem.i",
+        "add.j", "sub.j", "mul.j", "div.j", "rem.j",
+        "add.d", "sub.d", "mul.d", "div.d", "rem.d",
+        "add.f", "sub.f", "mul.f", "div.f", "rem.f",
+        "addi.i", "addi.j",
+        "neg.i", "neg.j", "neg.d", "not", "i2d", "i2f", "j2i", "d2i", "d2j", "d2f",
+        "eq", "ne", "lt", "ge", "gt", "le", "eq.d", "ne.d", "lt.d", "ge.d", "gt.d", "le.d",
+        "jmp", "jz", "jnz", "jeq", "jne", "jlt", "jge", "jgt", "jle",
+        "tableswitch", "lookupswitch", "matchfail",
+        "concat", "str.i", "str.d", "str.f", "str.z", "streq", "refeq",
+        "call", "call.q", "ret", "retr", "retv",
+        "newp", "newm", "getf", "putf", "getfm", "putfm", "getfr", "putfr",
+        "geta", "puta", "lena", "newv", "getv", "putv", "lenv", "pushv"
+    };
+
+    // Operand counts for fixed-length instructions; -1 marks variable length
+    private static final int[] OPERANDS = {
+        2, 2, 2, 2, 2, 1,
+        3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3,
+        2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
+        3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3,
+        1, 2, 2, 3, 3, 3, 3, 3, 3,
+        -1, -1, 0,
+        3, 2, 2, 2, 2, 3, 3,
+        -1, -1, 1, 1, 0,
+        2, 3, 3, 3, 3, 3, 3, 3,
+        3, 3, 2, 1, 3, 3, 2, 2
+    };
+
+    /** A compiled function. Parameters arrive in the registers listed in paramRegisters. */
+    public static class Function {
+        public final String name;
+        public final int[] code;
+        public final int primitiveRegisters;
+        public final int referenceRegisters;
+        public final int[] paramRegisters;
+
+        public Function(String name, int[] code, int primitiveRegisters, int referenceRegisters,
+                        int[] paramRegisters) {
+            this.name = name;
+            this.code = code;
+            this.primitiveRegisters = primitiveRegisters;
+            this.referenceRegisters = referenceRegisters;
+            this.paramRegisters = paramRegisters;
+        }
+    }
+
+    /** A compiled program: functions plus the constant pools they share. */
+    public static class Program {
+        public final List<Function> functions = new ArrayList<>();
+        public final Map<String, Integer> functionIndex = new HashMap<>();
+        public final List<Long> longConstants = new ArrayList<>();
+        public final List<String> strings = new ArrayList<>();
+        private final Map<Long, Integer> longIndex = new HashMap<>();
+        private final Map<String, Integer> stringIndex = new HashMap<>();
+
+        public void addFunction(Function function) {
+            functionIndex.put(function.name, functions.size());
+            functions.add(function);
+        }
+
+        public int longConstant(long value) {
+            return longIndex.computeIfAbsent(value, v -> {
+                longConstants.add(v);
+                return longConstants.size() - 1;
+            });
+        }
+
+        public int string(String value) {
+            return stringIndex.computeIfAbsent(value, v -> {
+                strings.add(v);
+                return strings.size() - 1;
+            });
+        }
+
+        public String disassemble() {
+            StringBuilder out = new StringBuilder();
+            for (Function function : functions) {
+                out.append(function.name).append(": ").append(function.primitiveRegisters).append(" prim, ")
+                   .append(function.referenceRegisters).append(" ref registers\n");
+                int pc = 0;
+                while (pc < function.code.length) {
+                    int length = instructionLength(function.code, pc);
+                    out.append(String.format("  %4d  %-12s", pc, NAMES[function.code[pc]]));
+                    for (int i = 1; i < length; i++) {
+                        out.append(' ').append(function.code[pc + i]);
+                    }
+                    out.append('\n');
+                    pc += length;
+                }
+            }
+            return out.toString();
+        }
+    }
+
+    /** Length in ints of the instruction at pc, including the opcode. */
+    public static int instructionLength(int[] code, int pc) {
+        int opcode = code[pc];
+        switch (opcode) {
+            case TABLESWITCH: return 5 + (code[pc + 3] - code[pc + 2] + 1);
+            case LOOKUPSWITCH: return 4 + 2 * code[pc + 2];
+            case CALL:
+            case CALL_Q: return 4 + code[pc + 3];
+            default: return 1 + OPERANDS[opcode];
+        }
+    }
+}
@@ -0,0 +1,1528 @@
+import java.util.*;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * Compiles a parsed Locus program to register-based LocusBytecode for the
+ * interpreter.
+ *
+ * Every local variable owns a register for its whole scope; temporaries are
+ * allocated above the locals and released after each statement. Struct and
+ * payload-carrying enum values are primitive-array frames (see
+ * LocusBytecode), payload-free enums are plain int tags.
+ */
+public class LocusBytecodeCompiler extends LocusBaseListener {
+    private LocusBytecode.Program program = new LocusBytecode.Program();
+    private Map<String, StructLayout> structs = new LinkedHashMap<>();
+    private Map<String, EnumLayout> enums = new HashMap<>();
+    private Map<String, FunctionSignature> functions = new LinkedHashMap<>();
+    private Set<String> genericTypes = new HashSet<>();
+    private List<String> errors = new ArrayList<>();
+
+    // Per-function state
+    private FunctionSignature currentFunction;
+    private int[] code;
+    private int codeLength;
+    private int nextPrimitive;
+    private int nextReference;
+    private int maxPrimitive;
+    private int maxReference;
+    private Deque<Map<String, Value>> scopes = new ArrayDeque<>();
+
+    /** Field layout shared by structs and enum variants. */
+    private static class Layout {
+        final Map<String, String> types = new LinkedHashMap<>();
+        final Map<String, Integer> slots = new HashMap<>();
+        int primitiveCount;
+        int referenceCount;
+    }
+
+    private static class StructLayout extends Layout {
+        final String name;
+
+        StructLayout(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class EnumLayout {
+        final String name;
+        final Map<String, Integer> tags = new LinkedHashMap<>();
+        final Map<String, Layout> payloads = new HashMap<>();
+        boolean boxed;
+        boolean mixed;
+
+        EnumLayout(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class FunctionSignature {
+        final String name;
+        final LocusParser.FunctionDeclarationContext ctx;
+        final List<String> paramNames = new ArrayList<>();
+        final List<String> paramTypes = new ArrayList<>();
+        String returnType = "void";
+
+        FunctionSignature(String name, LocusParser.FunctionDeclarationContext ctx) {
+            this.name = name;
+            this.ctx = ctx;
+        }
+    }
+
+    /** A typed register; the type decides whether reg indexes the primitive or reference file. */
+    private static class Value {
+        final String type;
+        final int reg;
+
+        Value(String type, int reg) {
+            this.type = type;
+            this.reg = reg;
+        }
+    }
+
+    private static class Label {
+        int position = -1;
+        List<Integer> fixups = new ArrayList<>();
+    }
+
+    private List<Label> labels = new ArrayList<>();
+
+    @Override
+    public void enterProgram(LocusParser.ProgramContext ctx) {
+        // Declarations first, so bodies can refer to types and functions declared later
+        for (LocusParser.StatementContext statement : ctx.statement()) {
+            if (statement.structDeclaration() != null) {
+                LocusParser.StructDeclarationContext struct = statement.structDeclaration();
+                if (struct.typeList() != null) {
+                    genericTypes.add(struct.IDENTIFIER().getText());
+                } else {
+                    structs.put(struct.IDENTIFIER().getText(), new StructLayout(struct.IDENTIFIER().getText()));
+                }
+            } else if (statement.enumDeclaration() != null) {
+                LocusParser.EnumDeclarationContext enumDecl = statement.enumDeclaration();
+                if (enumDecl.typeList() != null) {
+                    genericTypes.add(enumDecl.IDENTIFIER().getText());
+                } else {
+                    EnumLayout layout = new EnumLayout(enumDecl.IDENTIFIER().getText());
+                    for (LocusParser.EnumVariantContext variant : enumDecl.enumVariant()) {
+                        layout.tags.put(variant.IDENTIFIER().getText(), layout.tags.size());
+                        layout.boxed |= variant.typeList() != null;
+                    }
+                    enums.put(layout.name, layout);
+                }
+            }
+        }
+        for (LocusParser.StatementContext statement : ctx.statement()) {
+            if (statement.structDeclaration() != null) {
+                StructLayout struct = structs.get(statement.structDeclaration().IDENTIFIER().getText());
+                if (struct != null) {
+                    for (LocusParser.StructFieldContext field : statement.structDeclaration().structField()) {
+                        addField(struct, field.IDENTIFIER().getText(), typeOf(field.type()));
+                    }
+                }
+            } else if (statement.enumDeclaration() != null) {
+                declareEnumPayloads(statement.enumDeclaration());
+            } else if (statement.functionDeclaration() != null) {
+                declareFunction(statement.functionDeclaration());
+            } else {
+                error(statement, "Top-level statements are not supported by the interpreter");
+            }
+        }
+
+        for (FunctionSignature function : functions.values()) {
+            if (function.ctx.typeList() == null) {
+                compileFunction(function);
+            }
+        }
+    }
+
+    /** Reference fields start at slot 1 of a mixed frame; slot 0 holds the primitive long[]. */
+    private void addField(Layout layout, String name, String type) {
+        layout.types.put(name, type);
+        if (isReference(type)) {
+            layout.slots.put(name, 1 + layout.referenceCount++);
+        } else {
+            layout.slots.put(name, layout.primitiveCount++);
+        }
+    }
+
+    private void declareEnumPayloads(LocusParser.EnumDeclarationContext ctx) {
+        EnumLayout layout = enums.get(ctx.IDENTIFIER().getText());
+        if (layout == null) {
+            return;
+        }
+        // Payload frames: primitive slot 0 is the tag, payloads follow
+        for (LocusParser.EnumVariantContext variant : ctx.enumVariant()) {
+            Layout payload = new Layout();
+            payload.primitiveCount = 1;
+            if (variant.typeList() != null) {
+                List<LocusParser.TypeContext> types = variant.typeList().type();
+                for (int i = 0; i < types.size(); i++) {
+                    String type = typeOf(types.get(i));
+                    addField(payload, String.valueOf(i), type);
+                    layout.mixed |= isReference(type);
+                }
+            }
+            layout.payloads.put(variant.IDENTIFIER().getText(), payload);
+        }
+    }
+
+    private void declareFunction(LocusParser.FunctionDeclarationContext ctx) {
+        String name = ctx.IDENTIFIER().getText();
+        if (functions.containsKey(name)) {
+            error(ctx, "Duplicate function: " + name);
+            return;
+        }
+        FunctionSignature function = new FunctionSignature(name, ctx);
+        boolean generic = ctx.typeList() != null;
+        if (ctx.parameterList() != null) {
+            for (LocusParser.ParameterContext param : ctx.parameterList().parameter()) {
+                function.paramNames.add(param.IDENTIFIER().getText());
+                function.paramTypes.add(generic ? "?" : typeOf(param.type()));
+            }
+        }
+        if (ctx.type() != null) {
+            function.returnType = generic ? "?" : typeOf(ctx.type());
+        }
+        functions.put(name, function);
+    }
+
+    // ---------------------------------------------------------------------
+    // Functions and statements
+    // ---------------------------------------------------------------------
+
+    private void compileFunction(FunctionSignature function) {
+        currentFunction = function;
+        code = new int[64];
+        codeLength = 0;
+        labels.clear();
+        nextPrimitive = nextReference = maxPrimitive = maxReference = 0;
+        scopes.clear();
+        scopes.push(new HashMap<>());
+
+        int[] paramRegisters = new int[function.paramNames.size()];
+        for (int i = 0; i < paramRegisters.length; i++) {
+            Value param = newRegister(function.paramTypes.get(i));
+            scopes.peek().put(function.paramNames.get(i), param);
+            paramRegisters[i] = encode(param);
+        }
+
+        compileBlock(function.ctx.block());
+
+        // Falling off the end returns the zero value
+        if (function.returnType.equals("void")) {
+            emit(LocusBytecode.RETV);
+        } else if (isReference(function.returnType)) {
+            Value zero = newRegister(function.returnType);
+            emit(LocusBytecode.LOADNULL, zero.reg);
+            emit(LocusBytecode.RETR, zero.reg);
+        } else {
+            Value zero = newRegister(function.returnType);
+            emit(LocusBytecode.LOADI, zero.reg, 0);
+            emit(LocusBytecode.RET, zero.reg);
+        }
+
+        for (Label label : labels) {
+            for (int fixup : label.fixups) {
+                code[fixup] = label.position;
+            }
+        }
+        program.addFunction(new LocusBytecode.Function(function.name, Arrays.copyOf(code, codeLength),
+            maxPrimitive, maxReference, paramRegisters));
+        currentFunction = null;
+    }
+
+    private void compileBlock(LocusParser.BlockContext ctx) {
+        int primitiveMark = nextPrimitive;
+        int referenceMark = nextReference;
+        scopes.push(new HashMap<>());
+
+        for (LocusParser.StatementContext statement : ctx.statement()) {
+            compileStatement(statement);
+        }
+
+        // Trailing expressions are implicit returns in value-returning functions
+        if (ctx.expression() != null) {
+            if (currentFunction.returnType.equals("void")) {
+                compileDiscarded(ctx.expression());
+            } else {
+                compileReturnValue(ctx.expression());
+            }
+        }
+
+        scopes.pop();
+        nextPrimitive = primitiveMark;
+        nextReference = referenceMark;
+    }
+
+    private void compileStatement(LocusParser.StatementContext ctx) {
+        if (ctx.variableDeclaration() != null) {
+            compileVariableDeclaration(ctx.variableDeclaration());
+            return;
+        }
+
+        int primitiveMark = nextPrimitive;
+        int referenceMark = nextReference;
+        if (ctx.ifStatement() != null) {
+            LocusParser.IfStatementContext ifStatement = ctx.ifStatement();
+            Label elseLabel = newLabel();
+            Label endLabel = newLabel();
+            compileBranch(ifStatement.expression(), false, elseLabel);
+            compileBlock(ifStatement.block(0));
+            if (ifStatement.ELSE() != null) {
+                emitJump(LocusBytecode.JMP, endLabel);
+                mark(elseLabel);
+                compileBlock(ifStatement.block(1));
+            } else {
+                mark(elseLabel);
+            }
+            mark(endLabel);
+        } else if (ctx.whileStatement() != null) {
+            // Rotated loop: one conditional branch per iteration
+            LocusParser.WhileStatementContext loop = ctx.whileStatement();
+            Label condLabel = newLabel();
+            Label bodyLabel = newLabel();
+            emitJump(LocusBytecode.JMP, condLabel);
+            mark(bodyLabel);
+            compileBlock(loop.block());
+            mark(condLabel);
+            compileBranch(loop.expression(), true, bodyLabel);
+        } else if (ctx.parallelStatement() != null) {
+            compileParallel(ctx.parallelStatement());
+        } else if (ctx.matchStatement() != null) {
+            LocusParser.MatchStatementContext match = ctx.matchStatement();
+            List<LocusParser.PatternContext> patterns = new ArrayList<>();
+            for (LocusParser.MatchArmContext arm : match.matchArm()) {
+                patterns.add(arm.pattern());
+            }
+            compileMatch(match.expression(), patterns, (index, end) -> {
+                compileBlock(match.matchArm(index).block());
+                emitJump(LocusBytecode.JMP, end);
+            });
+        } else if (ctx.returnStatement() != null) {
+            LocusParser.ReturnStatementContext ret = ctx.returnStatement();
+            if (ret.expression() == null) {
+                if (!currentFunction.returnType.equals("void")) {
+                    error(ret, "Missing return value in function '" + currentFunction.name + "'");
+                }
+                emit(LocusBytecode.RETV);
+            } else if (currentFunction.returnType.equals("void")) {
+                compileDiscarded(ret.expression());
+                emit(LocusBytecode.RETV);
+            } else {
+                compileReturnValue(ret.expression());
+            }
+        } else if (ctx.expressionStatement() != null) {
+            compileDiscarded(ctx.expressionStatement().expression());
+        } else {
+            error(ctx, "Nested declarations are not supported by the interpreter");
+        }
+        nextPrimitive = primitiveMark;
+        nextReference = referenceMark;
+    }
+
+    /**
+     * The mode checker proves par regions race-free, so running the iterations
+     * (or tasks) one after another in order is a valid schedule.
+     */
+    private void compileParallel(LocusParser.ParallelStatementContext ctx) {
+        if (ctx.IDENTIFIER() == null) {
+            compileBlock(ctx.block());
+            return;
+        }
+        Value index = newRegister("i32");
+        compileInto(ctx.expression(0), index);
+        Value end = newRegister("i32");
+        compileInto(ctx.expression(1), end);
+
+        scopes.push(new HashMap<>());
+        scopes.peek().put(ctx.IDENTIFIER().getText(), index);
+        Label condLabel = newLabel();
+        Label bodyLabel = newLabel();
+        emitJump(LocusBytecode.JMP, condLabel);
+        mark(bodyLabel);
+        compileBlock(ctx.block());
+        emit(LocusBytecode.ADDI_I, index.reg, index.reg, 1);
+        mark(condLabel);
+        emitJump(LocusBytecode.JLT, index.reg, end.reg, bodyLabel);
+        scopes.pop();
+    }
+
+    private void compileVariableDeclaration(LocusParser.VariableDeclarationContext ctx) {
+        String name = ctx.IDENTIFIER().getText();
+        String type;
+        if (ctx.type().getText().equals("let")) {
+            type = ctx.expression() != null ? inferType(ctx.expression()) : null;
+            if (type == null || type.equals("void")) {
+                error(ctx, "Cannot infer the type of '" + name + "'");
+                type = "i32";
+            }
+        } else {
+            type = typeOf(ctx.type());
+        }
+
+        // The local's register sits below the initializer's temporaries, so they can be released
+        Value local = newRegister(type);
+        int primitiveMark = nextPrimitive;
+        int referenceMark = nextReference;
+        if (isArray(type)) {
+            compileArrayInitializer(ctx, local);
+        } else if (ctx.expression() != null) {
+            compileInto(ctx.expression(), local);
+        } else {
+            emitZero(local);
+        }
+        nextPrimitive = primitiveMark;
+        nextReference = referenceMark;
+        scopes.peek().put(name, local);
+    }
+
+    /** Fixed-size arrays start zeroed and Vecs empty, then take the literal's elements in order. */
+    private void compileArrayInitializer(LocusParser.VariableDeclarationContext ctx, Value array) {
+        List<LocusParser.ExpressionContext> values = Collections.emptyList();
+        if (ctx.expression() != null) {
+            // The semantic analyzer only lets array literals initialize arrays
+            values = ctx.expression().primary().arrayLiteral().expression();
+        }
+        String element = elementType(array.type);
+        if (array.type.startsWith("Vec<")) {
+            emit(LocusBytecode.NEWV, array.reg);
+            for (LocusParser.ExpressionContext value : values) {
+                emit(LocusBytecode.PUSHV, array.reg, compileAs(value, element).reg);
+            }
+            return;
+        }
+        int length = fixedLength(array.type);
+        emit(LocusBytecode.NEWP, array.reg, length);
+        for (int i = 0; i < values.size() && i < length; i++) {
+            emit(LocusBytecode.PUTF, array.reg, i, compileAs(values.get(i), element).reg);
+        }
+    }
+
+    private void compileReturnValue(LocusParser.ExpressionContext ctx) {
+        Value value = compileAs(ctx, currentFunction.returnType);
+        emit(isReference(value.type) ? LocusBytecode.RETR : LocusBytecode.RET, value.reg);
+    }
+
+    private void compileDiscarded(LocusParser.ExpressionContext ctx) {
+        if (isAssignment(ctx)) {
+            compileAssignment(ctx);
+        } else {
+            compile(ctx, null);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Pattern matching
+    // ---------------------------------------------------------------------
+
+    private interface ArmCompiler {
+        void compile(int armIndex, Label end);
+    }
+
+    /**
+     * Lowers a match to a switch over the subject: tableswitch or lookupswitch
+     * on int tags, a compare chain for other subjects. Arms shadowed by an
+     * earlier default or duplicate key are dropped.
+     */
+    private void compileMatch(LocusParser.ExpressionContext subjectCtx, List<LocusParser.PatternContext> patterns,
+                              ArmCompiler arms) {
+        Value subject = compile(subjectCtx, null);
+        boolean binds = false;
+        for (LocusParser.PatternContext pattern : patterns) {
+            binds |= pattern.identifierPattern() != null || pattern.enumVariantPattern() != null;
+        }
+        if (binds && isVariable(subjectCtx)) {
+            // Bindings must not alias a variable the arm might reassign
+            Value copy = newRegister(subject.type);
+            emitMove(copy, subject);
+            subject = copy;
+        }
+
+        EnumLayout boxedEnum = enums.get(subject.type);
+        if (boxedEnum != null && !boxedEnum.boxed) {
+            boxedEnum = null;
+        }
+        Value key = subject;
+        if (boxedEnum != null) {
+            key = newRegister("i32");
+            emit(boxedEnum.mixed ? LocusBytecode.GETFM : LocusBytecode.GETF, key.reg, subject.reg, 0);
+        }
+
+        Label end = newLabel();
+        Label noMatch = newLabel();
+        Label defaultLabel = null;
+        Label[] armLabels = new Label[patterns.size()];
+        TreeMap<Integer, Label> intCases = new TreeMap<>();
+        List<Object[]> otherCases = new ArrayList<>();
+
+        for (int i = 0; i < patterns.size() && defaultLabel == null; i++) {
+            LocusParser.PatternContext pattern = patterns.get(i);
+            if (pattern.wildcardPattern() != null || pattern.identifierPattern() != null) {
+                armLabels[i] = newLabel();
+                defaultLabel = armLabels[i];
+                continue;
+            }
+            Object caseKey = patternKey(pattern, subject.type);
+            if (caseKey == null) {
+                continue;
+            }
+            if (caseKey instanceof Integer && isIntLike(key.type)) {
+                if (!intCases.containsKey(caseKey)) {
+                    armLabels[i] = newLabel();
+                    intCases.put((Integer) caseKey, armLabels[i]);
+                }
+            } else {
+                armLabels[i] = newLabel();
+                otherCases.add(new Object[] {caseKey, armLabels[i]});
+            }
+        }
+        if (defaultLabel == null) {
+            defaultLabel = noMatch;
+        }
+
+        if (isIntLike(key.type)) {
+            compileSwitch(key, intCases, defaultLabel);
+        } else {
+            for (Object[] matchCase : otherCases) {
+                compileCaseTest(subject, matchCase[0], (Label) matchCase[1]);
+            }
+            emitJump(LocusBytecode.JMP, defaultLabel);
+        }
+
+        for (int i = 0; i < patterns.size(); i++) {
+            if (armLabels[i] == null) {
+                continue;
+            }
+            int primitiveMark = nextPrimitive;
+            int referenceMark = nextReference;
+            mark(armLabels[i]);
+            scopes.push(new HashMap<>());
+            LocusParser.PatternContext pattern = patterns.get(i);
+            if (pattern.identifierPattern() != null) {
+                scopes.peek().put(pattern.identifierPattern().IDENTIFIER().getText(), subject);
+            } else if (pattern.enumVariantPattern() != null && boxedEnum != null) {
+                bindPayload(pattern.enumVariantPattern(), boxedEnum, subject);
+            }
+            arms.compile(i, end);
+            scopes.pop();
+            nextPrimitive = primitiveMark;
+            nextReference = referenceMark;
+        }
+
+        if (defaultLabel == noMatch) {
+            mark(noMatch);
+            emit(LocusBytecode.MATCHFAIL);
+        }
+        mark(end);
+    }
+
+    /** Picks tableswitch or lookupswitch with the same space/time heuristic as javac. */
+    private void compileSwitch(Value key, TreeMap<Integer, Label> cases, Label defaultLabel) {
+        if (cases.isEmpty()) {
+            emitJump(LocusBytecode.JMP, defaultLabel);
+            return;
+        }
+        long low = cases.firstKey();
+        long high = cases.lastKey();
+        long tableCost = 4 + (high - low + 1) + 3 * 3;
+        long lookupCost = 3 + 2L * cases.size() + 3L * cases.size();
+
+        if (tableCost <= lookupCost) {
+            emit(LocusBytecode.TABLESWITCH, key.reg, (int) low, (int) high);
+            emitTarget(defaultLabel);
+            for (long k = low; k <= high; k++) {
+                emitTarget(cases.getOrDefault((int) k, defaultLabel));
+            }
+        } else {
+            emit(LocusBytecode.LOOKUPSWITCH, key.reg, cases.size());
+            emitTarget(defaultLabel);
+            for (Map.Entry<Integer, Label> entry : cases.entrySet()) {
+                emit(entry.getKey());
+                emitTarget(entry.getValue());
+            }
+        }
+    }
+
+    private void compileCaseTest(Value subject, Object caseKey, Label target) {
+        Value test = newRegister("bool");
+        if (subject.type.equals("String")) {
+            Value literal = newRegister("String");
+            emit(LocusBytecode.LOADS, literal.reg, program.string((String) caseKey));
+            emit(LocusBytecode.STREQ, test.reg, subject.reg, literal.reg);
+            emitJump(LocusBytecode.JNZ, test.reg, target);
+        } else if (isFloat(subject.type)) {
+            Value literal = newRegister(subject.type);
+            emitConstant(literal, Double.doubleToRawLongBits(((Number) caseKey).doubleValue()));
+            emit(LocusBytecode.EQ_D, test.reg, subject.reg, literal.reg);
+            emitJump(LocusBytecode.JNZ, test.reg, target);
+        } else {
+            Value literal = newRegister(subject.type);
+            emitConstant(literal, ((Number) caseKey).longValue());
+            emitJump(LocusBytecode.JEQ, subject.reg, literal.reg, target);
+        }
+    }
+
+    private Object patternKey(LocusParser.PatternContext pattern, String subjectType) {
+        if (pattern.enumVariantPattern() != null) {
+            LocusParser.EnumVariantPatternContext variant = pattern.enumVariantPattern();
+            return enumTag(variant, variant.IDENTIFIER(0).getText(), variant.IDENTIFIER(1).getText());
+        }
+
+        LocusParser.LiteralPatternContext literal = pattern.literalPattern();
+        Object key = null;
+        if (literal.TRUE() != null) {
+            key = 1;
+        } else if (literal.FALSE() != null) {
+            key = 0;
+        } else if (literal.INTEGER() != null) {
+            long value = Long.parseLong(literal.INTEGER().getText());
+            key = isIntLike(subjectType) && value == (int) value ? (Object) (int) value : (Object) value;
+        } else if (literal.FLOAT() != null) {
+            key = Double.parseDouble(literal.FLOAT().getText());
+        } else if (literal.STRING() != null) {
+            key = unescape(literal.STRING().getText());
+        }
+
+        boolean compatible = isIntLike(subjectType) ? key instanceof Integer
+            : subjectType.equals("String") ? key instanceof String
+            : isNumeric(subjectType) && key instanceof Number;
+        if (!compatible) {
+            error(pattern, "Pattern " + pattern.getText() + " cannot match a value of type " + subjectType);
+            return null;
+        }
+        return key;
+    }
+
+    private void bindPayload(LocusParser.EnumVariantPatternContext pattern, EnumLayout layout, Value subject) {
+        if (pattern.patternList() == null) {
+            return;
+        }
+        Layout payload = layout.payloads.get(pattern.IDENTIFIER(1).getText());
+        if (payload == null) {
+            return;
+        }
+        List<LocusParser.PatternContext> fields = pattern.patternList().pattern();
+        if (fields.size() != payload.types.size()) {
+            error(pattern, "Variant " + pattern.IDENTIFIER(1).getText() + " has " + payload.types.size() + " fields");
+            return;
+        }
+        for (int i = 0; i < fields.size(); i++) {
+            LocusParser.PatternContext field = fields.get(i);
+            if (field.wildcardPattern() != null) {
+                continue;
+            }
+            if (field.identifierPattern() == null) {
+                error(field, "Only identifier and wildcard payload patterns are supported by the interpreter");
+                continue;
+            }
+            String name = String.valueOf(i);
+            Value binding = newRegister(payload.types.get(name));
+            emitGetField(binding, subject, payload.slots.get(name), layout.mixed);
+            scopes.peek().put(field.identifierPattern().IDENTIFIER().getText(), binding);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Expressions
+    // ---------------------------------------------------------------------
+
+    /**
+     * Compiles an expression and returns the register holding its value. When
+     * dst is given the result is written there; otherwise variables are
+     * returned in place and other results go to a fresh temporary.
+     */
+    private Value compile(LocusParser.ExpressionContext ctx, Value dst) {
+        if (ctx.primary() != null) {
+            return compilePrimary(ctx.primary(), dst);
+        } else if (ctx.matchExpression() != null) {
+            return compileMatchExpression(ctx.matchExpression(), dst);
+        } else if (ctx.getChildCount() == 3 && ctx.getChild(1).getText().equals(".")) {
+            return compileFieldAccess(ctx, dst);
+        } else if (ctx.getChildCount() >= 3 && ctx.getChild(1).getText().equals("(")) {
+            return compileCall(ctx, dst);
+        } else if (ctx.getChildCount() >= 3 && ctx.getChild(1).getText().equals("[")) {
+            return compileIndex(ctx, dst);
+        } else if (ctx.getChildCount() == 2) {
+            return compileUnary(ctx, dst);
+        } else if (isAssignment(ctx)) {
+            Value value = compileAssignment(ctx);
+            if (dst != null) {
+                emitMove(dst, value);
+                return dst;
+            }
+            return value;
+        } else if (ctx.expression().size() == 2) {
+            return compileBinary(ctx, dst);
+        }
+
+        error(ctx, "Unsupported expression: " + ctx.getText());
+        return zero(dst);
+    }
+
+    /** Compiles an expression converted to the given type. */
+    private Value compileAs(LocusParser.ExpressionContext ctx, String type) {
+        Value value = compile(ctx, null);
+        return convert(ctx, value, type, null);
+    }
+
+    /** Compiles an expression straight into a register, converting as needed. */
+    private void compileInto(LocusParser.ExpressionContext ctx, Value target) {
+        String inferred = inferType(ctx);
+        boolean direct = inferred != null && sameRepresentation(inferred, target.type);
+        Value value = compile(ctx, direct ? target : null);
+        if (value != target) {
+            convert(ctx, value, target.type, target);
+        }
+    }
+
+    private Value compilePrimary(LocusParser.PrimaryContext ctx, Value dst) {
+        if (ctx.INTEGER() != null) {
+            long value = Long.parseLong(ctx.INTEGER().getText());
+            Value result = result(value == (int) value ? "i32" : "i64", dst);
+            emitConstant(result, value);
+            return result;
+        } else if (ctx.FLOAT() != null) {
+            Value result = result("f64", dst);
+            emitConstant(result, Double.doubleToRawLongBits(Double.parseDouble(ctx.FLOAT().getText())));
+            return result;
+        } else if (ctx.TRUE() != null || ctx.FALSE() != null) {
+            Value result = result("bool", dst);
+            emit(LocusBytecode.LOADI, result.reg, ctx.TRUE() != null ? 1 : 0);
+            return result;
+        } else if (ctx.STRING() != null) {
+            Value result = result("String", dst);
+            emit(LocusBytecode.LOADS, result.reg, program.string(unescape(ctx.STRING().getText())));
+            return result;
+        } else if (ctx.IDENTIFIER() != null) {
+            Value local = lookup(ctx.IDENTIFIER().getText());
+            if (local == null) {
+                error(ctx, "Unknown variable: " + ctx.IDENTIFIER().getText());
+                return zero(dst);
+            }
+            if (dst != null) {
+                emitMove(dst, local);
+                return dst;
+            }
+            return local;
+        } else if (ctx.expression() != null) {
+            return compile(ctx.expression(), dst);
+        } else if (ctx.structInitializer() != null) {
+            return compileStructInitializer(ctx.structInitializer(), dst);
+        } else if (ctx.enumVariantAccess() != null) {
+            LocusParser.EnumVariantAccessContext access = ctx.enumVariantAccess();
+            return compileEnumVariant(access, access.IDENTIFIER(0).getText(), access.IDENTIFIER(1).getText(),
+                Collections.emptyList(), dst);
+        }
+
+        error(ctx, "Unsupported expression: " + ctx.getText());
+        return zero(dst);
+    }
+
+    private Value compileStructInitializer(LocusParser.StructInitializerContext ctx, Value dst) {
+        String name = ctx.IDENTIFIER().getText();
+        StructLayout struct = structs.get(name);
+        if (struct == null) {
+            error(ctx, genericTypes.contains(name) ? "Generic types are not supported by the interpreter: " + name
+                                                   : "Unknown struct: " + name);
+            return zero(dst);
+        }
+
+        // Build into a fresh frame: the field values may read the variable being assigned
+        Value frame = newRegister(name);
+        emitNewFrame(frame, struct);
+        if (ctx.fieldInitList() != null) {
+            for (LocusParser.FieldInitContext init : ctx.fieldInitList().fieldInit()) {
+                String field = init.IDENTIFIER().getText();
+                if (!struct.types.containsKey(field)) {
+                    error(init, "Struct " + name + " has no field '" + field + "'");
+                    continue;
+                }
+                Value value = compileAs(init.expression(), struct.types.get(field));
+                emitPutField(frame, struct.slots.get(field), value, struct.referenceCount > 0);
+            }
+        }
+        // Primitive fields start zeroed and reference fields null, so missing fields need no code
+
+        if (dst != null) {
+            emitMove(dst, frame);
+            return dst;
+        }
+        return frame;
+    }
+
+    private Value compileEnumVariant(ParserRuleContext ctx, String enumName, String variant,
+                                     List<LocusParser.ExpressionContext> args, Value dst) {
+        EnumLayout layout = enums.get(enumName);
+        Integer tag = enumTag(ctx, enumName, variant);
+        if (layout == null || tag == null) {
+            return zero(dst);
+        }
+        if (!layout.boxed) {
+            Value result = result(enumName, dst);
+            emit(LocusBytecode.LOADI, result.reg, tag);
+            return result;
+        }
+
+        Layout payload = layout.payloads.get(variant);
+        if (args.size() != payload.types.size()) {
+            error(ctx, enumName + "::" + variant + " expects " + payload.types.size() + " values");
+        }
+        Value frame = newRegister(enumName);
+        if (layout.mixed) {
+            emit(LocusBytecode.NEWM, frame.reg, payload.primitiveCount, payload.referenceCount);
+        } else {
+            emit(LocusBytecode.NEWP, frame.reg, payload.primitiveCount);
+        }
+        Value tagValue = newRegister("i32");
+        emit(LocusBytecode.LOADI, tagValue.reg, tag);
+        emitPutField(frame, 0, tagValue, layout.mixed);
+        for (int i = 0; i < args.size() && i < payload.types.size(); i++) {
+            String field = String.valueOf(i);
+            Value value = compileAs(args.get(i), payload.types.get(field));
+            emitPutField(frame, payload.slots.get(field), value, layout.mixed);
+        }
+        if (dst != null) {
+            emitMove(dst, frame);
+            return dst;
+        }
+        return frame;
+    }
+
+    private Value compileFieldAccess(LocusParser.ExpressionContext ctx, Value dst) {
+        Value object = compile(ctx.expression(0), null);
+        StructLayout struct = structs.get(object.type);
+        String field = ctx.IDENTIFIER().getText();
+        if (struct == null || !struct.types.containsKey(field)) {
+            error(ctx, "Unknown field '" + field + "' on " + object.type);
+            return zero(dst);
+        }
+        Value result = result(struct.types.get(field), dst);
+        emitGetField(result, object, struct.slots.get(field), struct.referenceCount > 0);
+        return result;
+    }
+
+    private Value compileCall(LocusParser.ExpressionContext ctx, Value dst) {
+        List<LocusParser.ExpressionContext> args = ctx.argumentList() != null
+            ? ctx.argumentList().expression() : Collections.emptyList();
+        LocusParser.ExpressionContext callee = ctx.expression(0);
+        if (callee.primary() != null && callee.primary().enumVariantAccess() != null) {
+            LocusParser.EnumVariantAccessContext access = callee.primary().enumVariantAccess();
+            return compileEnumVariant(ctx, access.IDENTIFIER(0).getText(), access.IDENTIFIER(1).getText(), args, dst);
+        }
+
+        if (callee.getChildCount() == 3 && callee.getChild(1).getText().equals(".")) {
+            return compileArrayMethod(ctx, args, dst);
+        }
+
+        String name = callee.getText();
+        FunctionSignature function = functions.get(name);
+        if (function == null || function.ctx.typeList() != null) {
+            error(ctx, function == null ? "Unknown function: " + name
+                                        : "Generic functions are not supported by the interpreter: " + name);
+            return zero(dst);
+        }
+        if (args.size() != function.paramTypes.size()) {
+            error(ctx, "Function '" + name + "' expects " + function.paramTypes.size()
+                  + " arguments but got " + args.size());
+            return zero(dst);
+        }
+
+        int[] argRegisters = new int[args.size()];
+        for (int i = 0; i < args.size(); i++) {
+            argRegisters[i] = encode(compileAs(args.get(i), function.paramTypes.get(i)));
+        }
+        Value result = function.returnType.equals("void") ? new Value("void", 0) : result(function.returnType, dst);
+        emit(LocusBytecode.CALL, result.type.equals("void") ? LocusBytecode.NO_REGISTER : encode(result),
+             program.string(name), args.size());
+        for (int arg : argRegisters) {
+            emit(arg);
+        }
+        return result;
+    }
+
+    /** `a.len()` and `v.push(x)`, the only methods. */
+    private Value compileArrayMethod(LocusParser.ExpressionContext ctx, List<LocusParser.ExpressionContext> args,
+                                     Value dst) {
+        LocusParser.ExpressionContext callee = ctx.expression(0);
+        String method = callee.IDENTIFIER().getText();
+        Value array = compile(callee.expression(0), null);
+        if (!isArray(array.type)) {
+            error(ctx, "Unknown method '" + method + "' on " + array.type);
+            return zero(dst);
+        }
+        boolean vec = array.type.startsWith("Vec<");
+        if (method.equals("len") && args.isEmpty()) {
+            Value result = result("i32", dst);
+            emit(vec ? LocusBytecode.LENV : LocusBytecode.LENA, result.reg, array.reg);
+            return result;
+        }
+        if (method.equals("push") && vec && args.size() == 1) {
+            emit(LocusBytecode.PUSHV, array.reg, compileAs(args.get(0), elementType(array.type)).reg);
+            return new Value("void", 0);
+        }
+        error(ctx, "Unknown method '" + method + "' on " + array.type);
+        return zero(dst);
+    }
+
+    private Value compileIndex(LocusParser.ExpressionContext ctx, Value dst) {
+        Value array = compile(ctx.expression(0), null);
+        if (!isArray(array.type)) {
+            error(ctx, "Cannot index a value of type " + array.type);
+            return zero(dst);
+        }
+        Value index = compileAs(ctx.expression(1), "i32");
+        Value result = result(elementType(array.type), dst);
+        emit(array.type.startsWith("Vec<") ? LocusBytecode.GETV : LocusBytecode.GETA, result.reg, array.reg, index.reg);
+        return result;
+    }
+
+    private Value compileUnary(LocusParser.ExpressionContext ctx, Value dst) {
+        String op = ctx.getChild(0).getText();
+        if (op.equals("!")) {
+            Value operand = compileAs(ctx.expression(0), "bool");
+            Value result = result("bool", dst);
+            emit(LocusBytecode.NOT, result.reg, operand.reg);
+            return result;
+        }
+
+        Value operand = compile(ctx.expression(0), null);
+        if (!isNumeric(operand.type)) {
+            error(ctx, "Cannot negate a value of type " + operand.type);
+            return operand;
+        }
+        String type = isIntLike(operand.type) ? "i32" : operand.type;
+        Value result = result(type, dst);
+        int opcode = isFloat(type) ? LocusBytecode.NEG_D : type.equals("i64") ? LocusBytecode.NEG_J : LocusBytecode.NEG_I;
+        emit(opcode, result.reg, operand.reg);
+        return result;
+    }
+
+    private Value compileBinary(LocusParser.ExpressionContext ctx, Value dst) {
+        String op = ctx.getChild(1).getText();
+        if (op.equals("&&") || op.equals("||")) {
+            Value result = result("bool", dst);
+            Label falseLabel = newLabel();
+            Label endLabel = newLabel();
+            compileBranch(ctx, false, falseLabel);
+            emit(LocusBytecode.LOADI, result.reg, 1);
+            emitJump(LocusBytecode.JMP, endLabel);
+            mark(falseLabel);
+            emit(LocusBytecode.LOADI, result.reg, 0);
+            mark(endLabel);
+            return result;
+        }
+        if (isComparison(op)) {
+            return compileComparisonValue(ctx, op, dst);
+        }
+
+        String type = inferType(ctx);
+        if ("String".equals(type) && op.equals("+")) {
+            Value left = compileString(ctx.expression(0));
+            Value right = compileString(ctx.expression(1));
+            Value result = result("String", dst);
+            emit(LocusBytecode.CONCAT, result.reg, left.reg, right.reg);
+            return result;
+        }
+        if (type == null || !isNumeric(type)) {
+            error(ctx, "Operator '" + op + "' is not defined for " + ctx.getText());
+            return zero(dst);
+        }
+        if (isIntLike(type)) {
+            type = "i32";
+        }
+
+        Value left = compileAs(ctx.expression(0), type);
+        Integer immediate = intLiteral(ctx.expression(1));
+        if (immediate != null && !isFloat(type) && (op.equals("+") || op.equals("-"))
+            && immediate != Integer.MIN_VALUE) {
+            Value result = result(type, dst);
+            emit(type.equals("i64") ? LocusBytecode.ADDI_J : LocusBytecode.ADDI_I, result.reg, left.reg,
+                 op.equals("+") ? immediate : -immediate);
+            return result;
+        }
+        Value right = compileAs(ctx.expression(1), type);
+
+        int base;
+        switch (type) {
+            case "i64": base = LocusBytecode.ADD_J; break;
+            case "f64": base = LocusBytecode.ADD_D; break;
+            case "f32": base = LocusBytecode.ADD_F; break;
+            default: base = LocusBytecode.ADD_I;
+        }
+        int offset = "+-*/%".indexOf(op);
+        if (offset < 0) {
+            error(ctx, "Unsupported operator: " + op);
+            offset = 0;
+        }
+        Value result = result(type, dst);
+        emit(base + offset, result.reg, left.reg, right.reg);
+        return result;
+    }
+
+    private Value compileString(LocusParser.ExpressionContext ctx) {
+        Value value = compile(ctx, null);
+        if (value.type.equals("String")) {
+            return value;
+        }
+        int opcode;
+        switch (value.type) {
+            case "bool": opcode = LocusBytecode.STR_Z; break;
+            case "f64": opcode = LocusBytecode.STR_D; break;
+            case "f32": opcode = LocusBytecode.STR_F; break;
+            default:
+                if (!isNumeric(value.type)) {
+                    error(ctx, "Cannot concatenate a value of type " + value.type);
+                    return zero(null);
+                }
+                opcode = LocusBytecode.STR_I;
+        }
+        Value result = newRegister("String");
+        emit(opcode, result.reg, value.reg);
+        return result;
+    }
+
+    private Value compileComparisonValue(LocusParser.ExpressionContext ctx, String op, Value dst) {
+        String type = comparisonType(ctx);
+        Value result = result("bool", dst);
+        if (type == null) {
+            emit(LocusBytecode.LOADI, result.reg, 0);
+            return result;
+        }
+        Value left = compileAs(ctx.expression(0), type);
+        Value right = compileAs(ctx.expression(1), type);
+        if (isReference(type)) {
+            emit(type.equals("String") ? LocusBytecode.STREQ : LocusBytecode.REFEQ, result.reg, left.reg, right.reg);
+            if (op.equals("!=")) {
+                emit(LocusBytecode.NOT, result.reg, result.reg);
+            }
+        } else {
+            emit((isFloat(type) ? LocusBytecode.EQ_D : LocusBytecode.EQ) + conditionCode(op),
+                 result.reg, left.reg, right.reg);
+        }
+        return result;
+    }
+
+    private boolean isAssignment(LocusParser.ExpressionContext ctx) {
+        return ctx.getChildCount() == 3 && ctx.expression().size() == 2 && ctx.getChild(1).getText().equals("=");
+    }
+
+    private Value compileAssignment(LocusParser.ExpressionContext ctx) {
+        LocusParser.ExpressionContext target = ctx.expression(0);
+        LocusParser.ExpressionContext value = ctx.expression(1);
+
+        if (target.primary() != null && target.primary().IDENTIFIER() != null) {
+            Value local = lookup(target.primary().IDENTIFIER().getText());
+            if (local == null) {
+                error(target, "Unknown variable: " + target.getText());
+                return compile(value, null);
+            }
+            compileInto(value, local);
+            return local;
+        }
+
+        if (target.getChildCount() == 4 && target.getChild(1).getText().equals("[")) {
+            Value array = compile(target.expression(0), null);
+            if (!isArray(array.type)) {
+                error(target, "Cannot index a value of type " + array.type);
+                return compile(value, null);
+            }
+            Value index = compileAs(target.expression(1), "i32");
+            Value result = compileAs(value, elementType(array.type));
+            emit(array.type.startsWith("Vec<") ? LocusBytecode.PUTV : LocusBytecode.PUTA, array.reg, index.reg, result.reg);
+            return result;
+        }
+
+        if (target.getChildCount() == 3 && target.getChild(1).getText().equals(".")) {
+            Value object = compile(target.expression(0), null);
+            StructLayout struct = structs.get(object.type);
+            String field = target.IDENTIFIER().getText();
+            if (struct == null || !struct.types.containsKey(field)) {
+                error(target, "Unknown field '" + field + "' on " + object.type);
+                return compile(value, null);
+            }
+            Value result = compileAs(value, struct.types.get(field));
+            emitPutField(object, struct.slots.get(field), result, struct.referenceCount > 0);
+            return result;
+        }
+
+        error(ctx, "Invalid assignment target: " + target.getText());
+        return compile(value, null);
+    }
+
+    private Value compileMatchExpression(LocusParser.MatchExpressionContext ctx, Value dst) {
+        List<LocusParser.PatternContext> patterns = new ArrayList<>();
+        for (LocusParser.MatchExpressionArmContext arm : ctx.matchExpressionArm()) {
+            patterns.add(arm.pattern());
+        }
+        String type = inferType(ctx);
+        Value result = dst != null ? dst : newRegister(type != null ? type : "i32");
+
+        compileMatch(ctx.expression(), patterns, (index, end) -> {
+            compileInto(ctx.matchExpressionArm(index).expression(), result);
+            emitJump(LocusBytecode.JMP, end);
+        });
+        return result;
+    }
+
+    // ---------------------------------------------------------------------
+    // Conditions
+    // ---------------------------------------------------------------------
+
+    /**
+     * Jumps to target when the condition evaluates to jumpWhen and falls
+     * through otherwise. Integer comparisons fuse into a single compare-and-branch.
+     */
+    private void compileBranch(LocusParser.ExpressionContext ctx, boolean jumpWhen, Label target) {
+        if (ctx.primary() != null && ctx.primary().expression() != null) {
+            compileBranch(ctx.primary().expression(), jumpWhen, target);
+            return;
+        }
+        if (ctx.getChildCount() == 2 && ctx.getChild(0).getText().equals("!")) {
+            compileBranch(ctx.expression(0), !jumpWhen, target);
+            return;
+        }
+        if (ctx.getChildCount() == 3 && ctx.expression().size() == 2) {
+            String op = ctx.getChild(1).getText();
+            if (op.equals("&&") || op.equals("||")) {
+                boolean shortCircuitsTo = op.equals("||");
+                if (jumpWhen == shortCircuitsTo) {
+                    compileBranch(ctx.expression(0), jumpWhen, target);
+                    compileBranch(ctx.expression(1), jumpWhen, target);
+                } else {
+                    Label skip = newLabel();
+                    compileBranch(ctx.expression(0), !jumpWhen, skip);
+                    compileBranch(ctx.expression(1), jumpWhen, target);
+                    mark(skip);
+                }
+                return;
+            }
+            if (isComparison(op)) {
+                String type = comparisonType(ctx);
+                if (type != null && isNumeric(type) && !isFloat(type)) {
+                    Value left = compileAs(ctx.expression(0), type);
+                    Value right = compileAs(ctx.expression(1), type);
+                    int condition = conditionCode(op) ^ (jumpWhen ? 0 : 1);
+                    emitJump(LocusBytecode.JEQ + condition, left.reg, right.reg, target);
+                    return;
+                }
+            }
+        }
+
+        // Float comparisons are materialized so NaN makes every ordered comparison false
+        Value value = compileAs(ctx, "bool");
+        emitJump(jumpWhen ? LocusBytecode.JNZ : LocusBytecode.JZ, value.reg, target);
+    }
+
+    private String comparisonType(LocusParser.ExpressionContext ctx) {
+        String left = inferType(ctx.expression(0));
+        String right = inferType(ctx.expression(1));
+        String op = ctx.getChild(1).getText();
+        String type = promote(left, right);
+        if (type != null && isNumeric(type)) {
+            return isIntLike(type) ? "i32" : type;
+        }
+        if (left != null && left.equals(right) && (op.equals("==") || op.equals("!="))) {
+            return left;
+        }
+        error(ctx, "Cannot compare " + ctx.expression(0).getText() + " " + op + " " + ctx.expression(1).getText());
+        return null;
+    }
+
+    private static boolean isComparison(String op) {
+        return conditionCode(op) >= 0;
+    }
+
+    /** Offset from EQ / JEQ for a relational operator; x ^ 1 negates it. */
+    private static int conditionCode(String op) {
+        switch (op) {
+            case "==": return 0;
+            case "!=": return 1;
+            case "<": return 2;
+            case ">=": return 3;
+            case ">": return 4;
+            case "<=": return 5;
+            default: return -1;
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Types
+    // ---------------------------------------------------------------------
+
+    private String typeOf(LocusParser.TypeContext ctx) {
+        if (ctx.primitiveType() != null) {
+            return ctx.primitiveType().getText();
+        }
+        if (ctx.IDENTIFIER() != null) {
+            String name = ctx.IDENTIFIER().getText();
+            if (structs.containsKey(name) || enums.containsKey(name)) {
+                return name;
+            }
+        }
+        LocusParser.TypeContext element = null;
+        if (ctx.arrayType() != null) {
+            element = ctx.arrayType().type();
+        } else if (ctx.genericType() != null && ctx.genericType().IDENTIFIER().getText().equals("Vec")
+                   && ctx.genericType().typeList().type().size() == 1) {
+            element = ctx.genericType().typeList().type(0);
+        }
+        if (element != null) {
+            String elementType = typeOf(element);
+            if (!isIntLike(elementType) && !elementType.equals("i64") && !isFloat(elementType)) {
+                error(ctx, "Array elements must be primitive: " + ctx.getText());
+            }
+            return ctx.arrayType() != null ? "[" + elementType + ";" + ctx.arrayType().INTEGER().getText() + "]"
+                                           : "Vec<" + elementType + ">";
+        }
+        error(ctx, "Unsupported type for the interpreter: " + ctx.getText());
+        return "i32";
+    }
+
+    /** Static type of an expression without generating code; null when unknown. */
+    private String inferType(LocusParser.ExpressionContext ctx) {
+        if (ctx.primary() != null) {
+            LocusParser.PrimaryContext primary = ctx.primary();
+            if (primary.INTEGER() != null) {
+                long value = Long.parseLong(primary.INTEGER().getText());
+                return value == (int) value ? "i32" : "i64";
+            } else if (primary.FLOAT() != null) {
+                return "f64";
+            } else if (primary.TRUE() != null || primary.FALSE() != null) {
+                return "bool";
+            } else if (primary.STRING() != null) {
+                return "String";
+            } else if (primary.IDENTIFIER() != null) {
+                Value local = lookup(primary.IDENTIFIER().getText());
+                return local != null ? local.type : null;
+            } else if (primary.expression() != null) {
+                return inferType(primary.expression());
+            } else if (primary.structInitializer() != null) {
+                String name = primary.structInitializer().IDENTIFIER().getText();
+                return structs.containsKey(name) ? name : null;
+            } else if (primary.enumVariantAccess() != null) {
+                String name = primary.enumVariantAccess().IDENTIFIER(0).getText();
+                return enums.containsKey(name) ? name : null;
+            }
+            return null;
+        }
+        if (ctx.matchExpression() != null) {
+            return inferType(ctx.matchExpression());
+        }
+        if (ctx.getChildCount() == 3 && ctx.getChild(1).getText().equals(".")) {
+            StructLayout struct = structs.get(inferType(ctx.expression(0)));
+            return struct != null ? struct.types.get(ctx.IDENTIFIER().getText()) : null;
+        }
+        if (ctx.getChildCount() >= 3 && ctx.getChild(1).getText().equals("(")) {
+            LocusParser.ExpressionContext callee = ctx.expression(0);
+            if (callee.primary() != null && callee.primary().enumVariantAccess() != null) {
+                return inferType(callee);
+            }
+            if (callee.getChildCount() == 3 && callee.getChild(1).getText().equals(".")) {
+                return callee.IDENTIFIER().getText().equals("len") ? "i32" : "void";
+            }
+            FunctionSignature function = functions.get(callee.getText());
+            return function != null && function.ctx.typeList() == null ? function.returnType : null;
+        }
+        if (ctx.getChildCount() == 4 && ctx.getChild(1).getText().equals("[")) {
+            String array = inferType(ctx.expression(0));
+            return array != null && isArray(array) ? elementType(array) : null;
+        }
+        if (ctx.getChildCount() == 2) {
+            if (ctx.getChild(0).getText().equals("!")) {
+                return "bool";
+            }
+            String type = inferType(ctx.expression(0));
+            return type != null && isIntLike(type) ? "i32" : type;
+        }
+        if (ctx.expression().size() == 2) {
+            String op = ctx.getChild(1).getText();
+            if (isComparison(op) || op.equals("&&") || op.equals("||")) {
+                return "bool";
+            }
+            if (op.equals("=")) {
+                return inferType(ctx.expression(0));
+            }
+            String left = inferType(ctx.expression(0));
+            String right = inferType(ctx.expression(1));
+            if (op.equals("+") && ("String".equals(left) || "String".equals(right))) {
+                return "String";
+            }
+            return promote(left, right);
+        }
+        return null;
+    }
+
+    private String inferType(LocusParser.MatchExpressionContext ctx) {
+        // Arms may refer to pattern bindings that are not in scope yet; take the first arm we can type
+        for (LocusParser.MatchExpressionArmContext arm : ctx.matchExpressionArm()) {
+            String type = inferType(arm.expression());
+            if (type != null) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /** Binary numeric promotion: f64 > f32 > i64 > i32. */
+    private String promote(String left, String right) {
+        if (left == null || right == null || !isNumeric(left) || !isNumeric(right)) {
+            return left != null && left.equals(right) ? left : null;
+        }
+        for (String type : new String[] {"f64", "f32", "i64"}) {
+            if (left.equals(type) || right.equals(type)) {
+                return type;
+            }
+        }
+        return left.equals("bool") && right.equals("bool") ? "bool" : "i32";
+    }
+
+    private boolean isIntLike(String type) {
+        return type.equals("i32") || type.equals("bool") || (enums.containsKey(type) && !enums.get(type).boxed);
+    }
+
+    private boolean isNumeric(String type) {
+        return isIntLike(type) || type.equals("i64") || isFloat(type);
+    }
+
+    private static boolean isFloat(String type) {
+        return type.equals("f32") || type.equals("f64");
+    }
+
+    private boolean isReference(String type) {
+        return type.equals("String") || isArray(type) || structs.containsKey(type)
+            || (enums.containsKey(type) && enums.get(type).boxed);
+    }
+
+    /** Array types are written "[T;N]" and "Vec<T>". */
+    private static boolean isArray(String type) {
+        return type.startsWith("[") || type.startsWith("Vec<");
+    }
+
+    private static String elementType(String arrayType) {
+        return arrayType.startsWith("[") ? arrayType.substring(1, arrayType.indexOf(';'))
+                                         : arrayType.substring(4, arrayType.length() - 1);
+    }
+
+    private static int fixedLength(String arrayType) {
+        return Integer.parseInt(arrayType.substring(arrayType.indexOf(';') + 1, arrayType.length() - 1));
+    }
+
+    /** True when a value of one type can be used as the other without a conversion instruction. */
+    private boolean sameRepresentation(String from, String to) {
+        if (from.equals(to)) {
+            return true;
+        }
+        if ((isIntLike(from) || from.equals("i64")) && (isIntLike(to) || to.equals("i64"))) {
+            // i32 values are kept sign-extended, so only narrowing from i64 needs an instruction
+            return !from.equals("i64") || to.equals("i64");
+        }
+        return from.equals("f32") && to.equals("f64");
+    }
+
+    /** Converts a value to the given type, into dst when given. */
+    private Value convert(ParserRuleContext ctx, Value value, String to, Value dst) {
+        if (value.type.equals("void")) {
+            error(ctx, "Expression has no value");
+            return zero(dst != null ? dst : newRegister(to));
+        }
+        if (sameRepresentation(value.type, to)) {
+            if (dst == null) {
+                return value.type.equals(to) ? value : new Value(to, value.reg);
+            }
+            emitMove(dst, new Value(to, value.reg));
+            return dst;
+        }
+        if (isNumeric(value.type) && isNumeric(to)) {
+            Value result = dst != null ? dst : newRegister(to);
+            int opcode;
+            if (isFloat(value.type)) {
+                opcode = to.equals("f32") ? LocusBytecode.D2F : to.equals("i64") ? LocusBytecode.D2J : LocusBytecode.D2I;
+            } else if (isFloat(to)) {
+                opcode = to.equals("f32") ? LocusBytecode.I2F : LocusBytecode.I2D;
+            } else {
+                opcode = LocusBytecode.J2I;
+            }
+            emit(opcode, result.reg, value.reg);
+            return result;
+        }
+        error(ctx, "Type mismatch: expected " + to + " but found " + value.type);
+        return zero(dst != null ? dst : newRegister(to));
+    }
+
+    private Integer enumTag(ParserRuleContext ctx, String enumName, String variant) {
+        EnumLayout layout = enums.get(enumName);
+        Integer tag = layout != null ? layout.tags.get(variant) : null;
+        if (tag == null) {
+            error(ctx, genericTypes.contains(enumName)
+                ? "Generic types are not supported by the interpreter: " + enumName
+                : "Unknown enum variant: " + enumName + "::" + variant);
+        }
+        return tag;
+    }
+
+    private Integer intLiteral(LocusParser.ExpressionContext ctx) {
+        if (ctx.primary() != null && ctx.primary().INTEGER() != null) {
+            long value = Long.parseLong(ctx.primary().INTEGER().getText());
+            return value == (int) value ? (int) value : null;
+        }
+        return null;
+    }
+
+    private boolean isVariable(LocusParser.ExpressionContext ctx) {
+        return ctx.primary() != null && ctx.primary().IDENTIFIER() != null;
+    }
+
+    private Value lookup(String name) {
+        for (Map<String, Value> scope : scopes) {
+            Value local = scope.get(name);
+            if (local != null) {
+                return local;
+            }
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------
+    // Registers and emission
+    // ---------------------------------------------------------------------
+
+    private Value newRegister(String type) {
+        if (isReference(type)) {
+            maxReference = Math.max(maxReference, nextReference + 1);
+            return new Value(type, nextReference++);
+        }
+        maxPrimitive = Math.max(maxPrimitive, nextPrimitive + 1);
+        return new Value(type, nextPrimitive++);
+    }
+
+    private Value result(String type, Value dst) {
+        return dst != null ? dst : newRegister(type);
+    }
+
+    private int encode(Value value) {
+        return isReference(value.type) ? ~value.reg : value.reg;
+    }
+
+    private Value zero(Value dst) {
+        Value result = dst != null ? dst : newRegister("i32");
+        emitZero(result);
+        return result;
+    }
+
+    private void emitZero(Value value) {
+        if (isReference(value.type)) {
+            emit(LocusBytecode.LOADNULL, value.reg);
+        } else {
+            emit(LocusBytecode.LOADI, value.reg, 0);
+        }
+    }
+
+    private void emitConstant(Value target, long value) {
+        if (value == (int) value) {
+            emit(LocusBytecode.LOADI, target.reg, (int) value);
+        } else {
+            emit(LocusBytecode.LOADK, target.reg, program.longConstant(value));
+        }
+    }
+
+    private void emitMove(Value dst, Value src) {
+        if (dst.reg == src.reg && isReference(dst.type) == isReference(src.type)) {
+            return;
+        }
+        emit(isReference(dst.type) ? LocusBytecode.MOVR : LocusBytecode.MOV, dst.reg, src.reg);
+    }
+
+    private void emitNewFrame(Value frame, Layout layout) {
+        if (layout.referenceCount > 0) {
+            emit(LocusBytecode.NEWM, frame.reg, layout.primitiveCount, layout.referenceCount);
+        } else {
+            emit(LocusBytecode.NEWP, frame.reg, layout.primitiveCount);
+        }
+    }
+
+    private void emitGetField(Value dst, Value frame, int slot, boolean mixed) {
+        if (isReference(dst.type)) {
+            emit(LocusBytecode.GETFR, dst.reg, frame.reg, slot);
+        } else {
+            emit(mixed ? LocusBytecode.GETFM : LocusBytecode.GETF, dst.reg, frame.reg, slot);
+        }
+    }
+
+    private void emitPutField(Value frame, int slot, Value value, boolean mixed) {
+        if (isReference(value.type)) {
+            emit(LocusBytecode.PUTFR, frame.reg, slot, value.reg);
+        } else {
+            emit(mixed ? LocusBytecode.PUTFM : LocusBytecode.PUTF, frame.reg, slot, value.reg);
+        }
+    }
+
+    private void emit(int... values) {
+        if (codeLength + values.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, codeLength + values.length));
+        }
+        for (int value : values) {
+            code[codeLength++] = value;
+        }
+    }
+
+    private Label newLabel() {
+        Label label = new Label();
+        labels.add(label);
+        return label;
+    }
+
+    private void mark(Label label) {
+        label.position = codeLength;
+    }
+
+    private void emitTarget(Label label) {
+        label.fixups.add(codeLength);
+        emit(-1);
+    }
+
+    /** Emits a jump whose last operand is the target label. */
+    private void emitJump(int opcode, Object... operands) {
+        emit(opcode);
+        for (Object operand : operands) {
+            if (operand instanceof Label) {
+                emitTarget((Label) operand);
+            } else {
+                emit((Integer) operand);
+            }
+        }
+    }
+
+    private static String unescape(String literal) {
+        String body = literal.substring(1, literal.length() - 1);
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == '\\' && i + 1 < body.length()) {
+                char next = body.charAt(++i);
+                switch (next) {
+                    case 'n': result.append('\n'); break;
+                    case 't': result.append('\t'); break;
+                    case 'r': result.append('\r'); break;
+                    case '0': result.append('\0'); break;
+                    default: result.append(next);
+                }
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private void error(ParserRuleContext ctx, String message) {
+        errors.add("line " + ctx.getStart().getLine() + ": " + message);
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public LocusBytecode.Program getProgram() {
+        return program;
+    }
+}
@@ -0,0 +1,747 @@
+import java.util.*;
+import java.io.*;
+
+/**
+ * Minimal JVM class file writer used by LocusJVMGenerator.
+ *
+ * Emits class file version 49 so the type-inferencing verifier is used and no
+ * StackMapTable frames have to be computed. Tracks operand stack depth and
+ * local slots per method to fill in max_stack/max_locals, and resolves
+ * forward branches through labels.
+ */
+public class LocusClassFileWriter {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_PRIVATE = 0x0002;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    private static final int CLASS_FILE_MAJOR_VERSION = 49;
+
+    // Opcodes
+    public static final int ACONST_NULL = 1;
+    public static final int ICONST_0 = 3;
+    public static final int LCONST_0 = 9;
+    public static final int FCONST_0 = 11;
+    public static final int DCONST_0 = 14;
+    public static final int BIPUSH = 16;
+    public static final int SIPUSH = 17;
+    public static final int LDC = 18;
+    public static final int LDC_W = 19;
+    public static final int LDC2_W = 20;
+    public static final int ILOAD = 21;
+    public static final int IALOAD = 46;
+    public static final int ISTORE = 54;
+    public static final int IASTORE = 79;
+    public static final int POP = 87;
+    public static final int POP2 = 88;
+    public static final int DUP = 89;
+    public static final int DUP_X1 = 90;
+    public static final int DUP2 = 92;
+    public static final int DUP_X2 = 91;
+    public static final int DUP2_X1 = 93;
+    public static final int DUP2_X2 = 94;
+    public static final int IADD = 96;
+    public static final int ISUB = 100;
+    public static final int IMUL = 104;
+    public static final int IDIV = 108;
+    public static final int IREM = 112;
+    public static final int INEG = 116;
+    public static final int IINC = 132;
+    public static final int IXOR = 130;
+    public static final int I2L = 133;
+    public static final int I2F = 134;
+    public static final int I2D = 135;
+    public static final int L2I = 136;
+    public static final int L2F = 137;
+    public static final int L2D = 138;
+    public static final int F2I = 139;
+    public static final int F2L = 140;
+    public static final int F2D = 141;
+    public static final int D2I = 142;
+    public static final int D2L = 143;
+    public static final int D2F = 144;
+    public static final int LCMP = 148;
+    public static final int FCMPG = 150;
+    public static final int DCMPG = 152;
+    public static final int IFEQ = 153;
+    public static final int IFNE = 154;
+    public static final int IFLT = 155;
+    public static final int IFGE = 156;
+    public static final int IFGT = 157;
+    public static final int IFLE = 158;
+    public static final int IF_ICMPEQ = 159;
+    public static final int IF_ICMPNE = 160;
+    public static final int IF_ICMPLT = 161;
+    public static final int IF_ICMPGE = 162;
+    public static final int IF_ICMPGT = 163;
+    public static final int IF_ICMPLE = 164;
+    public static final int IF_ACMPEQ = 165;
+    public static final int IF_ACMPNE = 166;
+    public static final int GOTO = 167;
+    public static final int TABLESWITCH = 170;
+    public static final int LOOKUPSWITCH = 171;
+    public static final int IRETURN = 172;
+    public static final int RETURN = 177;
+    public static final int GETSTATIC = 178;
+    public static final int GETFIELD = 180;
+    public static final int PUTFIELD = 181;
+    public static final int INVOKEVIRTUAL = 182;
+    public static final int INVOKESPECIAL = 183;
+    public static final int INVOKESTATIC = 184;
+    public static final int NEW = 187;
+    public static final int NEWARRAY = 188;
+    public static final int ARRAYLENGTH = 190;
+    public static final int ATHROW = 191;
+
+    // Constant pool tags
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final String className;
+    private final String superName;
+    private final int access;
+    private ByteArrayOutputStream constantPool = new ByteArrayOutputStream();
+    private DataOutputStream constantPoolOut = new DataOutputStream(constantPool);
+    private Map<String, Integer> constantIndex = new HashMap<>();
+    private int constantCount = 1;
+    private List<byte[]> fields = new ArrayList<>();
+    private List<Method> methods = new ArrayList<>();
+
+    public LocusClassFileWriter(String className, String superName, int access) {
+        this.className = className;
+        this.superName = superName;
+        this.access = access;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    // ---------------------------------------------------------------------
+    // Constant pool
+    // ---------------------------------------------------------------------
+
+    private int constant(String key, int slots, ConstantWriter writer) {
+        Integer existing = constantIndex.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        int index = constantCount;
+        try {
+            writer.write(constantPoolOut);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        constantCount += slots;
+        if (constantCount > 0xFFFF) {
+            throw new IllegalStateException("Constant pool overflow in " + className);
+        }
+        constantIndex.put(key, index);
+        return index;
+    }
+
+    private interface ConstantWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    public int utf8(String value) {
+        return constant("U" + value, 1, out -> {
+            out.writeByte(CONSTANT_UTF8);
+            out.writeUTF(value);
+        });
+    }
+
+    public int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constant("C" + internalName, 1, out -> {
+            out.writeByte(CONSTANT_CLASS);
+            out.writeShort(name);
+        });
+    }
+
+    public int stringConstant(String value) {
+        int utf = utf8(value);
+        return constant("S" + value, 1, out -> {
+            out.writeByte(CONSTANT_STRING);
+            out.writeShort(utf);
+        });
+    }
+
+    public int intConstant(int value) {
+        return constant("I" + value, 1, out -> {
+            out.writeByte(CONSTANT_INTEGER);
+            out.writeInt(value);
+        });
+    }
+
+    public int floatConstant(float value) {
+        return constant("F" + Float.floatToIntBits(value), 1, out -> {
+            out.writeByte(CONSTANT_FLOAT);
+            out.writeFloat(value);
+        });
+    }
+
+    public int longConstant(long value) {
+        return constant("J" + value, 2, out -> {
+            out.writeByte(CONSTANT_LONG);
+            out.writeLong(value);
+        });
+    }
+
+    public int doubleConstant(double value) {
+        return constant("D" + Double.doubleToLongBits(value), 2, out -> {
+            out.writeByte(CONSTANT_DOUBLE);
+            out.writeDouble(value);
+        });
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(descriptor);
+        return constant("N" + name + ":" + descriptor, 1, out -> {
+            out.writeByte(CONSTANT_NAME_AND_TYPE);
+            out.writeShort(nameIndex);
+            out.writeShort(typeIndex);
+        });
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nat = nameAndType(name, descriptor);
+        return constant(tag + owner + "." + name + ":" + descriptor, 1, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerIndex);
+            out.writeShort(nat);
+        });
+    }
+
+    // ---------------------------------------------------------------------
+    // Members
+    // ---------------------------------------------------------------------
+
+    public void addField(int fieldAccess, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(fieldAccess);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    /** Adds a method; static methods start with their parameters in the first local slots. */
+    public Code addMethod(int methodAccess, String name, String descriptor) {
+        Method method = new Method(methodAccess, name, descriptor);
+        methods.add(method);
+        return method.code;
+    }
+
+    private class Method {
+        final int access;
+        final String name;
+        final String descriptor;
+        final Code code;
+
+        Method(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            int argumentSlots = 0;
+            for (String param : parameterDescriptors(descriptor)) {
+                argumentSlots += slotSize(param);
+            }
+            if ((access & ACC_STATIC) == 0) {
+                argumentSlots++;
+            }
+            this.code = new Code(argumentSlots);
+        }
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int thisClass = classRef(className);
+            int superClass = classRef(superName);
+            int codeName = utf8("Code");
+            List<byte[]> methodBytes = new ArrayList<>();
+            for (Method method : methods) {
+                methodBytes.add(writeMethod(method, codeName));
+            }
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_FILE_MAJOR_VERSION);
+            out.writeShort(constantCount);
+            constantPool.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methodBytes.size());
+            for (byte[] method : methodBytes) {
+                out.write(method);
+            }
+            out.writeShort(0); // class attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] writeMethod(Method method, int codeName) throws IOException {
+        byte[] code = method.code.resolve();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(method.access);
+        out.writeShort(utf8(method.name));
+        out.writeShort(utf8(method.descriptor));
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(method.code.maxStack);
+        out.writeShort(method.code.maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // code attributes
+        return bytes.toByteArray();
+    }
+
+    public void writeToFile(String filename) throws IOException {
+        try (OutputStream out = new FileOutputStream(filename)) {
+            out.write(toByteArray());
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Descriptors
+    // ---------------------------------------------------------------------
+
+    public static List<String> parameterDescriptors(String methodDescriptor) {
+        List<String> params = new ArrayList<>();
+        int i = 1;
+        while (methodDescriptor.charAt(i) != ')') {
+            int start = i;
+            while (methodDescriptor.charAt(i) == '[') i++;
+            if (methodDescriptor.charAt(i) == 'L') {
+                i = methodDescriptor.indexOf(';', i);
+            }
+            i++;
+            params.add(methodDescriptor.substring(start, i));
+        }
+        return params;
+    }
+
+    public static String returnDescriptor(String methodDescriptor) {
+        return methodDescriptor.substring(methodDescriptor.indexOf(')') + 1);
+    }
+
+    public static int slotSize(String descriptor) {
+        return descriptor.equals("J") || descriptor.equals("D") ? 2 : descriptor.equals("V") ? 0 : 1;
+    }
+
+    /** Offset of a typed opcode family (xLOAD, xSTORE, xRETURN) for a value descriptor. */
+    public static int typeOffset(String descriptor) {
+        switch (descriptor.charAt(0)) {
+            case 'J': return 1;
+            case 'F': return 2;
+            case 'D': return 3;
+            case 'L':
+            case '[': return 4;
+            default: return 0;
+        }
+    }
+
+    /** Offset of the xALOAD/xASTORE family for a primitive element descriptor. */
+    public static int arrayOffset(String element) {
+        switch (element.charAt(0)) {
+            case 'J': return 1;
+            case 'F': return 2;
+            case 'D': return 3;
+            case 'Z': return 5;
+            default: return 0;
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Bytecode
+    // ---------------------------------------------------------------------
+
+    /** A branch target; stack depth is recorded by the first jump to it. */
+    public static class Label {
+        int position = -1;
+        int stackDepth = -1;
+    }
+
+    private static class Fixup {
+        final int instructionStart;
+        final int offsetPosition;
+        final Label label;
+        final boolean wide;
+
+        Fixup(int instructionStart, int offsetPosition, Label label, boolean wide) {
+            this.instructionStart = instructionStart;
+            this.offsetPosition = offsetPosition;
+            this.label = label;
+            this.wide = wide;
+        }
+    }
+
+    public class Code {
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private List<Fixup> fixups = new ArrayList<>();
+        private int stackDepth = 0;
+        private int maxStack = 0;
+        private int nextLocal;
+        private int maxLocals;
+        private boolean reachable = true;
+
+        Code(int argumentSlots) {
+            this.nextLocal = argumentSlots;
+            this.maxLocals = argumentSlots;
+        }
+
+        public int newLocal(String descriptor) {
+            int slot = nextLocal;
+            nextLocal += slotSize(descriptor);
+            maxLocals = Math.max(maxLocals, nextLocal);
+            return slot;
+        }
+
+        /** Releases locals allocated after the given mark, for block scoping. */
+        public int localMark() {
+            return nextLocal;
+        }
+
+        public void releaseLocals(int mark) {
+            nextLocal = mark;
+        }
+
+        public boolean isReachable() {
+            return reachable;
+        }
+
+        public int position() {
+            return bytes.size();
+        }
+
+        private void adjustStack(int delta) {
+            stackDepth += delta;
+            if (stackDepth < 0) {
+                throw new IllegalStateException("Operand stack underflow");
+            }
+            maxStack = Math.max(maxStack, stackDepth);
+        }
+
+        private void u1(int value) {
+            bytes.write(value);
+        }
+
+        private void u2(int value) {
+            bytes.write(value >>> 8);
+            bytes.write(value);
+        }
+
+        private void u4(int value) {
+            u2(value >>> 16);
+            u2(value & 0xFFFF);
+        }
+
+        /** Emits an operand-less instruction with the given stack effect. */
+        public void op(int opcode, int stackDelta) {
+            u1(opcode);
+            adjustStack(stackDelta);
+            if (opcode == ATHROW || (opcode >= IRETURN && opcode <= RETURN)) {
+                reachable = false;
+            }
+        }
+
+        public void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                ldc(intConstant(value));
+                return;
+            }
+            adjustStack(1);
+        }
+
+        public void lconst(long value) {
+            if (value == 0 || value == 1) {
+                u1(LCONST_0 + (int) value);
+            } else {
+                u1(LDC2_W);
+                u2(longConstant(value));
+            }
+            adjustStack(2);
+        }
+
+        public void fconst(float value) {
+            ldc(floatConstant(value));
+        }
+
+        public void dconst(double value) {
+            if (value == 0.0 && 1 / value > 0) {
+                u1(DCONST_0);
+            } else {
+                u1(LDC2_W);
+                u2(doubleConstant(value));
+            }
+            adjustStack(2);
+        }
+
+        public void sconst(String value) {
+            ldc(stringConstant(value));
+        }
+
+        private void ldc(int index) {
+            if (index <= 0xFF) {
+                u1(LDC);
+                u1(index);
+            } else {
+                u1(LDC_W);
+                u2(index);
+            }
+            adjustStack(1);
+        }
+
+        public void load(String descriptor, int slot) {
+            localInstruction(ILOAD + typeOffset(descriptor), slot);
+            adjustStack(slotSize(descriptor));
+        }
+
+        public void store(String descriptor, int slot) {
+            localInstruction(ISTORE + typeOffset(descriptor), slot);
+            adjustStack(-slotSize(descriptor));
+        }
+
+        private void localInstruction(int opcode, int slot) {
+            if (slot <= 3) {
+                // xLOAD_0 .. xLOAD_3 follow the xLOAD family at 26, xSTORE_0 at 59
+                int shortBase = opcode < ISTORE ? 26 : 59;
+                int family = opcode < ISTORE ? opcode - ILOAD : opcode - ISTORE;
+                u1(shortBase + family * 4 + slot);
+            } else if (slot <= 0xFF) {
+                u1(opcode);
+                u1(slot);
+            } else {
+                u1(196); // wide
+                u1(opcode);
+                u2(slot);
+            }
+        }
+
+        public void iinc(int slot, int increment) {
+            if (slot <= 0xFF && increment >= Byte.MIN_VALUE && increment <= Byte.MAX_VALUE) {
+                u1(IINC);
+                u1(slot);
+                u1(increment);
+            } else {
+                u1(196);
+                u1(IINC);
+                u2(slot);
+                u2(increment);
+            }
+        }
+
+        public void returnValue(String descriptor) {
+            if (descriptor.equals("V")) {
+                op(RETURN, 0);
+            } else {
+                op(IRETURN + typeOffset(descriptor), -slotSize(descriptor));
+            }
+        }
+
+        public void pop(String descriptor) {
+            int size = slotSize(descriptor);
+            if (size == 1) {
+                op(POP, -1);
+            } else if (size == 2) {
+                op(POP2, -2);
+            }
+        }
+
+        public void newObject(String internalName) {
+            u1(NEW);
+            u2(classRef(internalName));
+            adjustStack(1);
+        }
+
+        /** Pops a length and pushes a new zeroed array of a primitive element type. */
+        public void newArray(String element) {
+            u1(NEWARRAY);
+            switch (element.charAt(0)) {
+                case 'Z': u1(4); break;
+                case 'F': u1(6); break;
+                case 'D': u1(7); break;
+                case 'J': u1(11); break;
+                default: u1(10);
+            }
+        }
+
+        /** arrayref, index -> value */
+        public void arrayLoad(String element) {
+            op(IALOAD + arrayOffset(element), slotSize(element) - 2);
+        }
+
+        /** arrayref, index, value -> */
+        public void arrayStore(String element) {
+            op(IASTORE + arrayOffset(element), -2 - slotSize(element));
+        }
+
+        public void field(int opcode, String owner, String name, String descriptor) {
+            u1(opcode);
+            u2(memberRef(CONSTANT_FIELDREF, owner, name, descriptor));
+            int size = slotSize(descriptor);
+            switch (opcode) {
+                case GETSTATIC: adjustStack(size); break;
+                case GETFIELD: adjustStack(size - 1); break;
+                case PUTFIELD: adjustStack(-size - 1); break;
+                default: adjustStack(-size);
+            }
+        }
+
+        public void invoke(int opcode, String owner, String name, String descriptor) {
+            u1(opcode);
+            u2(memberRef(CONSTANT_METHODREF, owner, name, descriptor));
+            int delta = slotSize(returnDescriptor(descriptor));
+            for (String param : parameterDescriptors(descriptor)) {
+                delta -= slotSize(param);
+            }
+            if (opcode != INVOKESTATIC) {
+                delta--;
+            }
+            adjustStack(delta);
+        }
+
+        public Label newLabel() {
+            return new Label();
+        }
+
+        /** Binds a label here; code stays unreachable if nothing falls or jumps into it. */
+        public void mark(Label label) {
+            boolean referenced = label.stackDepth >= 0;
+            label.position = bytes.size();
+            if (referenced) {
+                stackDepth = label.stackDepth;
+            } else if (!reachable) {
+                stackDepth = 0;
+            }
+            label.stackDepth = stackDepth;
+            reachable = reachable || referenced;
+        }
+
+        /** Emits a conditional branch or goto; conditional opcodes pop their operands first. */
+        public void jump(int opcode, Label target) {
+            int instructionStart = bytes.size();
+            u1(opcode);
+            if (opcode >= IF_ICMPEQ && opcode <= IF_ACMPNE) {
+                adjustStack(-2);
+            } else if (opcode >= IFEQ && opcode <= IFLE) {
+                adjustStack(-1);
+            }
+            fixups.add(new Fixup(instructionStart, bytes.size(), target, false));
+            u2(0);
+            recordDepth(target);
+            if (opcode == GOTO) {
+                reachable = false;
+            }
+        }
+
+        private void recordDepth(Label target) {
+            if (target.stackDepth < 0) {
+                target.stackDepth = stackDepth;
+            }
+        }
+
+        public void tableSwitch(int low, int high, Label defaultLabel, Label[] targets) {
+            int instructionStart = bytes.size();
+            u1(TABLESWITCH);
+            adjustStack(-1);
+            padToWord();
+            wideFixup(instructionStart, defaultLabel);
+            u4(low);
+            u4(high);
+            for (Label target : targets) {
+                wideFixup(instructionStart, target);
+            }
+            reachable = false;
+        }
+
+        public void lookupSwitch(int[] keys, Label[] targets, Label defaultLabel) {
+            int instructionStart = bytes.size();
+            u1(LOOKUPSWITCH);
+            adjustStack(-1);
+            padToWord();
+            wideFixup(instructionStart, defaultLabel);
+            u4(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                u4(keys[i]);
+                wideFixup(instructionStart, targets[i]);
+            }
+            reachable = false;
+        }
+
+        private void padToWord() {
+            while (bytes.size() % 4 != 0) {
+                u1(0);
+            }
+        }
+
+        private void wideFixup(int instructionStart, Label target) {
+            fixups.add(new Fixup(instructionStart, bytes.size(), target, true));
+            u4(0);
+            recordDepth(target);
+        }
+
+        byte[] resolve() {
+            byte[] code = bytes.toByteArray();
+            for (Fixup fixup : fixups) {
+                if (fixup.label.position < 0) {
+                    throw new IllegalStateException("Branch to unmarked label");
+                }
+                int offset = fixup.label.position - fixup.instructionStart;
+                if (fixup.wide) {
+                    code[fixup.offsetPosition] = (byte) (offset >>> 24);
+                    code[fixup.offsetPosition + 1] = (byte) (offset >>> 16);
+                    code[fixup.offsetPosition + 2] = (byte) (offset >>> 8);
+                    code[fixup.offsetPosition + 3] = (byte) offset;
+                } else {
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        throw new IllegalStateException("Branch offset out of range");
+                    }
+                    code[fixup.offsetPosition] = (byte) (offset >>> 8);
+                    code[fixup.offsetPosition + 1] = (byte) offset;
+                }
+            }
+            if (code.length == 0 || code.length > 0xFFFF) {
+                throw new IllegalStateException("Invalid method code length: " + code.length);
+            }
+            return code;
+        }
+    }
+}
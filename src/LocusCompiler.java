@@ -1,14 +1,38 @@
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.tree.*;
+import java.util.Arrays;
 
 public class LocusCompiler {
     public static void main(String[] args) throws Exception {
-        if (args.length == 0) {
-            System.err.println("Usage: java LocusCompiler <source-file>");
-            System.exit(1);
+        if (args.length > 0 && args[0].equals("run")) {
+            run(Arrays.copyOfRange(args, 1, args.length));
+            return;
         }
         
-        String inputFile = args[0];
+        String inputFile = null;
+        String emit = "ll";
+        boolean instrument = false;
+        String profileFile = null;
+        
+        for (String arg : args) {
+            if (arg.startsWith("--emit=")) {
+                emit = arg.substring("--emit=".length());
+            } else if (arg.equals("--instrument")) {
+                instrument = true;
+            } else if (arg.startsWith("--profile=")) {
+                profileFile = arg.substring("--profile=".length());
+            } else {
+                inputFile = arg;
+            }
+        }
+        
+        boolean pgo = instrument || profileFile != null;
+        if (inputFile == null || !(emit.equals("ll") || emit.equals("bc") || emit.equals("class"))
+            || (pgo && emit.equals("class"))) {
+            System.err.println("Usage: java LocusCompiler [--emit=ll|bc|class] [--instrument | --profile=<file>] <source-file>");
+            System.err.println("       java LocusCompiler run [--dump] <source-file>");
+            System.exit(1);
+        }
         
         // Create input stream from file
         ANTLRInputStream input = new ANTLRFileStream(inputFile);
@@ -31,20 +55,149 @@ public class LocusCompiler {
         LocusSemanticAnalyzer analyzer = new LocusSemanticAnalyzer();
         ParseTreeWalker walker = new ParseTreeWalker();
         walker.walk(analyzer, tree);
+        checkSemantics(analyzer);
+        checkModes(tree);
+        
+        if (emit.equals("class")) {
+            // Generate JVM class files next to the source, named after it
+            java.io.File source = new java.io.File(inputFile);
+            String className = classNameFor(source.getName());
+            LocusJVMGenerator jvmGenerator = new LocusJVMGenerator(className);
+            walker.walk(jvmGenerator, tree);
+
+            if (!jvmGenerator.getErrors().isEmpty()) {
+                for (String error : jvmGenerator.getErrors()) {
+                    System.err.println("JVM backend error: " + error);
+                }
+                System.exit(1);
+            }
+            String directory = source.getAbsoluteFile().getParent();
+            try {
+                for (String classFile : jvmGenerator.writeClassFiles(directory)) {
+                    System.out.println("\nJVM class file generated: " + classFile);
+                }
+                System.out.println("Run with: java -cp " + directory + " " + className);
+            } catch (Exception e) {
+                System.err.println("Error writing class files: " + e.getMessage());
+                System.exit(1);
+            }
+            System.out.println("\nCompilation completed successfully!");
+            return;
+        }
         
-        // Generate LLVM IR
+        // Generate LLVM IR, instrumented for profiling or optimized with a recorded profile
         LocusLLVMGenerator llvmGenerator = new LocusLLVMGenerator();
+        llvmGenerator.setInstrumented(instrument);
+        if (profileFile != null) {
+            try {
+                llvmGenerator.setProfile(LocusProfile.read(profileFile));
+            } catch (java.io.IOException e) {
+                System.err.println("Error reading profile: " + e.getMessage());
+                System.exit(1);
+            }
+        }
         walker.walk(llvmGenerator, tree);
         
-        // Write LLVM IR to file
-        String outputFile = inputFile.replaceAll("\\.locus$", ".ll");
+        // Write LLVM IR to file, as text (.ll) or bitcode (.bc)
+        String outputFile = inputFile.replaceAll("\\.locus$", "." + emit);
         try {
-            llvmGenerator.writeToFile(outputFile);
-            System.out.println("\nLLVM IR generated: " + outputFile);
+            if (emit.equals("bc")) {
+                llvmGenerator.writeBitcodeToFile(outputFile);
+                System.out.println("\nLLVM bitcode generated: " + outputFile);
+            } else {
+                llvmGenerator.writeToFile(outputFile);
+                System.out.println("\nLLVM IR generated: " + outputFile);
+            }
         } catch (Exception e) {
             System.err.println("Error writing LLVM IR: " + e.getMessage());
+            new java.io.File(outputFile).delete();
+            System.exit(1);
         }
         
         System.out.println("\nCompilation completed successfully!");
     }
-}
\ No newline at end of file
+    
+    /**
+     * Runs a program on the bytecode interpreter and exits with main's result.
+     * Skips the parse-tree dump and IR generation so scripts start quickly.
+     */
+    private static void run(String[] args) throws Exception {
+        String inputFile = null;
+        boolean dump = false;
+        for (String arg : args) {
+            if (arg.equals("--dump")) {
+                dump = true;
+            } else {
+                inputFile = arg;
+            }
+        }
+        if (inputFile == null) {
+            System.err.println("Usage: java LocusCompiler run [--dump] <source-file>");
+            System.exit(1);
+        }
+        
+        LocusParser parser = new LocusParser(new CommonTokenStream(new LocusLexer(CharStreams.fromFileName(inputFile))));
+        ParseTree tree = parser.program();
+        
+        LocusSemanticAnalyzer analyzer = new LocusSemanticAnalyzer(false);
+        new ParseTreeWalker().walk(analyzer, tree);
+        checkSemantics(analyzer);
+        checkModes(tree);
+        
+        LocusBytecodeCompiler bytecodeCompiler = new LocusBytecodeCompiler();
+        new ParseTreeWalker().walk(bytecodeCompiler, tree);
+        if (!bytecodeCompiler.getErrors().isEmpty()) {
+            for (String error : bytecodeCompiler.getErrors()) {
+                System.err.println("Error: " + error);
+            }
+            System.exit(1);
+        }
+        
+        LocusBytecode.Program program = bytecodeCompiler.getProgram();
+        if (dump) {
+            System.out.print(program.disassemble());
+        }
+        try {
+            long result = new LocusInterpreter(program).run("main");
+            System.exit((int) result);
+        } catch (RuntimeException e) {
+            System.err.println("Runtime error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /** Rejects programs that break the language rules, before any backend runs. */
+    private static void checkSemantics(LocusSemanticAnalyzer analyzer) {
+        if (!analyzer.getErrors().isEmpty()) {
+            for (String error : analyzer.getErrors()) {
+                System.err.println("Semantic error: " + error);
+            }
+            System.exit(1);
+        }
+    }
+    
+    /** Rejects par regions that could race, before any backend runs. */
+    private static void checkModes(ParseTree tree) {
+        LocusModeChecker checker = new LocusModeChecker();
+        new ParseTreeWalker().walk(checker, tree);
+        if (!checker.getErrors().isEmpty()) {
+            for (String error : checker.getErrors()) {
+                System.err.println("Mode error: " + error);
+            }
+            System.exit(1);
+        }
+    }
+    
+    /** Derives a valid JVM class name from a source file name, e.g. while_test.locus -> while_test. */
+    static String classNameFor(String fileName) {
+        String base = fileName.replaceAll("\\.locus$", "");
+        StringBuilder name = new StringBuilder();
+        for (char c : base.toCharArray()) {
+            name.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        if (name.length() == 0 || !Character.isJavaIdentifierStart(name.charAt(0))) {
+            name.insert(0, '_');
+        }
+        return name.toString();
+    }
+}
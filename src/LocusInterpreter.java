@@ -0,0 +1,521 @@
+import java.util.*;
+
+/**
+ * Dispatch-loop interpreter for LocusBytecode.
+ *
+ * Calls never recurse on the Java stack: frames are windows into two shared
+ * register stacks, and return state is kept on an explicit call stack. Call
+ * sites resolve their callee by name on first execution and are then
+ * rewritten in place to CALL_Q with the function index (an inline cache;
+ * Locus calls are monomorphic, so the cache never misses again).
+ */
+public class LocusInterpreter {
+    private static final int CALL_RECORD = 4;
+
+    private final LocusBytecode.Program program;
+    private final long[] longConstants;
+    private final String[] strings;
+
+    public LocusInterpreter(LocusBytecode.Program program) {
+        this.program = program;
+        this.longConstants = new long[program.longConstants.size()];
+        for (int i = 0; i < longConstants.length; i++) {
+            longConstants[i] = program.longConstants.get(i);
+        }
+        this.strings = program.strings.toArray(new String[0]);
+    }
+
+    /** Runs a parameterless function and returns its primitive result (0 for void). */
+    public long run(String functionName) {
+        Integer index = program.functionIndex.get(functionName);
+        if (index == null) {
+            throw new IllegalArgumentException("No function named '" + functionName + "'");
+        }
+        return execute(index);
+    }
+
+    private long execute(int entry) {
+        List<LocusBytecode.Function> functions = program.functions;
+        LocusBytecode.Function function = functions.get(entry);
+        int[] code = function.code;
+        long[] p = new long[Math.max(256, function.primitiveRegisters)];
+        Object[] r = new Object[Math.max(64, function.referenceRegisters)];
+        int pb = 0;
+        int rb = 0;
+        int pc = 0;
+
+        // Per call: caller function index, return pc, caller pb, caller rb
+        int[] calls = new int[CALL_RECORD * 64];
+        int depth = 0;
+        int current = entry;
+
+        while (true) {
+            switch (code[pc]) {
+                case LocusBytecode.MOV:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case LocusBytecode.MOVR:
+                    r[rb + code[pc + 1]] = r[rb + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case LocusBytecode.LOADI:
+                    p[pb + code[pc + 1]] = code[pc + 2];
+                    pc += 3;
+                    break;
+                case LocusBytecode.LOADK:
+                    p[pb + code[pc + 1]] = longConstants[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case LocusBytecode.LOADS:
+                    r[rb + code[pc + 1]] = strings[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case LocusBytecode.LOADNULL:
+                    r[rb + code[pc + 1]] = null;
+                    pc += 2;
+                    break;
+
+                case LocusBytecode.ADD_I:
+                    p[pb + code[pc + 1]] = (int) (p[pb + code[pc + 2]] + p[pb + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case LocusBytecode.SUB_I:
+                    p[pb + code[pc + 1]] = (int) (p[pb + code[pc + 2]] - p[pb + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case LocusBytecode.MUL_I:
+                    p[pb + code[pc + 1]] = (int) p[pb + code[pc + 2]] * (int) p[pb + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.DIV_I:
+                    p[pb + code[pc + 1]] = (int) p[pb + code[pc + 2]] / (int) p[pb + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.REM_I:
+                    p[pb + code[pc + 1]] = (int) p[pb + code[pc + 2]] % (int) p[pb + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.ADD_J:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]] + p[pb + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.SUB_J:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]] - p[pb + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.MUL_J:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]] * p[pb + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.DIV_J:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]] / p[pb + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.REM_J:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]] % p[pb + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.ADD_D:
+                    p[pb + code[pc + 1]] = bits(real(p[pb + code[pc + 2]]) + real(p[pb + code[pc + 3]]));
+                    pc += 4;
+                    break;
+                case LocusBytecode.SUB_D:
+                    p[pb + code[pc + 1]] = bits(real(p[pb + code[pc + 2]]) - real(p[pb + code[pc + 3]]));
+                    pc += 4;
+                    break;
+                case LocusBytecode.MUL_D:
+                    p[pb + code[pc + 1]] = bits(real(p[pb + code[pc + 2]]) * real(p[pb + code[pc + 3]]));
+                    pc += 4;
+                    break;
+                case LocusBytecode.DIV_D:
+                    p[pb + code[pc + 1]] = bits(real(p[pb + code[pc + 2]]) / real(p[pb + code[pc + 3]]));
+                    pc += 4;
+                    break;
+                case LocusBytecode.REM_D:
+                    p[pb + code[pc + 1]] = bits(real(p[pb + code[pc + 2]]) % real(p[pb + code[pc + 3]]));
+                    pc += 4;
+                    break;
+                case LocusBytecode.ADD_F:
+                    p[pb + code[pc + 1]] = bits((float) (real(p[pb + code[pc + 2]]) + real(p[pb + code[pc + 3]])));
+                    pc += 4;
+                    break;
+                case LocusBytecode.SUB_F:
+                    p[pb + code[pc + 1]] = bits((float) (real(p[pb + code[pc + 2]]) - real(p[pb + code[pc + 3]])));
+                    pc += 4;
+                    break;
+                case LocusBytecode.MUL_F:
+                    p[pb + code[pc + 1]] = bits((float) (real(p[pb + code[pc + 2]]) * real(p[pb + code[pc + 3]])));
+                    pc += 4;
+                    break;
+                case LocusBytecode.DIV_F:
+                    p[pb + code[pc + 1]] = bits((float) (real(p[pb + code[pc + 2]]) / real(p[pb + code[pc + 3]])));
+                    pc += 4;
+                    break;
+                case LocusBytecode.REM_F:
+                    p[pb + code[pc + 1]] = bits((float) (real(p[pb + code[pc + 2]]) % real(p[pb + code[pc + 3]])));
+                    pc += 4;
+                    break;
+                case LocusBytecode.ADDI_I:
+                    p[pb + code[pc + 1]] = (int) (p[pb + code[pc + 2]] + code[pc + 3]);
+                    pc += 4;
+                    break;
+                case LocusBytecode.ADDI_J:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]] + code[pc + 3];
+                    pc += 4;
+                    break;
+
+                case LocusBytecode.NEG_I:
+                    p[pb + code[pc + 1]] = -(int) p[pb + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case LocusBytecode.NEG_J:
+                    p[pb + code[pc + 1]] = -p[pb + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case LocusBytecode.NEG_D:
+                    p[pb + code[pc + 1]] = bits(-real(p[pb + code[pc + 2]]));
+                    pc += 3;
+                    break;
+                case LocusBytecode.NOT:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]] == 0 ? 1 : 0;
+                    pc += 3;
+                    break;
+                case LocusBytecode.I2D:
+                    p[pb + code[pc + 1]] = bits((double) p[pb + code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case LocusBytecode.I2F:
+                    p[pb + code[pc + 1]] = bits((float) p[pb + code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case LocusBytecode.J2I:
+                    p[pb + code[pc + 1]] = (int) p[pb + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case LocusBytecode.D2I:
+                    p[pb + code[pc + 1]] = (int) real(p[pb + code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case LocusBytecode.D2J:
+                    p[pb + code[pc + 1]] = (long) real(p[pb + code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case LocusBytecode.D2F:
+                    p[pb + code[pc + 1]] = bits((float) real(p[pb + code[pc + 2]]));
+                    pc += 3;
+                    break;
+
+                case LocusBytecode.EQ:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]] == p[pb + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LocusBytecode.NE:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]] != p[pb + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LocusBytecode.LT:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]] < p[pb + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LocusBytecode.GE:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]] >= p[pb + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LocusBytecode.GT:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]] > p[pb + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LocusBytecode.LE:
+                    p[pb + code[pc + 1]] = p[pb + code[pc + 2]] <= p[pb + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LocusBytecode.EQ_D:
+                    p[pb + code[pc + 1]] = real(p[pb + code[pc + 2]]) == real(p[pb + code[pc + 3]]) ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LocusBytecode.NE_D:
+                    p[pb + code[pc + 1]] = real(p[pb + code[pc + 2]]) != real(p[pb + code[pc + 3]]) ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LocusBytecode.LT_D:
+                    p[pb + code[pc + 1]] = real(p[pb + code[pc + 2]]) < real(p[pb + code[pc + 3]]) ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LocusBytecode.GE_D:
+                    p[pb + code[pc + 1]] = real(p[pb + code[pc + 2]]) >= real(p[pb + code[pc + 3]]) ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LocusBytecode.GT_D:
+                    p[pb + code[pc + 1]] = real(p[pb + code[pc + 2]]) > real(p[pb + code[pc + 3]]) ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LocusBytecode.LE_D:
+                    p[pb + code[pc + 1]] = real(p[pb + code[pc + 2]]) <= real(p[pb + code[pc + 3]]) ? 1 : 0;
+                    pc += 4;
+                    break;
+
+                case LocusBytecode.JMP:
+                    pc = code[pc + 1];
+                    break;
+                case LocusBytecode.JZ:
+                    pc = p[pb + code[pc + 1]] == 0 ? code[pc + 2] : pc + 3;
+                    break;
+                case LocusBytecode.JNZ:
+                    pc = p[pb + code[pc + 1]] != 0 ? code[pc + 2] : pc + 3;
+                    break;
+                case LocusBytecode.JEQ:
+                    pc = p[pb + code[pc + 1]] == p[pb + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case LocusBytecode.JNE:
+                    pc = p[pb + code[pc + 1]] != p[pb + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case LocusBytecode.JLT:
+                    pc = p[pb + code[pc + 1]] < p[pb + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case LocusBytecode.JGE:
+                    pc = p[pb + code[pc + 1]] >= p[pb + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case LocusBytecode.JGT:
+                    pc = p[pb + code[pc + 1]] > p[pb + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case LocusBytecode.JLE:
+                    pc = p[pb + code[pc + 1]] <= p[pb + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case LocusBytecode.TABLESWITCH: {
+                    long key = p[pb + code[pc + 1]];
+                    int low = code[pc + 2];
+                    int high = code[pc + 3];
+                    pc = key >= low && key <= high ? code[pc + 5 + (int) (key - low)] : code[pc + 4];
+                    break;
+                }
+                case LocusBytecode.LOOKUPSWITCH: {
+                    long key = p[pb + code[pc + 1]];
+                    int lo = 0;
+                    int hi = code[pc + 2] - 1;
+                    int target = code[pc + 3];
+                    while (lo <= hi) {
+                        int mid = (lo + hi) >>> 1;
+                        int midKey = code[pc + 4 + 2 * mid];
+                        if (midKey < key) {
+                            lo = mid + 1;
+                        } else if (midKey > key) {
+                            hi = mid - 1;
+                        } else {
+                            target = code[pc + 5 + 2 * mid];
+                            break;
+                        }
+                    }
+                    pc = target;
+                    break;
+                }
+                case LocusBytecode.MATCHFAIL:
+                    throw new IllegalStateException("Non-exhaustive match in " + function.name);
+
+                case LocusBytecode.CONCAT:
+                    r[rb + code[pc + 1]] = (String) r[rb + code[pc + 2]] + (String) r[rb + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.STR_I:
+                    r[rb + code[pc + 1]] = Long.toString(p[pb + code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case LocusBytecode.STR_D:
+                    r[rb + code[pc + 1]] = Double.toString(real(p[pb + code[pc + 2]]));
+                    pc += 3;
+                    break;
+                case LocusBytecode.STR_F:
+                    r[rb + code[pc + 1]] = Float.toString((float) real(p[pb + code[pc + 2]]));
+                    pc += 3;
+                    break;
+                case LocusBytecode.STR_Z:
+                    r[rb + code[pc + 1]] = p[pb + code[pc + 2]] != 0 ? "true" : "false";
+                    pc += 3;
+                    break;
+                case LocusBytecode.STREQ:
+                    p[pb + code[pc + 1]] = Objects.equals(r[rb + code[pc + 2]], r[rb + code[pc + 3]]) ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LocusBytecode.REFEQ:
+                    p[pb + code[pc + 1]] = r[rb + code[pc + 2]] == r[rb + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+
+                case LocusBytecode.CALL: {
+                    // Inline cache miss: resolve by name once, then quicken the call site
+                    Integer index = program.functionIndex.get(strings[code[pc + 2]]);
+                    if (index == null) {
+                        throw new IllegalStateException("Unknown function: " + strings[code[pc + 2]]);
+                    }
+                    code[pc + 2] = index;
+                    code[pc] = LocusBytecode.CALL_Q;
+                    break;
+                }
+                case LocusBytecode.CALL_Q: {
+                    LocusBytecode.Function callee = functions.get(code[pc + 2]);
+                    int calleePb = pb + function.primitiveRegisters;
+                    int calleeRb = rb + function.referenceRegisters;
+                    if (calleePb + callee.primitiveRegisters > p.length) {
+                        p = Arrays.copyOf(p, Math.max(p.length * 2, calleePb + callee.primitiveRegisters));
+                    }
+                    if (calleeRb + callee.referenceRegisters > r.length) {
+                        r = Arrays.copyOf(r, Math.max(r.length * 2, calleeRb + callee.referenceRegisters));
+                    }
+                    int argc = code[pc + 3];
+                    for (int i = 0; i < argc; i++) {
+                        int arg = code[pc + 4 + i];
+                        int param = callee.paramRegisters[i];
+                        if (arg >= 0) {
+                            p[calleePb + param] = p[pb + arg];
+                        } else {
+                            r[calleeRb + ~param] = r[rb + ~arg];
+                        }
+                    }
+
+                    if (depth + CALL_RECORD > calls.length) {
+                        calls = Arrays.copyOf(calls, calls.length * 2);
+                    }
+                    calls[depth] = current;
+                    calls[depth + 1] = pc;
+                    calls[depth + 2] = pb;
+                    calls[depth + 3] = rb;
+                    depth += CALL_RECORD;
+
+                    current = code[pc + 2];
+                    function = callee;
+                    code = callee.code;
+                    pb = calleePb;
+                    rb = calleeRb;
+                    pc = 0;
+                    break;
+                }
+                case LocusBytecode.RET:
+                case LocusBytecode.RETR:
+                case LocusBytecode.RETV: {
+                    int opcode = code[pc];
+                    long value = opcode == LocusBytecode.RET ? p[pb + code[pc + 1]] : 0;
+                    Object reference = opcode == LocusBytecode.RETR ? r[rb + code[pc + 1]] : null;
+                    // Drop references held by the finished frame so they can be collected
+                    Arrays.fill(r, rb, rb + function.referenceRegisters, null);
+                    if (depth == 0) {
+                        return value;
+                    }
+
+                    depth -= CALL_RECORD;
+                    current = calls[depth];
+                    pc = calls[depth + 1];
+                    pb = calls[depth + 2];
+                    rb = calls[depth + 3];
+                    function = functions.get(current);
+                    code = function.code;
+
+                    int dst = code[pc + 1];
+                    if (dst != LocusBytecode.NO_REGISTER) {
+                        if (dst >= 0) {
+                            p[pb + dst] = value;
+                        } else {
+                            r[rb + ~dst] = reference;
+                        }
+                    }
+                    pc += 4 + code[pc + 3];
+                    break;
+                }
+
+                case LocusBytecode.NEWP:
+                    r[rb + code[pc + 1]] = new long[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case LocusBytecode.NEWM: {
+                    Object[] frame = new Object[code[pc + 3] + 1];
+                    frame[0] = new long[code[pc + 2]];
+                    r[rb + code[pc + 1]] = frame;
+                    pc += 4;
+                    break;
+                }
+                case LocusBytecode.GETF:
+                    p[pb + code[pc + 1]] = ((long[]) r[rb + code[pc + 2]])[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.PUTF:
+                    ((long[]) r[rb + code[pc + 1]])[code[pc + 2]] = p[pb + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.GETFM:
+                    p[pb + code[pc + 1]] = ((long[]) ((Object[]) r[rb + code[pc + 2]])[0])[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.PUTFM:
+                    ((long[]) ((Object[]) r[rb + code[pc + 1]])[0])[code[pc + 2]] = p[pb + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.GETFR:
+                    r[rb + code[pc + 1]] = ((Object[]) r[rb + code[pc + 2]])[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.PUTFR:
+                    ((Object[]) r[rb + code[pc + 1]])[code[pc + 2]] = r[rb + code[pc + 3]];
+                    pc += 4;
+                    break;
+
+                case LocusBytecode.GETA:
+                    p[pb + code[pc + 1]] = ((long[]) r[rb + code[pc + 2]])[(int) p[pb + code[pc + 3]]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.PUTA:
+                    ((long[]) r[rb + code[pc + 1]])[(int) p[pb + code[pc + 2]]] = p[pb + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case LocusBytecode.LENA:
+                    p[pb + code[pc + 1]] = ((long[]) r[rb + code[pc + 2]]).length;
+                    pc += 3;
+                    break;
+                case LocusBytecode.NEWV:
+                    r[rb + code[pc + 1]] = new Vec();
+                    pc += 2;
+                    break;
+                case LocusBytecode.GETV: {
+                    Vec vec = (Vec) r[rb + code[pc + 2]];
+                    p[pb + code[pc + 1]] = vec.data[Objects.checkIndex((int) p[pb + code[pc + 3]], vec.length)];
+                    pc += 4;
+                    break;
+                }
+                case LocusBytecode.PUTV: {
+                    Vec vec = (Vec) r[rb + code[pc + 1]];
+                    vec.data[Objects.checkIndex((int) p[pb + code[pc + 2]], vec.length)] = p[pb + code[pc + 3]];
+                    pc += 4;
+                    break;
+                }
+                case LocusBytecode.LENV:
+                    p[pb + code[pc + 1]] = ((Vec) r[rb + code[pc + 2]]).length;
+                    pc += 3;
+                    break;
+                case LocusBytecode.PUSHV: {
+                    Vec vec = (Vec) r[rb + code[pc + 1]];
+                    if (vec.length == vec.data.length) {
+                        vec.data = Arrays.copyOf(vec.data, vec.length * 2 + 4);
+                    }
+                    vec.data[vec.length++] = p[pb + code[pc + 2]];
+                    pc += 3;
+                    break;
+                }
+
+                default:
+                    throw new IllegalStateException("Bad opcode " + code[pc] + " at " + function.name + ":" + pc);
+            }
+        }
+    }
+
+    /** A growable array: elements [0, length) of data are live. */
+    private static final class Vec {
+        long[] data = new long[0];
+        int length;
+    }
+
+    private static double real(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long bits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+}
@@ -0,0 +1,1451 @@
+import java.util.*;
+import java.io.*;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * JVM bytecode backend: compiles a Locus program straight to class files so it
+ * can run (and be JIT-compiled by HotSpot) without the LLVM toolchain.
+ *
+ * Each program becomes one class with a static method per Locus function and
+ * a Java main(String[]) that exits with Locus main's result. Structs become
+ * final classes with an all-fields constructor, enums become int tags, and
+ * match on int-like values lowers to tableswitch/lookupswitch.
+ */
+public class LocusJVMGenerator extends LocusBaseListener {
+    private static final String STRING_DESCRIPTOR = "Ljava/lang/String;";
+    private static final String STRING_BUILDER = "java/lang/StringBuilder";
+
+    private final String className;
+    private LocusClassFileWriter mainClass;
+    private List<LocusClassFileWriter> structClasses = new ArrayList<>();
+    private Map<String, Map<String, Integer>> enumTags = new HashMap<>();
+    private Map<String, StructInfo> structs = new LinkedHashMap<>();
+    private Map<String, FunctionInfo> functions = new LinkedHashMap<>();
+    // Vec<T> classes by element descriptor: a T[] buffer plus a length
+    private Map<String, StructInfo> vecClasses = new HashMap<>();
+    private List<String> errors = new ArrayList<>();
+
+    // Per-function state
+    private FunctionInfo currentFunction;
+    private LocusClassFileWriter.Code code;
+    private Deque<Map<String, Local>> scopes = new ArrayDeque<>();
+
+    private static class StructInfo {
+        final String name;
+        final String internalName;
+        final Map<String, String> fields = new LinkedHashMap<>();
+
+        StructInfo(String name, String internalName) {
+            this.name = name;
+            this.internalName = internalName;
+        }
+
+        String descriptor() {
+            return "L" + internalName + ";";
+        }
+
+        String constructorDescriptor() {
+            StringBuilder descriptor = new StringBuilder("(");
+            for (String field : fields.values()) {
+                descriptor.append(field);
+            }
+            return descriptor.append(")V").toString();
+        }
+    }
+
+    private static class FunctionInfo {
+        final String name;
+        final LocusParser.FunctionDeclarationContext ctx;
+        final List<String> paramNames = new ArrayList<>();
+        final List<String> paramTypes = new ArrayList<>();
+        String returnType = "V";
+
+        FunctionInfo(String name, LocusParser.FunctionDeclarationContext ctx) {
+            this.name = name;
+            this.ctx = ctx;
+        }
+
+        String descriptor() {
+            StringBuilder descriptor = new StringBuilder("(");
+            for (String param : paramTypes) {
+                descriptor.append(param);
+            }
+            return descriptor.append(")").append(returnType).toString();
+        }
+    }
+
+    private static class Local {
+        final int slot;
+        final String type;
+
+        Local(int slot, String type) {
+            this.slot = slot;
+            this.type = type;
+        }
+    }
+
+    public LocusJVMGenerator(String className) {
+        this.className = className;
+    }
+
+    @Override
+    public void enterProgram(LocusParser.ProgramContext ctx) {
+        mainClass = new LocusClassFileWriter(className, "java/lang/Object",
+            LocusClassFileWriter.ACC_PUBLIC | LocusClassFileWriter.ACC_FINAL | LocusClassFileWriter.ACC_SUPER);
+
+        // Declarations first, so bodies can refer to types and functions declared later
+        for (LocusParser.StatementContext statement : ctx.statement()) {
+            if (statement.enumDeclaration() != null) {
+                declareEnum(statement.enumDeclaration());
+            } else if (statement.structDeclaration() != null) {
+                LocusParser.StructDeclarationContext struct = statement.structDeclaration();
+                String name = struct.IDENTIFIER().getText();
+                structs.put(name, new StructInfo(name, className + "$" + name));
+            }
+        }
+        for (LocusParser.StatementContext statement : ctx.statement()) {
+            if (statement.structDeclaration() != null) {
+                declareStructFields(statement.structDeclaration());
+            } else if (statement.functionDeclaration() != null) {
+                declareFunction(statement.functionDeclaration());
+            } else if (statement.enumDeclaration() == null) {
+                error(statement, "Top-level statements are not supported by the JVM backend");
+            }
+        }
+
+        for (StructInfo struct : structs.values()) {
+            generateStructClass(struct);
+        }
+        for (FunctionInfo function : functions.values()) {
+            generateFunction(function);
+        }
+        generateJavaMain();
+    }
+
+    private void declareEnum(LocusParser.EnumDeclarationContext ctx) {
+        String name = ctx.IDENTIFIER().getText();
+        Map<String, Integer> tags = new LinkedHashMap<>();
+        for (LocusParser.EnumVariantContext variant : ctx.enumVariant()) {
+            if (variant.typeList() != null) {
+                error(variant, "Enum variants with payloads are not supported by the JVM backend");
+            }
+            tags.put(variant.IDENTIFIER().getText(), tags.size());
+        }
+        enumTags.put(name, tags);
+    }
+
+    private void declareStructFields(LocusParser.StructDeclarationContext ctx) {
+        StructInfo struct = structs.get(ctx.IDENTIFIER().getText());
+        if (ctx.typeList() != null) {
+            error(ctx, "Generic structs are not supported by the JVM backend");
+        }
+        for (LocusParser.StructFieldContext field : ctx.structField()) {
+            struct.fields.put(field.IDENTIFIER().getText(), descriptorOf(field.type()));
+        }
+    }
+
+    private void declareFunction(LocusParser.FunctionDeclarationContext ctx) {
+        String name = ctx.IDENTIFIER().getText();
+        if (functions.containsKey(name)) {
+            error(ctx, "Duplicate function: " + name);
+            return;
+        }
+        if (ctx.typeList() != null) {
+            error(ctx, "Generic functions are not supported by the JVM backend");
+        }
+        FunctionInfo function = new FunctionInfo(name, ctx);
+        if (ctx.parameterList() != null) {
+            for (LocusParser.ParameterContext param : ctx.parameterList().parameter()) {
+                function.paramNames.add(param.IDENTIFIER().getText());
+                function.paramTypes.add(descriptorOf(param.type()));
+            }
+        }
+        if (ctx.type() != null) {
+            function.returnType = descriptorOf(ctx.type());
+        }
+        functions.put(name, function);
+    }
+
+    // ---------------------------------------------------------------------
+    // Classes and methods
+    // ---------------------------------------------------------------------
+
+    private void generateStructClass(StructInfo struct) {
+        LocusClassFileWriter structClass = new LocusClassFileWriter(struct.internalName, "java/lang/Object",
+            LocusClassFileWriter.ACC_PUBLIC | LocusClassFileWriter.ACC_FINAL | LocusClassFileWriter.ACC_SUPER);
+        for (Map.Entry<String, String> field : struct.fields.entrySet()) {
+            structClass.addField(LocusClassFileWriter.ACC_PUBLIC, field.getKey(), field.getValue());
+        }
+
+        LocusClassFileWriter.Code init = structClass.addMethod(LocusClassFileWriter.ACC_PUBLIC,
+            "<init>", struct.constructorDescriptor());
+        init.load("Ljava/lang/Object;", 0);
+        init.invoke(LocusClassFileWriter.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        int slot = 1;
+        for (Map.Entry<String, String> field : struct.fields.entrySet()) {
+            init.load(struct.descriptor(), 0);
+            init.load(field.getValue(), slot);
+            init.field(LocusClassFileWriter.PUTFIELD, struct.internalName, field.getKey(), field.getValue());
+            slot += LocusClassFileWriter.slotSize(field.getValue());
+        }
+        init.returnValue("V");
+        structClasses.add(structClass);
+    }
+
+    private void generateFunction(FunctionInfo function) {
+        currentFunction = function;
+        code = mainClass.addMethod(LocusClassFileWriter.ACC_PUBLIC | LocusClassFileWriter.ACC_STATIC,
+            function.name, function.descriptor());
+
+        Map<String, Local> params = new HashMap<>();
+        int slot = 0;
+        for (int i = 0; i < function.paramNames.size(); i++) {
+            String type = function.paramTypes.get(i);
+            params.put(function.paramNames.get(i), new Local(slot, type));
+            slot += LocusClassFileWriter.slotSize(type);
+        }
+        scopes.clear();
+        scopes.push(params);
+
+        generateBlock(function.ctx.block());
+
+        // Falling off the end returns the zero value, like main's implicit exit code 0
+        if (code.isReachable()) {
+            if (!function.returnType.equals("V")) {
+                pushDefault(function.returnType);
+            }
+            code.returnValue(function.returnType);
+        }
+
+        scopes.clear();
+        currentFunction = null;
+        code = null;
+    }
+
+    private void generateJavaMain() {
+        FunctionInfo main = functions.get("main");
+        if (main == null || !main.paramTypes.isEmpty()) {
+            return;
+        }
+        LocusClassFileWriter.Code javaMain = mainClass.addMethod(
+            LocusClassFileWriter.ACC_PUBLIC | LocusClassFileWriter.ACC_STATIC, "main", "([Ljava/lang/String;)V");
+        javaMain.invoke(LocusClassFileWriter.INVOKESTATIC, className, "main", main.descriptor());
+        if (isIntLike(main.returnType)) {
+            javaMain.invoke(LocusClassFileWriter.INVOKESTATIC, "java/lang/System", "exit", "(I)V");
+        } else {
+            javaMain.pop(main.returnType);
+        }
+        javaMain.returnValue("V");
+    }
+
+    // ---------------------------------------------------------------------
+    // Statements
+    // ---------------------------------------------------------------------
+
+    private void generateBlock(LocusParser.BlockContext ctx) {
+        int localMark = code.localMark();
+        scopes.push(new HashMap<>());
+
+        for (LocusParser.StatementContext statement : ctx.statement()) {
+            generateStatement(statement);
+        }
+
+        // Trailing expressions are implicit returns in value-returning functions
+        if (ctx.expression() != null) {
+            String type = generateExpression(ctx.expression());
+            if (currentFunction.returnType.equals("V")) {
+                code.pop(type);
+            } else {
+                coerce(ctx.expression(), type, currentFunction.returnType);
+                code.returnValue(currentFunction.returnType);
+            }
+        }
+
+        scopes.pop();
+        code.releaseLocals(localMark);
+    }
+
+    private void generateStatement(LocusParser.StatementContext ctx) {
+        if (ctx.variableDeclaration() != null) {
+            generateVariableDeclaration(ctx.variableDeclaration());
+        } else if (ctx.ifStatement() != null) {
+            generateIfStatement(ctx.ifStatement());
+        } else if (ctx.whileStatement() != null) {
+            generateWhileStatement(ctx.whileStatement());
+        } else if (ctx.parallelStatement() != null) {
+            generateParallelStatement(ctx.parallelStatement());
+        } else if (ctx.matchStatement() != null) {
+            LocusParser.MatchStatementContext match = ctx.matchStatement();
+            List<LocusParser.PatternContext> patterns = new ArrayList<>();
+            for (LocusParser.MatchArmContext arm : match.matchArm()) {
+                patterns.add(arm.pattern());
+            }
+            generateMatch(match.expression(), patterns, (index, end) -> {
+                generateBlock(match.matchArm(index).block());
+                if (code.isReachable()) {
+                    code.jump(LocusClassFileWriter.GOTO, end);
+                }
+            });
+        } else if (ctx.returnStatement() != null) {
+            generateReturnStatement(ctx.returnStatement());
+        } else if (ctx.expressionStatement() != null) {
+            LocusParser.ExpressionContext expression = ctx.expressionStatement().expression();
+            if (isAssignment(expression)) {
+                generateAssignment(expression, false);
+            } else {
+                code.pop(generateExpression(expression));
+            }
+        } else {
+            error(ctx, "Nested declarations are not supported by the JVM backend");
+        }
+    }
+
+    private void generateVariableDeclaration(LocusParser.VariableDeclarationContext ctx) {
+        String name = ctx.IDENTIFIER().getText();
+        boolean inferred = ctx.type().getText().equals("let");
+        String type = inferred ? null : descriptorOf(ctx.type());
+
+        if (type != null && isArray(type)) {
+            generateArrayInitializer(ctx, type);
+        } else if (ctx.expression() != null) {
+            String valueType = generateExpression(ctx.expression());
+            if (type == null) {
+                type = valueType.equals("V") ? "I" : valueType;
+            }
+            coerce(ctx.expression(), valueType, type);
+        } else {
+            if (type == null) {
+                error(ctx, "Cannot infer the type of '" + name + "' without an initializer");
+                type = "I";
+            }
+            // The verifier requires every local to be assigned before it is read
+            pushDefault(type);
+        }
+
+        int slot = code.newLocal(type);
+        code.store(type, slot);
+        scopes.peek().put(name, new Local(slot, type));
+    }
+
+    /** Fixed-size arrays start zeroed and Vecs empty, then take the literal's elements in order. */
+    private void generateArrayInitializer(LocusParser.VariableDeclarationContext ctx, String type) {
+        List<LocusParser.ExpressionContext> values = Collections.emptyList();
+        if (ctx.expression() != null) {
+            // The semantic analyzer only lets array literals initialize arrays
+            values = ctx.expression().primary().arrayLiteral().expression();
+        }
+        String element = elementDescriptor(type);
+        StructInfo vec = vecForDescriptor(type);
+        int length = values.size();
+        if (vec == null) {
+            length = Integer.parseInt(ctx.type().arrayType().INTEGER().getText());
+        } else {
+            code.newObject(vec.internalName);
+            code.op(LocusClassFileWriter.DUP, 1);
+        }
+
+        code.iconst(vec != null ? Math.max(length, 4) : length);
+        code.newArray(element);
+        for (int i = 0; i < values.size() && i < length; i++) {
+            code.op(LocusClassFileWriter.DUP, 1);
+            code.iconst(i);
+            coerce(values.get(i), generateExpression(values.get(i)), element);
+            code.arrayStore(element);
+        }
+        if (vec != null) {
+            code.iconst(values.size());
+            code.invoke(LocusClassFileWriter.INVOKESPECIAL, vec.internalName, "<init>", vec.constructorDescriptor());
+        }
+    }
+
+    private void generateIfStatement(LocusParser.IfStatementContext ctx) {
+        LocusClassFileWriter.Label elseLabel = code.newLabel();
+        LocusClassFileWriter.Label endLabel = code.newLabel();
+
+        generateBranch(ctx.expression(), false, elseLabel);
+        generateBlock(ctx.block(0));
+        if (ctx.ELSE() != null) {
+            if (code.isReachable()) {
+                code.jump(LocusClassFileWriter.GOTO, endLabel);
+            }
+            code.mark(elseLabel);
+            generateBlock(ctx.block(1));
+            code.mark(endLabel);
+        } else {
+            code.mark(elseLabel);
+        }
+    }
+
+    private void generateWhileStatement(LocusParser.WhileStatementContext ctx) {
+        LocusClassFileWriter.Label condLabel = code.newLabel();
+        LocusClassFileWriter.Label endLabel = code.newLabel();
+
+        code.mark(condLabel);
+        generateBranch(ctx.expression(), false, endLabel);
+        generateBlock(ctx.block());
+        if (code.isReachable()) {
+            code.jump(LocusClassFileWriter.GOTO, condLabel);
+        }
+        code.mark(endLabel);
+    }
+
+    /**
+     * par regions run sequentially on the JVM: the mode checker guarantees the
+     * iterations (or tasks) do not race, so program order is one valid schedule.
+     */
+    private void generateParallelStatement(LocusParser.ParallelStatementContext ctx) {
+        if (ctx.IDENTIFIER() == null) {
+            generateBlock(ctx.block());
+            return;
+        }
+        int localMark = code.localMark();
+        coerce(ctx.expression(0), generateExpression(ctx.expression(0)), "I");
+        int index = code.newLocal("I");
+        code.store("I", index);
+        coerce(ctx.expression(1), generateExpression(ctx.expression(1)), "I");
+        int end = code.newLocal("I");
+        code.store("I", end);
+
+        scopes.push(new HashMap<>());
+        scopes.peek().put(ctx.IDENTIFIER().getText(), new Local(index, "I"));
+        LocusClassFileWriter.Label condLabel = code.newLabel();
+        LocusClassFileWriter.Label endLabel = code.newLabel();
+        code.mark(condLabel);
+        code.load("I", index);
+        code.load("I", end);
+        code.jump(LocusClassFileWriter.IF_ICMPGE, endLabel);
+        generateBlock(ctx.block());
+        if (code.isReachable()) {
+            code.iinc(index, 1);
+            code.jump(LocusClassFileWriter.GOTO, condLabel);
+        }
+        code.mark(endLabel);
+        scopes.pop();
+        code.releaseLocals(localMark);
+    }
+
+    private void generateReturnStatement(LocusParser.ReturnStatementContext ctx) {
+        String returnType = currentFunction.returnType;
+        if (ctx.expression() == null) {
+            if (!returnType.equals("V")) {
+                error(ctx, "Missing return value in function '" + currentFunction.name + "'");
+                pushDefault(returnType);
+            }
+        } else {
+            String type = generateExpression(ctx.expression());
+            if (returnType.equals("V")) {
+                code.pop(type);
+            } else {
+                coerce(ctx.expression(), type, returnType);
+            }
+        }
+        code.returnValue(returnType);
+    }
+
+    // ---------------------------------------------------------------------
+    // Pattern matching
+    // ---------------------------------------------------------------------
+
+    private interface ArmGenerator {
+        void generate(int armIndex, LocusClassFileWriter.Label end);
+    }
+
+    /**
+     * Lowers a match to a switch over the subject: tableswitch or lookupswitch
+     * for int-like subjects, a compare chain otherwise. Identifier patterns bind
+     * the subject; arms shadowed by an earlier default or duplicate key are dropped.
+     */
+    private void generateMatch(LocusParser.ExpressionContext subject, List<LocusParser.PatternContext> patterns,
+                               ArmGenerator arms) {
+        int localMark = code.localMark();
+        String subjectType = generateExpression(subject);
+        int subjectSlot = code.newLocal(subjectType);
+        code.store(subjectType, subjectSlot);
+
+        LocusClassFileWriter.Label end = code.newLabel();
+        LocusClassFileWriter.Label noMatch = code.newLabel();
+        LocusClassFileWriter.Label defaultLabel = null;
+        LocusClassFileWriter.Label[] armLabels = new LocusClassFileWriter.Label[patterns.size()];
+        TreeMap<Integer, LocusClassFileWriter.Label> intCases = new TreeMap<>();
+        List<Object[]> otherCases = new ArrayList<>();
+
+        for (int i = 0; i < patterns.size() && defaultLabel == null; i++) {
+            LocusParser.PatternContext pattern = patterns.get(i);
+            if (pattern.wildcardPattern() != null || pattern.identifierPattern() != null) {
+                armLabels[i] = code.newLabel();
+                defaultLabel = armLabels[i];
+                continue;
+            }
+            Object key = patternKey(pattern, subjectType);
+            if (key == null) {
+                continue;
+            }
+            if (key instanceof Integer && isIntLike(subjectType)) {
+                if (!intCases.containsKey(key)) {
+                    armLabels[i] = code.newLabel();
+                    intCases.put((Integer) key, armLabels[i]);
+                }
+            } else {
+                armLabels[i] = code.newLabel();
+                otherCases.add(new Object[] {key, armLabels[i]});
+            }
+        }
+        if (defaultLabel == null) {
+            defaultLabel = noMatch;
+        }
+
+        code.load(subjectType, subjectSlot);
+        if (isIntLike(subjectType)) {
+            generateSwitch(intCases, defaultLabel);
+        } else {
+            code.pop(subjectType);
+            for (Object[] matchCase : otherCases) {
+                code.load(subjectType, subjectSlot);
+                generateCaseTest(subjectType, matchCase[0], (LocusClassFileWriter.Label) matchCase[1]);
+            }
+            code.jump(LocusClassFileWriter.GOTO, defaultLabel);
+        }
+
+        for (int i = 0; i < patterns.size(); i++) {
+            if (armLabels[i] == null) {
+                continue;
+            }
+            code.mark(armLabels[i]);
+            scopes.push(new HashMap<>());
+            if (patterns.get(i).identifierPattern() != null) {
+                String binding = patterns.get(i).identifierPattern().IDENTIFIER().getText();
+                scopes.peek().put(binding, new Local(subjectSlot, subjectType));
+            }
+            arms.generate(i, end);
+            scopes.pop();
+        }
+
+        if (defaultLabel == noMatch) {
+            code.mark(noMatch);
+            code.newObject("java/lang/IllegalStateException");
+            code.op(LocusClassFileWriter.DUP, 1);
+            code.sconst("Non-exhaustive match");
+            code.invoke(LocusClassFileWriter.INVOKESPECIAL, "java/lang/IllegalStateException",
+                "<init>", "(Ljava/lang/String;)V");
+            code.op(LocusClassFileWriter.ATHROW, -1);
+        }
+
+        code.mark(end);
+        code.releaseLocals(localMark);
+    }
+
+    /** Picks tableswitch or lookupswitch with the same space/time heuristic as javac. */
+    private void generateSwitch(TreeMap<Integer, LocusClassFileWriter.Label> cases,
+                                LocusClassFileWriter.Label defaultLabel) {
+        if (cases.isEmpty()) {
+            code.pop("I");
+            code.jump(LocusClassFileWriter.GOTO, defaultLabel);
+            return;
+        }
+        long low = cases.firstKey();
+        long high = cases.lastKey();
+        long tableCost = 4 + (high - low + 1) + 3 * 3;
+        long lookupCost = 3 + 2L * cases.size() + 3L * cases.size();
+
+        if (tableCost <= lookupCost) {
+            LocusClassFileWriter.Label[] targets = new LocusClassFileWriter.Label[(int) (high - low + 1)];
+            for (int key = (int) low; key <= high; key++) {
+                targets[key - (int) low] = cases.getOrDefault(key, defaultLabel);
+            }
+            code.tableSwitch((int) low, (int) high, defaultLabel, targets);
+        } else {
+            int[] keys = new int[cases.size()];
+            LocusClassFileWriter.Label[] targets = new LocusClassFileWriter.Label[cases.size()];
+            int i = 0;
+            for (Map.Entry<Integer, LocusClassFileWriter.Label> entry : cases.entrySet()) {
+                keys[i] = entry.getKey();
+                targets[i++] = entry.getValue();
+            }
+            code.lookupSwitch(keys, targets, defaultLabel);
+        }
+    }
+
+    private void generateCaseTest(String subjectType, Object key, LocusClassFileWriter.Label target) {
+        if (subjectType.equals(STRING_DESCRIPTOR)) {
+            code.sconst((String) key);
+            code.invoke(LocusClassFileWriter.INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z");
+            code.jump(LocusClassFileWriter.IFNE, target);
+        } else if (subjectType.equals("J")) {
+            code.lconst(((Number) key).longValue());
+            code.op(LocusClassFileWriter.LCMP, -3);
+            code.jump(LocusClassFileWriter.IFEQ, target);
+        } else if (subjectType.equals("F")) {
+            code.fconst(((Number) key).floatValue());
+            code.op(LocusClassFileWriter.FCMPG, -1);
+            code.jump(LocusClassFileWriter.IFEQ, target);
+        } else {
+            code.dconst(((Number) key).doubleValue());
+            code.op(LocusClassFileWriter.DCMPG, -3);
+            code.jump(LocusClassFileWriter.IFEQ, target);
+        }
+    }
+
+    private Object patternKey(LocusParser.PatternContext pattern, String subjectType) {
+        if (pattern.enumVariantPattern() != null) {
+            LocusParser.EnumVariantPatternContext variant = pattern.enumVariantPattern();
+            if (variant.patternList() != null) {
+                error(pattern, "Enum payload patterns are not supported by the JVM backend");
+                return null;
+            }
+            return enumTag(variant, variant.IDENTIFIER(0).getText(), variant.IDENTIFIER(1).getText());
+        }
+
+        LocusParser.LiteralPatternContext literal = pattern.literalPattern();
+        Object key = null;
+        if (literal.TRUE() != null) {
+            key = 1;
+        } else if (literal.FALSE() != null) {
+            key = 0;
+        } else if (literal.INTEGER() != null) {
+            long value = Long.parseLong(literal.INTEGER().getText());
+            key = subjectType.equals("J") || value != (int) value ? (Object) value : (Object) (int) value;
+        } else if (literal.FLOAT() != null) {
+            key = Double.parseDouble(literal.FLOAT().getText());
+        } else if (literal.STRING() != null) {
+            key = unescape(literal.STRING().getText());
+        }
+
+        boolean compatible = isIntLike(subjectType) ? key instanceof Integer
+            : subjectType.equals(STRING_DESCRIPTOR) ? key instanceof String
+            : isNumeric(subjectType) && key instanceof Number;
+        if (!compatible) {
+            error(pattern, "Pattern " + pattern.getText() + " cannot match a value of type " + subjectType);
+            return null;
+        }
+        return key;
+    }
+
+    // ---------------------------------------------------------------------
+    // Expressions
+    // ---------------------------------------------------------------------
+
+    /** Generates code leaving the expression's value on the stack and returns its descriptor. */
+    private String generateExpression(LocusParser.ExpressionContext ctx) {
+        if (ctx.primary() != null) {
+            return generatePrimary(ctx.primary());
+        } else if (ctx.matchExpression() != null) {
+            return generateMatchExpression(ctx.matchExpression());
+        } else if (ctx.getChildCount() == 3 && ctx.getChild(1).getText().equals(".")) {
+            return generateFieldAccess(ctx);
+        } else if (ctx.getChildCount() >= 3 && ctx.getChild(1).getText().equals("(")) {
+            return generateFunctionCall(ctx);
+        } else if (ctx.getChildCount() >= 3 && ctx.getChild(1).getText().equals("[")) {
+            String element = generateElementAddress(ctx);
+            if (element == null) {
+                code.iconst(0);
+                return "I";
+            }
+            code.arrayLoad(element);
+            return element;
+        } else if (ctx.getChildCount() == 2) {
+            return generateUnary(ctx);
+        } else if (isAssignment(ctx)) {
+            return generateAssignment(ctx, true);
+        } else if (ctx.expression().size() == 2) {
+            return generateBinary(ctx);
+        }
+
+        error(ctx, "Unsupported expression: " + ctx.getText());
+        code.iconst(0);
+        return "I";
+    }
+
+    private String generatePrimary(LocusParser.PrimaryContext ctx) {
+        if (ctx.INTEGER() != null) {
+            long value = Long.parseLong(ctx.INTEGER().getText());
+            if (value == (int) value) {
+                code.iconst((int) value);
+                return "I";
+            }
+            code.lconst(value);
+            return "J";
+        } else if (ctx.FLOAT() != null) {
+            code.dconst(Double.parseDouble(ctx.FLOAT().getText()));
+            return "D";
+        } else if (ctx.TRUE() != null || ctx.FALSE() != null) {
+            code.iconst(ctx.TRUE() != null ? 1 : 0);
+            return "Z";
+        } else if (ctx.STRING() != null) {
+            code.sconst(unescape(ctx.STRING().getText()));
+            return STRING_DESCRIPTOR;
+        } else if (ctx.IDENTIFIER() != null) {
+            Local local = lookup(ctx.IDENTIFIER().getText());
+            if (local == null) {
+                error(ctx, "Unknown variable: " + ctx.IDENTIFIER().getText());
+                code.iconst(0);
+                return "I";
+            }
+            code.load(local.type, local.slot);
+            return local.type;
+        } else if (ctx.expression() != null) {
+            return generateExpression(ctx.expression());
+        } else if (ctx.structInitializer() != null) {
+            return generateStructInitializer(ctx.structInitializer());
+        } else if (ctx.enumVariantAccess() != null) {
+            LocusParser.EnumVariantAccessContext access = ctx.enumVariantAccess();
+            Integer tag = enumTag(access, access.IDENTIFIER(0).getText(), access.IDENTIFIER(1).getText());
+            code.iconst(tag != null ? tag : 0);
+            return "I";
+        }
+
+        error(ctx, "Unsupported expression: " + ctx.getText());
+        code.iconst(0);
+        return "I";
+    }
+
+    private String generateStructInitializer(LocusParser.StructInitializerContext ctx) {
+        StructInfo struct = structs.get(ctx.IDENTIFIER().getText());
+        if (struct == null) {
+            error(ctx, "Unknown struct: " + ctx.IDENTIFIER().getText());
+            code.op(LocusClassFileWriter.ACONST_NULL, 1);
+            return "Ljava/lang/Object;";
+        }
+
+        Map<String, LocusParser.ExpressionContext> values = new HashMap<>();
+        if (ctx.fieldInitList() != null) {
+            for (LocusParser.FieldInitContext init : ctx.fieldInitList().fieldInit()) {
+                String field = init.IDENTIFIER().getText();
+                if (!struct.fields.containsKey(field)) {
+                    error(init, "Struct " + struct.name + " has no field '" + field + "'");
+                }
+                values.put(field, init.expression());
+            }
+        }
+
+        code.newObject(struct.internalName);
+        code.op(LocusClassFileWriter.DUP, 1);
+        for (Map.Entry<String, String> field : struct.fields.entrySet()) {
+            LocusParser.ExpressionContext value = values.get(field.getKey());
+            if (value != null) {
+                coerce(value, generateExpression(value), field.getValue());
+            } else {
+                pushDefault(field.getValue());
+            }
+        }
+        code.invoke(LocusClassFileWriter.INVOKESPECIAL, struct.internalName, "<init>", struct.constructorDescriptor());
+        return struct.descriptor();
+    }
+
+    private String generateFieldAccess(LocusParser.ExpressionContext ctx) {
+        String objectType = generateExpression(ctx.expression(0));
+        StructInfo struct = structForDescriptor(objectType);
+        String field = ctx.IDENTIFIER().getText();
+        if (struct == null || !struct.fields.containsKey(field)) {
+            error(ctx, "Unknown field '" + field + "' on " + objectType);
+            code.pop(objectType);
+            code.iconst(0);
+            return "I";
+        }
+        String fieldType = struct.fields.get(field);
+        code.field(LocusClassFileWriter.GETFIELD, struct.internalName, field, fieldType);
+        return fieldType;
+    }
+
+    /**
+     * Pushes the backing array and checked index of `a[i]` and returns the
+     * element descriptor, or null after an error. Fixed-size arrays rely on the
+     * JVM's own check; a Vec checks against its length, not its capacity.
+     */
+    private String generateElementAddress(LocusParser.ExpressionContext ctx) {
+        LocusParser.ExpressionContext array = ctx.expression(0);
+        String type = generateExpression(array);
+        if (!isArray(type)) {
+            error(ctx, "Cannot index a value of type " + type);
+            code.pop(type);
+            return null;
+        }
+        StructInfo vec = vecForDescriptor(type);
+        if (vec != null) {
+            code.field(LocusClassFileWriter.GETFIELD, vec.internalName, "data", vec.fields.get("data"));
+        }
+        coerce(ctx.expression(1), generateExpression(ctx.expression(1)), "I");
+        if (vec != null) {
+            // Arrays are only ever named by variables, so the receiver can be evaluated again
+            generateExpression(array);
+            code.field(LocusClassFileWriter.GETFIELD, vec.internalName, "length", "I");
+            code.invoke(LocusClassFileWriter.INVOKESTATIC, "java/util/Objects", "checkIndex", "(II)I");
+        }
+        return elementDescriptor(type);
+    }
+
+    /** `a.len()` and `v.push(x)`, the only methods. */
+    private String generateArrayMethod(LocusParser.ExpressionContext ctx, List<LocusParser.ExpressionContext> args) {
+        LocusParser.ExpressionContext callee = ctx.expression(0);
+        LocusParser.ExpressionContext array = callee.expression(0);
+        String method = callee.IDENTIFIER().getText();
+        String type = inferType(array);
+        StructInfo vec = type != null ? vecForDescriptor(type) : null;
+
+        if (type != null && isArray(type) && method.equals("len") && args.isEmpty()) {
+            generateExpression(array);
+            if (vec != null) {
+                code.field(LocusClassFileWriter.GETFIELD, vec.internalName, "length", "I");
+            } else {
+                code.op(LocusClassFileWriter.ARRAYLENGTH, 0);
+            }
+            return "I";
+        }
+        if (vec == null || !method.equals("push") || args.size() != 1) {
+            error(ctx, "Unknown method '" + method + "' on " + type);
+            code.iconst(0);
+            return "I";
+        }
+
+        // Grow to twice the length plus four when full, then store at length and bump it
+        String data = vec.fields.get("data");
+        String element = elementDescriptor(type);
+        LocusClassFileWriter.Label room = code.newLabel();
+        generateExpression(array);
+        code.field(LocusClassFileWriter.GETFIELD, vec.internalName, "length", "I");
+        generateExpression(array);
+        code.field(LocusClassFileWriter.GETFIELD, vec.internalName, "data", data);
+        code.op(LocusClassFileWriter.ARRAYLENGTH, 0);
+        code.jump(LocusClassFileWriter.IF_ICMPNE, room);
+        generateExpression(array);
+        generateExpression(array);
+        code.field(LocusClassFileWriter.GETFIELD, vec.internalName, "data", data);
+        generateExpression(array);
+        code.field(LocusClassFileWriter.GETFIELD, vec.internalName, "length", "I");
+        code.iconst(2);
+        code.op(LocusClassFileWriter.IMUL, -1);
+        code.iconst(4);
+        code.op(LocusClassFileWriter.IADD, -1);
+        code.invoke(LocusClassFileWriter.INVOKESTATIC, "java/util/Arrays", "copyOf", "(" + data + "I)" + data);
+        code.field(LocusClassFileWriter.PUTFIELD, vec.internalName, "data", data);
+        code.mark(room);
+
+        generateExpression(array);
+        code.field(LocusClassFileWriter.GETFIELD, vec.internalName, "data", data);
+        generateExpression(array);
+        code.field(LocusClassFileWriter.GETFIELD, vec.internalName, "length", "I");
+        coerce(args.get(0), generateExpression(args.get(0)), element);
+        code.arrayStore(element);
+        generateExpression(array);
+        code.op(LocusClassFileWriter.DUP, 1);
+        code.field(LocusClassFileWriter.GETFIELD, vec.internalName, "length", "I");
+        code.iconst(1);
+        code.op(LocusClassFileWriter.IADD, -1);
+        code.field(LocusClassFileWriter.PUTFIELD, vec.internalName, "length", "I");
+        return "V";
+    }
+
+    private String generateFunctionCall(LocusParser.ExpressionContext ctx) {
+        LocusParser.ExpressionContext callee = ctx.expression(0);
+        if (callee.getChildCount() == 3 && callee.getChild(1).getText().equals(".")) {
+            return generateArrayMethod(ctx, ctx.argumentList() != null
+                ? ctx.argumentList().expression() : Collections.<LocusParser.ExpressionContext>emptyList());
+        }
+        String name = callee.getText();
+        FunctionInfo function = functions.get(name);
+        List<LocusParser.ExpressionContext> args = ctx.argumentList() != null
+            ? ctx.argumentList().expression() : Collections.emptyList();
+
+        if (function == null) {
+            error(ctx, "Unknown function: " + name);
+            for (LocusParser.ExpressionContext arg : args) {
+                code.pop(generateExpression(arg));
+            }
+            code.iconst(0);
+            return "I";
+        }
+        if (args.size() != function.paramTypes.size()) {
+            error(ctx, "Function '" + name + "' expects " + function.paramTypes.size()
+                  + " arguments but got " + args.size());
+        }
+
+        for (int i = 0; i < args.size(); i++) {
+            String type = generateExpression(args.get(i));
+            if (i < function.paramTypes.size()) {
+                coerce(args.get(i), type, function.paramTypes.get(i));
+            } else {
+                code.pop(type);
+            }
+        }
+        for (int i = args.size(); i < function.paramTypes.size(); i++) {
+            pushDefault(function.paramTypes.get(i));
+        }
+        code.invoke(LocusClassFileWriter.INVOKESTATIC, className, name, function.descriptor());
+        return function.returnType;
+    }
+
+    private String generateUnary(LocusParser.ExpressionContext ctx) {
+        String op = ctx.getChild(0).getText();
+        if (op.equals("!")) {
+            return generateConditionValue(ctx);
+        }
+        String type = generateExpression(ctx.expression(0));
+        if (!isNumeric(type)) {
+            error(ctx, "Cannot negate a value of type " + type);
+            return type;
+        }
+        String arithmeticType = isIntLike(type) ? "I" : type;
+        code.op(LocusClassFileWriter.INEG + LocusClassFileWriter.typeOffset(arithmeticType), 0);
+        return arithmeticType;
+    }
+
+    private String generateBinary(LocusParser.ExpressionContext ctx) {
+        String op = ctx.getChild(1).getText();
+        if (isComparison(op) || op.equals("&&") || op.equals("||")) {
+            return generateConditionValue(ctx);
+        }
+
+        String resultType = inferType(ctx);
+        if (STRING_DESCRIPTOR.equals(resultType) && op.equals("+")) {
+            code.newObject(STRING_BUILDER);
+            code.op(LocusClassFileWriter.DUP, 1);
+            code.invoke(LocusClassFileWriter.INVOKESPECIAL, STRING_BUILDER, "<init>", "()V");
+            appendToBuilder(ctx);
+            code.invoke(LocusClassFileWriter.INVOKEVIRTUAL, STRING_BUILDER, "toString", "()Ljava/lang/String;");
+            return STRING_DESCRIPTOR;
+        }
+        if (resultType == null || !isNumeric(resultType)) {
+            error(ctx, "Operator '" + op + "' is not defined for " + ctx.getText());
+            resultType = "I";
+        }
+
+        coerce(ctx.expression(0), generateExpression(ctx.expression(0)), resultType);
+        coerce(ctx.expression(1), generateExpression(ctx.expression(1)), resultType);
+        int base;
+        switch (op) {
+            case "+": base = LocusClassFileWriter.IADD; break;
+            case "-": base = LocusClassFileWriter.ISUB; break;
+            case "*": base = LocusClassFileWriter.IMUL; break;
+            case "/": base = LocusClassFileWriter.IDIV; break;
+            case "%": base = LocusClassFileWriter.IREM; break;
+            default:
+                error(ctx, "Unsupported operator: " + op);
+                base = LocusClassFileWriter.IADD;
+        }
+        code.op(base + LocusClassFileWriter.typeOffset(resultType), -LocusClassFileWriter.slotSize(resultType));
+        return resultType;
+    }
+
+    /** Flattens a chain of string '+' into appends on a single StringBuilder. */
+    private void appendToBuilder(LocusParser.ExpressionContext ctx) {
+        if (ctx.expression().size() == 2 && ctx.getChildCount() == 3 && ctx.getChild(1).getText().equals("+")
+            && STRING_DESCRIPTOR.equals(inferType(ctx))) {
+            appendToBuilder(ctx.expression(0));
+            appendToBuilder(ctx.expression(1));
+            return;
+        }
+        String type = generateExpression(ctx);
+        String appendType;
+        if (type.equals("Z") || type.equals("J") || type.equals("F") || type.equals("D")
+            || type.equals(STRING_DESCRIPTOR)) {
+            appendType = type;
+        } else if (isIntLike(type)) {
+            appendType = "I";
+        } else {
+            appendType = "Ljava/lang/Object;";
+        }
+        code.invoke(LocusClassFileWriter.INVOKEVIRTUAL, STRING_BUILDER, "append",
+            "(" + appendType + ")Ljava/lang/StringBuilder;");
+    }
+
+    private boolean isAssignment(LocusParser.ExpressionContext ctx) {
+        return ctx.getChildCount() == 3 && ctx.expression().size() == 2 && ctx.getChild(1).getText().equals("=");
+    }
+
+    private String generateAssignment(LocusParser.ExpressionContext ctx, boolean keepValue) {
+        LocusParser.ExpressionContext target = ctx.expression(0);
+        LocusParser.ExpressionContext value = ctx.expression(1);
+
+        if (target.primary() != null && target.primary().IDENTIFIER() != null) {
+            Local local = lookup(target.primary().IDENTIFIER().getText());
+            if (local == null) {
+                error(target, "Unknown variable: " + target.getText());
+                String type = generateExpression(value);
+                if (!keepValue) code.pop(type);
+                return type;
+            }
+            coerce(value, generateExpression(value), local.type);
+            if (keepValue) {
+                code.op(LocusClassFileWriter.slotSize(local.type) == 2 ? LocusClassFileWriter.DUP2 : LocusClassFileWriter.DUP,
+                        LocusClassFileWriter.slotSize(local.type));
+            }
+            code.store(local.type, local.slot);
+            return local.type;
+        }
+
+        if (target.getChildCount() == 3 && target.getChild(1).getText().equals(".")) {
+            String objectType = generateExpression(target.expression(0));
+            StructInfo struct = structForDescriptor(objectType);
+            String field = target.IDENTIFIER().getText();
+            if (struct == null || !struct.fields.containsKey(field)) {
+                error(target, "Unknown field '" + field + "' on " + objectType);
+                code.pop(objectType);
+                String type = generateExpression(value);
+                if (!keepValue) code.pop(type);
+                return type;
+            }
+            String fieldType = struct.fields.get(field);
+            coerce(value, generateExpression(value), fieldType);
+            if (keepValue) {
+                int size = LocusClassFileWriter.slotSize(fieldType);
+                code.op(size == 2 ? LocusClassFileWriter.DUP2_X1 : LocusClassFileWriter.DUP_X1, size);
+            }
+            code.field(LocusClassFileWriter.PUTFIELD, struct.internalName, field, fieldType);
+            return fieldType;
+        }
+
+        if (target.getChildCount() == 4 && target.getChild(1).getText().equals("[")) {
+            String element = generateElementAddress(target);
+            if (element == null) {
+                String type = generateExpression(value);
+                if (!keepValue) code.pop(type);
+                return type;
+            }
+            coerce(value, generateExpression(value), element);
+            if (keepValue) {
+                int size = LocusClassFileWriter.slotSize(element);
+                code.op(size == 2 ? LocusClassFileWriter.DUP2_X2 : LocusClassFileWriter.DUP_X2, size);
+            }
+            code.arrayStore(element);
+            return element;
+        }
+
+        error(ctx, "Invalid assignment target: " + target.getText());
+        String type = generateExpression(value);
+        if (!keepValue) code.pop(type);
+        return type;
+    }
+
+    private String generateMatchExpression(LocusParser.MatchExpressionContext ctx) {
+        List<LocusParser.PatternContext> patterns = new ArrayList<>();
+        for (LocusParser.MatchExpressionArmContext arm : ctx.matchExpressionArm()) {
+            patterns.add(arm.pattern());
+        }
+        String resultType = inferType(ctx);
+        if (resultType == null) {
+            resultType = "I";
+        }
+        final String armType = resultType;
+
+        generateMatch(ctx.expression(), patterns, (index, end) -> {
+            LocusParser.ExpressionContext value = ctx.matchExpressionArm(index).expression();
+            coerce(value, generateExpression(value), armType);
+            code.jump(LocusClassFileWriter.GOTO, end);
+        });
+        return resultType;
+    }
+
+    // ---------------------------------------------------------------------
+    // Conditions
+    // ---------------------------------------------------------------------
+
+    private String generateConditionValue(LocusParser.ExpressionContext ctx) {
+        LocusClassFileWriter.Label falseLabel = code.newLabel();
+        LocusClassFileWriter.Label endLabel = code.newLabel();
+        generateBranch(ctx, false, falseLabel);
+        code.iconst(1);
+        code.jump(LocusClassFileWriter.GOTO, endLabel);
+        code.mark(falseLabel);
+        code.iconst(0);
+        code.mark(endLabel);
+        return "Z";
+    }
+
+    /**
+     * Jumps to target when the condition evaluates to jumpWhen and falls
+     * through otherwise; && and || short-circuit without materializing booleans.
+     */
+    private void generateBranch(LocusParser.ExpressionContext ctx, boolean jumpWhen, LocusClassFileWriter.Label target) {
+        if (ctx.primary() != null && ctx.primary().expression() != null) {
+            generateBranch(ctx.primary().expression(), jumpWhen, target);
+            return;
+        }
+        if (ctx.getChildCount() == 2 && ctx.getChild(0).getText().equals("!")) {
+            generateBranch(ctx.expression(0), !jumpWhen, target);
+            return;
+        }
+        if (ctx.getChildCount() == 3 && ctx.expression().size() == 2) {
+            String op = ctx.getChild(1).getText();
+            if (op.equals("&&") || op.equals("||")) {
+                boolean shortCircuitsTo = op.equals("||");
+                if (jumpWhen == shortCircuitsTo) {
+                    generateBranch(ctx.expression(0), jumpWhen, target);
+                    generateBranch(ctx.expression(1), jumpWhen, target);
+                } else {
+                    LocusClassFileWriter.Label skip = code.newLabel();
+                    generateBranch(ctx.expression(0), !jumpWhen, skip);
+                    generateBranch(ctx.expression(1), jumpWhen, target);
+                    code.mark(skip);
+                }
+                return;
+            }
+            if (isComparison(op)) {
+                generateComparison(ctx, op, jumpWhen, target);
+                return;
+            }
+        }
+
+        String type = generateExpression(ctx);
+        if (!isIntLike(type)) {
+            error(ctx, "Condition must be a bool but is " + type);
+        }
+        code.jump(jumpWhen ? LocusClassFileWriter.IFNE : LocusClassFileWriter.IFEQ, target);
+    }
+
+    private void generateComparison(LocusParser.ExpressionContext ctx, String op, boolean jumpWhen,
+                                    LocusClassFileWriter.Label target) {
+        String leftType = inferType(ctx.expression(0));
+        String rightType = inferType(ctx.expression(1));
+        String type = promote(leftType, rightType);
+        int condition = conditionCode(op);
+        if (!jumpWhen) {
+            condition ^= 1; // EQ<->NE, LT<->GE, GT<->LE
+        }
+
+        if (type != null && isNumeric(type)) {
+            coerce(ctx.expression(0), generateExpression(ctx.expression(0)), type);
+            coerce(ctx.expression(1), generateExpression(ctx.expression(1)), type);
+            if (isIntLike(type)) {
+                code.jump(LocusClassFileWriter.IF_ICMPEQ + condition, target);
+                return;
+            }
+            if (type.equals("J")) {
+                code.op(LocusClassFileWriter.LCMP, -3);
+            } else {
+                // NaN must make <, <=, >, >= false: use the variant that pushes the failing result
+                boolean lessThan = op.equals("<") || op.equals("<=");
+                int compare = type.equals("F") ? LocusClassFileWriter.FCMPG : LocusClassFileWriter.DCMPG;
+                code.op(lessThan ? compare : compare - 1, type.equals("F") ? -1 : -3);
+            }
+            code.jump(LocusClassFileWriter.IFEQ + condition, target);
+            return;
+        }
+
+        boolean equality = op.equals("==") || op.equals("!=");
+        if (!equality || leftType == null || rightType == null || isNumeric(leftType) || isNumeric(rightType)) {
+            error(ctx, "Cannot compare " + ctx.expression(0).getText() + " " + op + " " + ctx.expression(1).getText());
+        }
+        generateExpression(ctx.expression(0));
+        generateExpression(ctx.expression(1));
+        if (STRING_DESCRIPTOR.equals(leftType) && STRING_DESCRIPTOR.equals(rightType)) {
+            code.invoke(LocusClassFileWriter.INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z");
+            code.jump((op.equals("==") == jumpWhen) ? LocusClassFileWriter.IFNE : LocusClassFileWriter.IFEQ, target);
+        } else {
+            code.jump((op.equals("==") == jumpWhen) ? LocusClassFileWriter.IF_ACMPEQ : LocusClassFileWriter.IF_ACMPNE,
+                      target);
+        }
+    }
+
+    private static boolean isComparison(String op) {
+        return conditionCode(op) >= 0;
+    }
+
+    /** Offset from IFEQ / IF_ICMPEQ for a relational operator. */
+    private static int conditionCode(String op) {
+        switch (op) {
+            case "==": return 0;
+            case "!=": return 1;
+            case "<": return 2;
+            case ">=": return 3;
+            case ">": return 4;
+            case "<=": return 5;
+            default: return -1;
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Types
+    // ---------------------------------------------------------------------
+
+    private String descriptorOf(LocusParser.TypeContext ctx) {
+        if (ctx.primitiveType() != null) {
+            switch (ctx.primitiveType().getText()) {
+                case "i32": return "I";
+                case "i64": return "J";
+                case "f32": return "F";
+                case "f64": return "D";
+                case "bool": return "Z";
+                default: return STRING_DESCRIPTOR;
+            }
+        }
+        if (ctx.IDENTIFIER() != null) {
+            String name = ctx.IDENTIFIER().getText();
+            if (enumTags.containsKey(name)) {
+                return "I";
+            }
+            if (structs.containsKey(name)) {
+                return structs.get(name).descriptor();
+            }
+        }
+        LocusParser.TypeContext element = null;
+        if (ctx.arrayType() != null) {
+            element = ctx.arrayType().type();
+        } else if (ctx.genericType() != null && ctx.genericType().IDENTIFIER().getText().equals("Vec")
+                   && ctx.genericType().typeList().type().size() == 1) {
+            element = ctx.genericType().typeList().type(0);
+        }
+        if (element != null) {
+            String elementType = descriptorOf(element);
+            if (!isNumeric(elementType)) {
+                error(ctx, "Array elements must be primitive: " + ctx.getText());
+                elementType = "I";
+            }
+            return ctx.arrayType() != null ? "[" + elementType : vecClass(elementType).descriptor();
+        }
+        error(ctx, "Unsupported type for the JVM backend: " + ctx.getText());
+        return "I";
+    }
+
+    /** The class backing Vec<T>, generated on first use. */
+    private StructInfo vecClass(String element) {
+        StructInfo vec = vecClasses.get(element);
+        if (vec == null) {
+            vec = new StructInfo("Vec<" + element + ">", className + "$Vec_" + element);
+            vec.fields.put("data", "[" + element);
+            vec.fields.put("length", "I");
+            vecClasses.put(element, vec);
+            generateStructClass(vec);
+        }
+        return vec;
+    }
+
+    private StructInfo vecForDescriptor(String descriptor) {
+        for (StructInfo vec : vecClasses.values()) {
+            if (vec.descriptor().equals(descriptor)) {
+                return vec;
+            }
+        }
+        return null;
+    }
+
+    private boolean isArray(String descriptor) {
+        return descriptor.startsWith("[") || vecForDescriptor(descriptor) != null;
+    }
+
+    private String elementDescriptor(String arrayDescriptor) {
+        StructInfo vec = vecForDescriptor(arrayDescriptor);
+        return (vec != null ? vec.fields.get("data") : arrayDescriptor).substring(1);
+    }
+
+    /** Static type of an expression without generating code; null when unknown. */
+    private String inferType(LocusParser.ExpressionContext ctx) {
+        if (ctx.primary() != null) {
+            LocusParser.PrimaryContext primary = ctx.primary();
+            if (primary.INTEGER() != null) {
+                long value = Long.parseLong(primary.INTEGER().getText());
+                return value == (int) value ? "I" : "J";
+            } else if (primary.FLOAT() != null) {
+                return "D";
+            } else if (primary.TRUE() != null || primary.FALSE() != null) {
+                return "Z";
+            } else if (primary.STRING() != null) {
+                return STRING_DESCRIPTOR;
+            } else if (primary.IDENTIFIER() != null) {
+                Local local = lookup(primary.IDENTIFIER().getText());
+                return local != null ? local.type : null;
+            } else if (primary.expression() != null) {
+                return inferType(primary.expression());
+            } else if (primary.structInitializer() != null) {
+                StructInfo struct = structs.get(primary.structInitializer().IDENTIFIER().getText());
+                return struct != null ? struct.descriptor() : null;
+            } else if (primary.enumVariantAccess() != null) {
+                return "I";
+            }
+            return null;
+        }
+        if (ctx.matchExpression() != null) {
+            return inferType(ctx.matchExpression());
+        }
+        if (ctx.getChildCount() == 3 && ctx.getChild(1).getText().equals(".")) {
+            StructInfo struct = structForDescriptor(inferType(ctx.expression(0)));
+            return struct != null ? struct.fields.get(ctx.IDENTIFIER().getText()) : null;
+        }
+        if (ctx.getChildCount() >= 3 && ctx.getChild(1).getText().equals("(")) {
+            LocusParser.ExpressionContext callee = ctx.expression(0);
+            if (callee.getChildCount() == 3 && callee.getChild(1).getText().equals(".")) {
+                return callee.IDENTIFIER().getText().equals("len") ? "I" : "V";
+            }
+            FunctionInfo function = functions.get(callee.getText());
+            return function != null ? function.returnType : null;
+        }
+        if (ctx.getChildCount() == 4 && ctx.getChild(1).getText().equals("[")) {
+            String array = inferType(ctx.expression(0));
+            return array != null && isArray(array) ? elementDescriptor(array) : null;
+        }
+        if (ctx.getChildCount() == 2) {
+            if (ctx.getChild(0).getText().equals("!")) {
+                return "Z";
+            }
+            String type = inferType(ctx.expression(0));
+            return type != null && isIntLike(type) ? "I" : type;
+        }
+        if (ctx.expression().size() == 2) {
+            String op = ctx.getChild(1).getText();
+            if (isComparison(op) || op.equals("&&") || op.equals("||")) {
+                return "Z";
+            }
+            if (op.equals("=")) {
+                return inferType(ctx.expression(0));
+            }
+            String left = inferType(ctx.expression(0));
+            String right = inferType(ctx.expression(1));
+            if (op.equals("+") && (STRING_DESCRIPTOR.equals(left) || STRING_DESCRIPTOR.equals(right))) {
+                return STRING_DESCRIPTOR;
+            }
+            return promote(left, right);
+        }
+        return null;
+    }
+
+    private String inferType(LocusParser.MatchExpressionContext ctx) {
+        // Arms may refer to pattern bindings that are not in scope yet; take the first arm we can type
+        for (LocusParser.MatchExpressionArmContext arm : ctx.matchExpressionArm()) {
+            String type = inferType(arm.expression());
+            if (type != null) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /** Binary numeric promotion: double > float > long > int. */
+    private static String promote(String left, String right) {
+        if (left == null || right == null || !isNumeric(left) || !isNumeric(right)) {
+            return left != null && left.equals(right) ? left : null;
+        }
+        for (String type : new String[] {"D", "F", "J"}) {
+            if (left.equals(type) || right.equals(type)) {
+                return type;
+            }
+        }
+        return left.equals("Z") && right.equals("Z") ? "Z" : "I";
+    }
+
+    private static boolean isIntLike(String type) {
+        return type.equals("I") || type.equals("Z");
+    }
+
+    private static boolean isNumeric(String type) {
+        return isIntLike(type) || type.equals("J") || type.equals("F") || type.equals("D");
+    }
+
+    private void coerce(ParserRuleContext ctx, String from, String to) {
+        if (from.equals(to) || (isIntLike(from) && isIntLike(to))) {
+            return;
+        }
+        if (isArray(from) || isArray(to)) {
+            error(ctx, "Type mismatch: expected " + to + " but found " + from);
+            code.pop(from);
+            pushDefault(to);
+            return;
+        }
+        if (isNumeric(from) && isNumeric(to)) {
+            String source = isIntLike(from) ? "I" : from;
+            String target = isIntLike(to) ? "I" : to;
+            int[][] conversions = {
+                // to:  I                          J                          F                          D
+                {0,                          LocusClassFileWriter.I2L, LocusClassFileWriter.I2F, LocusClassFileWriter.I2D},
+                {LocusClassFileWriter.L2I, 0,                          LocusClassFileWriter.L2F, LocusClassFileWriter.L2D},
+                {LocusClassFileWriter.F2I, LocusClassFileWriter.F2L, 0,                          LocusClassFileWriter.F2D},
+                {LocusClassFileWriter.D2I, LocusClassFileWriter.D2L, LocusClassFileWriter.D2F, 0}
+            };
+            int opcode = conversions[LocusClassFileWriter.typeOffset(source)][LocusClassFileWriter.typeOffset(target)];
+            code.op(opcode, LocusClassFileWriter.slotSize(target) - LocusClassFileWriter.slotSize(source));
+            return;
+        }
+        if (from.startsWith("L") && to.startsWith("L") && !structs.isEmpty()
+            && (structForDescriptor(from) != null || structForDescriptor(to) != null)) {
+            error(ctx, "Type mismatch: expected " + to + " but found " + from);
+            return;
+        }
+        if (!(from.startsWith("L") && to.startsWith("L"))) {
+            error(ctx, "Type mismatch: expected " + to + " but found " + from);
+            code.pop(from);
+            pushDefault(to);
+        }
+    }
+
+    private void pushDefault(String type) {
+        switch (type.charAt(0)) {
+            case 'J': code.lconst(0); break;
+            case 'F': code.op(LocusClassFileWriter.FCONST_0, 1); break;
+            case 'D': code.dconst(0.0); break;
+            case 'L':
+            case '[': code.op(LocusClassFileWriter.ACONST_NULL, 1); break;
+            case 'V': break;
+            default: code.iconst(0);
+        }
+    }
+
+    private StructInfo structForDescriptor(String descriptor) {
+        if (descriptor == null) {
+            return null;
+        }
+        for (StructInfo struct : structs.values()) {
+            if (struct.descriptor().equals(descriptor)) {
+                return struct;
+            }
+        }
+        return null;
+    }
+
+    private Integer enumTag(ParserRuleContext ctx, String enumName, String variant) {
+        Map<String, Integer> tags = enumTags.get(enumName);
+        Integer tag = tags != null ? tags.get(variant) : null;
+        if (tag == null) {
+            error(ctx, "Unknown enum variant: " + enumName + "::" + variant);
+        }
+        return tag;
+    }
+
+    private Local lookup(String name) {
+        for (Map<String, Local> scope : scopes) {
+            Local local = scope.get(name);
+            if (local != null) {
+                return local;
+            }
+        }
+        return null;
+    }
+
+    private static String unescape(String literal) {
+        String body = literal.substring(1, literal.length() - 1);
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == '\\' && i + 1 < body.length()) {
+                char next = body.charAt(++i);
+                switch (next) {
+                    case 'n': result.append('\n'); break;
+                    case 't': result.append('\t'); break;
+                    case 'r': result.append('\r'); break;
+                    case '0': result.append('\0'); break;
+                    default: result.append(next);
+                }
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private void error(ParserRuleContext ctx, String message) {
+        errors.add("line " + ctx.getStart().getLine() + ": " + message);
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /** Writes the program class and one class per struct into the given directory. */
+    public List<String> writeClassFiles(String directory) throws IOException {
+        List<String> written = new ArrayList<>();
+        List<LocusClassFileWriter> classes = new ArrayList<>(structClasses);
+        classes.add(0, mainClass);
+        for (LocusClassFileWriter classFile : classes) {
+            File file = new File(directory, classFile.getClassName() + ".class");
+            classFile.writeToFile(file.getPath());
+            written.add(file.getPath());
+        }
+        return written;
+    }
+}
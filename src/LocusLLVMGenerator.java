@@ -1,5 +1,7 @@
 import java.util.*;
 import java.io.*;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
 
 public class LocusLLVMGenerator extends LocusBaseListener {
     private StringBuilder llvmIR = new StringBuilder();
@@ -11,6 +13,65 @@ public class LocusLLVMGenerator extends LocusBaseListener {
     private String currentFunction = "";
     private boolean inMainFunction = false;
     
+    // Enum variants are i32 tags in declaration order, as on the other backends
+    private Map<String, Map<String, Integer>> enumTags = new HashMap<>();
+    
+    // Allocas are emitted at the top of the entry block so mem2reg can promote them
+    private int allocaInsertPos = 0;
+    
+    // While loops being emitted, innermost last
+    private Deque<LoopContext> loopStack = new ArrayDeque<>();
+    // Expressions replaced by a value computed in a loop preheader
+    private Map<LocusParser.ExpressionContext, LoopValue> loopValues = new IdentityHashMap<>();
+    // Induction variable updates that must also step strength-reduced values: {alloca, increment}
+    private Map<LocusParser.ExpressionContext, List<String[]>> inductionUpdates = new IdentityHashMap<>();
+    // par regions being outlined, innermost first, and the finished outlined functions
+    private Deque<ParallelRegion> parallelStack = new ArrayDeque<>();
+    private StringBuilder outlinedFunctions = new StringBuilder();
+    
+    // Strings are 24-byte values managed by runtime/locus_runtime.c; a String
+    // expression evaluates to a pointer to one. Literals of up to 23 bytes are
+    // pooled as ready-made inline images, longer ones as static descriptors.
+    private static final String STRING = "%locus.string";
+    private static final int INLINE_CAPACITY = 23;
+    private Map<String, String[]> stringLiterals = new HashMap<>(); // text -> {value, bytes}
+    private StringBuilder literalPool = new StringBuilder();
+    // String slots of the function being emitted: each holds one reference, released on return
+    private List<String> stringLocals = new ArrayList<>();
+    // Arm labels of enclosing match statements whose tests were all emitted up front
+    // (String subjects, or arms reordered by a profile); empty otherwise
+    private Deque<List<String>> dispatchedMatchArms = new ArrayDeque<>();
+    
+    // Arrays are contiguous and unboxed: [N x T] in place, or a Vec<T> header
+    // {data, length, capacity} whose buffer runtime/locus_runtime.c grows.
+    // Array variables evaluate to a pointer to their storage.
+    private static final String VEC = "%locus.vec";
+    private Map<String, String> elementTypes = new HashMap<>(); // symbol key -> element type
+    // Subscripts a while condition or par range proves in bounds
+    private Set<LocusParser.ExpressionContext> uncheckedSubscripts = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Vec buffers and lengths loaded once in a loop preheader: symbol key -> {data, length}
+    private Map<String, String[]> arrayViews = new HashMap<>();
+    // Vec headers of the function being emitted, whose buffers are freed on return
+    private List<String> vecLocals = new ArrayList<>();
+    
+    // Profile-guided optimization: --instrument inserts counters keyed by source
+    // position, --profile reads their counts back as branch weights
+    private boolean instrumented = false;
+    private LocusProfile profile = null;
+    private List<String> counterKeys = new ArrayList<>();
+    private String profileFunction = "";
+    private boolean concurrentCounters = false;
+    
+    // Declared function signatures, so calls can pass and return non-i32 values
+    private Map<String, LocusParser.FunctionDeclarationContext> functions = new HashMap<>();
+    private String currentReturnType = "void";
+    // Runtime and libc functions used by the program, declared after the header
+    private Set<String> runtimeDeclarations = new LinkedHashSet<>();
+    
+    // Metadata nodes, emitted after the last function
+    private List<String> metadata = new ArrayList<>();
+    private Map<String, Integer> metadataIds = new HashMap<>();
+    
     // Type mappings from Locus to LLVM
     private Map<String, String> typeMapping = new HashMap<>();
     
@@ -19,6 +80,16 @@ public class LocusLLVMGenerator extends LocusBaseListener {
         generateHeader();
     }
     
+    /** Counts function entries and branch edges, dumped by the runtime at exit. */
+    public void setInstrumented(boolean instrumented) {
+        this.instrumented = instrumented;
+    }
+    
+    /** Counts from an instrumented run, used to weight branches and order match arms. */
+    public void setProfile(LocusProfile profile) {
+        this.profile = profile;
+    }
+    
     private void initializeTypeMapping() {
         typeMapping.put("i32", "i32");
         typeMapping.put("i64", "i64");
@@ -26,6 +97,7 @@ public class LocusLLVMGenerator extends LocusBaseListener {
         typeMapping.put("f64", "double");
         typeMapping.put("bool", "i1");
         typeMapping.put("void", "void");
+        typeMapping.put("String", STRING);
     }
     
     private void generateHeader() {
@@ -40,10 +112,41 @@ public class LocusLLVMGenerator extends LocusBaseListener {
         llvmIR.append("declare void @free(i8*)\n\n");
     }
     
+    @Override
+    public void enterProgram(LocusParser.ProgramContext ctx) {
+        // Calls may precede the callee's definition
+        for (LocusParser.StatementContext statement : ctx.statement()) {
+            if (statement.functionDeclaration() != null) {
+                functions.put(statement.functionDeclaration().IDENTIFIER().getText(), statement.functionDeclaration());
+            } else if (statement.enumDeclaration() != null) {
+                Map<String, Integer> tags = new HashMap<>();
+                for (LocusParser.EnumVariantContext variant : statement.enumDeclaration().enumVariant()) {
+                    tags.put(variant.IDENTIFIER().getText(), tags.size());
+                }
+                enumTags.put(statement.enumDeclaration().IDENTIFIER().getText(), tags);
+            }
+        }
+        // Any function may then run on several threads at once
+        concurrentCounters = containsParallel(ctx);
+    }
+    
+    private static boolean containsParallel(ParseTree node) {
+        if (node instanceof LocusParser.ParallelStatementContext) {
+            return true;
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            if (containsParallel(node.getChild(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     @Override
     public void enterFunctionDeclaration(LocusParser.FunctionDeclarationContext ctx) {
         String functionName = ctx.IDENTIFIER().getText();
         currentFunction = functionName;
+        profileFunction = functionName;
         inMainFunction = functionName.equals("main");
         
         // Get return type
@@ -51,6 +154,10 @@ public class LocusLLVMGenerator extends LocusBaseListener {
         if (ctx.type() != null) {
             returnType = getLLVMType(getTypeString(ctx.type()));
         }
+        currentReturnType = returnType;
+        elementTypes.clear();
+        vecLocals.clear();
+        stringLocals.clear();
         
         // Start function declaration
         llvmIR.append("define ").append(returnType).append(" @").append(functionName).append("(");
@@ -63,40 +170,85 @@ public class LocusLLVMGenerator extends LocusBaseListener {
             for (int i = 0; i < params.size(); i++) {
                 if (i > 0) llvmIR.append(", ");
                 LocusParser.ParameterContext param = params.get(i);
-                String paramType = getLLVMType(getTypeString(param.type()));
+                String paramType = getParameterType(param.type());
                 String paramName = param.IDENTIFIER().getText();
                 llvmIR.append(paramType).append(" %").append(paramName);
                 
                 // Add to symbol table with current scope
                 symbolTable.put(paramName + "_" + currentScope, "%" + paramName);
                 typeTable.put(paramName + "_" + currentScope, paramType);
+                if (isArrayType(getTypeString(param.type()))) {
+                    elementTypes.put(paramName + "_" + currentScope, getLLVMType(elementTypeOf(getTypeString(param.type()))));
+                }
             }
         }
         
-        llvmIR.append(") {\n");
+        llvmIR.append(")");
+        long calls = profile != null ? profile.count(functionName) : -1;
+        if (calls == 0 && !inMainFunction) {
+            // Never called in the training runs: optimize for size, lay out out of line
+            llvmIR.append(" cold");
+        }
+        if (calls >= 0) {
+            llvmIR.append(" !prof ").append(metadataNode("!{!\"function_entry_count\", i64 " + calls + "}"));
+        }
+        llvmIR.append(" {\n");
         llvmIR.append("entry:\n");
+        allocaInsertPos = llvmIR.length();
+        emitCounter(functionName);
     }
     
     @Override
     public void exitFunctionDeclaration(LocusParser.FunctionDeclarationContext ctx) {
+        if (currentReturnType.equals("void") && !endsWithTerminator()) {
+            emitLocalFrees();
+            llvmIR.append("  ret void\n");
+        } else if (!endsWithTerminator()) {
+            // Falling off the end returns the zero value, as on the other backends
+            String type = currentReturnType;
+            emitLocalFrees();
+            llvmIR.append("  ret ").append(type).append(" ")
+                  .append(type.startsWith("i") ? "0" : type.equals("double") || type.equals("float") ? "0.0" : "zeroinitializer")
+                  .append("\n");
+        }
         llvmIR.append("}\n\n");
+        llvmIR.append(outlinedFunctions);
+        outlinedFunctions.setLength(0);
         
         currentScope--;
         currentFunction = "";
+        currentReturnType = "void";
         inMainFunction = false;
     }
     
+    private boolean endsWithTerminator() {
+        String ir = llvmIR.toString().trim();
+        String lastLine = ir.substring(ir.lastIndexOf('\n') + 1).trim();
+        return lastLine.startsWith("ret ") || lastLine.startsWith("br ") || lastLine.equals("unreachable");
+    }
+    
     @Override
     public void enterVariableDeclaration(LocusParser.VariableDeclarationContext ctx) {
         String varName = ctx.IDENTIFIER().getText();
+        if (isArrayType(getTypeString(ctx.type()))) {
+            declareArray(ctx);
+            return;
+        }
         String varType = getLLVMType(getTypeString(ctx.type()));
         
         // Allocate space for the variable
         String allocaName = "%" + varName + "_" + tempCounter++;
-        llvmIR.append("  ").append(allocaName).append(" = alloca ").append(varType).append("\n");
+        if (varType.equals(STRING)) {
+            emitStringSlot(allocaName);
+        } else {
+            emitAlloca(allocaName, varType);
+        }
         
         // Store initial value if provided
-        if (ctx.expression() != null) {
+        if (varType.equals(STRING)) {
+            String value = ctx.expression() != null ? generateExpression(ctx.expression()) : internString("\"\"")[0];
+            emitStringCopy(value, allocaName);
+        } else if (ctx.expression() != null) {
             String value = generateExpression(ctx.expression());
             llvmIR.append("  store ").append(varType).append(" ").append(value)
                   .append(", ").append(varType).append("* ").append(allocaName).append("\n");
@@ -106,23 +258,96 @@ public class LocusLLVMGenerator extends LocusBaseListener {
         String key = varName + "_" + currentScope;
         symbolTable.put(key, allocaName);
         typeTable.put(key, varType);
+        elementTypes.remove(key);
+    }
+    
+    /**
+     * Fixed-size arrays start zeroed; a Vec starts empty. A Vec header is
+     * zeroed once in the entry block, so redeclaring it in a loop reuses its buffer.
+     */
+    private void declareArray(LocusParser.VariableDeclarationContext ctx) {
+        String locusType = getTypeString(ctx.type());
+        String type = getLLVMType(locusType);
+        String element = getLLVMType(elementTypeOf(locusType));
+        String allocaName = "%" + ctx.IDENTIFIER().getText() + "_" + tempCounter++;
+        emitAlloca(allocaName, type);
+        
+        List<LocusParser.ExpressionContext> values = new ArrayList<>();
+        if (ctx.expression() != null && ctx.expression().primary() != null
+            && ctx.expression().primary().arrayLiteral() != null) {
+            values = ctx.expression().primary().arrayLiteral().expression();
+        }
+        if (type.equals(VEC)) {
+            String zero = "  store " + VEC + " zeroinitializer, " + VEC + "* " + allocaName + "\n";
+            llvmIR.insert(allocaInsertPos, zero);
+            allocaInsertPos += zero.length();
+            vecLocals.add(allocaName);
+            llvmIR.append("  ").append("%temp_").append(tempCounter).append(" = getelementptr ").append(VEC)
+                  .append(", ").append(VEC).append("* ").append(allocaName).append(", i32 0, i32 1\n");
+            llvmIR.append("  store i32 0, i32* %temp_").append(tempCounter++).append("\n");
+            for (LocusParser.ExpressionContext value : values) {
+                emitPush(allocaName, element, generateExpression(value));
+            }
+        } else {
+            llvmIR.append("  store ").append(type).append(" zeroinitializer, ").append(type).append("* ")
+                  .append(allocaName).append("\n");
+            long length = fixedLengthOf(type);
+            for (int i = 0; i < values.size() && i < length; i++) {
+                String value = generateExpression(values.get(i));
+                String slot = "%temp_" + tempCounter++;
+                llvmIR.append("  ").append(slot).append(" = getelementptr inbounds ").append(type).append(", ")
+                      .append(type).append("* ").append(allocaName).append(", i64 0, i64 ").append(i).append("\n");
+                llvmIR.append("  store ").append(element).append(" ").append(value).append(", ")
+                      .append(element).append("* ").append(slot).append("\n");
+            }
+        }
+        
+        String key = ctx.IDENTIFIER().getText() + "_" + currentScope;
+        symbolTable.put(key, allocaName);
+        typeTable.put(key, type);
+        elementTypes.put(key, element);
     }
     
     @Override
     public void enterReturnStatement(LocusParser.ReturnStatementContext ctx) {
         if (ctx.expression() != null) {
-            String value = generateExpression(ctx.expression());
-            String returnType = "i32"; // Default for now
-            if (currentFunction.equals("main")) {
-                returnType = "i32";
-            }
-            llvmIR.append("  ret ").append(returnType).append(" ").append(value).append("\n");
+            emitReturn(generateExpression(ctx.expression()));
         } else {
+            emitLocalFrees();
             llvmIR.append("  ret void\n");
         }
     }
     
+    private void emitReturn(String value) {
+        if (currentReturnType.equals(STRING)) {
+            // Strings are returned by value with a reference of their own; the callee's slots are released
+            String loaded = "%temp_" + tempCounter++;
+            llvmIR.append("  ").append(loaded).append(" = load ").append(STRING).append(", ")
+                  .append(STRING).append("* ").append(value).append("\n");
+            if (value.startsWith("%")) {
+                emitStringCall("retain", value);
+            }
+            emitLocalFrees();
+            llvmIR.append("  ret ").append(STRING).append(" ").append(loaded).append("\n");
+            return;
+        }
+        emitLocalFrees();
+        String returnType = "i32"; // Default for now
+        llvmIR.append("  ret ").append(returnType).append(" ").append(value).append("\n");
+    }
+    
+    private void emitAlloca(String allocaName, String type) {
+        String line = "  " + allocaName + " = alloca " + type + "\n";
+        llvmIR.insert(allocaInsertPos, line);
+        allocaInsertPos += line.length();
+    }
+    
     private String generateExpression(LocusParser.ExpressionContext ctx) {
+        LoopValue loopValue = loopValues.get(ctx);
+        if (loopValue != null) {
+            return loopValue.use();
+        }
+        
         if (ctx.primary() != null) {
             return generatePrimary(ctx.primary());
         } else if (ctx.matchExpression() != null) {
@@ -135,17 +360,39 @@ public class LocusLLVMGenerator extends LocusBaseListener {
                 String varName = ctx.expression(0).getText();
                 String value = generateExpression(ctx.expression(1));
                 
+                if (isSubscript(ctx.expression(0))) {
+                    String[] element = generateElementPointer(ctx.expression(0));
+                    if (element != null) {
+                        llvmIR.append("  store ").append(element[1]).append(" ").append(value).append(", ")
+                              .append(element[1]).append("* ").append(element[0]).append("\n");
+                    }
+                    return value;
+                }
+                
                 // Find variable in symbol table
                 String key = varName + "_" + currentScope;
                 String allocaName = symbolTable.get(key);
                 String varType = typeTable.get(key);
                 
-                if (allocaName != null && varType != null) {
+                if (allocaName != null && STRING.equals(varType)) {
+                    emitStringCopy(value, allocaName);
+                } else if (allocaName != null && varType != null) {
                     llvmIR.append("  store ").append(varType).append(" ").append(value)
                           .append(", ").append(varType).append("* ").append(allocaName).append("\n");
                 }
                 
+                // Step the strength-reduced multiples of this induction variable
+                for (String[] update : inductionUpdates.getOrDefault(ctx, Collections.emptyList())) {
+                    String current = "%temp_" + tempCounter++;
+                    llvmIR.append("  ").append(current).append(" = load i32, i32* ").append(update[0]).append("\n");
+                    String stepped = generateBinaryOp(current, update[1], "+");
+                    llvmIR.append("  store i32 ").append(stepped).append(", i32* ").append(update[0]).append("\n");
+                }
+                
                 return value; // Return the assigned value
+            } else if ((op.equals("+") && (isStringExpression(ctx.expression(0)) || isStringExpression(ctx.expression(1))))
+                       || ((op.equals("==") || op.equals("!=")) && isStringExpression(ctx.expression(0)))) {
+                return generateStringOp(ctx, op);
             } else {
                 // Binary operation
                 String left = generateExpression(ctx.expression(0));
@@ -153,19 +400,225 @@ public class LocusLLVMGenerator extends LocusBaseListener {
                 return generateBinaryOp(left, right, op);
             }
         } else if (ctx.getChildCount() >= 3 && ctx.getChild(1).getText().equals("(")) {
+            LocusParser.ExpressionContext callee = ctx.expression(0);
+            if (callee.getChildCount() == 3 && callee.getChild(1).getText().equals(".")) {
+                return generateArrayMethod(ctx);
+            }
             // Function call (with or without arguments)
-            String functionName = ctx.expression(0).getText();
+            String functionName = callee.getText();
             return generateFunctionCall(functionName, ctx.argumentList());
+        } else if (isSubscript(ctx)) {
+            String[] element = generateElementPointer(ctx);
+            if (element == null) {
+                return "0";
+            }
+            String loaded = "%temp_" + tempCounter++;
+            llvmIR.append("  ").append(loaded).append(" = load ").append(element[1]).append(", ")
+                  .append(element[1]).append("* ").append(element[0]).append("\n");
+            return loaded;
         }
         
         return "0"; // Default
     }
     
+    private static boolean isSubscript(LocusParser.ExpressionContext ctx) {
+        return ctx.getChildCount() == 4 && ctx.getChild(1).getText().equals("[");
+    }
+    
+    /**
+     * Returns {pointer, element type} for `a[i]`. The index is checked against
+     * the length unless a loop proved it in range or both are constants.
+     */
+    private String[] generateElementPointer(LocusParser.ExpressionContext ctx) {
+        String key = arrayKey(ctx.expression(0));
+        if (key == null) {
+            return null;
+        }
+        String element = elementTypes.get(key);
+        String index = generateExpression(ctx.expression(1));
+        String[] view = arrayView(key);
+        boolean constant = index.matches("\\d+") && view[1].matches("\\d+")
+            && Long.parseLong(index) < Long.parseLong(view[1]);
+        if (!constant && !uncheckedSubscripts.contains(ctx)) {
+            emitBoundsCheck(index, view[1]);
+        }
+        String wide = "%temp_" + tempCounter++;
+        String pointer = "%temp_" + tempCounter++;
+        llvmIR.append("  ").append(wide).append(" = sext i32 ").append(index).append(" to i64\n");
+        llvmIR.append("  ").append(pointer).append(" = getelementptr inbounds ").append(element).append(", ")
+              .append(element).append("* ").append(view[0]).append(", i64 ").append(wide).append("\n");
+        return new String[] {pointer, element};
+    }
+    
+    /** Exits through the runtime unless 0 <= index < length; the unsigned compare covers both ends. */
+    private void emitBoundsCheck(String index, String length) {
+        requireRuntime("declare void @locus_bounds_fail(i32, i32) noreturn cold");
+        String inBounds = "%temp_" + tempCounter++;
+        String okLabel = "bounds_ok_" + labelCounter++;
+        String failLabel = "bounds_fail_" + labelCounter++;
+        llvmIR.append("  ").append(inBounds).append(" = icmp ult i32 ").append(index).append(", ").append(length).append("\n");
+        llvmIR.append("  br i1 ").append(inBounds).append(", label %").append(okLabel)
+              .append(", label %").append(failLabel).append("\n\n");
+        llvmIR.append(failLabel).append(":\n");
+        llvmIR.append("  call void @locus_bounds_fail(i32 ").append(index).append(", i32 ").append(length).append(")\n");
+        llvmIR.append("  unreachable\n\n");
+        llvmIR.append(okLabel).append(":\n");
+    }
+    
+    /** `a.len()` and `v.push(x)`. */
+    private String generateArrayMethod(LocusParser.ExpressionContext ctx) {
+        LocusParser.ExpressionContext callee = ctx.expression(0);
+        String key = arrayKey(callee.expression(0));
+        String method = callee.IDENTIFIER().getText();
+        if (key == null) {
+            return "0";
+        }
+        if (method.equals("len")) {
+            String type = typeTable.get(key);
+            return type.startsWith(VEC) ? arrayView(key)[1] : String.valueOf(fixedLengthOf(type));
+        }
+        if (method.equals("push") && typeTable.get(key).startsWith(VEC) && ctx.argumentList() != null) {
+            String value = generateExpression(ctx.argumentList().expression(0));
+            emitPush(arrayAddress(key), elementTypes.get(key), value);
+        }
+        return "0";
+    }
+    
+    /** Appends to a Vec, growing its buffer through the runtime when it is full. */
+    private void emitPush(String vec, String element, String value) {
+        requireRuntime("declare void @locus_vec_grow(" + VEC + "*, i64)");
+        String lengthSlot = "%temp_" + tempCounter++;
+        String length = "%temp_" + tempCounter++;
+        String capacitySlot = "%temp_" + tempCounter++;
+        String capacity = "%temp_" + tempCounter++;
+        String full = "%temp_" + tempCounter++;
+        String growLabel = "vec_grow_" + labelCounter++;
+        String storeLabel = "vec_push_" + labelCounter++;
+        llvmIR.append("  ").append(lengthSlot).append(" = getelementptr ").append(VEC).append(", ").append(VEC)
+              .append("* ").append(vec).append(", i32 0, i32 1\n");
+        llvmIR.append("  ").append(length).append(" = load i32, i32* ").append(lengthSlot).append("\n");
+        llvmIR.append("  ").append(capacitySlot).append(" = getelementptr ").append(VEC).append(", ").append(VEC)
+              .append("* ").append(vec).append(", i32 0, i32 2\n");
+        llvmIR.append("  ").append(capacity).append(" = load i32, i32* ").append(capacitySlot).append("\n");
+        llvmIR.append("  ").append(full).append(" = icmp eq i32 ").append(length).append(", ").append(capacity).append("\n");
+        llvmIR.append("  br i1 ").append(full).append(", label %").append(growLabel)
+              .append(", label %").append(storeLabel).append("\n\n");
+        llvmIR.append(growLabel).append(":\n");
+        llvmIR.append("  call void @locus_vec_grow(").append(VEC).append("* ").append(vec).append(", i64 ptrtoint (")
+              .append(element).append("* getelementptr (").append(element).append(", ").append(element)
+              .append("* null, i32 1) to i64))\n");
+        llvmIR.append("  br label %").append(storeLabel).append("\n\n");
+        llvmIR.append(storeLabel).append(":\n");
+        
+        String data = loadVecData(vec, element);
+        String wide = "%temp_" + tempCounter++;
+        String slot = "%temp_" + tempCounter++;
+        String next = "%temp_" + tempCounter++;
+        llvmIR.append("  ").append(wide).append(" = zext i32 ").append(length).append(" to i64\n");
+        llvmIR.append("  ").append(slot).append(" = getelementptr inbounds ").append(element).append(", ")
+              .append(element).append("* ").append(data).append(", i64 ").append(wide).append("\n");
+        llvmIR.append("  store ").append(element).append(" ").append(value).append(", ")
+              .append(element).append("* ").append(slot).append("\n");
+        llvmIR.append("  ").append(next).append(" = add i32 ").append(length).append(", 1\n");
+        llvmIR.append("  store i32 ").append(next).append(", i32* ").append(lengthSlot).append("\n");
+    }
+    
+    private String loadVecData(String vec, String element) {
+        String dataSlot = "%temp_" + tempCounter++;
+        String raw = "%temp_" + tempCounter++;
+        String data = "%temp_" + tempCounter++;
+        llvmIR.append("  ").append(dataSlot).append(" = getelementptr ").append(VEC).append(", ").append(VEC)
+              .append("* ").append(vec).append(", i32 0, i32 0\n");
+        llvmIR.append("  ").append(raw).append(" = load i8*, i8** ").append(dataSlot).append("\n");
+        llvmIR.append("  ").append(data).append(" = bitcast i8* ").append(raw).append(" to ").append(element).append("*\n");
+        return data;
+    }
+    
+    /** {pointer to the first element, length} of an array, reusing values hoisted by an enclosing loop. */
+    private String[] arrayView(String key) {
+        String[] hoisted = arrayViews.get(key);
+        if (hoisted != null) {
+            return hoisted;
+        }
+        String type = typeTable.get(key);
+        String element = elementTypes.get(key);
+        String address = arrayAddress(key);
+        if (!type.startsWith(VEC)) {
+            String fixed = type.endsWith("*") ? type.substring(0, type.length() - 1) : type;
+            String first = "%temp_" + tempCounter++;
+            llvmIR.append("  ").append(first).append(" = getelementptr inbounds ").append(fixed).append(", ")
+                  .append(fixed).append("* ").append(address).append(", i64 0, i64 0\n");
+            return new String[] {first, String.valueOf(fixedLengthOf(fixed))};
+        }
+        String data = loadVecData(address, element);
+        String lengthSlot = "%temp_" + tempCounter++;
+        String length = "%temp_" + tempCounter++;
+        llvmIR.append("  ").append(lengthSlot).append(" = getelementptr ").append(VEC).append(", ").append(VEC)
+              .append("* ").append(address).append(", i32 0, i32 1\n");
+        llvmIR.append("  ").append(length).append(" = load i32, i32* ").append(lengthSlot).append("\n");
+        return new String[] {data, length};
+    }
+    
+    /** Address of an array's storage; parameters hold it directly, spilled or captured ones in a slot. */
+    private String arrayAddress(String key) {
+        String address = symbolTable.get(key);
+        String type = typeTable.get(key);
+        if (!type.endsWith("*") || (address.startsWith("%") && !address.contains("_"))) {
+            return address;
+        }
+        String loaded = "%temp_" + tempCounter++;
+        llvmIR.append("  ").append(loaded).append(" = load ").append(type).append(", ")
+              .append(type).append("* ").append(address).append("\n");
+        return loaded;
+    }
+    
+    /** Symbol table key of the array variable an expression names, or null. */
+    private String arrayKey(LocusParser.ExpressionContext ctx) {
+        while (ctx.primary() != null && ctx.primary().expression() != null) {
+            ctx = ctx.primary().expression();
+        }
+        if (ctx.primary() == null || ctx.primary().IDENTIFIER() == null) {
+            return null;
+        }
+        String key = resolveVariable(ctx.primary().IDENTIFIER().getText());
+        return key != null && elementTypes.containsKey(key) ? key : null;
+    }
+    
+    /** Length of a fixed-size array variable, or null; used by the loop analysis. */
+    private Long fixedLength(String name) {
+        String key = resolveVariable(name);
+        if (key == null || !elementTypes.containsKey(key) || typeTable.get(key).startsWith(VEC)) {
+            return null;
+        }
+        return fixedLengthOf(typeTable.get(key));
+    }
+    
+    private static long fixedLengthOf(String llvmType) {
+        return Long.parseLong(llvmType.substring(1, llvmType.indexOf(' ')));
+    }
+    
+    /** Frees the function's Vec buffers and releases its String slots, before each return. */
+    private void emitLocalFrees() {
+        for (String slot : stringLocals) {
+            emitStringCall("release", slot);
+        }
+        for (String vec : vecLocals) {
+            String dataSlot = "%temp_" + tempCounter++;
+            String raw = "%temp_" + tempCounter++;
+            llvmIR.append("  ").append(dataSlot).append(" = getelementptr ").append(VEC).append(", ").append(VEC)
+                  .append("* ").append(vec).append(", i32 0, i32 0\n");
+            llvmIR.append("  ").append(raw).append(" = load i8*, i8** ").append(dataSlot).append("\n");
+            llvmIR.append("  call void @free(i8* ").append(raw).append(")\n");
+        }
+    }
+    
     private String generatePrimary(LocusParser.PrimaryContext ctx) {
         if (ctx.INTEGER() != null) {
             return ctx.INTEGER().getText();
         } else if (ctx.FLOAT() != null) {
             return ctx.FLOAT().getText();
+        } else if (ctx.STRING() != null) {
+            return internString(ctx.STRING().getText())[0];
         } else if (ctx.TRUE() != null) {
             return "1";
         } else if (ctx.FALSE() != null) {
@@ -189,6 +642,10 @@ public class LocusLLVMGenerator extends LocusBaseListener {
                 if (allocaName.startsWith("%") && !allocaName.contains("_")) {
                     return allocaName;
                 }
+                // String and array locals are used in place
+                if (varType.equals(STRING) || varType.equals(VEC) || varType.matches("\\[.*\\]")) {
+                    return allocaName;
+                }
                 // Otherwise, load from alloca
                 String loadName = "%temp_" + tempCounter++;
                 llvmIR.append("  ").append(loadName).append(" = load ").append(varType)
@@ -208,26 +665,464 @@ public class LocusLLVMGenerator extends LocusBaseListener {
     }
     
     private String generateFunctionCall(String functionName, LocusParser.ArgumentListContext argList) {
-        String resultName = "%temp_" + tempCounter++;
-        StringBuilder call = new StringBuilder();
-        
-        call.append("  ").append(resultName).append(" = call i32 @").append(functionName).append("(");
+        // Undeclared callees keep the i32 convention
+        LocusParser.FunctionDeclarationContext callee = functions.get(functionName);
+        String returnType = "i32";
+        List<LocusParser.ParameterContext> params = new ArrayList<>();
+        if (callee != null) {
+            returnType = callee.type() != null ? getLLVMType(getTypeString(callee.type())) : "void";
+            if (callee.parameterList() != null) {
+                params = callee.parameterList().parameter();
+            }
+        }
         
+        StringBuilder call = new StringBuilder();
         if (argList != null && argList.expression() != null) {
             List<LocusParser.ExpressionContext> args = argList.expression();
             for (int i = 0; i < args.size(); i++) {
                 if (i > 0) call.append(", ");
                 String argValue = generateExpression(args.get(i));
-                call.append("i32 ").append(argValue);
+                String argType = i < params.size() ? getParameterType(params.get(i).type()) : "i32";
+                call.append(argType).append(" ").append(argValue);
             }
         }
         
-        call.append(")\n");
-        llvmIR.append(call.toString());
-        
+        if (returnType.equals("void")) {
+            llvmIR.append("  call void @").append(functionName).append("(").append(call).append(")\n");
+            return "0";
+        }
+        String resultName = "%temp_" + tempCounter++;
+        llvmIR.append("  ").append(resultName).append(" = call ").append(returnType).append(" @")
+              .append(functionName).append("(").append(call).append(")\n");
+        if (returnType.equals(STRING)) {
+            // Give the returned value a slot, like every other String expression
+            String slot = "%str_" + tempCounter++;
+            emitStringSlot(slot);
+            emitStringCall("release", slot);
+            llvmIR.append("  store ").append(STRING).append(" ").append(resultName).append(", ")
+                  .append(STRING).append("* ").append(slot).append("\n");
+            return slot;
+        }
         return resultName;
     }
     
+    private String getParameterType(LocusParser.TypeContext type) {
+        // Strings and arrays are passed by reference to the caller's storage
+        String llvmType = getLLVMType(getTypeString(type));
+        return llvmType.equals(STRING) || isArrayType(getTypeString(type)) ? llvmType + "*" : llvmType;
+    }
+    
+    /** Whether an expression has type String; decided syntactically, like the rest of this generator. */
+    private boolean isStringExpression(LocusParser.ExpressionContext ctx) {
+        if (ctx.primary() != null) {
+            LocusParser.PrimaryContext primary = ctx.primary();
+            if (primary.STRING() != null) {
+                return true;
+            }
+            if (primary.IDENTIFIER() != null) {
+                String key = resolveVariable(primary.IDENTIFIER().getText());
+                return key != null && typeTable.get(key).startsWith(STRING);
+            }
+            return primary.expression() != null && isStringExpression(primary.expression());
+        }
+        if (ctx.matchExpression() != null) {
+            List<LocusParser.MatchExpressionArmContext> arms = ctx.matchExpression().matchExpressionArm();
+            return !arms.isEmpty() && isStringExpression(arms.get(0).expression());
+        }
+        if (ctx.getChildCount() >= 3 && ctx.getChild(1).getText().equals("(")) {
+            LocusParser.FunctionDeclarationContext callee = functions.get(ctx.getChild(0).getText());
+            return callee != null && callee.type() != null && getTypeString(callee.type()).equals("String");
+        }
+        if (ctx.getChildCount() == 3 && ctx.expression().size() == 2) {
+            String op = ctx.getChild(1).getText();
+            if (op.equals("+")) {
+                return isStringExpression(ctx.expression(0)) || isStringExpression(ctx.expression(1));
+            }
+            if (op.equals("=")) {
+                return isStringExpression(ctx.expression(0));
+            }
+        }
+        return false;
+    }
+    
+    private String generateStringOp(LocusParser.ExpressionContext ctx, String op) {
+        String left = generateStringOperand(ctx.expression(0));
+        String right = generateStringOperand(ctx.expression(1));
+        if (op.equals("+")) {
+            String slot = "%str_" + tempCounter++;
+            emitStringSlot(slot);
+            emitStringCall("release", slot);
+            requireRuntime("declare void @locus_string_concat(" + STRING + "*, " + STRING + "*, " + STRING + "*)");
+            llvmIR.append("  call void @locus_string_concat(").append(STRING).append("* ").append(slot).append(", ")
+                  .append(STRING).append("* ").append(left).append(", ").append(STRING).append("* ").append(right).append(")\n");
+            return slot;
+        }
+        requireRuntime("declare i32 @locus_string_equals(" + STRING + "*, " + STRING + "*)");
+        String equal = "%temp_" + tempCounter++;
+        llvmIR.append("  ").append(equal).append(" = call i32 @locus_string_equals(").append(STRING).append("* ")
+              .append(left).append(", ").append(STRING).append("* ").append(right).append(")\n");
+        String resultName = "%temp_" + tempCounter++;
+        llvmIR.append("  ").append(resultName).append(" = icmp ").append(op.equals("==") ? "ne" : "eq")
+              .append(" i32 ").append(equal).append(", 0\n");
+        return resultName;
+    }
+    
+    /** A String operand of `+`, converting integers so that "n = " + n works. */
+    private String generateStringOperand(LocusParser.ExpressionContext ctx) {
+        String value = generateExpression(ctx);
+        if (isStringExpression(ctx)) {
+            return value;
+        }
+        String slot = "%str_" + tempCounter++;
+        emitStringSlot(slot);
+        emitStringCall("release", slot);
+        requireRuntime("declare void @locus_string_from_i32(" + STRING + "*, i32)");
+        llvmIR.append("  call void @locus_string_from_i32(").append(STRING).append("* ").append(slot)
+              .append(", i32 ").append(value).append(")\n");
+        return slot;
+    }
+    
+    /** Stores a String into a slot: the slot retains the new value and releases its old one. */
+    private void emitStringCopy(String from, String to) {
+        String loaded = "%temp_" + tempCounter++;
+        llvmIR.append("  ").append(loaded).append(" = load ").append(STRING).append(", ")
+              .append(STRING).append("* ").append(from).append("\n");
+        if (from.startsWith("%")) {
+            emitStringCall("retain", from); // Pooled literals are never freed
+        }
+        emitStringCall("release", to);
+        llvmIR.append("  store ").append(STRING).append(" ").append(loaded).append(", ")
+              .append(STRING).append("* ").append(to).append("\n");
+    }
+    
+    /**
+     * Allocates a String slot that owns its value. It starts as the empty
+     * string in the entry block, so releasing it is safe on every path.
+     */
+    private void emitStringSlot(String slot) {
+        emitAlloca(slot, STRING);
+        String empty = "%temp_" + tempCounter++;
+        String init = "  " + empty + " = load " + STRING + ", " + STRING + "* " + internString("\"\"")[0] + "\n"
+            + "  store " + STRING + " " + empty + ", " + STRING + "* " + slot + "\n";
+        llvmIR.insert(allocaInsertPos, init);
+        allocaInsertPos += init.length();
+        stringLocals.add(slot);
+    }
+    
+    private void emitStringCall(String function, String slot) {
+        requireRuntime("declare void @locus_string_" + function + "(" + STRING + "*)");
+        llvmIR.append("  call void @locus_string_").append(function).append("(").append(STRING).append("* ")
+              .append(slot).append(")\n");
+    }
+    
+    /**
+     * Interns a string literal token, returning {String pointer, pointer to its bytes}.
+     * Short literals are complete inline images (last byte 23 - length), so using one
+     * is a 24-byte copy; longer ones are heap-form descriptors with capacity 0, which
+     * the runtime never frees.
+     */
+    private String[] internString(String token) {
+        String text = literalText(token);
+        byte[] bytes = text.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+        String[] interned = stringLiterals.get(text);
+        if (interned != null) {
+            return interned;
+        }
+        String name = "@.str." + stringLiterals.size();
+        int length = bytes.length;
+        if (length <= INLINE_CAPACITY) {
+            byte[] image = Arrays.copyOf(bytes, INLINE_CAPACITY + 1);
+            image[INLINE_CAPACITY] = (byte) (INLINE_CAPACITY - length);
+            literalPool.append(name).append(" = private unnamed_addr constant { [24 x i8] } { [24 x i8] c\"")
+                       .append(encodeBytes(image)).append("\" }, align 8\n");
+            interned = new String[] {
+                "bitcast ({ [24 x i8] }* " + name + " to " + STRING + "*)",
+                "getelementptr inbounds ({ [24 x i8] }, { [24 x i8] }* " + name + ", i64 0, i32 0, i64 0)"
+            };
+        } else {
+            String array = "[" + (length + 1) + " x i8]";
+            String data = "getelementptr inbounds (" + array + ", " + array + "* " + name + ", i64 0, i64 0)";
+            literalPool.append(name).append(" = private unnamed_addr constant ").append(array).append(" c\"")
+                       .append(encodeBytes(Arrays.copyOf(bytes, length + 1))).append("\", align 1\n");
+            literalPool.append(name).append(".value = private unnamed_addr constant ").append(STRING)
+                       .append(" { i8* ").append(data).append(", i64 ").append(length)
+                       .append(", i64 ").append(Long.MIN_VALUE).append(" }, align 8\n");
+            interned = new String[] { name + ".value", data };
+        }
+        stringLiterals.put(text, interned);
+        return interned;
+    }
+    
+    /** The UTF-8 bytes of a literal token, one char per byte. */
+    private static String literalText(String token) {
+        byte[] bytes = unescape(token.substring(1, token.length() - 1)).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        return new String(bytes, java.nio.charset.StandardCharsets.ISO_8859_1);
+    }
+    
+    private static String unescape(String text) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                switch (next) {
+                    case 'n': c = '\n'; break;
+                    case 't': c = '\t'; break;
+                    case 'r': c = '\r'; break;
+                    case '0': c = '\0'; break;
+                    default: c = next; break;
+                }
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+    
+    private static String encodeBytes(byte[] bytes) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : bytes) {
+            int c = b & 0xff;
+            if (c >= 0x20 && c < 0x7f && c != '"' && c != '\\') {
+                result.append((char) c);
+            } else {
+                result.append(String.format("\\%02X", c));
+            }
+        }
+        return result.toString();
+    }
+    
+    /** FNV-1a over the UTF-8 bytes, matching locus_string_hash in the runtime. */
+    private static long stringHash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+    
+    private void requireRuntime(String declaration) {
+        runtimeDeclarations.add(declaration);
+    }
+    
+    private void emitMatchDispatch(LocusParser.ExpressionContext subjectExpression, String subject,
+                                   List<LocusParser.PatternContext> patterns, List<String> armLabels,
+                                   String noMatch, long[] counts) {
+        if (isStringExpression(subjectExpression)) {
+            emitStringDispatch(subject, patterns, armLabels, noMatch, counts);
+        } else {
+            emitProfiledDispatch(subject, patterns, armLabels, noMatch, counts);
+        }
+    }
+    
+    /**
+     * Tests the arms up front, most frequent first. Literal and variant patterns
+     * are disjoint, so arms before the first catch-all can be tested in any order;
+     * the catch-all stays last.
+     */
+    private void emitProfiledDispatch(String subject, List<LocusParser.PatternContext> patterns,
+                                      List<String> armLabels, String noMatch, long[] counts) {
+        List<Integer> order = new ArrayList<>();
+        String fallback = noMatch;
+        long remaining = 0;
+        for (int i = 0; i < patterns.size(); i++) {
+            remaining += counts[i];
+            if (patterns.get(i).wildcardPattern() != null || patterns.get(i).identifierPattern() != null) {
+                fallback = armLabels.get(i);
+                break;
+            }
+            order.add(i);
+        }
+        order.sort((a, b) -> Long.compare(counts[b], counts[a])); // Stable: ties keep source order
+        
+        for (int k = 0; k < order.size(); k++) {
+            int arm = order.get(k);
+            remaining -= counts[arm];
+            String condition = generatePatternMatch(patterns.get(arm), subject);
+            String next = k < order.size() - 1 ? "match_test_" + labelCounter++ : fallback;
+            llvmIR.append("  br i1 ").append(condition).append(", label %").append(armLabels.get(arm))
+                  .append(", label %").append(next).append(branchWeights(counts[arm], remaining)).append("\n\n");
+            if (k < order.size() - 1) {
+                llvmIR.append(next).append(":\n");
+            }
+        }
+        if (order.isEmpty()) {
+            llvmIR.append("  br label %").append(fallback).append("\n\n");
+        }
+    }
+    
+    /** Profile counts for the arms of a match, or null without a complete profile for it. */
+    private long[] armCounts(String key, int arms) {
+        if (profile == null) {
+            return null;
+        }
+        long[] counts = new long[arms];
+        for (int i = 0; i < arms; i++) {
+            counts[i] = profile.count(key + ":arm" + i);
+            if (counts[i] < 0) {
+                return null;
+            }
+        }
+        return counts;
+    }
+    
+    /** Counter key for a branch site: the enclosing function and source position. */
+    private String profileKey(ParserRuleContext ctx, String kind) {
+        return profileFunction + ":" + kind + "@" + ctx.getStart().getLine() + ":" + ctx.getStart().getCharPositionInLine();
+    }
+    
+    private long profileCount(String key) {
+        return profile != null ? profile.count(key) : -1;
+    }
+    
+    /** Increments a counter in an instrumented build; atomically in programs that use par. */
+    private void emitCounter(String key) {
+        if (!instrumented) {
+            return;
+        }
+        String counter = "@__locus_prof." + counterKeys.size();
+        counterKeys.add(key);
+        String old = "%temp_" + tempCounter++;
+        if (concurrentCounters) {
+            llvmIR.append("  ").append(old).append(" = atomicrmw add i64* ").append(counter).append(", i64 1 monotonic\n");
+            return;
+        }
+        String incremented = "%temp_" + tempCounter++;
+        llvmIR.append("  ").append(old).append(" = load i64, i64* ").append(counter).append("\n");
+        llvmIR.append("  ").append(incremented).append(" = add i64 ").append(old).append(", 1\n");
+        llvmIR.append("  store i64 ").append(incremented).append(", i64* ").append(counter).append("\n");
+    }
+    
+    /**
+     * A `!prof` attachment for a branch or switch, or "" when a count is missing.
+     * Weights are scaled into i32 range; only their ratios matter.
+     */
+    private String branchWeights(long... counts) {
+        long max = 0;
+        for (long count : counts) {
+            if (count < 0) {
+                return "";
+            }
+            max = Math.max(max, count);
+        }
+        long scale = max / Integer.MAX_VALUE + 1;
+        StringBuilder node = new StringBuilder("!{!\"branch_weights\"");
+        for (long count : counts) {
+            node.append(", i32 ").append(count / scale);
+        }
+        return ", !prof " + metadataNode(node.append("}").toString());
+    }
+    
+    /**
+     * Branches to the arm whose String literal equals the subject: a switch on the
+     * length, then a switch on the hash when several literals share that length,
+     * then a single memcmp to confirm. Anything else goes to the first wildcard or
+     * binding arm, or to noMatch.
+     */
+    private void emitStringDispatch(String subject, List<LocusParser.PatternContext> patterns,
+                                    List<String> armLabels, String noMatch, long[] counts) {
+        String defaultLabel = noMatch;
+        long defaultCount = 0;
+        Map<Integer, Long> lengthCounts = new HashMap<>();
+        Map<Integer, Map<String, String>> byLength = new TreeMap<>();
+        Map<String, String> bytesOf = new HashMap<>();
+        for (int i = 0; i < patterns.size(); i++) {
+            LocusParser.PatternContext pattern = patterns.get(i);
+            if (pattern.wildcardPattern() != null || pattern.identifierPattern() != null) {
+                defaultLabel = armLabels.get(i);
+                defaultCount = counts != null ? counts[i] : 0;
+                break; // Later arms are unreachable
+            }
+            if (pattern.literalPattern() == null || pattern.literalPattern().STRING() == null) {
+                continue;
+            }
+            String token = pattern.literalPattern().STRING().getText();
+            String text = literalText(token);
+            bytesOf.put(text, internString(token)[1]);
+            // The first arm for a literal wins
+            byLength.computeIfAbsent(text.length(), k -> new LinkedHashMap<>()).putIfAbsent(text, armLabels.get(i));
+            lengthCounts.merge(text.length(), counts != null ? counts[i] : 0, Long::sum);
+        }
+        
+        requireRuntime("declare i64 @locus_string_length(" + STRING + "*)");
+        String length = "%temp_" + tempCounter++;
+        llvmIR.append("  ").append(length).append(" = call i64 @locus_string_length(").append(STRING)
+              .append("* ").append(subject).append(")\n");
+        String data = null;
+        if (byLength.keySet().stream().anyMatch(l -> l > 0)) {
+            requireRuntime("declare i8* @locus_string_data(" + STRING + "*)");
+            requireRuntime("declare i32 @memcmp(i8*, i8*, i64)");
+            data = "%temp_" + tempCounter++;
+            llvmIR.append("  ").append(data).append(" = call i8* @locus_string_data(").append(STRING)
+                  .append("* ").append(subject).append(")\n");
+        }
+        
+        Map<Integer, String> lengthLabels = new LinkedHashMap<>();
+        List<Long> weights = new ArrayList<>();
+        weights.add(defaultCount);
+        llvmIR.append("  switch i64 ").append(length).append(", label %").append(defaultLabel).append(" [");
+        for (int len : byLength.keySet()) {
+            String label = "str_len_" + labelCounter++;
+            lengthLabels.put(len, label);
+            weights.add(lengthCounts.get(len));
+            llvmIR.append(" i64 ").append(len).append(", label %").append(label);
+        }
+        llvmIR.append(" ]").append(counts != null ? branchWeights(weights.stream().mapToLong(Long::longValue).toArray()) : "")
+              .append("\n\n");
+        
+        for (Map.Entry<Integer, Map<String, String>> group : byLength.entrySet()) {
+            llvmIR.append(lengthLabels.get(group.getKey())).append(":\n");
+            Map<String, String> candidates = group.getValue();
+            if (candidates.size() == 1) {
+                Map.Entry<String, String> only = candidates.entrySet().iterator().next();
+                emitStringCompare(data, bytesOf.get(only.getKey()), group.getKey(), only.getValue(), defaultLabel);
+                continue;
+            }
+            requireRuntime("declare i64 @locus_string_hash(" + STRING + "*)");
+            String groupHash = "%temp_" + tempCounter++;
+            llvmIR.append("  ").append(groupHash).append(" = call i64 @locus_string_hash(").append(STRING)
+                  .append("* ").append(subject).append(")\n");
+            Map<Long, List<String>> byHash = new LinkedHashMap<>();
+            for (String text : candidates.keySet()) {
+                byHash.computeIfAbsent(stringHash(text), k -> new ArrayList<>()).add(text);
+            }
+            Map<Long, String> hashLabels = new LinkedHashMap<>();
+            llvmIR.append("  switch i64 ").append(groupHash).append(", label %").append(defaultLabel).append(" [");
+            for (long h : byHash.keySet()) {
+                String label = "str_hash_" + labelCounter++;
+                hashLabels.put(h, label);
+                llvmIR.append(" i64 ").append(h).append(", label %").append(label);
+            }
+            llvmIR.append(" ]\n\n");
+            for (Map.Entry<Long, List<String>> bucket : byHash.entrySet()) {
+                llvmIR.append(hashLabels.get(bucket.getKey())).append(":\n");
+                List<String> texts = bucket.getValue();
+                for (int i = 0; i < texts.size(); i++) {
+                    // Distinct literals with equal hashes fall through to the next compare
+                    String next = i < texts.size() - 1 ? "str_cmp_" + labelCounter++ : defaultLabel;
+                    emitStringCompare(data, bytesOf.get(texts.get(i)), group.getKey(), candidates.get(texts.get(i)), next);
+                    if (i < texts.size() - 1) {
+                        llvmIR.append(next).append(":\n");
+                    }
+                }
+            }
+        }
+    }
+    
+    private void emitStringCompare(String data, String literalBytes, int length, String match, String mismatch) {
+        if (length == 0) {
+            llvmIR.append("  br label %").append(match).append("\n\n");
+            return;
+        }
+        String compared = "%temp_" + tempCounter++;
+        llvmIR.append("  ").append(compared).append(" = call i32 @memcmp(i8* ").append(data).append(", i8* ")
+              .append(literalBytes).append(", i64 ").append(length).append(")\n");
+        String equal = "%temp_" + tempCounter++;
+        llvmIR.append("  ").append(equal).append(" = icmp eq i32 ").append(compared).append(", 0\n");
+        llvmIR.append("  br i1 ").append(equal).append(", label %").append(match)
+              .append(", label %").append(mismatch).append("\n\n");
+    }
+    
     private String generateBinaryOp(String left, String right, String op) {
         String resultName = "%temp_" + tempCounter++;
         String instruction = "";
@@ -272,6 +1167,8 @@ public class LocusLLVMGenerator extends LocusBaseListener {
             return ctx.primitiveType().getText();
         } else if (ctx.genericType() != null) {
             return ctx.genericType().getText();
+        } else if (ctx.arrayType() != null) {
+            return ctx.arrayType().getText();
         } else if (ctx.IDENTIFIER() != null) {
             return ctx.IDENTIFIER().getText();
         }
@@ -279,9 +1176,26 @@ public class LocusLLVMGenerator extends LocusBaseListener {
     }
     
     private String getLLVMType(String locusType) {
+        if (locusType.startsWith("[")) {
+            String length = locusType.substring(locusType.lastIndexOf(';') + 1, locusType.length() - 1);
+            return "[" + length + " x " + getLLVMType(elementTypeOf(locusType)) + "]";
+        }
+        if (locusType.startsWith("Vec<")) {
+            return VEC;
+        }
         return typeMapping.getOrDefault(locusType, "i32");
     }
     
+    private static boolean isArrayType(String locusType) {
+        return locusType.startsWith("[") || locusType.startsWith("Vec<");
+    }
+    
+    /** Element type of `[T;N]` or `Vec<T>`. */
+    private static String elementTypeOf(String locusType) {
+        return locusType.startsWith("[") ? locusType.substring(1, locusType.lastIndexOf(';'))
+                                         : locusType.substring(4, locusType.length() - 1);
+    }
+    
     @Override
     public void enterIfStatement(LocusParser.IfStatementContext ctx) {
         // Generate condition expression
@@ -292,17 +1206,25 @@ public class LocusLLVMGenerator extends LocusBaseListener {
         String elseLabel = "else_" + labelCounter++;
         String endLabel = "end_" + labelCounter++;
         
+        // Edge counts: the false edge is the total minus the true edge
+        String key = profileKey(ctx, "if");
+        emitCounter(key);
+        long total = profileCount(key);
+        long taken = profileCount(key + ":then");
+        String weights = branchWeights(taken, total - taken);
+        
         // Branch based on condition
         if (ctx.ELSE() != null) {
             llvmIR.append("  br i1 ").append(condition).append(", label %").append(ifLabel)
-                  .append(", label %").append(elseLabel).append("\n\n");
+                  .append(", label %").append(elseLabel).append(weights).append("\n\n");
         } else {
             llvmIR.append("  br i1 ").append(condition).append(", label %").append(ifLabel)
-                  .append(", label %").append(endLabel).append("\n\n");
+                  .append(", label %").append(endLabel).append(weights).append("\n\n");
         }
         
         // Start if block
         llvmIR.append(ifLabel).append(":\n");
+        emitCounter(key + ":then");
         
         // Store labels for later use
         symbolTable.put("current_if_else", elseLabel);
@@ -360,8 +1282,7 @@ public class LocusLLVMGenerator extends LocusBaseListener {
             
             // Check if we're in a function context that should return this value
             if (currentFunction != null && !currentFunction.equals("main")) {
-                String returnType = "i32"; // Default for now
-                llvmIR.append("  ret ").append(returnType).append(" ").append(value).append("\n");
+                emitReturn(value);
                 return; // Don't process normal block exit logic
             }
         }
@@ -398,42 +1319,483 @@ public class LocusLLVMGenerator extends LocusBaseListener {
     
     @Override
     public void enterWhileStatement(LocusParser.WhileStatementContext ctx) {
-        // Create labels for while loop
-        String condLabel = "while_cond_" + labelCounter++;
-        String bodyLabel = "while_body_" + labelCounter++;
-        String endLabel = "while_end_" + labelCounter++;
-        
-        // Jump to condition check
-        llvmIR.append("  br label %").append(condLabel).append("\n\n");
-        
-        // Condition block
-        llvmIR.append(condLabel).append(":\n");
+        // Loops are emitted rotated: the preheader evaluates hoisted values and a guard,
+        // and the condition is re-tested at the bottom of the body (the latch)
+        LoopContext loop = new LoopContext();
+        loop.condLabel = "while_cond_" + labelCounter++;
+        loop.bodyLabel = "while_body_" + labelCounter++;
+        loop.endLabel = "while_end_" + labelCounter++;
+        
+        LocusLoopAnalysis analysis = new LocusLoopAnalysis(ctx);
+        uncheckedSubscripts.addAll(analysis.getGuardedSubscripts(this::fixedLength));
+        hoistArrayViews(loop, analysis);
+        hoistInvariants(loop, analysis);
+        reduceInductionMultiplies(loop, analysis);
+        loop.metadata = loopMetadata(analysis.getTripCount(),
+                                     analysis.isStraightLine(uncheckedSubscripts, this::isStringExpression));
+        
+        // Counts: guard runs, loop entries, and body iterations
+        loop.profileKey = profileKey(ctx, "while");
+        emitCounter(loop.profileKey);
+        long runs = profileCount(loop.profileKey);
+        long entries = profileCount(loop.profileKey + ":enter");
+        String entryLabel = instrumented ? "while_enter_" + labelCounter++ : loop.bodyLabel;
+        
+        // Guard: skip the loop entirely when the condition fails on entry
         String condition = generateExpression(ctx.expression());
-        llvmIR.append("  br i1 ").append(condition).append(", label %").append(bodyLabel)
-              .append(", label %").append(endLabel).append("\n\n");
+        llvmIR.append("  br i1 ").append(condition).append(", label %").append(entryLabel)
+              .append(", label %").append(loop.endLabel).append(branchWeights(entries, runs - entries)).append("\n\n");
+        if (instrumented) {
+            // The guard's taken edge, split so it can be counted
+            llvmIR.append(entryLabel).append(":\n");
+            emitCounter(loop.profileKey + ":enter");
+            llvmIR.append("  br label %").append(loop.bodyLabel).append("\n\n");
+        }
         
         // Body block
-        llvmIR.append(bodyLabel).append(":\n");
+        llvmIR.append(loop.bodyLabel).append(":\n");
+        emitCounter(loop.profileKey + ":body");
         
-        // Store labels for later use
-        symbolTable.put("current_while_cond", condLabel);
-        symbolTable.put("current_while_end", endLabel);
+        loopStack.push(loop);
     }
     
     @Override
     public void exitWhileStatement(LocusParser.WhileStatementContext ctx) {
-        String condLabel = symbolTable.get("current_while_cond");
-        String endLabel = symbolTable.get("current_while_end");
+        LoopContext loop = loopStack.pop();
         
-        // Jump back to condition after body
-        llvmIR.append("  br label %").append(condLabel).append("\n\n");
+        // Latch: re-test the condition and branch back to the body
+        llvmIR.append("  br label %").append(loop.condLabel).append("\n\n");
+        llvmIR.append(loop.condLabel).append(":\n");
+        String condition = generateExpression(ctx.expression());
+        long entries = profileCount(loop.profileKey + ":enter");
+        long iterations = profileCount(loop.profileKey + ":body");
+        llvmIR.append("  br i1 ").append(condition).append(", label %").append(loop.bodyLabel)
+              .append(", label %").append(loop.endLabel).append(branchWeights(iterations - entries, entries));
+        if (loop.metadata != null) {
+            llvmIR.append(", !llvm.loop ").append(loop.metadata);
+        }
+        llvmIR.append("\n\n");
         
         // End label
-        llvmIR.append(endLabel).append(":\n");
+        llvmIR.append(loop.endLabel).append(":\n");
         
-        // Clean up temporary symbols
-        symbolTable.remove("current_while_cond");
-        symbolTable.remove("current_while_end");
+        // Hoisted values belong to this loop's preheader; restore the enclosing loop's
+        for (Map.Entry<LocusParser.ExpressionContext, LoopValue> entry : loop.shadowed.entrySet()) {
+            if (entry.getValue() == null) {
+                loopValues.remove(entry.getKey());
+            } else {
+                loopValues.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<LocusParser.ExpressionContext, String[]> hook : loop.updates) {
+            inductionUpdates.get(hook.getKey()).remove(hook.getValue());
+        }
+        for (Map.Entry<String, String[]> view : loop.shadowedViews.entrySet()) {
+            if (view.getValue() == null) {
+                arrayViews.remove(view.getKey());
+            } else {
+                arrayViews.put(view.getKey(), view.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Loads the buffer and length of each Vec the loop cannot resize once, in the
+     * preheader. Element stores could alias the header, so without this LLVM would
+     * reload both on every iteration and could not vectorize.
+     */
+    private void hoistArrayViews(LoopContext loop, LocusLoopAnalysis analysis) {
+        for (String name : analysis.getStableArrays()) {
+            String key = resolveVariable(name);
+            if (key == null || !elementTypes.containsKey(key) || !typeTable.get(key).startsWith(VEC)
+                || arrayViews.containsKey(key)) {
+                continue; // Fixed-size arrays need no loads; views of enclosing loops stay valid
+            }
+            String[] view = arrayView(key);
+            loop.shadowedViews.put(key, null);
+            arrayViews.put(key, view);
+        }
+    }
+    
+    /** Evaluates loop-invariant loads and arithmetic once, before the loop, reusing identical expressions. */
+    private void hoistInvariants(LoopContext loop, LocusLoopAnalysis analysis) {
+        Map<String, String> hoisted = new HashMap<>();
+        for (LocusParser.ExpressionContext expression : analysis.getInvariantExpressions()) {
+            LoopValue existing = loopValues.get(expression);
+            if (existing != null && existing.alloca == null) {
+                continue; // Already hoisted by an enclosing loop
+            }
+            String value = hoisted.get(expression.getText());
+            if (value == null) {
+                value = generateExpression(expression);
+                hoisted.put(expression.getText(), value);
+            }
+            bindLoopValue(loop, expression, new LoopValue(value, null));
+        }
+    }
+    
+    /**
+     * Replaces `i * c` (c loop-invariant, i an induction variable) with a running
+     * value initialized in the preheader and stepped by `step * c` wherever i is updated.
+     */
+    private void reduceInductionMultiplies(LoopContext loop, LocusLoopAnalysis analysis) {
+        Map<String, String> reduced = new HashMap<>();
+        for (LocusParser.ExpressionContext multiply : analysis.getReducibleMultiplies()) {
+            if (loopValues.containsKey(multiply)) {
+                continue; // Already reduced by an enclosing loop
+            }
+            String variable = analysis.inductionOperand(multiply);
+            String key = resolveVariable(variable);
+            if (key == null || !"i32".equals(typeTable.get(key)) || symbolTable.get(key).equals("%" + variable)) {
+                continue; // Only i32 locals held in allocas
+            }
+            
+            String alloca = reduced.get(multiply.getText());
+            if (alloca == null) {
+                String factor = generateExpression(analysis.invariantOperand(multiply));
+                String current = "%temp_" + tempCounter++;
+                llvmIR.append("  ").append(current).append(" = load i32, i32* ").append(symbolTable.get(key)).append("\n");
+                String initial = generateBinaryOp(current, factor, "*");
+                alloca = "%" + variable + "_scaled_" + tempCounter++;
+                emitAlloca(alloca, "i32");
+                llvmIR.append("  store i32 ").append(initial).append(", i32* ").append(alloca).append("\n");
+                
+                for (Map.Entry<LocusParser.ExpressionContext, Integer> update
+                        : analysis.getInductionVariables().get(variable).entrySet()) {
+                    int step = update.getValue();
+                    String increment = factor.matches("-?\\d+") ? String.valueOf(step * Integer.parseInt(factor))
+                        : step == 1 ? factor
+                        : generateBinaryOp(factor, String.valueOf(step), "*");
+                    String[] hook = {alloca, increment};
+                    inductionUpdates.computeIfAbsent(update.getKey(), k -> new ArrayList<>()).add(hook);
+                    loop.updates.add(new AbstractMap.SimpleEntry<>(update.getKey(), hook));
+                }
+                reduced.put(multiply.getText(), alloca);
+            }
+            bindLoopValue(loop, multiply, new LoopValue(null, alloca));
+        }
+    }
+    
+    private void bindLoopValue(LoopContext loop, LocusParser.ExpressionContext expression, LoopValue value) {
+        if (!loop.shadowed.containsKey(expression)) {
+            loop.shadowed.put(expression, loopValues.get(expression));
+        }
+        loopValues.put(expression, value);
+    }
+    
+    /**
+     * Loop hints for loops with a derivable trip count: small constant counts are
+     * fully unrolled, and straight-line bodies are offered to the vectorizer.
+     * Anything else only gets mustprogress.
+     */
+    private String loopMetadata(LocusLoopAnalysis.TripCount tripCount, boolean straightLine) {
+        if (tripCount == null) {
+            return null;
+        }
+        List<String> hints = new ArrayList<>();
+        hints.add(metadataNode("!{!\"llvm.loop.mustprogress\"}"));
+        if (tripCount.constant != null && tripCount.constant <= 16) {
+            hints.add(metadataNode("!{!\"llvm.loop.unroll.full\"}"));
+        } else if (straightLine) {
+            hints.add(metadataNode("!{!\"llvm.loop.vectorize.enable\", i1 true}"));
+        }
+        
+        // Loop IDs are distinct and refer to themselves
+        String id = "!" + metadata.size();
+        metadata.add("distinct !{" + id + ", " + String.join(", ", hints) + "}");
+        return id;
+    }
+    
+    private String metadataNode(String body) {
+        Integer id = metadataIds.get(body);
+        if (id == null) {
+            id = metadata.size();
+            metadata.add(body);
+            metadataIds.put(body, id);
+        }
+        return "!" + id;
+    }
+    
+    /** Symbol table key for a variable, checking the current scope then the parameter scope. */
+    private String resolveVariable(String varName) {
+        String key = varName + "_" + currentScope;
+        if (symbolTable.get(key) == null && currentScope > 1) {
+            key = varName + "_1";
+        }
+        return symbolTable.get(key) != null && typeTable.get(key) != null ? key : null;
+    }
+    
+    @Override
+    public void exitProgram(LocusParser.ProgramContext ctx) {
+        if (!counterKeys.isEmpty()) {
+            emitProfileRegistry();
+        }
+        if (!runtimeDeclarations.isEmpty() || literalPool.length() > 0) {
+            // Declared only when used, so programs without par or strings stay within the bitcode writer's subset
+            StringBuilder runtime = new StringBuilder();
+            for (String declaration : runtimeDeclarations) {
+                runtime.append(declaration).append("\n");
+            }
+            if (literalPool.length() > 0 || llvmIR.indexOf(STRING) >= 0) {
+                // Must match locus_string in runtime/locus_runtime.c
+                runtime.insert(0, STRING + " = type { i8*, i64, i64 }\n");
+                runtime.append("\n").append(literalPool);
+            }
+            if (llvmIR.indexOf(VEC) >= 0) {
+                // Must match locus_vec in runtime/locus_runtime.c
+                runtime.insert(0, VEC + " = type { i8*, i32, i32 }\n");
+            }
+            String anchor = "declare void @free(i8*)\n";
+            llvmIR.insert(llvmIR.indexOf(anchor) + anchor.length(), runtime);
+        }
+        for (int i = 0; i < metadata.size(); i++) {
+            llvmIR.append("!").append(i).append(" = ").append(metadata.get(i)).append("\n");
+        }
+    }
+    
+    /** Counter globals, their names, and a constructor that hands both to locus_profile_register. */
+    private void emitProfileRegistry() {
+        int count = counterKeys.size();
+        StringBuilder counters = new StringBuilder();
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            String key = counterKeys.get(i);
+            String array = "[" + (key.length() + 1) + " x i8]";
+            llvmIR.append("@__locus_prof.").append(i).append(" = internal global i64 0, align 8\n");
+            llvmIR.append("@__locus_prof.name.").append(i).append(" = private unnamed_addr constant ").append(array)
+                  .append(" c\"").append(key).append("\\00\", align 1\n");
+            counters.append(i > 0 ? ", " : "").append("i64* @__locus_prof.").append(i);
+            names.append(i > 0 ? ", " : "").append("i8* getelementptr inbounds (").append(array).append(", ")
+                 .append(array).append("* @__locus_prof.name.").append(i).append(", i64 0, i64 0)");
+        }
+        String counterTable = "[" + count + " x i64*]";
+        String nameTable = "[" + count + " x i8*]";
+        llvmIR.append("@__locus_profile_counters = internal constant ").append(counterTable).append(" [").append(counters).append("]\n");
+        llvmIR.append("@__locus_profile_names = internal constant ").append(nameTable).append(" [").append(names).append("]\n");
+        llvmIR.append("@llvm.global_ctors = appending global [1 x { i32, void ()*, i8* }] ")
+              .append("[{ i32, void ()*, i8* } { i32 65535, void ()* @__locus_profile_init, i8* null }]\n\n");
+        
+        requireRuntime("declare void @locus_profile_register(i64**, i8**, i32)");
+        llvmIR.append("define internal void @__locus_profile_init() {\n");
+        llvmIR.append("entry:\n");
+        llvmIR.append("  call void @locus_profile_register(i64** getelementptr inbounds (").append(counterTable).append(", ")
+              .append(counterTable).append("* @__locus_profile_counters, i64 0, i64 0), i8** getelementptr inbounds (")
+              .append(nameTable).append(", ").append(nameTable).append("* @__locus_profile_names, i64 0, i64 0), i32 ")
+              .append(count).append(")\n");
+        llvmIR.append("  ret void\n");
+        llvmIR.append("}\n\n");
+    }
+    
+    @Override
+    public void enterParallelStatement(LocusParser.ParallelStatementContext ctx) {
+        // The body becomes `void @fn(i8* %env, i32 %index)`, run by locus_par_for from
+        // runtime/locus_runtime.c; tasks are indices 0..n-1 dispatched by a switch
+        ParallelRegion region = new ParallelRegion();
+        int id = labelCounter++;
+        region.functionName = currentFunction + "_par_" + id;
+        region.doneLabel = "par_done_" + id;
+        requireRuntime("declare void @locus_par_for(i32, i32, i32, void (i8*, i32)*, i8*)");
+        
+        String start = "0";
+        String end = String.valueOf(ctx.block().statement().size());
+        if (ctx.IDENTIFIER() != null) {
+            start = generateExpression(ctx.expression(0));
+            end = generateExpression(ctx.expression(1));
+            uncheckedSubscripts.addAll(LocusLoopAnalysis.getGuardedSubscripts(ctx, this::fixedLength));
+        }
+        
+        // Captures: variables of the enclosing function used in the body, passed by address
+        Set<String> written = new HashSet<>();
+        Set<String> names = new LinkedHashSet<>();
+        collectNames(ctx.block(), names, written);
+        List<String[]> captures = new ArrayList<>();
+        for (String name : names) {
+            String key = resolveVariable(name);
+            if (key == null || (ctx.IDENTIFIER() != null && name.equals(ctx.IDENTIFIER().getText()))) {
+                continue;
+            }
+            String address = symbolTable.get(key);
+            String type = typeTable.get(key);
+            if (address.startsWith("%") && !address.contains("_")) {
+                // Parameters are SSA values: spill them so they have an address
+                String spill = "%" + name + "_spill_" + tempCounter++;
+                emitAlloca(spill, type);
+                llvmIR.append("  store ").append(type).append(" ").append(address)
+                      .append(", ").append(type).append("* ").append(spill).append("\n");
+                address = spill;
+            }
+            captures.add(new String[] {key, address, type});
+        }
+        
+        String env = "null";
+        String envType = "[" + captures.size() + " x i8*]";
+        if (!captures.isEmpty()) {
+            String slots = "%par_env_" + tempCounter++;
+            emitAlloca(slots, envType);
+            for (int i = 0; i < captures.size(); i++) {
+                String slot = "%temp_" + tempCounter++;
+                String raw = "%temp_" + tempCounter++;
+                llvmIR.append("  ").append(slot).append(" = getelementptr ").append(envType).append(", ")
+                      .append(envType).append("* ").append(slots).append(", i32 0, i32 ").append(i).append("\n");
+                llvmIR.append("  ").append(raw).append(" = bitcast ").append(captures.get(i)[2]).append("* ")
+                      .append(captures.get(i)[1]).append(" to i8*\n");
+                llvmIR.append("  store i8* ").append(raw).append(", i8** ").append(slot).append("\n");
+            }
+            env = "%temp_" + tempCounter++;
+            llvmIR.append("  ").append(env).append(" = bitcast ").append(envType).append("* ").append(slots)
+                  .append(" to i8*\n");
+        }
+        // Range loops let the runtime pick a grain; each task is its own unit
+        String grain = ctx.IDENTIFIER() != null ? "0" : "1";
+        llvmIR.append("  call void @locus_par_for(i32 ").append(start).append(", i32 ").append(end)
+              .append(", i32 ").append(grain).append(", void (i8*, i32)* @").append(region.functionName)
+              .append(", i8* ").append(env).append(")\n");
+        
+        // Emit the body into its own function
+        region.outerIR = llvmIR;
+        region.outerAllocaInsertPos = allocaInsertPos;
+        region.outerFunction = currentFunction;
+        region.outerInMain = inMainFunction;
+        region.outerLoopValues = loopValues;
+        region.outerInductionUpdates = inductionUpdates;
+        region.outerArrayViews = arrayViews;
+        region.outerVecLocals = vecLocals;
+        region.outerStringLocals = stringLocals;
+        llvmIR = new StringBuilder();
+        loopValues = new IdentityHashMap<>();
+        inductionUpdates = new IdentityHashMap<>();
+        arrayViews = new HashMap<>();
+        vecLocals = new ArrayList<>();
+        stringLocals = new ArrayList<>();
+        currentFunction = region.functionName;
+        inMainFunction = false;
+        
+        llvmIR.append("define internal void @").append(region.functionName).append("(i8* %env, i32 %index) {\n");
+        llvmIR.append("entry:\n");
+        allocaInsertPos = llvmIR.length();
+        
+        if (!captures.isEmpty()) {
+            String slots = "%env_slots_" + tempCounter++;
+            llvmIR.append("  ").append(slots).append(" = bitcast i8* %env to ").append(envType).append("*\n");
+            for (int i = 0; i < captures.size(); i++) {
+                String key = captures.get(i)[0];
+                String type = captures.get(i)[2];
+                String name = key.substring(0, key.lastIndexOf('_'));
+                String slot = "%temp_" + tempCounter++;
+                String raw = "%temp_" + tempCounter++;
+                String pointer = "%" + name + "_ptr_" + tempCounter++;
+                llvmIR.append("  ").append(slot).append(" = getelementptr ").append(envType).append(", ")
+                      .append(envType).append("* ").append(slots).append(", i32 0, i32 ").append(i).append("\n");
+                llvmIR.append("  ").append(raw).append(" = load i8*, i8** ").append(slot).append("\n");
+                llvmIR.append("  ").append(pointer).append(" = bitcast i8* ").append(raw).append(" to ")
+                      .append(type).append("*\n");
+                
+                String address = pointer;
+                if (!written.contains(name) && !elementTypes.containsKey(key)) {
+                    // Nothing writes a read-only capture during the region: copy it into a promotable local
+                    address = "%" + name + "_" + tempCounter++;
+                    String value = "%temp_" + tempCounter++;
+                    emitAlloca(address, type);
+                    llvmIR.append("  ").append(value).append(" = load ").append(type).append(", ")
+                          .append(type).append("* ").append(pointer).append("\n");
+                    llvmIR.append("  store ").append(type).append(" ").append(value).append(", ")
+                          .append(type).append("* ").append(address).append("\n");
+                }
+                bindRegionSymbol(region, key, address, type);
+            }
+        }
+        
+        if (ctx.IDENTIFIER() != null) {
+            String name = ctx.IDENTIFIER().getText();
+            String index = "%" + name + "_" + tempCounter++;
+            emitAlloca(index, "i32");
+            llvmIR.append("  store i32 %index, i32* ").append(index).append("\n");
+            bindRegionSymbol(region, name + "_" + currentScope, index, "i32");
+        } else {
+            llvmIR.append("  switch i32 %index, label %").append(region.doneLabel).append(" [\n");
+            for (LocusParser.StatementContext task : ctx.block().statement()) {
+                String label = "par_task_" + labelCounter++;
+                region.taskLabels.put(task, label);
+                llvmIR.append("    i32 ").append(region.taskLabels.size() - 1).append(", label %").append(label).append("\n");
+            }
+            llvmIR.append("  ]\n\n");
+        }
+        
+        parallelStack.push(region);
+    }
+    
+    @Override
+    public void exitParallelStatement(LocusParser.ParallelStatementContext ctx) {
+        ParallelRegion region = parallelStack.pop();
+        if (ctx.IDENTIFIER() == null) {
+            llvmIR.append(region.doneLabel).append(":\n");
+        }
+        emitLocalFrees();
+        llvmIR.append("  ret void\n");
+        llvmIR.append("}\n\n");
+        outlinedFunctions.append(llvmIR);
+        
+        llvmIR = region.outerIR;
+        allocaInsertPos = region.outerAllocaInsertPos;
+        currentFunction = region.outerFunction;
+        inMainFunction = region.outerInMain;
+        loopValues = region.outerLoopValues;
+        inductionUpdates = region.outerInductionUpdates;
+        arrayViews = region.outerArrayViews;
+        vecLocals = region.outerVecLocals;
+        stringLocals = region.outerStringLocals;
+        for (Map.Entry<String, String[]> entry : region.shadowed.entrySet()) {
+            String[] previous = entry.getValue();
+            if (previous == null) {
+                symbolTable.remove(entry.getKey());
+                typeTable.remove(entry.getKey());
+            } else {
+                symbolTable.put(entry.getKey(), previous[0]);
+                typeTable.put(entry.getKey(), previous[1]);
+            }
+        }
+    }
+    
+    @Override
+    public void enterStatement(LocusParser.StatementContext ctx) {
+        ParallelRegion region = parallelStack.peek();
+        if (region != null && region.taskLabels.containsKey(ctx)) {
+            llvmIR.append(region.taskLabels.get(ctx)).append(":\n");
+        }
+    }
+    
+    @Override
+    public void exitStatement(LocusParser.StatementContext ctx) {
+        ParallelRegion region = parallelStack.peek();
+        if (region != null && region.taskLabels.containsKey(ctx)) {
+            llvmIR.append("  br label %").append(region.doneLabel).append("\n\n");
+        }
+    }
+    
+    private void bindRegionSymbol(ParallelRegion region, String key, String address, String type) {
+        if (!region.shadowed.containsKey(key)) {
+            region.shadowed.put(key, symbolTable.containsKey(key)
+                ? new String[] {symbolTable.get(key), typeTable.get(key)} : null);
+        }
+        symbolTable.put(key, address);
+        typeTable.put(key, type);
+    }
+    
+    /** Variable names referenced in a subtree, and the ones assigned. */
+    private void collectNames(org.antlr.v4.runtime.tree.ParseTree node, Set<String> names, Set<String> written) {
+        if (node instanceof LocusParser.PrimaryContext && ((LocusParser.PrimaryContext) node).IDENTIFIER() != null) {
+            names.add(((LocusParser.PrimaryContext) node).IDENTIFIER().getText());
+        }
+        if (node instanceof LocusParser.ExpressionContext) {
+            LocusParser.ExpressionContext expression = (LocusParser.ExpressionContext) node;
+            if (expression.getChildCount() == 3 && expression.expression().size() == 2
+                && expression.getChild(1).getText().equals("=")) {
+                written.add(expression.expression(0).getText());
+            }
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            collectNames(node.getChild(i), names, written);
+        }
     }
     
     @Override
@@ -449,6 +1811,21 @@ public class LocusLLVMGenerator extends LocusBaseListener {
         symbolTable.put("current_match_end", endLabel);
         symbolTable.put("current_match_arm_count", "0");
         symbolTable.put("current_match_total_arms", String.valueOf(ctx.matchArm().size()));
+        // A failed last test lands here; reaching the end label means an arm ran
+        String failLabel = "match_fail_" + labelCounter++;
+        symbolTable.put("current_match_fail", failLabel);
+        
+        List<String> armLabels = new ArrayList<>();
+        long[] counts = armCounts(profileKey(ctx, "match"), ctx.matchArm().size());
+        if (isStringExpression(ctx.expression()) || counts != null) {
+            List<LocusParser.PatternContext> patterns = new ArrayList<>();
+            for (LocusParser.MatchArmContext arm : ctx.matchArm()) {
+                patterns.add(arm.pattern());
+                armLabels.add("match_arm_" + labelCounter++);
+            }
+            emitMatchDispatch(ctx.expression(), matchValue, patterns, armLabels, failLabel, counts);
+        }
+        dispatchedMatchArms.push(armLabels);
         
         // Don't generate anything yet - let the walker handle each arm
     }
@@ -456,12 +1833,19 @@ public class LocusLLVMGenerator extends LocusBaseListener {
     @Override
     public void exitMatchStatement(LocusParser.MatchStatementContext ctx) {
         String endLabel = symbolTable.get("current_match_end");
+        dispatchedMatchArms.pop();
         
-        // End label - add unreachable instruction in case no patterns match
+        // Unreachable in case no patterns match
+        llvmIR.append(symbolTable.get("current_match_fail")).append(":\n");
+        llvmIR.append("  unreachable\n\n");
         llvmIR.append(endLabel).append(":\n");
-        llvmIR.append("  unreachable\n");
+        if (symbolTable.remove("current_match_reached") == null) {
+            // Every arm returned: the end block still needs a terminator
+            llvmIR.append("  unreachable\n\n");
+        }
         
         // Clean up temporary symbols
+        symbolTable.remove("current_match_fail");
         symbolTable.remove("current_match_value");
         symbolTable.remove("current_match_end");
         symbolTable.remove("current_match_arm_count");
@@ -478,10 +1862,22 @@ public class LocusLLVMGenerator extends LocusBaseListener {
         int armCount = Integer.parseInt(armCountStr);
         int totalArms = Integer.parseInt(totalArmsStr);
         
+        String counterKey = profileKey((LocusParser.MatchStatementContext) ctx.getParent(), "match") + ":arm" + armCount;
+        List<String> dispatchedArms = dispatchedMatchArms.peek();
+        if (!dispatchedArms.isEmpty()) {
+            // Already dispatched by emitMatchDispatch
+            llvmIR.append(dispatchedArms.get(armCount)).append(":\n");
+            emitCounter(counterKey);
+            symbolTable.put("current_match_arm_active", "true");
+            symbolTable.put("current_match_next_label", endLabel);
+            symbolTable.put("current_match_arm_count", String.valueOf(armCount + 1));
+            return;
+        }
+        
         // Generate pattern test
         String condition = generatePatternMatch(ctx.pattern(), matchValue);
         String armLabel = "match_arm_" + labelCounter++;
-        String nextLabel = (armCount < totalArms - 1) ? "match_test_" + labelCounter++ : endLabel;
+        String nextLabel = (armCount < totalArms - 1) ? "match_test_" + labelCounter++ : symbolTable.get("current_match_fail");
         
         // Branch to arm if pattern matches, otherwise to next test
         llvmIR.append("  br i1 ").append(condition).append(", label %").append(armLabel)
@@ -489,6 +1885,7 @@ public class LocusLLVMGenerator extends LocusBaseListener {
         
         // Start arm block
         llvmIR.append(armLabel).append(":\n");
+        emitCounter(counterKey);
         
         // Store context for this arm
         symbolTable.put("current_match_arm_active", "true");
@@ -508,11 +1905,14 @@ public class LocusLLVMGenerator extends LocusBaseListener {
         int armCount = Integer.parseInt(armCountStr);
         int totalArms = Integer.parseInt(totalArmsStr);
         
-        // Jump to end after executing this arm
-        llvmIR.append("  br label %").append(endLabel).append("\n\n");
+        // Jump to end after executing this arm, unless it already returned
+        if (!endsWithTerminator()) {
+            llvmIR.append("  br label %").append(endLabel).append("\n\n");
+            symbolTable.put("current_match_reached", "true");
+        }
         
         // If there are more arms, start the next test label
-        if (armCount < totalArms && !nextLabel.equals(endLabel)) {
+        if (armCount < totalArms && nextLabel.startsWith("match_test_")) {
             llvmIR.append(nextLabel).append(":\n");
         }
         
@@ -576,13 +1976,9 @@ public class LocusLLVMGenerator extends LocusBaseListener {
     }
     
     private String generateEnumVariantPatternMatch(LocusParser.EnumVariantPatternContext pattern, String matchValue) {
-        // For now, implement a simple enum variant comparison
-        // In a full implementation, this would need proper enum support
+        // Enum values are their variant's tag
         String enumType = pattern.IDENTIFIER(0).getText();
         String variant = pattern.IDENTIFIER(1).getText();
-        
-        // For simplicity, assume enum variants are represented as integers
-        // This is a placeholder implementation
         String variantValue = getEnumVariantValue(enumType, variant);
         
         String resultName = "%temp_" + tempCounter++;
@@ -598,28 +1994,9 @@ public class LocusLLVMGenerator extends LocusBaseListener {
     }
     
     private String getEnumVariantValue(String enumType, String variant) {
-        // Simple mapping for Color enum used in our test
-        if ("Color".equals(enumType)) {
-            switch (variant) {
-                case "Red": return "0";
-                case "Green": return "1";
-                case "Blue": return "2";
-                default: return "0";
-            }
-        }
-        
-        // Simple mapping for Status enum
-        if ("Status".equals(enumType)) {
-            switch (variant) {
-                case "Success": return "0";
-                case "Warning": return "1";
-                case "Error": return "2";
-                default: return "0";
-            }
-        }
-        
-        // Default mapping
-        return "0";
+        Map<String, Integer> tags = enumTags.get(enumType);
+        Integer tag = tags != null ? tags.get(variant) : null;
+        return tag != null ? tag.toString() : "0";
     }
     
     private String generateEnumVariantAccess(LocusParser.EnumVariantAccessContext ctx) {
@@ -637,12 +2014,43 @@ public class LocusLLVMGenerator extends LocusBaseListener {
         // Create a temporary variable to store the result
         String resultVar = "%match_result_" + labelCounter++;
         String resultType = "i32"; // For now, assume i32 result type
+        List<LocusParser.MatchExpressionArmContext> arms = ctx.matchExpressionArm();
+        if (!arms.isEmpty() && isStringExpression(arms.get(0).expression())) {
+            resultType = STRING;
+        }
         
         // Allocate space for the result
-        llvmIR.append("  ").append(resultVar).append(" = alloca ").append(resultType).append("\n");
+        if (resultType.equals(STRING)) {
+            emitStringSlot(resultVar);
+        } else {
+            emitAlloca(resultVar, resultType);
+        }
         
-        // Create labels for match arms and end
+        // Create labels for match arms and end; no arm matching is unreachable, as for match statements
         String endLabel = "match_expr_end_" + labelCounter++;
+        String failLabel = "match_expr_fail_" + labelCounter++;
+        
+        String key = profileKey(ctx, "match");
+        long[] counts = armCounts(key, arms.size());
+        if (isStringExpression(ctx.expression()) || counts != null) {
+            List<LocusParser.PatternContext> patterns = new ArrayList<>();
+            List<String> armLabels = new ArrayList<>();
+            for (LocusParser.MatchExpressionArmContext arm : arms) {
+                patterns.add(arm.pattern());
+                armLabels.add("match_expr_arm_" + labelCounter++);
+            }
+            emitMatchDispatch(ctx.expression(), matchValue, patterns, armLabels, failLabel, counts);
+            for (int i = 0; i < arms.size(); i++) {
+                llvmIR.append(armLabels.get(i)).append(":\n");
+                emitCounter(key + ":arm" + i);
+                storeMatchResult(generateExpression(arms.get(i).expression()), resultVar, resultType);
+                llvmIR.append("  br label %").append(endLabel).append("\n\n");
+            }
+            llvmIR.append(failLabel).append(":\n");
+            llvmIR.append("  unreachable\n\n");
+            llvmIR.append(endLabel).append(":\n");
+            return loadMatchResult(resultVar, resultType);
+        }
         
         // Generate each match arm
         for (int i = 0; i < ctx.matchExpressionArm().size(); i++) {
@@ -652,7 +2060,7 @@ public class LocusLLVMGenerator extends LocusBaseListener {
             String condition = generatePatternMatch(arm.pattern(), matchValue);
             String armLabel = "match_expr_arm_" + labelCounter++;
             String nextLabel = (i < ctx.matchExpressionArm().size() - 1) ? 
-                "match_expr_test_" + labelCounter++ : endLabel;
+                "match_expr_test_" + labelCounter++ : failLabel;
             
             // Branch to arm if pattern matches, otherwise to next test
             llvmIR.append("  br i1 ").append(condition).append(", label %").append(armLabel)
@@ -660,11 +2068,10 @@ public class LocusLLVMGenerator extends LocusBaseListener {
             
             // Start arm block
             llvmIR.append(armLabel).append(":\n");
+            emitCounter(key + ":arm" + i);
             
             // Generate the expression for this arm and store it
-            String armValue = generateExpression(arm.expression());
-            llvmIR.append("  store ").append(resultType).append(" ").append(armValue)
-                  .append(", ").append(resultType).append("* ").append(resultVar).append("\n");
+            storeMatchResult(generateExpression(arm.expression()), resultVar, resultType);
             
             // Jump to end
             llvmIR.append("  br label %").append(endLabel).append("\n\n");
@@ -675,17 +2082,84 @@ public class LocusLLVMGenerator extends LocusBaseListener {
             }
         }
         
-        // End label
+        llvmIR.append(failLabel).append(":\n");
+        llvmIR.append("  unreachable\n\n");
         llvmIR.append(endLabel).append(":\n");
         
-        // Load and return the result
+        return loadMatchResult(resultVar, resultType);
+    }
+    
+    private void storeMatchResult(String armValue, String resultVar, String resultType) {
+        if (resultType.equals(STRING)) {
+            emitStringCopy(armValue, resultVar);
+            return;
+        }
+        llvmIR.append("  store ").append(resultType).append(" ").append(armValue)
+              .append(", ").append(resultType).append("* ").append(resultVar).append("\n");
+    }
+    
+    private String loadMatchResult(String resultVar, String resultType) {
+        if (resultType.equals(STRING)) {
+            return resultVar; // String results are used in place
+        }
         String loadedResult = "%match_loaded_" + labelCounter++;
         llvmIR.append("  ").append(loadedResult).append(" = load ").append(resultType)
               .append(", ").append(resultType).append("* ").append(resultVar).append("\n");
-        
         return loadedResult;
     }
     
+    /** Labels and preheader state of a while loop being emitted. */
+    private static class LoopContext {
+        String condLabel;
+        String bodyLabel;
+        String endLabel;
+        String metadata;
+        String profileKey;
+        // Previous loopValues entries for expressions this loop rebinds (null if unbound)
+        Map<LocusParser.ExpressionContext, LoopValue> shadowed = new IdentityHashMap<>();
+        List<Map.Entry<LocusParser.ExpressionContext, String[]>> updates = new ArrayList<>();
+        // Vec views this loop hoisted (null: none before)
+        Map<String, String[]> shadowedViews = new HashMap<>();
+    }
+    
+    /** Outer function state saved while a par body is emitted as its own function. */
+    private static class ParallelRegion {
+        String functionName;
+        String doneLabel;
+        StringBuilder outerIR;
+        int outerAllocaInsertPos;
+        String outerFunction;
+        boolean outerInMain;
+        Map<LocusParser.ExpressionContext, LoopValue> outerLoopValues;
+        Map<LocusParser.ExpressionContext, List<String[]>> outerInductionUpdates;
+        Map<String, String[]> outerArrayViews;
+        List<String> outerVecLocals;
+        List<String> outerStringLocals;
+        // Symbol table entries rebound inside the body: {address, type}, or null if unbound
+        Map<String, String[]> shadowed = new HashMap<>();
+        Map<LocusParser.StatementContext, String> taskLabels = new IdentityHashMap<>();
+    }
+    
+    /** A preheader value: either an SSA value or a strength-reduced alloca loaded at each use. */
+    private class LoopValue {
+        final String ssa;
+        final String alloca;
+        
+        LoopValue(String ssa, String alloca) {
+            this.ssa = ssa;
+            this.alloca = alloca;
+        }
+        
+        String use() {
+            if (alloca == null) {
+                return ssa;
+            }
+            String loadName = "%temp_" + tempCounter++;
+            llvmIR.append("  ").append(loadName).append(" = load i32, i32* ").append(alloca).append("\n");
+            return loadName;
+        }
+    }
+    
     public String getLLVMIR() {
         return llvmIR.toString();
     }
@@ -695,4 +2169,8 @@ public class LocusLLVMGenerator extends LocusBaseListener {
             writer.print(llvmIR.toString());
         }
     }
+    
+    public void writeBitcodeToFile(String filename) throws IOException {
+        new LocusBitcodeWriter(llvmIR.toString()).writeToFile(filename);
+    }
 }
\ No newline at end of file
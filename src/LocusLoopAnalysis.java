@@ -0,0 +1,575 @@
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+/**
+ * Source-level analysis of a single while loop, used by LocusLLVMGenerator to
+ * optimize the loop as it is emitted.
+ *
+ * Finds the variables the loop writes, induction variables (variables only
+ * ever updated by `v = v + literal` / `v = v - literal`), maximal
+ * loop-invariant subexpressions that are safe to evaluate once before the
+ * loop, multiplications by an induction variable that can be strength
+ * reduced, the trip count when the condition compares a basic induction
+ * variable against an invariant bound, the array subscripts that
+ * condition already keeps in bounds, and whether the loop is straight-line
+ * code the vectorizer can take.
+ */
+public class LocusLoopAnalysis {
+    // Operators the generator lowers without side effects or traps, so they can be speculated
+    private static final Set<String> SPECULATABLE_OPS = new HashSet<>(Arrays.asList("+", "-", "*", "==", "!=", "<", ">"));
+
+    private final LocusParser.WhileStatementContext loop;
+    private final Set<String> assigned = new HashSet<>();
+    private final Set<String> declared = new HashSet<>();
+    // Written inside a nested par body, which is emitted as a separate function
+    private final Set<String> parallelWrites = new HashSet<>();
+    private final Map<String, List<LocusParser.ExpressionContext>> assignments = new HashMap<>();
+    private final Map<String, Map<LocusParser.ExpressionContext, Integer>> inductionVariables = new HashMap<>();
+    private final List<LocusParser.ExpressionContext> invariants = new ArrayList<>();
+    private final List<LocusParser.ExpressionContext> reducibleMultiplies = new ArrayList<>();
+    // Arrays subscripted or measured in the loop, and those it pushes to or passes to a call
+    private final Set<String> arrays = new HashSet<>();
+    private final Set<String> resizedArrays = new HashSet<>();
+
+    /** How the loop condition bounds a basic induction variable. */
+    public static class TripCount {
+        public final String variable;
+        public final int step;
+        /** Iteration count when start and bound are both literals, otherwise null. */
+        public final Long constant;
+
+        TripCount(String variable, int step, Long constant) {
+            this.variable = variable;
+            this.step = step;
+            this.constant = constant;
+        }
+    }
+
+    public LocusLoopAnalysis(LocusParser.WhileStatementContext loop) {
+        this.loop = loop;
+        collectWrites(loop, false);
+        findInductionVariables();
+        collectCandidates(loop.expression());
+        collectCandidates(loop.block());
+    }
+
+    public boolean isAssigned(String variable) {
+        return assigned.contains(variable) || declared.contains(variable);
+    }
+
+    /** Induction variables mapped to each of their update sites and the step applied there. */
+    public Map<String, Map<LocusParser.ExpressionContext, Integer>> getInductionVariables() {
+        return inductionVariables;
+    }
+
+    /** Maximal loop-invariant subexpressions (variable loads and speculatable arithmetic), in source order. */
+    public List<LocusParser.ExpressionContext> getInvariantExpressions() {
+        return invariants;
+    }
+
+    /** Multiplications of an induction variable by a loop-invariant factor. */
+    public List<LocusParser.ExpressionContext> getReducibleMultiplies() {
+        return reducibleMultiplies;
+    }
+
+    /** The induction variable operand of a reducible multiply. */
+    public String inductionOperand(LocusParser.ExpressionContext multiply) {
+        String left = variableName(multiply.expression(0));
+        return left != null && inductionVariables.containsKey(left) ? left : variableName(multiply.expression(1));
+    }
+
+    /**
+     * Arrays the loop subscripts or measures but never assigns, declares,
+     * pushes to or hands to a call, so their storage stays put.
+     */
+    public Set<String> getStableArrays() {
+        Set<String> stable = new HashSet<>(arrays);
+        stable.removeAll(resizedArrays);
+        stable.removeIf(this::isAssigned);
+        return stable;
+    }
+
+    /** The invariant factor of a reducible multiply. */
+    public LocusParser.ExpressionContext invariantOperand(LocusParser.ExpressionContext multiply) {
+        String left = variableName(multiply.expression(0));
+        return left != null && inductionVariables.containsKey(left) ? multiply.expression(1) : multiply.expression(0);
+    }
+
+    // ---------------------------------------------------------------------
+    // Writes and induction variables
+    // ---------------------------------------------------------------------
+
+    private void collectWrites(ParseTree node, boolean inParallel) {
+        inParallel |= node instanceof LocusParser.ParallelStatementContext;
+        if (node instanceof LocusParser.VariableDeclarationContext) {
+            declared.add(((LocusParser.VariableDeclarationContext) node).IDENTIFIER().getText());
+        } else if (node instanceof LocusParser.ExpressionContext) {
+            LocusParser.ExpressionContext expression = (LocusParser.ExpressionContext) node;
+            if (isAssignment(expression)) {
+                String target = expression.expression(0).getText();
+                assigned.add(target);
+                if (inParallel) {
+                    parallelWrites.add(target);
+                }
+                assignments.computeIfAbsent(target, k -> new ArrayList<>()).add(expression);
+            }
+            if (isSubscript(expression) && variableName(expression.expression(0)) != null) {
+                arrays.add(variableName(expression.expression(0)));
+            }
+            if (lengthReceiver(expression) != null) {
+                arrays.add(lengthReceiver(expression));
+            } else if (isCall(expression)) {
+                // A callee may push to an array argument, moving its storage
+                LocusParser.ExpressionContext callee = expression.expression(0);
+                if (isMethod(callee, "push") && variableName(callee.expression(0)) != null) {
+                    resizedArrays.add(variableName(callee.expression(0)));
+                }
+                if (expression.argumentList() != null) {
+                    for (LocusParser.ExpressionContext argument : expression.argumentList().expression()) {
+                        if (variableName(argument) != null) {
+                            resizedArrays.add(variableName(argument));
+                        }
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            collectWrites(node.getChild(i), inParallel);
+        }
+    }
+
+    private void findInductionVariables() {
+        for (Map.Entry<String, List<LocusParser.ExpressionContext>> entry : assignments.entrySet()) {
+            String variable = entry.getKey();
+            if (declared.contains(variable) || parallelWrites.contains(variable)) {
+                continue;
+            }
+            Map<LocusParser.ExpressionContext, Integer> updates = new IdentityHashMap<>();
+            for (LocusParser.ExpressionContext assignment : entry.getValue()) {
+                Integer step = stepOf(variable, assignment.expression(1));
+                if (step == null) {
+                    updates = null;
+                    break;
+                }
+                updates.put(assignment, step);
+            }
+            if (updates != null) {
+                inductionVariables.put(variable, updates);
+            }
+        }
+    }
+
+    /** The literal step of `v + c`, `c + v` or `v - c`, or null for any other update. */
+    private Integer stepOf(String variable, LocusParser.ExpressionContext value) {
+        if (value.getChildCount() != 3 || value.expression().size() != 2) {
+            return null;
+        }
+        String op = value.getChild(1).getText();
+        Long left = integerLiteral(value.expression(0));
+        Long right = integerLiteral(value.expression(1));
+        long step;
+        if (variable.equals(variableName(value.expression(0))) && right != null && (op.equals("+") || op.equals("-"))) {
+            step = op.equals("+") ? right : -right;
+        } else if (variable.equals(variableName(value.expression(1))) && left != null && op.equals("+")) {
+            step = left;
+        } else {
+            return null;
+        }
+        return step == (int) step ? (int) step : null;
+    }
+
+    // ---------------------------------------------------------------------
+    // Invariant and strength-reduction candidates
+    // ---------------------------------------------------------------------
+
+    private void collectCandidates(ParseTree node) {
+        if (node instanceof LocusParser.ExpressionContext) {
+            LocusParser.ExpressionContext expression = (LocusParser.ExpressionContext) node;
+            if (isInvariant(expression) && isHoistable(expression)) {
+                invariants.add(expression);
+                return;
+            }
+            if (isReducibleMultiply(expression)) {
+                reducibleMultiplies.add(expression);
+            }
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            collectCandidates(node.getChild(i));
+        }
+    }
+
+    public boolean isInvariant(LocusParser.ExpressionContext expression) {
+        if (expression.primary() != null) {
+            LocusParser.PrimaryContext primary = expression.primary();
+            if (primary.INTEGER() != null || primary.TRUE() != null || primary.FALSE() != null) {
+                return true;
+            }
+            if (primary.IDENTIFIER() != null) {
+                return !isAssigned(primary.IDENTIFIER().getText());
+            }
+            return primary.expression() != null && isInvariant(primary.expression());
+        }
+        String array = lengthReceiver(expression);
+        if (array != null) {
+            return !isAssigned(array) && !resizedArrays.contains(array);
+        }
+        return isSpeculatableBinary(expression)
+            && isInvariant(expression.expression(0)) && isInvariant(expression.expression(1));
+    }
+
+    /** Worth computing once in the preheader: at least one load or arithmetic instruction. */
+    private boolean isHoistable(LocusParser.ExpressionContext expression) {
+        if (expression.primary() != null) {
+            LocusParser.PrimaryContext primary = expression.primary();
+            return primary.IDENTIFIER() != null || (primary.expression() != null && isHoistable(primary.expression()));
+        }
+        return isSpeculatableBinary(expression) || lengthReceiver(expression) != null;
+    }
+
+    private boolean isReducibleMultiply(LocusParser.ExpressionContext expression) {
+        if (!isBinary(expression) || !expression.getChild(1).getText().equals("*")) {
+            return false;
+        }
+        String left = variableName(expression.expression(0));
+        String right = variableName(expression.expression(1));
+        return (left != null && inductionVariables.containsKey(left) && isInvariant(expression.expression(1)))
+            || (right != null && inductionVariables.containsKey(right) && isInvariant(expression.expression(0)));
+    }
+
+    // ---------------------------------------------------------------------
+    // Trip count
+    // ---------------------------------------------------------------------
+
+    /**
+     * Derives the trip count when the condition is `v < N`, `v > N` or `v != N`
+     * (either operand order) for a basic induction variable v, updated exactly
+     * once per iteration by a top-level statement of the body, and an invariant N.
+     */
+    public TripCount getTripCount() {
+        LocusParser.ExpressionContext condition = unwrap(loop.expression());
+        if (!isBinary(condition)) {
+            return null;
+        }
+        String op = condition.getChild(1).getText();
+        LocusParser.ExpressionContext bound = condition.expression(1);
+        String variable = variableName(condition.expression(0));
+        if (variable == null || !isBasicInductionVariable(variable)) {
+            variable = variableName(condition.expression(1));
+            bound = condition.expression(0);
+            op = op.equals("<") ? ">" : op.equals(">") ? "<" : op;
+        }
+        if (variable == null || !isBasicInductionVariable(variable) || !isInvariant(bound)) {
+            return null;
+        }
+
+        int step = inductionVariables.get(variable).values().iterator().next();
+        boolean terminates = (op.equals("<") && step > 0) || (op.equals(">") && step < 0)
+            || (op.equals("!=") && Math.abs(step) == 1);
+        if (!terminates) {
+            return null;
+        }
+
+        Long start = startValue(variable);
+        Long end = integerLiteral(bound);
+        Long constant = null;
+        if (start != null && end != null) {
+            long distance = op.equals(">") ? start - end : end - start;
+            long stride = Math.abs(step);
+            if (op.equals("!=")) {
+                constant = distance * Long.signum(step) >= 0 ? Math.abs(distance) : null;
+            } else {
+                constant = distance <= 0 ? 0 : (distance + stride - 1) / stride;
+            }
+        }
+        return new TripCount(variable, step, constant);
+    }
+
+    // ---------------------------------------------------------------------
+    // Straight-line bodies
+    // ---------------------------------------------------------------------
+
+    /**
+     * Whether the condition and body lower to a single block: no statements
+     * besides declarations and expression statements, no calls other than
+     * `a.len()`, no matches or short-circuit operators, and no subscript
+     * outside `unchecked` (the rest get a bounds-check branch). `needsRuntime`
+     * flags the expressions the generator lowers to runtime calls, such as
+     * String operations.
+     */
+    public boolean isStraightLine(Set<LocusParser.ExpressionContext> unchecked,
+                                  Predicate<LocusParser.ExpressionContext> needsRuntime) {
+        return isStraightLine(loop.expression(), unchecked, needsRuntime)
+            && isStraightLine(loop.block(), unchecked, needsRuntime);
+    }
+
+    private static boolean isStraightLine(ParseTree node, Set<LocusParser.ExpressionContext> unchecked,
+                                          Predicate<LocusParser.ExpressionContext> needsRuntime) {
+        if (node instanceof LocusParser.StatementContext) {
+            LocusParser.StatementContext statement = (LocusParser.StatementContext) node;
+            if (statement.variableDeclaration() == null && statement.expressionStatement() == null) {
+                return false;
+            }
+        } else if (node instanceof LocusParser.ExpressionContext) {
+            LocusParser.ExpressionContext expression = (LocusParser.ExpressionContext) node;
+            if (expression.matchExpression() != null || needsRuntime.test(expression)
+                || (isCall(expression) && lengthReceiver(expression) == null)
+                || (isSubscript(expression) && !unchecked.contains(expression))
+                || (isBinary(expression) && (expression.getChild(1).getText().equals("&&")
+                                             || expression.getChild(1).getText().equals("||")))) {
+                return false;
+            }
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            if (!isStraightLine(node.getChild(i), unchecked, needsRuntime)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------
+    // Bounds-check elimination
+    // ---------------------------------------------------------------------
+
+    /**
+     * Subscripts `a[v]` that cannot be out of bounds when the condition is
+     * `v < a.len()` (or `v < N` for a fixed-size array a of length >= N), v
+     * starts at a non-negative literal and is only stepped up by top-level
+     * statements of the body. The condition holds at the top of every
+     * iteration, so subscripts in the statements before v's first update are
+     * in range. Vec lengths never shrink, so pushes do not invalidate this.
+     */
+    public List<LocusParser.ExpressionContext> getGuardedSubscripts(Function<String, Long> fixedLength) {
+        List<LocusParser.ExpressionContext> guarded = new ArrayList<>();
+        LocusParser.ExpressionContext condition = unwrap(loop.expression());
+        if (!isBinary(condition)) {
+            return guarded;
+        }
+        String op = condition.getChild(1).getText();
+        String variable = variableName(condition.expression(op.equals(">") ? 1 : 0));
+        LocusParser.ExpressionContext bound = condition.expression(op.equals(">") ? 0 : 1);
+        Map<LocusParser.ExpressionContext, Integer> updates = variable != null ? inductionVariables.get(variable) : null;
+        if (!(op.equals("<") || op.equals(">")) || updates == null) {
+            return guarded;
+        }
+        Long start = startValue(variable);
+        if (start == null || start < 0) {
+            return guarded;
+        }
+        long stride = 0;
+        for (Map.Entry<LocusParser.ExpressionContext, Integer> update : updates.entrySet()) {
+            if (update.getValue() <= 0 || !isTopLevel(update.getKey())) {
+                return guarded;
+            }
+            stride += update.getValue();
+        }
+
+        String boundArray = lengthReceiver(bound);
+        Long boundValue = boundArray != null ? fixedLength.apply(boundArray) : integerLiteral(bound);
+        if ((boundArray == null && boundValue == null) || (boundArray != null && isAssigned(boundArray))) {
+            return guarded;
+        }
+        // v <= bound - 1 + stride after an iteration's updates; it must not wrap to a negative index
+        long limit = boundValue != null ? boundValue : Integer.MAX_VALUE;
+        if (limit - 1 + stride > Integer.MAX_VALUE) {
+            return guarded;
+        }
+
+        Set<String> written = new HashSet<>(assigned);
+        written.addAll(declared);
+        for (LocusParser.StatementContext statement : loop.block().statement()) {
+            if (writes(statement, variable)) {
+                break;
+            }
+            collectGuarded(statement, variable, boundArray, boundValue, fixedLength, written, guarded);
+        }
+        return guarded;
+    }
+
+    /**
+     * Subscripts `a[i]` in a range loop `par i in s..a.len()` (or `s..N` for
+     * fixed-size arrays of length >= N) with a non-negative literal s. The
+     * index is read-only, and the mode checker rejects pushes to arrays the
+     * body captures, so the bound holds throughout.
+     */
+    public static List<LocusParser.ExpressionContext> getGuardedSubscripts(LocusParser.ParallelStatementContext region,
+                                                                           Function<String, Long> fixedLength) {
+        List<LocusParser.ExpressionContext> guarded = new ArrayList<>();
+        if (region.IDENTIFIER() == null) {
+            return guarded;
+        }
+        Long start = integerLiteral(region.expression(0));
+        String boundArray = lengthReceiver(region.expression(1));
+        Long boundValue = boundArray != null ? fixedLength.apply(boundArray) : integerLiteral(region.expression(1));
+        Set<String> written = new HashSet<>();
+        collectWritten(region.block(), written);
+        String index = region.IDENTIFIER().getText();
+        if (start == null || start < 0 || (boundArray == null && boundValue == null) || written.contains(index)
+            || written.contains(boundArray)) {
+            return guarded;
+        }
+        collectGuarded(region.block(), index, boundArray, boundValue, fixedLength, written, guarded);
+        return guarded;
+    }
+
+    /**
+     * Subscripts `a[index]` where a is the bound's array, or a fixed-size
+     * array at least boundValue long, and a is not in written (declared or
+     * assigned in the body).
+     */
+    private static void collectGuarded(ParseTree node, String index, String boundArray, Long boundValue,
+                                       Function<String, Long> fixedLength, Set<String> written,
+                                       List<LocusParser.ExpressionContext> guarded) {
+        if (node instanceof LocusParser.ExpressionContext && isSubscript((LocusParser.ExpressionContext) node)) {
+            LocusParser.ExpressionContext subscript = (LocusParser.ExpressionContext) node;
+            String array = variableName(subscript.expression(0));
+            if (array != null && !written.contains(array) && index.equals(variableName(subscript.expression(1)))) {
+                Long length = fixedLength.apply(array);
+                if (array.equals(boundArray) || (boundValue != null && length != null && boundValue <= length)) {
+                    guarded.add(subscript);
+                }
+            }
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            collectGuarded(node.getChild(i), index, boundArray, boundValue, fixedLength, written, guarded);
+        }
+    }
+
+    /** Variables a par body declares or assigns. */
+    private static void collectWritten(ParseTree node, Set<String> written) {
+        if (node instanceof LocusParser.VariableDeclarationContext) {
+            written.add(((LocusParser.VariableDeclarationContext) node).IDENTIFIER().getText());
+        } else if (node instanceof LocusParser.ExpressionContext && isAssignment((LocusParser.ExpressionContext) node)) {
+            written.add(((LocusParser.ExpressionContext) node).expression(0).getText());
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            collectWritten(node.getChild(i), written);
+        }
+    }
+
+    /** Whether an expression is a top-level statement of the body, run exactly once per iteration. */
+    private boolean isTopLevel(LocusParser.ExpressionContext expression) {
+        for (LocusParser.StatementContext statement : loop.block().statement()) {
+            if (statement.expressionStatement() != null && statement.expressionStatement().expression() == expression) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isBasicInductionVariable(String variable) {
+        Map<LocusParser.ExpressionContext, Integer> updates = inductionVariables.get(variable);
+        if (updates == null || updates.size() != 1) {
+            return false;
+        }
+        LocusParser.ExpressionContext update = updates.keySet().iterator().next();
+        // The update must run exactly once per iteration: a statement directly in the body
+        return isTopLevel(update) && updates.get(update) != 0;
+    }
+
+    /** The literal a variable holds on loop entry, from the nearest preceding write in the same block. */
+    private Long startValue(String variable) {
+        if (!(loop.getParent() instanceof LocusParser.StatementContext)
+            || !(loop.getParent().getParent() instanceof LocusParser.BlockContext)) {
+            return null;
+        }
+        List<LocusParser.StatementContext> statements = ((LocusParser.BlockContext) loop.getParent().getParent()).statement();
+        for (int i = statements.indexOf(loop.getParent()) - 1; i >= 0; i--) {
+            LocusParser.StatementContext statement = statements.get(i);
+            if (statement.variableDeclaration() != null
+                && statement.variableDeclaration().IDENTIFIER().getText().equals(variable)) {
+                LocusParser.ExpressionContext init = statement.variableDeclaration().expression();
+                return init != null ? integerLiteral(init) : null;
+            }
+            if (statement.expressionStatement() != null) {
+                LocusParser.ExpressionContext expression = statement.expressionStatement().expression();
+                if (isAssignment(expression) && expression.expression(0).getText().equals(variable)) {
+                    return integerLiteral(expression.expression(1));
+                }
+            }
+            if (writes(statement, variable)) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean writes(ParseTree node, String variable) {
+        if (node instanceof LocusParser.ExpressionContext && isAssignment((LocusParser.ExpressionContext) node)
+            && ((LocusParser.ExpressionContext) node).expression(0).getText().equals(variable)) {
+            return true;
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            if (writes(node.getChild(i), variable)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------------
+    // Helpers
+    // ---------------------------------------------------------------------
+
+    private static boolean isAssignment(LocusParser.ExpressionContext expression) {
+        return isBinary(expression) && expression.getChild(1).getText().equals("=");
+    }
+
+    private static boolean isBinary(LocusParser.ExpressionContext expression) {
+        return expression.getChildCount() == 3 && expression.expression().size() == 2;
+    }
+
+    private static boolean isSubscript(LocusParser.ExpressionContext expression) {
+        return expression.getChildCount() == 4 && expression.getChild(1).getText().equals("[");
+    }
+
+    private static boolean isCall(LocusParser.ExpressionContext expression) {
+        return expression.getChildCount() >= 3 && expression.getChild(1).getText().equals("(");
+    }
+
+    /** Whether a callee is `receiver.method`. */
+    private static boolean isMethod(LocusParser.ExpressionContext callee, String method) {
+        return callee.getChildCount() == 3 && callee.getChild(1).getText().equals(".")
+            && callee.getChild(2).getText().equals(method);
+    }
+
+    /** The array variable of `a.len()`, or null for any other expression. */
+    private static String lengthReceiver(LocusParser.ExpressionContext expression) {
+        expression = unwrap(expression);
+        if (!isCall(expression) || expression.argumentList() != null || !isMethod(expression.expression(0), "len")) {
+            return null;
+        }
+        return variableName(expression.expression(0).expression(0));
+    }
+
+    private static boolean isSpeculatableBinary(LocusParser.ExpressionContext expression) {
+        return isBinary(expression) && SPECULATABLE_OPS.contains(expression.getChild(1).getText());
+    }
+
+    private static LocusParser.ExpressionContext unwrap(LocusParser.ExpressionContext expression) {
+        while (expression.primary() != null && expression.primary().expression() != null) {
+            expression = expression.primary().expression();
+        }
+        return expression;
+    }
+
+    private static String variableName(LocusParser.ExpressionContext expression) {
+        expression = unwrap(expression);
+        return expression.primary() != null && expression.primary().IDENTIFIER() != null
+            ? expression.primary().IDENTIFIER().getText() : null;
+    }
+
+    private static Long integerLiteral(LocusParser.ExpressionContext expression) {
+        expression = unwrap(expression);
+        if (expression.primary() != null && expression.primary().INTEGER() != null) {
+            try {
+                return Long.parseLong(expression.primary().INTEGER().getText());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+}
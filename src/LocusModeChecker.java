@@ -0,0 +1,354 @@
+import java.util.*;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+/**
+ * Checks that `par` regions are free of data races using the uniqueness modes.
+ *
+ * A variable declared outside a region and used inside it is a capture.
+ * Captures that are only read must be `shared`. A capture that is written,
+ * or read where another iteration or task may write, must be `exclusive` or
+ * `unique` and be touched by exactly one task. In a parallel range loop, an
+ * exclusive capture may only be accessed as `v[i]`, where i is the loop index,
+ * so every iteration touches a different element.
+ *
+ * Each statement of a task block is its own task, so a local declared by one
+ * task is out of reach of the others and may not be used by them. Nothing in
+ * a range loop's body may rebind its index, so `v[i]` always names this
+ * iteration's element.
+ *
+ * Arrays are passed by reference, and structs are assumed to be since their
+ * copy semantics are not settled, so passing one to a function counts as a
+ * write, as does `v.push(x)`; `a.len()` is a read that every iteration may
+ * share. For the same reason an exclusive or unique struct is never copied to
+ * or from another variable: the copy may be a second name for the struct that
+ * the checker cannot see.
+ */
+public class LocusModeChecker extends LocusBaseListener {
+    // Uniqueness mode of each variable in the current function ("" when unannotated)
+    private Map<String, String> modes = new HashMap<>();
+    // Struct names, collected before any function is checked
+    private Set<String> structs = new HashSet<>();
+    // Variables of the current function that calls may receive by reference: arrays and structs
+    private Set<String> references = new HashSet<>();
+    private List<String> errors = new ArrayList<>();
+
+    @Override
+    public void enterProgram(LocusParser.ProgramContext ctx) {
+        for (LocusParser.StatementContext statement : ctx.statement()) {
+            if (statement.structDeclaration() != null) {
+                structs.add(statement.structDeclaration().IDENTIFIER().getText());
+            }
+        }
+    }
+
+    @Override
+    public void enterFunctionDeclaration(LocusParser.FunctionDeclarationContext ctx) {
+        modes.clear();
+        references.clear();
+        if (ctx.parameterList() != null) {
+            for (LocusParser.ParameterContext param : ctx.parameterList().parameter()) {
+                modes.put(param.IDENTIFIER().getText(), uniquenessOf(param.modeAnnotation()));
+                trackReference(param.IDENTIFIER().getText(), param.type());
+            }
+        }
+    }
+
+    @Override
+    public void enterVariableDeclaration(LocusParser.VariableDeclarationContext ctx) {
+        modes.put(ctx.IDENTIFIER().getText(), uniquenessOf(ctx.modeAnnotation()));
+        trackReference(ctx.IDENTIFIER().getText(), ctx.type());
+        if (ctx.expression() != null) {
+            checkAlias(ctx, ctx.IDENTIFIER().getText(), ctx.expression());
+        }
+    }
+
+    @Override
+    public void enterExpression(LocusParser.ExpressionContext ctx) {
+        if (isAssignment(ctx) && ctx.expression(0).primary() != null) {
+            checkAlias(ctx, ctx.expression(0).getText(), ctx.expression(1));
+        }
+    }
+
+    @Override
+    public void enterFieldInit(LocusParser.FieldInitContext ctx) {
+        checkAlias(ctx, null, ctx.expression());
+    }
+
+    /** Rejects copying a struct variable when either name is exclusive or unique; target is null for a field. */
+    private void checkAlias(ParserRuleContext at, String target, LocusParser.ExpressionContext value) {
+        String source = value.primary() != null && value.primary().IDENTIFIER() != null
+            ? value.primary().IDENTIFIER().getText() : null;
+        if (source == null || !references.contains(source) || !modes.containsKey(source)) {
+            return;
+        }
+        if (isSole(modes.get(source))) {
+            error(at, "struct '" + source + "' is " + modes.get(source) + "; "
+                + (target != null ? "'" + target + "'" : "a field") + " cannot share it");
+        } else if (target != null && isSole(modes.get(target))) {
+            error(at, modes.get(target) + " '" + target + "' cannot share struct '" + source + "'");
+        }
+    }
+
+    private static boolean isSole(String mode) {
+        return "exclusive".equals(mode) || "unique".equals(mode);
+    }
+
+    private void trackReference(String name, LocusParser.TypeContext type) {
+        String typeName = type.genericType() != null ? type.genericType().IDENTIFIER().getText()
+            : type.IDENTIFIER() != null ? type.IDENTIFIER().getText() : null;
+        if (type.arrayType() != null || "Vec".equals(typeName) || structs.contains(typeName)) {
+            references.add(name);
+        } else {
+            references.remove(name);
+        }
+    }
+
+    @Override
+    public void enterParallelStatement(LocusParser.ParallelStatementContext ctx) {
+        String index = ctx.IDENTIFIER() != null ? ctx.IDENTIFIER().getText() : null;
+        List<ParseTree> units = new ArrayList<>();
+        if (index != null) {
+            units.add(ctx.block());
+        } else {
+            units.addAll(ctx.block().statement());
+        }
+        if (ctx.block().expression() != null) {
+            error(ctx.block().expression(), "par blocks do not produce a value");
+        }
+        if (index != null) {
+            checkIndexNotRebound(ctx.block(), index);
+        }
+
+        // Accesses to each capture, per task (range loops have a single unit)
+        Map<String, List<Access>> captures = new LinkedHashMap<>();
+        Map<String, Integer> declaredBy = new HashMap<>();
+        for (int unit = 0; unit < units.size(); unit++) {
+            collectDeclarations(units.get(unit), unit, declaredBy);
+        }
+        for (int unit = 0; unit < units.size(); unit++) {
+            Set<String> locals = new HashSet<>();
+            if (index != null) {
+                locals.add(index);
+            }
+            collectAccesses(units.get(unit), unit, index, locals, captures);
+        }
+
+        for (Map.Entry<String, List<Access>> entry : captures.entrySet()) {
+            checkCapture(entry.getKey(), entry.getValue(), index, declaredBy);
+        }
+    }
+
+    private void checkCapture(String name, List<Access> accesses, String index, Map<String, Integer> declaredBy) {
+        Integer owner = declaredBy.get(name);
+        if (owner != null) {
+            for (Access access : accesses) {
+                if (access.unit != owner) {
+                    error(access.at, "par: '" + name + "' is declared by another task; tasks cannot share locals");
+                    return;
+                }
+            }
+        }
+        String mode = modes.get(name);
+        if (mode == null) {
+            return; // Functions and undeclared names are reported elsewhere
+        }
+        boolean written = false;
+        Set<Integer> tasks = new HashSet<>();
+        for (Access access : accesses) {
+            written |= access.write;
+            tasks.add(access.unit);
+        }
+        boolean sole = isSole(mode);
+
+        if (!written && mode.equals("shared")) {
+            return;
+        }
+        if (!sole) {
+            for (Access access : accesses) {
+                if (access.write == written) {
+                    error(access.at, written
+                        ? "par: captured '" + name + "' is written in parallel; declare it exclusive"
+                        : "par: captured '" + name + "' must be declared shared to be read in parallel");
+                    return;
+                }
+            }
+        }
+        if (index != null) {
+            // Every iteration runs the same body: only the index-selected element is disjoint
+            for (Access access : accesses) {
+                if (!access.indexed) {
+                    error(access.at, "par: every iteration accesses exclusive '" + name
+                        + "'; only " + name + "[" + index + "] is disjoint");
+                    return;
+                }
+            }
+        } else if (tasks.size() > 1) {
+            error(accesses.get(0).at, "par: " + mode + " '" + name + "' is used by more than one task");
+        }
+    }
+
+    /** Declarations, nested par loops and match bindings in the body may not reuse the index's name. */
+    private void checkIndexNotRebound(ParseTree node, String index) {
+        String bound = null;
+        if (node instanceof LocusParser.VariableDeclarationContext) {
+            bound = ((LocusParser.VariableDeclarationContext) node).IDENTIFIER().getText();
+        } else if (node instanceof LocusParser.ParallelStatementContext
+                   && ((LocusParser.ParallelStatementContext) node).IDENTIFIER() != null) {
+            bound = ((LocusParser.ParallelStatementContext) node).IDENTIFIER().getText();
+        } else if (node instanceof LocusParser.IdentifierPatternContext) {
+            bound = ((LocusParser.IdentifierPatternContext) node).IDENTIFIER().getText();
+        }
+        if (index.equals(bound)) {
+            error((ParserRuleContext) node, "par: '" + index + "' rebinds the loop index inside its body");
+            return;
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            checkIndexNotRebound(node.getChild(i), index);
+        }
+    }
+
+    /** Records which task declares each local of a region. */
+    private static void collectDeclarations(ParseTree node, int unit, Map<String, Integer> declaredBy) {
+        if (node instanceof LocusParser.VariableDeclarationContext) {
+            declaredBy.putIfAbsent(((LocusParser.VariableDeclarationContext) node).IDENTIFIER().getText(), unit);
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            collectDeclarations(node.getChild(i), unit, declaredBy);
+        }
+    }
+
+    /** Records captured reads and writes in a subtree, skipping names declared inside the region. */
+    private void collectAccesses(ParseTree node, int unit, String index, Set<String> locals,
+                                 Map<String, List<Access>> captures) {
+        if (node instanceof LocusParser.VariableDeclarationContext) {
+            LocusParser.VariableDeclarationContext declaration = (LocusParser.VariableDeclarationContext) node;
+            if (declaration.expression() != null) {
+                collectAccesses(declaration.expression(), unit, index, locals, captures);
+            }
+            locals.add(declaration.IDENTIFIER().getText());
+            return;
+        }
+        if (node instanceof LocusParser.ParallelStatementContext
+            && ((LocusParser.ParallelStatementContext) node).IDENTIFIER() != null) {
+            locals.add(((LocusParser.ParallelStatementContext) node).IDENTIFIER().getText());
+        }
+        if (node instanceof LocusParser.ReturnStatementContext) {
+            error((ParserRuleContext) node, "par: cannot return from inside a parallel region");
+        }
+        if (node instanceof LocusParser.ExpressionContext) {
+            LocusParser.ExpressionContext expression = (LocusParser.ExpressionContext) node;
+            if (isAssignment(expression)) {
+                recordAccess(expression.expression(0), true, unit, index, locals, captures);
+                collectAccesses(expression.expression(1), unit, index, locals, captures);
+                return;
+            }
+            if (expression.getChildCount() >= 3 && expression.getChild(1).getText().equals("(")) {
+                // Calls: the callee name is not a variable, but a method's receiver is
+                LocusParser.ExpressionContext callee = expression.expression(0);
+                if (callee.getChildCount() == 3 && callee.getChild(1).getText().equals(".")) {
+                    recordReceiver(callee, unit, index, locals, captures);
+                }
+                if (expression.argumentList() != null) {
+                    for (LocusParser.ExpressionContext arg : expression.argumentList().expression()) {
+                        if (arg.primary() != null && references.contains(arg.getText())) {
+                            recordAccess(arg, true, unit, index, locals, captures);
+                        } else {
+                            collectAccesses(arg, unit, index, locals, captures);
+                        }
+                    }
+                }
+                return;
+            }
+            if (rootVariable(expression) != null) {
+                recordAccess(expression, false, unit, index, locals, captures);
+                return;
+            }
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            collectAccesses(node.getChild(i), unit, index, locals, captures);
+        }
+    }
+
+    /** Records an access to a variable, `v.field` or `v[e]`, plus the reads in its index expressions. */
+    private void recordAccess(LocusParser.ExpressionContext target, boolean write, int unit, String index,
+                              Set<String> locals, Map<String, List<Access>> captures) {
+        String root = rootVariable(target);
+        if (root == null) {
+            collectAccesses(target, unit, index, locals, captures);
+            return;
+        }
+        if (root.equals(index) && write) {
+            error(target, "par: the loop index '" + index + "' is read-only");
+        }
+        boolean indexed = index != null && target.getChildCount() == 4 && target.getChild(1).getText().equals("[")
+            && target.expression(0).getText().equals(root) && target.expression(1).getText().equals(index);
+        if (!locals.contains(root)) {
+            captures.computeIfAbsent(root, k -> new ArrayList<>()).add(new Access(target, unit, write, indexed));
+        }
+
+        // Subscripts inside the access path are reads
+        for (LocusParser.ExpressionContext part = target; part != null && part.primary() == null; part = part.expression(0)) {
+            if (part.getChildCount() == 4 && part.getChild(1).getText().equals("[")) {
+                collectAccesses(part.expression(1), unit, index, locals, captures);
+            }
+        }
+    }
+
+    /** `v.push(x)` writes v; `a.len()` only reads the length, which no iteration can change. */
+    private void recordReceiver(LocusParser.ExpressionContext callee, int unit, String index,
+                                Set<String> locals, Map<String, List<Access>> captures) {
+        LocusParser.ExpressionContext receiver = callee.expression(0);
+        String root = rootVariable(receiver);
+        if (root == null || !callee.IDENTIFIER().getText().equals("len") || !receiver.getText().equals(root)) {
+            recordAccess(receiver, true, unit, index, locals, captures);
+            return;
+        }
+        if (!locals.contains(root)) {
+            captures.computeIfAbsent(root, k -> new ArrayList<>()).add(new Access(receiver, unit, false, true));
+        }
+    }
+
+    /** The variable at the root of `v`, `v.f` or `v[e]` chains, or null for other expressions. */
+    private static String rootVariable(LocusParser.ExpressionContext expression) {
+        while (expression.primary() == null) {
+            boolean field = expression.getChildCount() == 3 && expression.getChild(1).getText().equals(".");
+            boolean subscript = expression.getChildCount() == 4 && expression.getChild(1).getText().equals("[");
+            if (!field && !subscript) {
+                return null;
+            }
+            expression = expression.expression(0);
+        }
+        return expression.primary().IDENTIFIER() != null ? expression.primary().IDENTIFIER().getText() : null;
+    }
+
+    private static boolean isAssignment(LocusParser.ExpressionContext ctx) {
+        return ctx.getChildCount() == 3 && ctx.expression().size() == 2 && ctx.getChild(1).getText().equals("=");
+    }
+
+    private static String uniquenessOf(LocusParser.ModeAnnotationContext ctx) {
+        return ctx != null && ctx.uniquenessMode() != null ? ctx.uniquenessMode().getText() : "";
+    }
+
+    private void error(ParserRuleContext ctx, String message) {
+        errors.add("line " + ctx.getStart().getLine() + ": " + message);
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    private static class Access {
+        final ParserRuleContext at;
+        final int unit;
+        final boolean write;
+        final boolean indexed;
+
+        Access(ParserRuleContext at, int unit, boolean write, boolean indexed) {
+            this.at = at;
+            this.unit = unit;
+            this.write = write;
+            this.indexed = indexed;
+        }
+    }
+}
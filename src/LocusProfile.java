@@ -0,0 +1,42 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Execution counts written by an instrumented build (`--instrument`) and read
+ * back with `--profile=file`. The file has one `key count` line per counter.
+ * Keys name a function (`main`) or a branch site by its enclosing function and
+ * source position, e.g. `main:if@12:4:then` or `main:match@20:4:arm2`.
+ */
+public class LocusProfile {
+    private final Map<String, Long> counts = new HashMap<>();
+
+    public static LocusProfile read(String path) throws IOException {
+        LocusProfile profile = new LocusProfile();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                try {
+                    if (fields.length != 2) {
+                        throw new NumberFormatException();
+                    }
+                    profile.counts.merge(fields[0], Long.parseLong(fields[1]), Long::sum);
+                } catch (NumberFormatException e) {
+                    throw new IOException(path + ": line " + lineNumber + ": expected 'key count'");
+                }
+            }
+        }
+        return profile;
+    }
+
+    /** The recorded count, or -1 if the profile has no such counter. */
+    public long count(String key) {
+        return counts.getOrDefault(key, -1L);
+    }
+}
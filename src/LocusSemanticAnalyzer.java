@@ -1,35 +1,84 @@
 import java.util.*;
+import org.antlr.v4.runtime.ParserRuleContext;
 
+/**
+ * Builds the symbol table and enforces the rules every backend relies on.
+ *
+ * Arrays live in their declaring function and are passed by reference, so
+ * they cannot be assigned, returned or stored in struct fields; they are
+ * initialized only by an array literal, and their elements are primitives
+ * or payload-free enums.
+ */
 public class LocusSemanticAnalyzer extends LocusBaseListener {
     private Map<String, String> symbolTable = new HashMap<>();
     private List<String> errors = new ArrayList<>();
     private int currentScope = 0;
+    private final boolean trace;
+    // Payload-free enums, which are plain tags and may be array elements
+    private Set<String> tagEnums = new HashSet<>();
+    // Array-typed variables of the current function
+    private Set<String> arrays = new HashSet<>();
+    
+    public LocusSemanticAnalyzer() {
+        this(true);
+    }
+    
+    /** With trace off, nothing is printed; `locus run` only wants the errors. */
+    public LocusSemanticAnalyzer(boolean trace) {
+        this.trace = trace;
+    }
+    
+    @Override
+    public void enterProgram(LocusParser.ProgramContext ctx) {
+        for (LocusParser.StatementContext statement : ctx.statement()) {
+            LocusParser.EnumDeclarationContext enumDeclaration = statement.enumDeclaration();
+            if (enumDeclaration != null && enumDeclaration.typeList() == null
+                && enumDeclaration.enumVariant().stream().allMatch(variant -> variant.typeList() == null)) {
+                tagEnums.add(enumDeclaration.IDENTIFIER().getText());
+            }
+        }
+    }
     
     @Override
     public void enterFunctionDeclaration(LocusParser.FunctionDeclarationContext ctx) {
         String functionName = ctx.IDENTIFIER().getText();
-        System.out.println("Entering function: " + functionName);
+        trace("Entering function: " + functionName);
         currentScope++;
+        arrays.clear();
+        if (ctx.type() != null && isArray(ctx.type())) {
+            error(ctx.type(), "Functions cannot return arrays");
+        }
     }
     
     @Override
     public void exitFunctionDeclaration(LocusParser.FunctionDeclarationContext ctx) {
         String functionName = ctx.IDENTIFIER().getText();
-        System.out.println("Exiting function: " + functionName);
+        trace("Exiting function: " + functionName);
         currentScope--;
     }
     
+    @Override
+    public void enterStructField(LocusParser.StructFieldContext ctx) {
+        if (isArray(ctx.type())) {
+            error(ctx, "Struct fields cannot be arrays");
+        }
+    }
+    
     @Override
     public void enterVariableDeclaration(LocusParser.VariableDeclarationContext ctx) {
         String varName = ctx.IDENTIFIER().getText();
         String varType = getTypeString(ctx.type());
         String mode = getModeString(ctx.modeAnnotation());
         
-        System.out.println("Variable declaration: " + mode + " " + varType + " " + varName);
+        trace("Variable declaration: " + mode + " " + varType + " " + varName);
         
         // Add to symbol table
         String key = varName + "_" + currentScope;
         symbolTable.put(key, varType);
+        trackArray(varName, ctx.type());
+        if (isArray(ctx.type()) && ctx.expression() != null) {
+            checkArrayInitializer(ctx);
+        }
     }
     
     @Override
@@ -38,11 +87,79 @@ public class LocusSemanticAnalyzer extends LocusBaseListener {
         String paramType = getTypeString(ctx.type());
         String mode = getModeString(ctx.modeAnnotation());
         
-        System.out.println("Parameter: " + mode + " " + paramType + " " + paramName);
+        trace("Parameter: " + mode + " " + paramType + " " + paramName);
         
         // Add to symbol table
         String key = paramName + "_" + currentScope;
         symbolTable.put(key, paramType);
+        trackArray(paramName, ctx.type());
+    }
+    
+    @Override
+    public void enterExpression(LocusParser.ExpressionContext ctx) {
+        boolean assignment = ctx.getChildCount() == 3 && ctx.expression().size() == 2
+            && ctx.getChild(1).getText().equals("=");
+        if (assignment && ctx.expression(0).primary() != null
+            && arrays.contains(ctx.expression(0).primary().getText())) {
+            error(ctx, "Arrays cannot be assigned; assign their elements");
+        }
+    }
+    
+    @Override
+    public void enterPrimary(LocusParser.PrimaryContext ctx) {
+        if (ctx.arrayLiteral() == null) {
+            return;
+        }
+        // Only `[T; N] a = [...]` and `Vec<T> v = [...]` take a literal
+        ParserRuleContext expression = ctx.getParent();
+        ParserRuleContext declaration = expression.getParent();
+        if (!(declaration instanceof LocusParser.VariableDeclarationContext)
+            || !isArray(((LocusParser.VariableDeclarationContext) declaration).type())) {
+            error(ctx, "Array literals are only allowed as array initializers");
+        }
+    }
+    
+    private void checkArrayInitializer(LocusParser.VariableDeclarationContext ctx) {
+        LocusParser.PrimaryContext primary = ctx.expression().primary();
+        if (primary == null || primary.arrayLiteral() == null) {
+            error(ctx.expression(), "Arrays can only be initialized with an array literal");
+            return;
+        }
+        LocusParser.ArrayTypeContext fixed = ctx.type().arrayType();
+        int count = primary.arrayLiteral().expression().size();
+        if (fixed != null && count > 0 && count != Integer.parseInt(fixed.INTEGER().getText())) {
+            error(ctx.expression(), "Array literal has " + count + " elements but " + fixed.getText()
+                  + " needs " + fixed.INTEGER().getText());
+        }
+    }
+    
+    private void trackArray(String name, LocusParser.TypeContext type) {
+        if (isArray(type)) {
+            arrays.add(name);
+            LocusParser.TypeContext element = type.arrayType() != null ? type.arrayType().type()
+                                                                       : type.genericType().typeList().type(0);
+            boolean primitive = element.primitiveType() != null && !element.getText().equals("String");
+            if (!primitive && !(element.IDENTIFIER() != null && tagEnums.contains(element.getText()))) {
+                error(type, "Array elements must be primitive: " + type.getText());
+            }
+        } else {
+            arrays.remove(name);
+        }
+    }
+    
+    private static boolean isArray(LocusParser.TypeContext type) {
+        return type.arrayType() != null || (type.genericType() != null
+            && type.genericType().IDENTIFIER().getText().equals("Vec") && type.genericType().typeList().type().size() == 1);
+    }
+    
+    private void trace(String message) {
+        if (trace) {
+            System.out.println(message);
+        }
+    }
+    
+    private void error(ParserRuleContext ctx, String message) {
+        errors.add("line " + ctx.getStart().getLine() + ": " + message);
     }
     
     private String getTypeString(LocusParser.TypeContext ctx) {
@@ -50,6 +167,8 @@ public class LocusSemanticAnalyzer extends LocusBaseListener {
             return ctx.primitiveType().getText();
         } else if (ctx.genericType() != null) {
             return ctx.genericType().getText();
+        } else if (ctx.arrayType() != null) {
+            return ctx.arrayType().getText();
         } else if (ctx.IDENTIFIER() != null) {
             return ctx.IDENTIFIER().getText();
         }
@@ -60,6 +60,59 @@ else
     exit 1
 fi
 
+echo "  Testing bitcode output..."
+for example in hello complex par_test string_match_test array_test; do
+    rm -f examples/$example.bc
+    java -cp ".:tools/antlr-4.13.1-complete.jar:build/classes" LocusCompiler --emit=bc examples/$example.locus > /dev/null
+    if [ $? -ne 0 ] || [ ! -f examples/$example.bc ]; then
+        echo "  ✗ $example.locus bitcode output failed"
+        exit 1
+    fi
+done
+echo "  ✓ Bitcode written for strings, par regions and arrays"
+
+LLVM_AS=$(command -v llvm-as-15 || command -v llvm-as)
+LLVM_DIS=$(command -v llvm-dis-15 || command -v llvm-dis)
+if [ -n "$LLVM_AS" ] && [ -n "$LLVM_DIS" ]; then
+    echo "  Round-tripping bitcode through llvm-dis..."
+    for example in hello complex par_test string_match_test array_test; do
+        java -cp ".:tools/antlr-4.13.1-complete.jar:build/classes" LocusCompiler examples/$example.locus > /dev/null
+        $LLVM_AS examples/$example.ll -o examples/$example.as.bc \
+            && $LLVM_DIS examples/$example.as.bc -o examples/$example.expected.ll \
+            && $LLVM_DIS examples/$example.bc -o examples/$example.actual.ll \
+            && diff <(grep -v "^; ModuleID\|^source_filename" examples/$example.expected.ll) \
+                    <(grep -v "^; ModuleID\|^source_filename" examples/$example.actual.ll)
+        status=$?
+        rm -f examples/$example.as.bc examples/$example.expected.ll examples/$example.actual.ll
+        if [ $status -ne 0 ]; then
+            echo "  ✗ llvm-dis does not read $example.bc back as the module in $example.ll"
+            exit 1
+        fi
+    done
+    echo "  ✓ Bitcode disassembles to the same module as the textual IR"
+fi
+
+echo "  Testing programs the mode checker rejects..."
+for program in examples/rejected/*.locus; do
+    expected=$(sed -n 's|^// expect: ||p' "$program" | head -1)
+    output=$(java -cp ".:tools/antlr-4.13.1-complete.jar:build/classes" LocusCompiler "$program" 2>&1)
+    if [ $? -eq 0 ] || ! grep -qF "$expected" <<< "$output"; then
+        echo "  ✗ $program was not rejected with \"$expected\""
+        exit 1
+    fi
+done
+echo "  ✓ Racy par regions are rejected"
+
+# Test 6: Check what the examples compute, not just that they compile
+echo "6. Running example programs on every available backend..."
+./difftest.sh
+if [ $? -eq 0 ]; then
+    echo "  ✓ Interpreter and compiled backends agree"
+else
+    echo "  ✗ Backends disagree"
+    exit 1
+fi
+
 echo
 echo "=== All tests passed! ANTLR setup is working correctly. ==="
 echo
@@ -68,4 +121,5 @@ echo "  - Edit grammar/Locus.g4 to modify the language"
 echo "  - Add new example programs in examples/"
 echo "  - Extend src/LocusSemanticAnalyzer.java for semantic analysis"
 echo "  - Run './antlr.sh generate grammar/Locus.g4' after grammar changes"
-echo "  - Run './build.sh' to rebuild the compiler"
\ No newline at end of file
+echo "  - Run './build.sh' to rebuild the compiler"
+echo "  - Run './locus run examples/while_test.locus' to interpret a program"
\ No newline at end of file